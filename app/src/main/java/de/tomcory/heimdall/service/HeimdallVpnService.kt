@@ -17,7 +17,9 @@ import de.tomcory.heimdall.application.HeimdallApplication
 import de.tomcory.heimdall.core.database.HeimdallDatabase
 import de.tomcory.heimdall.core.datastore.PreferencesDataSource
 import de.tomcory.heimdall.core.util.AppFinder
+import de.tomcory.heimdall.core.util.ContentStore
 import de.tomcory.heimdall.core.util.InetAddressUtils
+import de.tomcory.heimdall.core.util.MitmPolicy
 import de.tomcory.heimdall.core.vpn.components.ComponentManager
 import de.tomcory.heimdall.core.vpn.components.RoomDatabaseConnector
 import de.tomcory.heimdall.core.vpn.mitm.VpnComponentLaunchException
@@ -157,6 +159,18 @@ class HeimdallVpnService : VpnService() {
             }
         }
 
+        // compile the MitM scope from the configured white- and blacklists
+        val mitmPolicy = withContext(Dispatchers.IO) {
+            MitmPolicy.compile(
+                enabled = doMitm,
+                packageManager = packageManager,
+                whitelistApps = preferences.mitmWhitelistApps.first(),
+                blacklistApps = preferences.mitmBlacklistApps.first(),
+                whitelistHosts = preferences.mitmWhitelistHosts.first(),
+                blacklistHosts = preferences.mitmBlacklistHosts.first()
+            )
+        }
+
         // establish the VPN interface
         if (!establishInterface(doMitm, useProxy)) {
             // shut down the VPN components if the interface could not be established
@@ -173,8 +187,10 @@ class HeimdallVpnService : VpnService() {
                 context = this,
                 appFinder = AppFinder(this),
                 doMitm = doMitm,
+                mitmPolicy = mitmPolicy,
                 existingSessionId = existingSessionId,
                 keyStoreDir = File(this.filesDir, "keystore"),
+                contentDir = ContentStore.defaultDirectory(this),
                 protectDatagramSocket = { socket -> protect(socket) },
                 protectSocket = { socket -> protect(socket) }
             )
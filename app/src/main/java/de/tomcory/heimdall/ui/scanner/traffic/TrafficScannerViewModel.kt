@@ -15,6 +15,7 @@ import de.tomcory.heimdall.core.database.entity.Session
 import de.tomcory.heimdall.core.proxy.HeimdallHttpProxyServer
 import de.tomcory.heimdall.core.proxy.littleshoot.mitm.CertificateSniffingMitmManager
 import de.tomcory.heimdall.core.util.InetAddressUtils
+import de.tomcory.heimdall.core.util.MitmPolicy
 import de.tomcory.heimdall.service.HeimdallVpnService
 import de.tomcory.heimdall.ui.scanner.ScannerRepository
 import kotlinx.coroutines.Dispatchers
@@ -191,11 +192,18 @@ class TrafficScannerViewModel @Inject constructor(
                 repository.preferences.certSubjectO.first(),
                 repository.preferences.certSubjectOu.first()
             )
+            // the proxy can't attribute connections to apps, so only the host rules are compiled into its MitM scope
+            val mitmPolicy = MitmPolicy.compile(
+                enabled = true,
+                whitelistHosts = repository.preferences.mitmWhitelistHosts.first(),
+                blacklistHosts = repository.preferences.mitmBlacklistHosts.first()
+            )
             val proxyServer = HeimdallHttpProxyServer(
                 InetAddressUtils.stringToInetSocketAddress(repository.preferences.vpnProxyAddress.first()),
                 CertificateSniffingMitmManager(oldAuth),
                 context,
-                database
+                database,
+                mitmPolicy
             )
 
             val sessionId = persistSession(System.currentTimeMillis())
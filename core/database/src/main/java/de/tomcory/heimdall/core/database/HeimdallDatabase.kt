@@ -26,7 +26,7 @@ import de.tomcory.heimdall.core.database.entity.SubReport
 import de.tomcory.heimdall.core.database.entity.Tracker
 
 @Database(
-    version = 6,
+    version = 7,
     entities = [
         App::class,
         AppXPermission::class,
@@ -9,7 +9,7 @@ import de.tomcory.heimdall.core.database.entity.Connection
 
 @Dao
 interface ConnectionDao {
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    @Insert(onConflict = OnConflictStrategy.ABORT)
     suspend fun insert(vararg connections: Connection): List<Long>
 
     @Update
@@ -18,6 +18,9 @@ interface ConnectionDao {
     @Query("DELETE FROM Connection WHERE id = :id")
     suspend fun delete(id: Int): Int
 
+    @Query("DELETE FROM Connection WHERE id IN (:ids)")
+    suspend fun delete(ids: List<Int>): Int
+
     @Query("DELETE FROM Connection WHERE initiatorPkg = :packageName")
     suspend fun deleteForApp(packageName: String): Int
 
@@ -28,4 +28,7 @@ interface RequestDao {
 
     @Query("Select * FROM Request")
     fun getAllObservable(): Flow<List<Request>>
+
+    @Query("SELECT DISTINCT contentRef FROM Request WHERE contentRef IS NOT NULL")
+    suspend fun getContentRefs(): List<String>
 }
\ No newline at end of file
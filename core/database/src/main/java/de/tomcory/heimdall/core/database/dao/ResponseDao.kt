@@ -28,4 +28,7 @@ interface ResponseDao {
 
     @Query("Select * FROM Response")
     fun getAllObservable(): Flow<List<Response>>
+
+    @Query("SELECT DISTINCT contentRef FROM Response WHERE contentRef IS NOT NULL")
+    suspend fun getContentRefs(): List<String>
 }
\ No newline at end of file
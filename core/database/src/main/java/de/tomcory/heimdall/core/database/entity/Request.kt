@@ -25,6 +25,8 @@ data class Request(
     val headers: String,
     val content: String,
     val contentLength: Int,
+    /** Reference to the body in the content store, if it was too large or not textual enough to be stored in [content]. */
+    val contentRef: String? = null,
     val method: String,
     val remoteHost: String,
     val remotePath: String,
@@ -9,6 +9,8 @@ import de.tomcory.heimdall.core.proxy.littleshoot.SelectiveMitmManager;
 import de.tomcory.heimdall.core.proxy.littleshoot.SelectiveMitmManagerAdapter;
 import de.tomcory.heimdall.core.proxy.littleshoot.impl.DefaultHttpProxyServer;
 import de.tomcory.heimdall.core.proxy.littleshoot.mitm.CertificateSniffingMitmManager;
+import de.tomcory.heimdall.core.util.BodyCapturePolicy;
+import de.tomcory.heimdall.core.util.MitmPolicy;
 
 import java.net.InetSocketAddress;
 
@@ -20,6 +22,8 @@ public class HeimdallHttpProxyServer {
     private CertificateSniffingMitmManager mitmManager;
     private final Context context;
     private final HeimdallDatabase database;
+    private final MitmPolicy mitmPolicy;
+    private final BodyCapturePolicy bodyCapturePolicy;
 
     private HttpProxyServer server;
 
@@ -28,10 +32,40 @@ public class HeimdallHttpProxyServer {
             CertificateSniffingMitmManager mitmManager,
             Context applicationContext,
             HeimdallDatabase database
+    ) {
+        this(listeningAddress, mitmManager, applicationContext, database, MitmPolicy.Companion.unrestricted(true));
+    }
+
+    /**
+     * @param mitmPolicy The scope rules deciding which peers are intercepted. The proxy can't tell which app a connection belongs to, so only host rules apply.
+     */
+    public HeimdallHttpProxyServer(
+            final InetSocketAddress listeningAddress,
+            CertificateSniffingMitmManager mitmManager,
+            Context applicationContext,
+            HeimdallDatabase database,
+            MitmPolicy mitmPolicy
+    ) {
+        this(listeningAddress, mitmManager, applicationContext, database, mitmPolicy, BodyCapturePolicy.Companion.getDEFAULT());
+    }
+
+    /**
+     * @param mitmPolicy The scope rules deciding which peers are intercepted. The proxy can't tell which app a connection belongs to, so only host rules apply.
+     * @param bodyCapturePolicy The policy deciding how the bodies of proxied messages are captured.
+     */
+    public HeimdallHttpProxyServer(
+            final InetSocketAddress listeningAddress,
+            CertificateSniffingMitmManager mitmManager,
+            Context applicationContext,
+            HeimdallDatabase database,
+            MitmPolicy mitmPolicy,
+            BodyCapturePolicy bodyCapturePolicy
     ) {
         this.listeningAddress = listeningAddress;
         this.context = applicationContext;
         this.database = database;
+        this.mitmPolicy = mitmPolicy;
+        this.bodyCapturePolicy = bodyCapturePolicy;
 
         if (mitmManager != null) {
             this.mitmManager = mitmManager;
@@ -43,11 +77,10 @@ public class HeimdallHttpProxyServer {
             @Override
             public boolean shouldMITMPeer(String peerHost, int peerPort) {
                 if (SelectiveMitmManager.whiteLsited.contains(peerHost + peerPort)) {
-                    removeWhiteListed(peerHost + peerHost);
+                    removeWhiteListed(peerHost + peerPort);
                     return false;
                 }
-                // HostAndPort.fromParts(peerHost, peerPort);
-                return true;
+                return mitmPolicy.shouldMitm(MitmPolicy.UNKNOWN_UID, peerHost);
             }
 
             @Override
@@ -68,7 +101,7 @@ public class HeimdallHttpProxyServer {
                         .withAddress(listeningAddress)
                         .withManInTheMiddle(getMitmManager())
                         .withTransparent(true)
-                        .withFiltersSource(new HttpProxyFiltersSourceImpl(context, database, sessionId));
+                        .withFiltersSource(new HttpProxyFiltersSourceImpl(context, database, sessionId, bodyCapturePolicy));
 
         Timber.d("Proxy server prepared");
 
@@ -11,10 +11,17 @@ import de.tomcory.heimdall.core.database.entity.Request
 import de.tomcory.heimdall.core.database.entity.Response
 import de.tomcory.heimdall.core.proxy.littleshoot.HttpFiltersAdapter
 import de.tomcory.heimdall.core.util.AppFinder
+import de.tomcory.heimdall.core.util.BodyCapture
+import de.tomcory.heimdall.core.util.BodyCapturePolicy
+import de.tomcory.heimdall.core.util.ContentStore
+import de.tomcory.heimdall.core.util.MemoryBudget
+import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.http.FullHttpRequest
 import io.netty.handler.codec.http.FullHttpResponse
 import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpHeaders
 import io.netty.handler.codec.http.HttpObject
 import io.netty.handler.codec.http.HttpRequest
 import io.netty.handler.codec.http.HttpResponse
@@ -26,7 +33,6 @@ import kotlinx.coroutines.launch
 import timber.log.Timber
 import java.net.Inet6Address
 import java.net.InetSocketAddress
-import java.nio.charset.Charset
 import java.util.Objects
 import java.util.stream.Collectors
 import kotlin.reflect.typeOf
@@ -37,7 +43,10 @@ class HttpProxyFiltersImpl(
     private val clientAddress: InetSocketAddress,
     context: Context,
     private val database: HeimdallDatabase,
-    private val sessionId: Int
+    private val sessionId: Int,
+    private val bodyCapturePolicy: BodyCapturePolicy,
+    private val contentStore: ContentStore?,
+    private val captureBudget: MemoryBudget?
 ) : HttpFiltersAdapter(originalRequest, ctx) {
     private var isHttps = false
     private var connectedRemoteAddress: InetSocketAddress? = null
@@ -91,19 +100,20 @@ class HttpProxyFiltersImpl(
             ""
         }
 
-        val content = try {
-            if (storeContent) fhr.content().toString(Charset.defaultCharset()) else ""
+        val body = try {
+            if (storeContent) captureContent(fhr.headers(), fhr.content()) else BodyCapture.CapturedBody.EMPTY
         } catch (e: Exception) {
             Timber.w("Encountered Netty weirdness while accessing the request content")
-            ""
+            BodyCapture.CapturedBody.EMPTY
         }
 
         val request = Request(
             connectionId = connectionId,
             timestamp = System.currentTimeMillis(),
             headers = headers,
-            content = content,
-            contentLength = content.length,
+            content = body.content,
+            contentLength = body.contentLength,
+            contentRef = body.contentRef,
             method = fhr.method().name(),
             remoteHost = currentResolved.hostString,
             remotePath = if (fhr.uri().startsWith("/")) fhr.uri() else "",
@@ -132,19 +142,20 @@ class HttpProxyFiltersImpl(
             ""
         }
 
-        val content = try {
-            if (storeContent) fhr.content().toString(Charset.defaultCharset()) else ""
+        val body = try {
+            if (storeContent) captureContent(fhr.headers(), fhr.content()) else BodyCapture.CapturedBody.EMPTY
         } catch (e: Exception) {
             Timber.w("Encountered Netty weirdness while accessing the response content")
-            ""
+            BodyCapture.CapturedBody.EMPTY
         }
 
         val response = Response(
             requestId = requestId,
             timestamp = System.currentTimeMillis(),
             headers = headers,
-            content = content,
-            contentLength = content.length,
+            content = body.content,
+            contentLength = body.contentLength,
+            contentRef = body.contentRef,
             statusCode = fhr.status().code(),
             statusMsg = fhr.status().reasonPhrase(),
             remoteHost = currentResolved.hostString,
@@ -160,6 +171,41 @@ class HttpProxyFiltersImpl(
         database.responseDao().insert(response)
     }
 
+    /**
+     * Captures an aggregated message body following the [bodyCapturePolicy], without copying it into a String first.
+     * Waits for a body that spilled to the [ContentStore] to be committed, so this must only be called on a background thread.
+     */
+    private fun captureContent(headers: HttpHeaders, content: ByteBuf): BodyCapture.CapturedBody {
+        val capture = BodyCapture(
+            bodyCapturePolicy,
+            headers.get(HttpHeaderNames.CONTENT_TYPE),
+            headers.get(HttpHeaderNames.CONTENT_ENCODING),
+            contentStore,
+            captureBudget
+        )
+        try {
+            val length = content.readableBytes()
+            if (content.hasArray()) {
+                capture.append(content.array(), content.arrayOffset() + content.readerIndex(), length)
+            } else {
+                // direct buffers are copied in chunks
+                val chunk = ByteArray(minOf(length, CAPTURE_CHUNK_SIZE))
+                var index = content.readerIndex()
+                val end = index + length
+                while (index < end) {
+                    val count = minOf(chunk.size, end - index)
+                    content.getBytes(index, chunk, 0, count)
+                    capture.append(chunk, 0, count)
+                    index += count
+                }
+            }
+        } catch (e: Exception) {
+            capture.abort()
+            throw e
+        }
+        return capture.finish().get()
+    }
+
     override fun clientToProxyRequest(httpObject: HttpObject): HttpResponse? {
         if (httpObject is HttpRequest) {
             val isHttpsAttr = ctx.attr(isHttpsAttrKey)
@@ -258,4 +304,8 @@ class HttpProxyFiltersImpl(
     override fun serverToProxyResponseReceived() {
         Timber.d("serverToProxyResponseReceived()")
     }
-}
\ No newline at end of file
+
+    companion object {
+        private const val CAPTURE_CHUNK_SIZE = 16 * 1024
+    }
+}
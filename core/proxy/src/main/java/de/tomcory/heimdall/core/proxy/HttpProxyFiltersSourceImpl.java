@@ -7,6 +7,9 @@ import java.net.InetSocketAddress;
 import de.tomcory.heimdall.core.database.HeimdallDatabase;
 import de.tomcory.heimdall.core.proxy.littleshoot.HttpFilters;
 import de.tomcory.heimdall.core.proxy.littleshoot.HttpFiltersSourceAdapter;
+import de.tomcory.heimdall.core.util.BodyCapturePolicy;
+import de.tomcory.heimdall.core.util.ContentStore;
+import de.tomcory.heimdall.core.util.MemoryBudget;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpRequest;
@@ -18,10 +21,25 @@ public class HttpProxyFiltersSourceImpl extends HttpFiltersSourceAdapter {
 
     private final int sessionId;
 
+    private final BodyCapturePolicy bodyCapturePolicy;
+    private final ContentStore contentStore;
+    private final MemoryBudget captureBudget;
+
     public HttpProxyFiltersSourceImpl(Context context, HeimdallDatabase database, int sessionId) {
+        this(context, database, sessionId, BodyCapturePolicy.Companion.getDEFAULT());
+    }
+
+    /**
+     * @param bodyCapturePolicy The policy deciding how the bodies of proxied messages are captured.
+     */
+    public HttpProxyFiltersSourceImpl(Context context, HeimdallDatabase database, int sessionId, BodyCapturePolicy bodyCapturePolicy) {
         this.context = context;
         this.database = database;
         this.sessionId = sessionId;
+        this.bodyCapturePolicy = bodyCapturePolicy;
+        // the store is shared with the VPN, which captures into the same directory
+        this.contentStore = ContentStore.forDirectory(ContentStore.defaultDirectory(context));
+        this.captureBudget = new MemoryBudget(CAPTURE_MEMORY_BUDGET, null);
     }
 
     @Override
@@ -30,9 +48,21 @@ public class HttpProxyFiltersSourceImpl extends HttpFiltersSourceAdapter {
         return new HttpProxyFiltersImpl(
             originalRequest,
             ctx,
-            (InetSocketAddress) ctx.channel().remoteAddress(), context, database, sessionId);
+            (InetSocketAddress) ctx.channel().remoteAddress(), context, database, sessionId, bodyCapturePolicy, contentStore,
+            // each filter gets its share of the global budget, so that a single connection can't take up all of it
+            new MemoryBudget(CONNECTION_CAPTURE_BUDGET, captureBudget));
     }
 
+    /**
+     * Maximum memory held by the captured bodies of all proxied messages before they spill into the content store.
+     */
+    private static final long CAPTURE_MEMORY_BUDGET = 32L * 1024 * 1024;
+
+    /**
+     * Maximum memory held by the captured bodies of a single proxied connection.
+     */
+    private static final long CONNECTION_CAPTURE_BUDGET = 4L * 1024 * 1024;
+
     @Override
     public int getMaximumRequestBufferSizeInBytes() {
         return 10 * 1024 * 1024; // aggregate chunks and decompress until 10MB request.
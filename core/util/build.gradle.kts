@@ -23,4 +23,7 @@ dependencies {
 
     // Timber
     implementation (libs.timber)
+
+    // test stuff
+    testImplementation (libs.junit)
 }
\ No newline at end of file
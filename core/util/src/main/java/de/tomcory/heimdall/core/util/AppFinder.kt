@@ -7,9 +7,10 @@ import android.os.Build
 import android.system.OsConstants
 import androidx.annotation.RequiresApi
 import timber.log.Timber
-import java.io.*
+import java.io.File
 import java.net.InetAddress
 import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
 
 class AppFinder(
     context: Context?,
@@ -22,6 +23,13 @@ class AppFinder(
     private val pm: PackageManager? = context?.packageManager
     private val cm: ConnectivityManager? = context?.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager?
 
+    // the /proc/net tables are only used before Q, where getConnectionOwnerUid is not available
+    private val tcpIndex by lazy { ProcNetIndex(arrayOf(tcp6File, tcp4File)) }
+    private val udpIndex by lazy { ProcNetIndex(arrayOf(udp6File, udp4File)) }
+
+    /** Package names by UID, with an empty string for UIDs without a package. */
+    private val packages = ConcurrentHashMap<Int, String>()
+
     fun getAppId(localAddress: InetAddress, remoteAddress: InetAddress, localPort: Int, remotePort: Int, protocol: Int): Int? {
         val aid = try {
             if(Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
@@ -43,7 +51,17 @@ class AppFinder(
     }
 
     fun getAppPackage(aid: Int?): String? {
-        return if(aid != null && aid >= 0) pm?.getPackagesForUid(aid)?.get(0) else null
+        if(aid == null || aid < 0) {
+            return null
+        }
+        // the package lookup goes through a binder call, but a UID's package hardly ever changes
+        val cached = packages[aid]
+        if(cached != null) {
+            return cached.ifEmpty { null }
+        }
+        val aidPackage = pm?.getPackagesForUid(aid)?.firstOrNull()
+        packages[aid] = aidPackage ?: ""
+        return aidPackage
     }
 
     @RequiresApi(api = Build.VERSION_CODES.Q)
@@ -60,40 +78,12 @@ class AppFinder(
     }
 
     private fun getAid(localPort: Int, protocol: Int): Int {
-
-        // select the relevant /proc/net files based on the connection's transport protocol
-        //TODO: does the IP version matter (or do we always have to query both files)?
-        val queryFiles = when(protocol) {
-            OsConstants.IPPROTO_TCP -> arrayOf(tcp6File, tcp4File)
-            OsConstants.IPPROTO_UDP -> arrayOf(udp6File, udp4File)
+        // select the relevant /proc/net index based on the connection's transport protocol
+        val index = when(protocol) {
+            OsConstants.IPPROTO_TCP -> tcpIndex
+            OsConstants.IPPROTO_UDP -> udpIndex
             else -> throw java.lang.UnsupportedOperationException("Unsupported transport protocol")
         }
-
-        for (file in queryFiles) {
-
-            // open a reader on the file
-            val reader: BufferedReader = try {
-                BufferedReader(FileReader(file))
-            } catch (e: FileNotFoundException) {
-                Timber.e(e, "Error opening /proc/net reader")
-                return -1
-            }
-
-            // iterate over all entries to find one with a local port matching the supplied connection's
-            try {
-                for(line in reader.lines()) {
-                    val splitLine = line.replace("[ ]{2,}".toRegex(), " ").trim { it <= ' ' }
-                        .split(" ").toTypedArray()
-                    val entryPort = splitLine[1].substring(splitLine[1].indexOf(':') + 1).toInt(16)
-                    if (entryPort == localPort) {
-                        return splitLine[7].toInt()
-                    }
-                }
-            } catch (e: IOException) {
-                Timber.e(e, "Error reading from /proc/net")
-                return -1
-            }
-        }
-        return -1
+        return index.getUid(localPort)
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,196 @@
+package de.tomcory.heimdall.core.util
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Captures a single message body as it is streamed in, following a [BodyCapturePolicy].
+ *
+ * Text bodies are held in memory while they fit the policy's inline size and the [MemoryBudget] has room for them. Once
+ * either runs out, the body spills into the [ContentStore], as do binary bodies right away. Without a store, the parts
+ * that don't fit are dropped and only the length of the body is recorded, as is the case for the rest of a body once the
+ * store falls too far behind.
+ *
+ * A capture must only be used from one thread at a time, and has to be either finished or aborted to return its memory to the budget.
+ *
+ * @param policy The [BodyCapturePolicy] deciding how the body is captured.
+ * @param contentType The value of the message's Content-Type header.
+ * @param contentEncoding The value of the message's Content-Encoding header.
+ * @param store The [ContentStore] that large and binary bodies are written to.
+ * @param budget The [MemoryBudget] that bodies held in memory are reserved from.
+ */
+class BodyCapture(
+    private val policy: BodyCapturePolicy,
+    contentType: String?,
+    contentEncoding: String?,
+    private val store: ContentStore?,
+    private val budget: MemoryBudget?
+) {
+
+    /**
+     * The outcome of a capture.
+     *
+     * @property content The body as it is stored in the database: the text of small text bodies, or a placeholder describing what happened to the body.
+     * @property contentRef The [ContentStore] reference of the body, if it was stored there.
+     * @property length The full length of the body, including the bytes that weren't captured.
+     */
+    data class CapturedBody(
+        val content: String,
+        val contentRef: String?,
+        val length: Long
+    ) {
+        /**
+         * The length as stored in the database.
+         */
+        val contentLength: Int
+            get() = length.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+
+        companion object {
+            /**
+             * The outcome for messages without a body.
+             */
+            val EMPTY = CapturedBody("", null, 0)
+        }
+    }
+
+    /**
+     * How the body is captured. Binary bodies are not captured at all without a store.
+     */
+    val mode = policy.modeFor(contentType, contentEncoding).let {
+        if(it == BodyCapturePolicy.Mode.BINARY && store == null) BodyCapturePolicy.Mode.SKIP else it
+    }
+
+    private var buffer = EMPTY
+    private var buffered = 0
+    private var reserved = 0L
+
+    private var writer: ContentStore.Writer? = null
+
+    /** Whether bytes of the body were dropped. */
+    private var truncated = false
+
+    /**
+     * The full length of the body appended so far.
+     */
+    var length = 0L
+        private set
+
+    fun append(bytes: ByteArray, offset: Int, length: Int) {
+        this.length += length
+        if(mode == BodyCapturePolicy.Mode.SKIP || truncated || length == 0) {
+            return
+        }
+
+        if(writer == null && (mode == BodyCapturePolicy.Mode.BINARY || !bufferInMemory(bytes, offset, length))) {
+            spill()
+        }
+
+        val spilled = writer
+        if(spilled != null) {
+            if(!truncated) {
+                write(spilled, bytes, offset, length)
+            }
+        } else if(buffered.toLong() != this.length) {
+            // the body neither fit in memory nor could be spilled
+            truncated = true
+        }
+    }
+
+    /**
+     * Completes the capture, committing the body to the store if it spilled there.
+     *
+     * @return Completed with the outcome once the body has been committed, which happens on the store's I/O thread for spilled bodies.
+     */
+    fun finish(): CompletableFuture<CapturedBody> {
+        val spilled = writer
+        val length = length
+        val result = when {
+            mode == BodyCapturePolicy.Mode.SKIP -> CompletableFuture.completedFuture(CapturedBody(if(length > 0) "<not captured: $length bytes>" else "", null, length))
+            spilled != null -> {
+                val stored = spilled.length
+                val truncated = truncated
+                spilled.commit().thenApply { reference ->
+                    val content = when {
+                        reference == null -> "<not stored: $length bytes>"
+                        truncated -> "<stored: first $stored of $length bytes>"
+                        else -> "<stored: $length bytes>"
+                    }
+                    CapturedBody(content, reference, length)
+                }
+            }
+            truncated -> CompletableFuture.completedFuture(CapturedBody("<too large: $length bytes>", null, length))
+            else -> CompletableFuture.completedFuture(CapturedBody(String(buffer, 0, buffered, Charsets.UTF_8), null, length))
+        }
+        writer = null
+        releaseBuffer()
+        return result
+    }
+
+    /**
+     * Discards the capture.
+     */
+    fun abort() {
+        writer?.abort()
+        writer = null
+        releaseBuffer()
+    }
+
+    /**
+     * Appends the bytes to the in-memory buffer if the body still fits the inline size and the budget.
+     *
+     * @return False if the bytes don't fit, in which case nothing was appended.
+     */
+    private fun bufferInMemory(bytes: ByteArray, offset: Int, length: Int): Boolean {
+        val required = buffered + length
+        if(required > policy.maxInlineSize) {
+            return false
+        }
+        if(required > buffer.size) {
+            val capacity = maxOf(minOf(maxOf(buffer.size * 2, INITIAL_BUFFER_SIZE), policy.maxInlineSize), required)
+            val growth = (capacity - buffer.size).toLong()
+            if(budget != null && !budget.tryReserve(growth)) {
+                return false
+            }
+            reserved += growth
+            buffer = buffer.copyOf(capacity)
+        }
+        System.arraycopy(bytes, offset, buffer, buffered, length)
+        buffered += length
+        return true
+    }
+
+    /**
+     * Moves the body to the store, if there is one.
+     */
+    private fun spill() {
+        val store = store ?: return
+        val newWriter = store.newWriter()
+        if(buffered > 0 && !newWriter.write(buffer, 0, buffered)) {
+            truncated = true
+        }
+        writer = newWriter
+        releaseBuffer()
+    }
+
+    private fun write(writer: ContentStore.Writer, bytes: ByteArray, offset: Int, length: Int) {
+        val writable = minOf(length.toLong(), policy.maxStoredSize - writer.length).toInt()
+        if(writable > 0 && !writer.write(bytes, offset, writable)) {
+            truncated = true
+        } else if(writable < length) {
+            truncated = true
+        }
+    }
+
+    private fun releaseBuffer() {
+        buffer = EMPTY
+        buffered = 0
+        if(reserved > 0) {
+            budget?.release(reserved)
+            reserved = 0
+        }
+    }
+
+    companion object {
+        private val EMPTY = ByteArray(0)
+        private const val INITIAL_BUFFER_SIZE = 4 * 1024
+    }
+}
@@ -0,0 +1,77 @@
+package de.tomcory.heimdall.core.util
+
+/**
+ * Decides how much of the message bodies passing through the VPN or the proxy is captured, based on their content types.
+ *
+ * Bodies of [excludedTypes] are not captured at all. Bodies of [textTypes] (and bodies without a content type) are stored in the
+ * database as text if they fit [maxInlineSize]. All other bodies, and text bodies that are too large or compressed, are streamed
+ * into a [ContentStore] up to [maxStoredSize] bytes, with only a reference stored in the database.
+ *
+ * Patterns are either exact media types (application/json), type wildcards (image/ *) or structured syntax suffixes (*+json).
+ *
+ * @param excludedTypes Media type patterns of bodies that are never captured.
+ * @param textTypes Media type patterns of bodies that are stored as text if they are small enough.
+ * @param maxInlineSize Maximum size of a body stored in the database as text.
+ * @param maxStoredSize Maximum number of bytes of a body streamed into the [ContentStore]. Larger bodies are truncated.
+ */
+class BodyCapturePolicy(
+    private val excludedTypes: List<String> = DEFAULT_EXCLUDED_TYPES,
+    private val textTypes: List<String> = DEFAULT_TEXT_TYPES,
+    val maxInlineSize: Int = DEFAULT_MAX_INLINE_SIZE,
+    val maxStoredSize: Long = DEFAULT_MAX_STORED_SIZE
+) {
+
+    enum class Mode {
+        /** The body is not captured, only its length is recorded. */
+        SKIP,
+
+        /** The body is stored in the database as text if it is small enough, and in the content store otherwise. */
+        TEXT,
+
+        /** The body is stored in the content store. */
+        BINARY
+    }
+
+    /**
+     * Returns how a body with the supplied Content-Type and Content-Encoding header values is captured.
+     */
+    fun modeFor(contentType: String?, contentEncoding: String?): Mode {
+        val mediaType = contentType?.substringBefore(';')?.trim()?.lowercase()
+        if(mediaType != null && excludedTypes.any { matches(it, mediaType) }) {
+            return Mode.SKIP
+        }
+        // compressed bodies are stored as they were sent
+        if(contentEncoding != null && !contentEncoding.equals("identity", ignoreCase = true)) {
+            return Mode.BINARY
+        }
+        return if(mediaType.isNullOrEmpty() || textTypes.any { matches(it, mediaType) }) Mode.TEXT else Mode.BINARY
+    }
+
+    private fun matches(pattern: String, mediaType: String): Boolean {
+        return when {
+            pattern.endsWith("/*") -> mediaType.startsWith(pattern.substring(0, pattern.length - 1))
+            pattern.startsWith("*+") -> mediaType.endsWith(pattern.substring(1))
+            else -> pattern == mediaType
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_INLINE_SIZE = 64 * 1024
+        const val DEFAULT_MAX_STORED_SIZE = 16L * 1024 * 1024
+
+        val DEFAULT_EXCLUDED_TYPES = listOf("image/*", "audio/*", "video/*", "font/*")
+
+        val DEFAULT_TEXT_TYPES = listOf(
+            "text/*",
+            "application/json",
+            "*+json",
+            "application/xml",
+            "*+xml",
+            "application/javascript",
+            "application/x-www-form-urlencoded",
+            "application/graphql"
+        )
+
+        val DEFAULT = BodyCapturePolicy()
+    }
+}
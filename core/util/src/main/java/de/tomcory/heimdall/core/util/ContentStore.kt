@@ -0,0 +1,250 @@
+package de.tomcory.heimdall.core.util
+
+import android.content.Context
+import timber.log.Timber
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Content-addressed store for captured message bodies that are too large (or not textual enough) to be stored in the database.
+ *
+ * Bodies are streamed into a temporary file while their SHA-256 hash is computed and are then moved to a file named
+ * after the hash, which is the reference stored in the database. Stored files are never modified, and identical bodies
+ * (e.g. the same script downloaded by several apps) are only stored once.
+ *
+ * All file operations and the hashing run on the store's own I/O thread, so that the threads handling the traffic only
+ * copy the bodies. The bytes queued for that thread are bounded, and writes that don't fit are rejected.
+ *
+ * There is one store per directory, shared by the VPN and the proxy, see [forDirectory].
+ *
+ * @param directory The directory the files are stored in. It is created if it doesn't exist.
+ */
+class ContentStore private constructor(private val directory: File) {
+
+    private val tempDirectory = File(directory, TEMP_DIRECTORY_NAME)
+
+    private val ioExecutor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "ContentStore").apply { isDaemon = true }
+    }
+
+    /**
+     * Number of bytes handed to the I/O thread that haven't been written yet.
+     */
+    private val pendingBytes = AtomicLong(0)
+
+    init {
+        ioExecutor.execute {
+            if(!tempDirectory.isDirectory && !tempDirectory.mkdirs()) {
+                Timber.e("Error creating content store directory ${tempDirectory.path}")
+            }
+            // temporary files left over from an earlier process were never committed
+            val staleBefore = System.currentTimeMillis() - STALE_FILE_MILLIS
+            tempDirectory.listFiles()?.filter { it.lastModified() < staleBefore }?.forEach { it.delete() }
+        }
+    }
+
+    /**
+     * Streams a body into the store. The methods hand their work to the store's I/O thread and must only be called from one thread at a time.
+     */
+    inner class Writer internal constructor() {
+
+        // confined to the I/O thread
+        private val digest = MessageDigest.getInstance("SHA-256")
+        private var file: File? = null
+        private var stream: BufferedOutputStream? = null
+        private var failed = false
+
+        /**
+         * Number of bytes accepted so far.
+         */
+        var length = 0L
+            private set
+
+        init {
+            ioExecutor.execute {
+                try {
+                    val tempFile = File.createTempFile("body", null, tempDirectory)
+                    file = tempFile
+                    stream = BufferedOutputStream(FileOutputStream(tempFile), WRITE_BUFFER_SIZE)
+                } catch (e: IOException) {
+                    Timber.e(e, "Error creating content file")
+                    failed = true
+                }
+            }
+        }
+
+        /**
+         * Hands a copy of the bytes to the I/O thread.
+         *
+         * @return False if the I/O thread is too far behind to accept the bytes, in which case nothing was written.
+         */
+        fun write(bytes: ByteArray, offset: Int, length: Int): Boolean {
+            if(pendingBytes.addAndGet(length.toLong()) > MAX_PENDING_BYTES) {
+                pendingBytes.addAndGet(-length.toLong())
+                Timber.w("Content store is ${MAX_PENDING_BYTES / 1024} kB behind, rejecting write")
+                return false
+            }
+            val chunk = bytes.copyOfRange(offset, offset + length)
+            this.length += length
+            ioExecutor.execute {
+                try {
+                    writeChunk(chunk)
+                } finally {
+                    pendingBytes.addAndGet(-chunk.size.toLong())
+                }
+            }
+            return true
+        }
+
+        /**
+         * Completes the body and moves it to its final location once the bytes handed to the I/O thread have been written,
+         * unless the store already holds an identical body.
+         *
+         * @return Completed with the reference to the stored body (the hex-encoded SHA-256 hash of the body), or null if the body could not be stored.
+         */
+        fun commit(): CompletableFuture<String?> {
+            val result = CompletableFuture<String?>()
+            ioExecutor.execute {
+                result.complete(try {
+                    commitFile()
+                } catch (e: Exception) {
+                    Timber.e(e, "Error committing content file")
+                    file?.delete()
+                    null
+                })
+            }
+            return result
+        }
+
+        /**
+         * Discards the body.
+         */
+        fun abort() {
+            ioExecutor.execute { abortFile() }
+        }
+
+        private fun writeChunk(chunk: ByteArray) {
+            if(failed) {
+                return
+            }
+            try {
+                stream?.write(chunk)
+                digest.update(chunk)
+            } catch (e: IOException) {
+                Timber.e(e, "Error writing content file")
+                abortFile()
+                failed = true
+            }
+        }
+
+        private fun commitFile(): String? {
+            val tempFile = file ?: return null
+            if(failed) {
+                return null
+            }
+            stream?.close()
+            stream = null
+            file = null
+            val reference = digest.digest().joinToString("") { "%02x".format(it) }
+            val target = fileFor(reference)
+            if(target.exists()) {
+                tempFile.delete()
+                // the body is referenced again, so keep it from being cleaned up before the reference is persisted
+                target.setLastModified(System.currentTimeMillis())
+            } else {
+                target.parentFile?.mkdirs()
+                if(!tempFile.renameTo(target)) {
+                    tempFile.delete()
+                    throw IOException("Error moving ${tempFile.path} to ${target.path}")
+                }
+            }
+            return reference
+        }
+
+        private fun abortFile() {
+            try {
+                stream?.close()
+            } catch (e: IOException) {
+                Timber.w(e, "Error closing content file")
+            }
+            stream = null
+            file?.delete()
+            file = null
+        }
+    }
+
+    fun newWriter(): Writer = Writer()
+
+    /**
+     * Returns the file holding the body with the supplied reference, or null if the store doesn't hold it.
+     */
+    fun get(reference: String): File? {
+        if(reference.length != REFERENCE_LENGTH) {
+            return null
+        }
+        return fileFor(reference).takeIf { it.isFile }
+    }
+
+    /**
+     * Deletes the stored bodies that aren't in the supplied set of references on the I/O thread. Bodies stored recently
+     * are kept, as their references may not have been persisted yet.
+     *
+     * @param referenced The references that are still in use, e.g. all references in the database.
+     */
+    fun cleanup(referenced: Set<String>) {
+        ioExecutor.execute {
+            val staleBefore = System.currentTimeMillis() - STALE_FILE_MILLIS
+            var deleted = 0
+            directory.listFiles()?.filter { it.isDirectory && it.name != TEMP_DIRECTORY_NAME }?.forEach { subdirectory ->
+                subdirectory.listFiles()?.forEach {
+                    if(it.name !in referenced && it.lastModified() < staleBefore && it.delete()) {
+                        deleted++
+                    }
+                }
+            }
+            Timber.d("Deleted $deleted unreferenced content files")
+        }
+    }
+
+    /**
+     * Files are spread across subdirectories named after the first two characters of their references to keep the directories small.
+     */
+    private fun fileFor(reference: String) = File(File(directory, reference.substring(0, 2)), reference)
+
+    companion object {
+        private const val TEMP_DIRECTORY_NAME = "tmp"
+        private const val WRITE_BUFFER_SIZE = 64 * 1024
+        private const val REFERENCE_LENGTH = 64
+        private const val STALE_FILE_MILLIS = 60 * 60 * 1000L
+
+        /**
+         * Upper bound for the bytes queued for the I/O thread.
+         */
+        private const val MAX_PENDING_BYTES = 8L * 1024 * 1024
+
+        private val instances = HashMap<String, ContentStore>()
+
+        /**
+         * Returns the store for the supplied directory, creating it on first use.
+         */
+        @JvmStatic
+        fun forDirectory(directory: File): ContentStore {
+            synchronized(instances) {
+                return instances.getOrPut(directory.absolutePath) { ContentStore(directory) }
+            }
+        }
+
+        /**
+         * Returns the directory the app stores captured bodies in.
+         */
+        @JvmStatic
+        fun defaultDirectory(context: Context) = File(context.filesDir, "content")
+    }
+}
@@ -0,0 +1,56 @@
+package de.tomcory.heimdall.core.util
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A number of bytes that consumers reserve memory from before holding on to it, such as the bodies captured from HTTP messages.
+ *
+ * Budgets can be nested: a reservation from a budget with a parent (e.g. a connection's budget) only succeeds if the
+ * parent (e.g. the global budget) has room for it as well. Reservations and releases may be made from any thread.
+ *
+ * @param limit The maximum number of bytes that may be reserved at the same time.
+ * @param parent The budget that every reservation is also taken from.
+ */
+class MemoryBudget(
+    val limit: Long,
+    private val parent: MemoryBudget? = null
+) {
+
+    private val reserved = AtomicLong(0)
+
+    /**
+     * Number of bytes currently reserved.
+     */
+    val reservedBytes: Long
+        get() = reserved.get()
+
+    /**
+     * Reserves the supplied number of bytes if both this budget and its parent have room for them.
+     *
+     * @return True if the bytes were reserved and have to be [release]d eventually, false if nothing was reserved.
+     */
+    fun tryReserve(bytes: Long): Boolean {
+        while(true) {
+            val current = reserved.get()
+            if(current + bytes > limit) {
+                return false
+            }
+            if(reserved.compareAndSet(current, current + bytes)) {
+                break
+            }
+        }
+        if(parent != null && !parent.tryReserve(bytes)) {
+            reserved.addAndGet(-bytes)
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Returns previously reserved bytes to this budget and its parent.
+     */
+    fun release(bytes: Long) {
+        reserved.addAndGet(-bytes)
+        parent?.release(bytes)
+    }
+}
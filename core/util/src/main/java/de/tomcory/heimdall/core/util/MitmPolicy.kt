@@ -0,0 +1,263 @@
+package de.tomcory.heimdall.core.util
+
+import android.content.pm.PackageManager
+import timber.log.Timber
+import java.util.BitSet
+
+/**
+ * Compiled MitM scope rules, deciding per (app, hostname) pair whether a TLS connection is intercepted or passed through.
+ *
+ * The rules are compiled once from the white- and blacklists configured in the preferences:
+ * - app rules are UIDs stored in [BitSet]s, so they are checked with a single bit lookup,
+ * - host rules are stored in a trie of reversed domain labels, so a hostname is matched against all rules in a single
+ *   walk over its labels. A rule matches the domain itself and all of its subdomains (a leading `*.` or `.` is ignored),
+ *   IP address rules only match the address itself,
+ * - host decisions are memoised in an LRU cache, so repeated lookups of the same SNI don't walk the trie again.
+ *
+ * A connection is intercepted if [enabled] is set, its app is not blacklisted and, if an app whitelist is configured, is
+ * whitelisted, and its hostname is not blacklisted and, if a host whitelist is configured, is whitelisted.
+ * Blacklist rules always take precedence over whitelist rules. Instances are immutable apart from the decision cache
+ * and may be shared by any number of threads.
+ *
+ * @param enabled Whether MitM is enabled at all.
+ */
+class MitmPolicy private constructor(
+    val enabled: Boolean,
+    private val whitelistUids: BitSet?,
+    private val blacklistUids: BitSet,
+    private val whitelistHosts: HostSuffixTrie?,
+    private val blacklistHosts: HostSuffixTrie,
+    decisionCacheSize: Int
+) {
+
+    private val hostDecisions = object : LinkedHashMap<String, Boolean>(decisionCacheSize, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Boolean>?): Boolean {
+            return size > decisionCacheSize
+        }
+    }
+
+    /**
+     * Decides whether the connection of the supplied app to the supplied host should be intercepted.
+     *
+     * @param uid The UID of the app the connection belongs to, or [UNKNOWN_UID] if it could not be determined.
+     * @param hostname The SNI or, if there is none, the remote address of the connection.
+     */
+    fun shouldMitm(uid: Int, hostname: String?): Boolean {
+        return enabled && isAppInScope(uid) && isHostInScope(hostname)
+    }
+
+    /**
+     * Decides whether the connections of the supplied app are intercepted, regardless of their hostname.
+     */
+    fun isAppInScope(uid: Int): Boolean {
+        if(uid < 0) {
+            // without a known app, only an app whitelist can rule out the connection
+            return whitelistUids == null
+        }
+        return !blacklistUids.get(uid) && (whitelistUids?.get(uid) ?: true)
+    }
+
+    /**
+     * Decides whether connections to the supplied host are intercepted, regardless of their app.
+     */
+    fun isHostInScope(hostname: String?): Boolean {
+        if(hostname.isNullOrEmpty()) {
+            return whitelistHosts == null
+        }
+        synchronized(hostDecisions) {
+            hostDecisions[hostname]?.let { return it }
+        }
+
+        val normalised = normalise(hostname)
+        val decision = !blacklistHosts.matches(normalised) && (whitelistHosts?.matches(normalised) ?: true)
+
+        synchronized(hostDecisions) {
+            hostDecisions[hostname] = decision
+        }
+        return decision
+    }
+
+    override fun toString(): String {
+        return "MitmPolicy(enabled=$enabled, whitelistApps=${whitelistUids?.cardinality()}, blacklistApps=${blacklistUids.cardinality()}, " +
+                "whitelistHosts=${whitelistHosts?.size}, blacklistHosts=${blacklistHosts.size})"
+    }
+
+    /**
+     * Trie of reversed domain labels, e.g. `www.example.com` is stored as `com` -> `example` -> `www`.
+     */
+    private class HostSuffixTrie {
+
+        private class Node {
+            val children = HashMap<String, Node>(4)
+            var terminal = false
+        }
+
+        private val root = Node()
+
+        /** Rules for IP addresses, which are only matched exactly. */
+        private val addresses = HashSet<String>()
+
+        var size = 0
+            private set
+
+        fun insert(rule: String) {
+            val host = normalise(rule).removePrefix("*.").removePrefix(".")
+            if(host.isEmpty()) {
+                return
+            }
+            size++
+            if(isAddress(host)) {
+                addresses.add(host)
+                return
+            }
+            var node = root
+            forEachLabelReversed(host) { label ->
+                node = node.children.getOrPut(label) { Node() }
+                true
+            }
+            node.terminal = true
+        }
+
+        /**
+         * Whether the host or one of its parent domains is in the trie.
+         */
+        fun matches(host: String): Boolean {
+            // e.g. an SNI of "." normalises to nothing
+            if(host.isEmpty()) {
+                return false
+            }
+            if(isAddress(host)) {
+                return host in addresses
+            }
+            var node = root
+            var matched = false
+            forEachLabelReversed(host) { label ->
+                val child = node.children[label]
+                if(child == null) {
+                    false
+                } else {
+                    node = child
+                    matched = child.terminal
+                    // stop at the first (i.e. shortest) matching rule
+                    !matched
+                }
+            }
+            return matched
+        }
+
+        /**
+         * Passes the host's labels to the supplied block, starting with the top-level domain, until the block returns false.
+         */
+        private inline fun forEachLabelReversed(host: String, block: (String) -> Boolean) {
+            var end = host.length
+            while(end > 0) {
+                val start = host.lastIndexOf('.', end - 1) + 1
+                if(!block(host.substring(start, end))) {
+                    return
+                }
+                end = start - 1
+            }
+        }
+
+        private fun isAddress(host: String): Boolean {
+            return host.contains(':') || host.lastOrNull()?.isDigit() == true
+        }
+    }
+
+    companion object {
+        /**
+         * UID to use for connections whose app could not be determined.
+         */
+        const val UNKNOWN_UID = -1
+
+        private const val DEFAULT_DECISION_CACHE_SIZE = 1024
+
+        /**
+         * A policy that intercepts everything if [enabled] is set and nothing otherwise.
+         */
+        fun unrestricted(enabled: Boolean = true): MitmPolicy {
+            return compile(enabled)
+        }
+
+        /**
+         * Compiles a policy from the supplied rules. Empty whitelists don't restrict the scope.
+         *
+         * @param enabled Whether MitM is enabled at all.
+         * @param whitelistUids UIDs of the apps to intercept.
+         * @param blacklistUids UIDs of the apps never to intercept.
+         * @param whitelistHosts Domains to intercept (including their subdomains).
+         * @param blacklistHosts Domains never to intercept (including their subdomains).
+         * @param decisionCacheSize Number of host decisions to memoise.
+         */
+        fun compile(
+            enabled: Boolean,
+            whitelistUids: Collection<Int> = emptyList(),
+            blacklistUids: Collection<Int> = emptyList(),
+            whitelistHosts: Collection<String> = emptyList(),
+            blacklistHosts: Collection<String> = emptyList(),
+            decisionCacheSize: Int = DEFAULT_DECISION_CACHE_SIZE
+        ): MitmPolicy {
+            return MitmPolicy(
+                enabled = enabled,
+                whitelistUids = if(whitelistUids.isEmpty()) null else toBitSet(whitelistUids),
+                blacklistUids = toBitSet(blacklistUids),
+                whitelistHosts = if(whitelistHosts.isEmpty()) null else toTrie(whitelistHosts),
+                blacklistHosts = toTrie(blacklistHosts),
+                decisionCacheSize = decisionCacheSize
+            )
+        }
+
+        /**
+         * Compiles a policy from rules that identify apps by their package names, resolving them to UIDs through the supplied [PackageManager].
+         * Packages that are not installed are skipped. Note that a whitelist consisting only of packages that are not installed
+         * still restricts the scope, so that nothing is intercepted rather than everything.
+         */
+        fun compile(
+            enabled: Boolean,
+            packageManager: PackageManager,
+            whitelistApps: Collection<String>,
+            blacklistApps: Collection<String>,
+            whitelistHosts: Collection<String>,
+            blacklistHosts: Collection<String>
+        ): MitmPolicy {
+            val whitelistUids = resolveUids(packageManager, whitelistApps)
+            val policy = MitmPolicy(
+                enabled = enabled,
+                whitelistUids = if(whitelistApps.isEmpty()) null else toBitSet(whitelistUids),
+                blacklistUids = toBitSet(resolveUids(packageManager, blacklistApps)),
+                whitelistHosts = if(whitelistHosts.isEmpty()) null else toTrie(whitelistHosts),
+                blacklistHosts = toTrie(blacklistHosts),
+                decisionCacheSize = DEFAULT_DECISION_CACHE_SIZE
+            )
+            Timber.d("Compiled $policy")
+            return policy
+        }
+
+        private fun resolveUids(packageManager: PackageManager, packageNames: Collection<String>): List<Int> {
+            return packageNames.mapNotNull { packageName ->
+                try {
+                    packageManager.getApplicationInfo(packageName, 0).uid
+                } catch (e: PackageManager.NameNotFoundException) {
+                    Timber.w("MitmPolicy skipping unknown package $packageName")
+                    null
+                }
+            }
+        }
+
+        private fun toBitSet(uids: Collection<Int>): BitSet {
+            val bitSet = BitSet()
+            uids.filter { it >= 0 }.forEach { bitSet.set(it) }
+            return bitSet
+        }
+
+        private fun toTrie(hosts: Collection<String>): HostSuffixTrie {
+            val trie = HostSuffixTrie()
+            hosts.forEach { trie.insert(it) }
+            return trie
+        }
+
+        private fun normalise(hostname: String): String {
+            return hostname.trim().trimEnd('.').lowercase()
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package de.tomcory.heimdall.core.util
+
+import timber.log.Timber
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+
+/**
+ * Index of the local ports listed in a set of /proc/net socket tables (e.g. /proc/net/tcp and /proc/net/tcp6) and the UIDs owning them.
+ *
+ * The tables are only read again when a lookup misses, since a new connection's port is usually the only one that isn't
+ * known yet. Hits are only trusted for [maxAgeMillis] after the refresh that saw them, since ephemeral ports are reused
+ * by other apps, and never for entries owned by UID 0, which is how sockets in TIME_WAIT are listed. Each refresh scans
+ * the raw bytes of the tables without splitting lines into strings and stamps every port it finds with the refresh's
+ * generation, so ports that have disappeared since are invalidated without clearing the index.
+ * Lookups and refreshes may be called from any thread.
+ *
+ * @param files The socket tables to index. Tables listed first take precedence if a port appears in several of them.
+ * @param maxAgeMillis Time after which the indexed entries are considered stale and the tables are read again.
+ */
+internal class ProcNetIndex(
+    private val files: Array<File>,
+    private val maxAgeMillis: Long = DEFAULT_MAX_AGE_MILLIS
+) {
+
+    private val uids = IntArray(PORT_COUNT)
+
+    /** Generation of the refresh that last saw each port. */
+    private val generations = IntArray(PORT_COUNT)
+
+    private var generation = 0
+
+    /** Time of the last refresh, in [System.nanoTime] nanoseconds. */
+    private var refreshedAt = 0L
+
+    /** Reused for reading the tables, grown as needed. */
+    private var readBuffer = ByteArray(INITIAL_BUFFER_SIZE)
+
+    /**
+     * Number of times the tables have been read.
+     */
+    @Volatile
+    var refreshCount = 0
+        private set
+
+    /**
+     * Returns the UID owning the supplied local port, reading the tables again if the port isn't indexed yet or its entry may be stale.
+     *
+     * @return The UID or -1 if no table lists the port.
+     */
+    @Synchronized
+    fun getUid(localPort: Int): Int {
+        if(localPort !in 0 until PORT_COUNT) {
+            return -1
+        }
+        if(generation > 0 && generations[localPort] == generation && uids[localPort] != ROOT_UID
+            && System.nanoTime() - refreshedAt < maxAgeMillis * 1_000_000) {
+            return uids[localPort]
+        }
+        refresh()
+        return if(generations[localPort] == generation) uids[localPort] else -1
+    }
+
+    private fun refresh() {
+        generation++
+        refreshCount++
+        refreshedAt = System.nanoTime()
+        // scan the tables in reverse order, so that the entries of the first tables overwrite those of the later ones
+        for(i in files.indices.reversed()) {
+            val length = readFile(files[i])
+            if(length > 0) {
+                scan(length)
+            }
+        }
+    }
+
+    /**
+     * Reads the complete file into the [readBuffer]. The files in /proc don't report their size, so the buffer grows until the file fits.
+     *
+     * @return The number of bytes read, or -1 if the file could not be read.
+     */
+    private fun readFile(file: File): Int {
+        return try {
+            FileInputStream(file).use { stream ->
+                var length = 0
+                while(true) {
+                    if(length == readBuffer.size) {
+                        readBuffer = readBuffer.copyOf(readBuffer.size * 2)
+                    }
+                    val read = stream.read(readBuffer, length, readBuffer.size - length)
+                    if(read < 0) {
+                        break
+                    }
+                    length += read
+                }
+                length
+            }
+        } catch (e: IOException) {
+            Timber.e(e, "Error reading ${file.path}")
+            -1
+        }
+    }
+
+    /**
+     * Scans the socket table in the [readBuffer] line by line. Each line (apart from the header) looks like
+     * `0: 0100007F:A0CE 0100007F:BC8F 01 00000000:00000000 02:000005FC 00000000 10123 0 12637 ...`,
+     * where the second field is the local address and port (in hex) and the eighth field is the UID (in decimal).
+     */
+    private fun scan(length: Int) {
+        val buffer = readBuffer
+        // skip the header line
+        var i = buffer.indexOf(NEWLINE, 0, length) + 1
+        if(i == 0) {
+            return
+        }
+
+        while(i < length) {
+            var field = 0
+            var port = -1
+            var uid = -1
+            while(i < length && buffer[i] != NEWLINE) {
+                // skip the separators before the next field
+                while(i < length && buffer[i] == SPACE) {
+                    i++
+                }
+                if(i >= length || buffer[i] == NEWLINE) {
+                    break
+                }
+                when(field) {
+                    FIELD_LOCAL_ADDRESS -> {
+                        // the port follows the colon after the address
+                        while(i < length && buffer[i] != COLON) {
+                            i++
+                        }
+                        i++
+                        port = 0
+                        while(i < length && buffer[i] != SPACE) {
+                            port = (port shl 4) or hexValue(buffer[i])
+                            i++
+                        }
+                    }
+                    FIELD_UID -> {
+                        uid = 0
+                        while(i < length && buffer[i] != SPACE) {
+                            uid = uid * 10 + (buffer[i] - ZERO)
+                            i++
+                        }
+                    }
+                    else -> {
+                        while(i < length && buffer[i] != SPACE && buffer[i] != NEWLINE) {
+                            i++
+                        }
+                    }
+                }
+                field++
+            }
+            i++
+
+            if(port in 0 until PORT_COUNT && uid >= 0) {
+                uids[port] = uid
+                generations[port] = generation
+            }
+        }
+    }
+
+    private fun ByteArray.indexOf(byte: Byte, from: Int, until: Int): Int {
+        for(i in from until until) {
+            if(this[i] == byte) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun hexValue(byte: Byte): Int {
+        val c = byte.toInt()
+        return when(c) {
+            in '0'.code..'9'.code -> c - '0'.code
+            in 'A'.code..'F'.code -> c - 'A'.code + 10
+            in 'a'.code..'f'.code -> c - 'a'.code + 10
+            else -> 0
+        }
+    }
+
+    companion object {
+        private const val PORT_COUNT = 65536
+        private const val INITIAL_BUFFER_SIZE = 16 * 1024
+        private const val DEFAULT_MAX_AGE_MILLIS = 1000L
+        private const val ROOT_UID = 0
+
+        private const val FIELD_LOCAL_ADDRESS = 1
+        private const val FIELD_UID = 7
+
+        private const val NEWLINE = 0x0A.toByte()
+        private const val SPACE = 0x20.toByte()
+        private const val COLON = 0x3A.toByte()
+        private const val ZERO = 0x30.toByte()
+    }
+}
@@ -0,0 +1,103 @@
+package de.tomcory.heimdall.core.util
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class MitmPolicyTest {
+
+    @Test
+    fun testBlacklistMatchesDomainAndSubdomains() {
+        val policy = MitmPolicy.compile(enabled = true, blacklistHosts = listOf("example.com"))
+
+        assertFalse(policy.isHostInScope("example.com"))
+        assertFalse(policy.isHostInScope("www.example.com"))
+        assertFalse(policy.isHostInScope("a.b.example.com"))
+
+        // only whole labels match
+        assertTrue(policy.isHostInScope("notexample.com"))
+        assertTrue(policy.isHostInScope("example.com.evil.net"))
+        assertTrue(policy.isHostInScope("com"))
+    }
+
+    @Test
+    fun testWildcardAndLeadingDotRules() {
+        val policy = MitmPolicy.compile(enabled = true, blacklistHosts = listOf("*.ads.net", ".tracker.org"))
+
+        assertFalse(policy.isHostInScope("ads.net"))
+        assertFalse(policy.isHostInScope("cdn.ads.net"))
+        assertFalse(policy.isHostInScope("tracker.org"))
+        assertFalse(policy.isHostInScope("eu.tracker.org"))
+        assertTrue(policy.isHostInScope("net"))
+    }
+
+    @Test
+    fun testHostsAreNormalised() {
+        val policy = MitmPolicy.compile(enabled = true, blacklistHosts = listOf(" Example.COM. "))
+
+        assertFalse(policy.isHostInScope("EXAMPLE.com"))
+        assertFalse(policy.isHostInScope("www.example.com."))
+    }
+
+    @Test
+    fun testAddressRulesOnlyMatchExactly() {
+        val policy = MitmPolicy.compile(enabled = true, blacklistHosts = listOf("10.0.0.1", "2001:db8::1"))
+
+        assertFalse(policy.isHostInScope("10.0.0.1"))
+        assertFalse(policy.isHostInScope("2001:db8::1"))
+        assertTrue(policy.isHostInScope("10.0.0.10"))
+        assertTrue(policy.isHostInScope("1.10.0.0.1"))
+        assertTrue(policy.isHostInScope("2001:db8::2"))
+    }
+
+    @Test
+    fun testEmptyHosts() {
+        val unrestricted = MitmPolicy.compile(enabled = true, blacklistHosts = listOf("example.com", "", "*."))
+        assertTrue(unrestricted.isHostInScope(null))
+        assertTrue(unrestricted.isHostInScope(""))
+        assertTrue(unrestricted.isHostInScope("."))
+
+        val whitelisted = MitmPolicy.compile(enabled = true, whitelistHosts = listOf("example.com"))
+        assertFalse(whitelisted.isHostInScope(null))
+        assertFalse(whitelisted.isHostInScope("."))
+    }
+
+    @Test
+    fun testBlacklistTakesPrecedenceOverWhitelist() {
+        val policy = MitmPolicy.compile(
+            enabled = true,
+            whitelistHosts = listOf("example.com"),
+            blacklistHosts = listOf("private.example.com")
+        )
+
+        assertTrue(policy.isHostInScope("example.com"))
+        assertTrue(policy.isHostInScope("www.example.com"))
+        assertFalse(policy.isHostInScope("private.example.com"))
+        assertFalse(policy.isHostInScope("api.private.example.com"))
+        assertFalse(policy.isHostInScope("example.org"))
+    }
+
+    @Test
+    fun testCachedDecisionsAreStable() {
+        val policy = MitmPolicy.compile(enabled = true, blacklistHosts = listOf("example.com"), decisionCacheSize = 1)
+
+        repeat(3) {
+            assertFalse(policy.isHostInScope("www.example.com"))
+            assertTrue(policy.isHostInScope("example.org"))
+        }
+    }
+
+    @Test
+    fun testAppRules() {
+        val policy = MitmPolicy.compile(enabled = true, whitelistUids = listOf(10001, 10002), blacklistUids = listOf(10002))
+
+        assertTrue(policy.shouldMitm(10001, "example.com"))
+        assertFalse(policy.shouldMitm(10002, "example.com"))
+        assertFalse(policy.shouldMitm(10003, "example.com"))
+        // a whitelist rules out connections whose app is unknown
+        assertFalse(policy.shouldMitm(MitmPolicy.UNKNOWN_UID, "example.com"))
+
+        assertTrue(MitmPolicy.unrestricted().shouldMitm(MitmPolicy.UNKNOWN_UID, "example.com"))
+        assertFalse(MitmPolicy.unrestricted(enabled = false).shouldMitm(10001, "example.com"))
+    }
+}
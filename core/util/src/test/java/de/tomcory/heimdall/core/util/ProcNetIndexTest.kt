@@ -0,0 +1,122 @@
+package de.tomcory.heimdall.core.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class ProcNetIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun testParsesIpV4AndIpV6Tables() {
+        val tcp = table("tcp", tcpLine("0100007F", 0xA0CE, 10123), tcpLine("0100007F", 0x0050, 10001))
+        val tcp6 = table("tcp6", tcpLine("0000000000000000FFFF00000100007F", 0x9C40, 10200))
+        val index = ProcNetIndex(arrayOf(tcp, tcp6), maxAgeMillis = 60_000)
+
+        assertEquals(10123, index.getUid(0xA0CE))
+        assertEquals(10001, index.getUid(80))
+        assertEquals(10200, index.getUid(0x9C40))
+        assertEquals(1, index.refreshCount)
+    }
+
+    @Test
+    fun testUnknownPorts() {
+        val index = ProcNetIndex(arrayOf(table("tcp", tcpLine("0100007F", 0xA0CE, 10123))))
+
+        assertEquals(-1, index.getUid(12345))
+        assertEquals(-1, index.getUid(-1))
+        assertEquals(-1, index.getUid(65536))
+    }
+
+    @Test
+    fun testFirstTableTakesPrecedence() {
+        val tcp = table("tcp", tcpLine("0100007F", 0xA0CE, 10123))
+        val tcp6 = table("tcp6", tcpLine("00000000000000000000000000000000", 0xA0CE, 10999))
+
+        assertEquals(10123, ProcNetIndex(arrayOf(tcp, tcp6)).getUid(0xA0CE))
+        assertEquals(10999, ProcNetIndex(arrayOf(tcp6, tcp)).getUid(0xA0CE))
+    }
+
+    @Test
+    fun testHitsWithinMaxAgeDoNotRefresh() {
+        val index = ProcNetIndex(arrayOf(table("tcp", tcpLine("0100007F", 0xA0CE, 10123))), maxAgeMillis = 60_000)
+
+        repeat(3) { assertEquals(10123, index.getUid(0xA0CE)) }
+        assertEquals(1, index.refreshCount)
+
+        // misses always read the tables again
+        assertEquals(-1, index.getUid(12345))
+        assertEquals(2, index.refreshCount)
+    }
+
+    @Test
+    fun testStaleEntriesAreRefreshed() {
+        val tcp = table("tcp", tcpLine("0100007F", 0xA0CE, 10123))
+        val index = ProcNetIndex(arrayOf(tcp), maxAgeMillis = 0)
+        assertEquals(10123, index.getUid(0xA0CE))
+
+        // the port is reused by another app
+        write(tcp, tcpLine("0100007F", 0xA0CE, 10456))
+        assertEquals(10456, index.getUid(0xA0CE))
+
+        // the port disappears
+        write(tcp)
+        assertEquals(-1, index.getUid(0xA0CE))
+        assertEquals(3, index.refreshCount)
+    }
+
+    @Test
+    fun testRootEntriesAreAlwaysRefreshed() {
+        val tcp = table("tcp", tcpLine("0100007F", 0xA0CE, 0))
+        val index = ProcNetIndex(arrayOf(tcp), maxAgeMillis = 60_000)
+        assertEquals(0, index.getUid(0xA0CE))
+
+        write(tcp, tcpLine("0100007F", 0xA0CE, 10123))
+        assertEquals(10123, index.getUid(0xA0CE))
+        assertEquals(2, index.refreshCount)
+    }
+
+    @Test
+    fun testTablesLargerThanTheReadBuffer() {
+        val lines = (1..1000).map { tcpLine("0100007F", 30000 + it, 10000 + it) }
+        val index = ProcNetIndex(arrayOf(table("tcp", *lines.toTypedArray())), maxAgeMillis = 60_000)
+
+        assertEquals(10001, index.getUid(30001))
+        assertEquals(11000, index.getUid(31000))
+        assertEquals(1, index.refreshCount)
+    }
+
+    @Test
+    fun testMissingTablesAreSkipped() {
+        val tcp = table("tcp", tcpLine("0100007F", 0xA0CE, 10123))
+        val index = ProcNetIndex(arrayOf(File(folder.root, "missing"), tcp))
+
+        assertEquals(10123, index.getUid(0xA0CE))
+    }
+
+    private fun table(name: String, vararg lines: String): File {
+        val file = folder.newFile(name)
+        write(file, *lines)
+        return file
+    }
+
+    private fun write(file: File, vararg lines: String) {
+        file.writeText(HEADER + lines.joinToString("") { it + "\n" })
+    }
+
+    /**
+     * Formats a socket table line like the kernel does, with the fields that aren't parsed filled in with typical values.
+     */
+    private fun tcpLine(address: String, port: Int, uid: Int): String {
+        return "   0: $address:%04X 0100007F:BC8F 01 00000000:00000000 02:000005FC 00000000 %5d        0 12637 1 0000000000000000 20 4 30 10 -1"
+            .format(port, uid)
+    }
+
+    companion object {
+        private const val HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n"
+    }
+}
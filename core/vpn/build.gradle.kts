@@ -34,4 +34,7 @@ dependencies {
 
     implementation (project(":core:database"))
     implementation (project(":core:util"))
+
+    // test stuff
+    testImplementation (libs.junit)
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package de.tomcory.heimdall.core.vpn.buffer
+
+import timber.log.Timber
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A pool of [ByteBuffer]s in a few fixed size classes, shared by all connections.
+ *
+ * Connections borrow a buffer for the duration of a single read or write on their channel and hand it back right
+ * afterwards, so the number of buffers in use is bounded by the number of concurrent I/O operations rather than the
+ * number of open connections. Buffers are allocated lazily. If a size class runs dry, a fresh buffer is allocated and
+ * later kept if there is room for it, so [acquire] never blocks. [acquire] and [release] may be called from any thread.
+ *
+ * @param sizeClasses The buffer sizes offered by the pool in bytes.
+ * @param capacityPerClass The maximum number of idle buffers kept per size class.
+ * @param direct Whether the buffers are direct (off-heap) buffers.
+ */
+class BufferPool(
+    sizeClasses: IntArray,
+    capacityPerClass: Int,
+    private val direct: Boolean = true
+) {
+
+    private val sizes = sizeClasses.sortedArray()
+
+    private val idleBuffers = Array(sizes.size) { ArrayBlockingQueue<ByteBuffer>(capacityPerClass) }
+
+    private val allocatedBuffers = AtomicInteger(0)
+
+    /**
+     * Size of the largest buffers offered by the pool.
+     */
+    val maxBufferSize: Int
+        get() = sizes.last()
+
+    /**
+     * Number of buffers allocated by this pool since its creation.
+     */
+    val allocatedCount: Int
+        get() = allocatedBuffers.get()
+
+    /**
+     * Number of buffers currently idling in the pool.
+     */
+    val idleCount: Int
+        get() = idleBuffers.sumOf { it.size }
+
+    /**
+     * Takes a cleared buffer with a capacity of at least the supplied size from the pool.
+     * The buffer's limit is set to its full capacity, which may be larger than requested.
+     *
+     * @throws IllegalArgumentException if the requested size exceeds [maxBufferSize].
+     */
+    fun acquire(minSize: Int): ByteBuffer {
+        val sizeClass = sizeClassOf(minSize)
+        require(sizeClass >= 0) { "Requested buffer size $minSize exceeds the largest size class ${sizes.last()}" }
+        val buffer = idleBuffers[sizeClass].poll() ?: allocate(sizes[sizeClass])
+        buffer.clear()
+        return buffer
+    }
+
+    /**
+     * Hands a buffer obtained from [acquire] back to the pool. The buffer must not be used afterwards.
+     */
+    fun release(buffer: ByteBuffer) {
+        val sizeClass = sizes.indexOf(buffer.capacity())
+        if(sizeClass < 0 || buffer.isDirect != direct) {
+            Timber.e("Buffer of capacity ${buffer.capacity()} does not belong to this pool, ignoring")
+            return
+        }
+        // if the size class is already full, the buffer is simply left to the garbage collector
+        idleBuffers[sizeClass].offer(buffer)
+    }
+
+    /**
+     * Borrows a buffer of at least the supplied size for the duration of the supplied block.
+     */
+    inline fun <T> use(minSize: Int, block: (ByteBuffer) -> T): T {
+        val buffer = acquire(minSize)
+        try {
+            return block(buffer)
+        } finally {
+            release(buffer)
+        }
+    }
+
+    private fun sizeClassOf(size: Int): Int {
+        for(i in sizes.indices) {
+            if(sizes[i] >= size) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun allocate(size: Int): ByteBuffer {
+        allocatedBuffers.incrementAndGet()
+        return if(direct) ByteBuffer.allocateDirect(size) else ByteBuffer.allocate(size)
+    }
+}
@@ -0,0 +1,63 @@
+package de.tomcory.heimdall.core.vpn.buffer
+
+import timber.log.Timber
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A bounded pool of [PooledPacket]s that all share the same buffer size.
+ *
+ * Packets are allocated lazily and recycled when they are released. If the pool runs dry, a fresh packet is allocated
+ * and later kept by the pool if there is room for it, so the pool never blocks the caller.
+ * [acquire] and [release] may be called from different threads.
+ *
+ * @param packetSize The capacity of each packet's buffer in bytes.
+ * @param capacity The maximum number of idle packets kept by the pool.
+ * @param direct Whether the packets are backed by direct (off-heap) buffers.
+ */
+class PacketPool(
+    val packetSize: Int,
+    capacity: Int,
+    private val direct: Boolean = true
+) {
+
+    private val idlePackets = ArrayBlockingQueue<PooledPacket>(capacity)
+
+    private val allocatedPackets = AtomicInteger(0)
+
+    /**
+     * Number of packets allocated by this pool since its creation.
+     */
+    val allocatedCount: Int
+        get() = allocatedPackets.get()
+
+    /**
+     * Number of packets currently idling in the pool.
+     */
+    val idleCount: Int
+        get() = idlePackets.size
+
+    /**
+     * Takes an idle packet from the pool or allocates a new one if the pool is empty.
+     * The returned packet's buffer is cleared and ready to be written to.
+     */
+    fun acquire(): PooledPacket {
+        val packet = idlePackets.poll() ?: PooledPacket(this, packetSize, direct).also {
+            allocatedPackets.incrementAndGet()
+        }
+        packet.inUse = true
+        packet.buffer.clear()
+        return packet
+    }
+
+    internal fun release(packet: PooledPacket) {
+        if(!packet.inUse) {
+            Timber.e("Packet released more than once, ignoring")
+            return
+        }
+        packet.inUse = false
+
+        // if the pool is already full, the packet is simply left to the garbage collector
+        idlePackets.offer(packet)
+    }
+}
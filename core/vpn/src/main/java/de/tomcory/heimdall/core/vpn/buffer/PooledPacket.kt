@@ -0,0 +1,69 @@
+package de.tomcory.heimdall.core.vpn.buffer
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
+
+/**
+ * A recyclable packet buffer handed out by a [PacketPool].
+ *
+ * The packet's data always starts at index 0 of the [buffer] and ends at the buffer's limit.
+ * Whoever holds a [PooledPacket] owns it and must call [release] once the packet has been processed,
+ * after which neither the packet nor its buffer may be touched again.
+ *
+ * @property buffer The (direct) [ByteBuffer] holding the packet's raw bytes.
+ */
+class PooledPacket internal constructor(
+    private val pool: PacketPool?,
+    capacity: Int,
+    direct: Boolean
+) {
+
+    val buffer: ByteBuffer = if(direct) ByteBuffer.allocateDirect(capacity) else ByteBuffer.allocate(capacity)
+
+    /**
+     * Whether the packet is currently owned by a consumer (i.e. acquired and not yet released).
+     */
+    @Volatile
+    internal var inUse = false
+
+    /**
+     * Number of valid bytes in the [buffer].
+     */
+    val length: Int
+        get() = buffer.limit()
+
+    /**
+     * Reads a single packet from the supplied channel into the [buffer], replacing its previous content.
+     *
+     * @return The number of bytes read, or -1 if the channel has reached end-of-stream.
+     */
+    @Throws(IOException::class)
+    fun readFrom(channel: ReadableByteChannel): Int {
+        buffer.clear()
+        val read = channel.read(buffer)
+        buffer.flip()
+        return read
+    }
+
+    /**
+     * Copies the packet's bytes into the supplied array without changing the [buffer]'s position.
+     *
+     * @return The number of bytes copied.
+     */
+    fun copyTo(dst: ByteArray): Int {
+        val count = minOf(length, dst.size)
+        val position = buffer.position()
+        buffer.position(0)
+        buffer.get(dst, 0, count)
+        buffer.position(position)
+        return count
+    }
+
+    /**
+     * Hands the packet back to its [PacketPool]. Packets that don't belong to a pool are left to the garbage collector.
+     */
+    fun release() {
+        pool?.release(this)
+    }
+}
@@ -1,86 +1,297 @@
 package de.tomcory.heimdall.core.vpn.cache
 
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketView
 import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.TransportPacket
 import timber.log.Timber
-import java.net.InetAddress
+import java.nio.ByteBuffer
 
-class ConnectionCache {
-    private val connections = HashMap<Int, TransportLayerConnection>()
+/**
+ * Maps flows to their [TransportLayerConnection]s. Each traffic shard owns one instance, which is shared by the shard's outbound and inbound threads.
+ *
+ * Flows are stored in an open-addressing hash table with linear probing that is keyed on the full 5-tuple (IP version,
+ * transport protocol, both addresses and both ports). Keys live in primitive arrays and are compared exactly, so lookups
+ * neither allocate nor confuse distinct flows whose hashes collide. Removals use backward-shift deletion instead of
+ * tombstones, and every connection remembers its slot in [TransportLayerConnection.flowSlot], so removing a connection
+ * doesn't require a lookup.
+ */
+class ConnectionCache(initialCapacity: Int = DEFAULT_CAPACITY) {
 
-    companion object {
-        private val cache = ConnectionCache()
+    private var capacity = Integer.highestOneBit(maxOf(initialCapacity, 2) - 1) shl 1
+    private var mask = capacity - 1
+
+    /** IP version, protocol and both ports of each slot's flow, or 0 if the slot is empty. */
+    private var metas = LongArray(capacity)
+
+    /** The four remote address words followed by the four local address words of each slot's flow. IPv4 addresses only use the first word. */
+    private var addressWords = IntArray(capacity * ADDRESS_WORDS)
+
+    /** Hash of each slot's flow, kept to avoid recomputing it when entries are moved. */
+    private var hashes = IntArray(capacity)
+
+    private var connections = arrayOfNulls<TransportLayerConnection>(capacity)
+
+    /** Time of the last packet of each slot's flow in milliseconds, used for idle expiry. */
+    private var lastActive = LongArray(capacity)
+
+    /**
+     * Number of flows currently in the table.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Looks up the connection of the flow the supplied outbound packet belongs to and marks the flow as active.
+     */
+    @Synchronized
+    fun findConnection(packet: IpPacketView, now: Long = System.currentTimeMillis()): TransportLayerConnection? {
+        val meta = meta(packet.ipVersion, packet.transportProtocol, packet.srcPort, packet.dstPort)
+        val hash = getKey(packet)
+        var slot = hash and mask
+        while(true) {
+            val slotMeta = metas[slot]
+            if(slotMeta == 0L) {
+                return null
+            }
+            if(slotMeta == meta && hashes[slot] == hash && matches(slot, packet)) {
+                lastActive[slot] = now
+                return connections[slot]
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    @Synchronized
+    fun addConnection(connection: TransportLayerConnection, now: Long = System.currentTimeMillis()) {
+        if((size + 1) * 2 > capacity) {
+            resize(capacity * 2)
+        }
+
+        val words = IntArray(ADDRESS_WORDS)
+        writeAddressWords(connection.ipPacketBuilder.remoteAddress.address, words, 0)
+        writeAddressWords(connection.ipPacketBuilder.localAddress.address, words, ADDRESS_WORDS / 2)
+        val meta = meta(connection.ipPacketBuilder.ipVersion, connection.ipPacketBuilder.transportProtocol.value().toInt() and 0xFF, connection.localPort, connection.remotePort)
+        val hash = getKey(words, meta)
+
+        var slot = hash and mask
+        while(metas[slot] != 0L) {
+            if(metas[slot] == meta && hashes[slot] == hash && matches(slot, words)) {
+                // same 5-tuple, so the previous connection must be stale
+                Timber.w("Flow replaced: ${connections[slot]} -> $connection")
+                connections[slot]?.flowSlot = -1
+                break
+            }
+            slot = (slot + 1) and mask
+        }
+
+        if(metas[slot] == 0L) {
+            size++
+        }
+        metas[slot] = meta
+        hashes[slot] = hash
+        System.arraycopy(words, 0, addressWords, slot * ADDRESS_WORDS, ADDRESS_WORDS)
+        connections[slot] = connection
+        lastActive[slot] = now
+        connection.flowSlot = slot
+    }
+
+    @Synchronized
+    fun removeConnection(connection: TransportLayerConnection) {
+        val slot = connection.flowSlot
+        if(slot < 0 || slot >= capacity || connections[slot] !== connection) {
+            // not (or no longer) in the table
+            return
+        }
+        connection.flowSlot = -1
+        deleteSlot(slot)
+    }
+
+    /**
+     * Returns the connections whose flows have been idle since before the supplied time, oldest first.
+     * The connections stay in the table until they are removed.
+     */
+    @Synchronized
+    fun findIdleConnections(idleSince: Long): List<TransportLayerConnection> {
+        val idle = ArrayList<Int>()
+        for(slot in 0 until capacity) {
+            if(metas[slot] != 0L && lastActive[slot] < idleSince) {
+                idle.add(slot)
+            }
+        }
+        idle.sortBy { lastActive[it] }
+        return idle.mapNotNull { connections[it] }
+    }
+
+    /**
+     * Marks the supplied connection's flow as active, e.g. because inbound data arrived for it.
+     */
+    @Synchronized
+    fun touch(connection: TransportLayerConnection, now: Long = System.currentTimeMillis()) {
+        val slot = connection.flowSlot
+        if(slot in 0 until capacity && connections[slot] === connection) {
+            lastActive[slot] = now
+        }
+    }
+
+    /**
+     * Returns the time of the last outbound packet of the supplied connection's flow, or -1 if it isn't in the table.
+     */
+    @Synchronized
+    fun lastActive(connection: TransportLayerConnection): Long {
+        val slot = connection.flowSlot
+        return if(slot in 0 until capacity && connections[slot] === connection) lastActive[slot] else -1
+    }
+
+    fun closeAllAndClear() {
+        val openConnections = synchronized(this) {
+            val values = connections.filterNotNull()
+            values.forEach { it.flowSlot = -1 }
+            metas.fill(0L)
+            connections.fill(null)
+            size = 0
+            values
+        }
+        for (connection in openConnections) {
+            connection.closeSoft()
+        }
+    }
+
+    /**
+     * Empties the supplied slot and shifts subsequent entries of the same probe sequence back, so that lookups never hit a gap.
+     */
+    private fun deleteSlot(deletedSlot: Int) {
+        var gap = deletedSlot
+        var slot = (gap + 1) and mask
+        while(metas[slot] != 0L) {
+            val home = hashes[slot] and mask
+            // the entry may only move into the gap if the gap lies between its home slot and its current slot (cyclically)
+            val distanceToGap = (gap - home) and mask
+            val distanceToSlot = (slot - home) and mask
+            if(distanceToGap < distanceToSlot) {
+                moveSlot(slot, gap)
+                gap = slot
+            }
+            slot = (slot + 1) and mask
+        }
+        metas[gap] = 0L
+        connections[gap] = null
+        size--
+    }
+
+    private fun moveSlot(from: Int, to: Int) {
+        metas[to] = metas[from]
+        hashes[to] = hashes[from]
+        System.arraycopy(addressWords, from * ADDRESS_WORDS, addressWords, to * ADDRESS_WORDS, ADDRESS_WORDS)
+        lastActive[to] = lastActive[from]
+        connections[to] = connections[from]
+        connections[to]?.flowSlot = to
+    }
+
+    private fun resize(newCapacity: Int) {
+        val oldMetas = metas
+        val oldHashes = hashes
+        val oldAddressWords = addressWords
+        val oldConnections = connections
+        val oldLastActive = lastActive
+        val oldCapacity = capacity
+
+        capacity = newCapacity
+        mask = newCapacity - 1
+        metas = LongArray(newCapacity)
+        hashes = IntArray(newCapacity)
+        addressWords = IntArray(newCapacity * ADDRESS_WORDS)
+        connections = arrayOfNulls(newCapacity)
+        lastActive = LongArray(newCapacity)
+
+        for(oldSlot in 0 until oldCapacity) {
+            if(oldMetas[oldSlot] == 0L) {
+                continue
+            }
+            var slot = oldHashes[oldSlot] and mask
+            while(metas[slot] != 0L) {
+                slot = (slot + 1) and mask
+            }
+            metas[slot] = oldMetas[oldSlot]
+            hashes[slot] = oldHashes[oldSlot]
+            System.arraycopy(oldAddressWords, oldSlot * ADDRESS_WORDS, addressWords, slot * ADDRESS_WORDS, ADDRESS_WORDS)
+            connections[slot] = oldConnections[oldSlot]
+            lastActive[slot] = oldLastActive[oldSlot]
+            connections[slot]?.flowSlot = slot
+        }
+    }
+
+    private fun matches(slot: Int, packet: IpPacketView): Boolean {
+        val base = slot * ADDRESS_WORDS
+        val words = packet.addressLength / 4
+        for(i in 0 until words) {
+            if(addressWords[base + i] != packet.dstAddressWord(i) || addressWords[base + ADDRESS_WORDS / 2 + i] != packet.srcAddressWord(i)) {
+                return false
+            }
+        }
+        return true
+    }
 
-        fun findConnection(ipPacket: IpPacket): TransportLayerConnection? {
-            return cache.connections[getKey(
-                ipPacket
-            )]
+    private fun matches(slot: Int, words: IntArray): Boolean {
+        val base = slot * ADDRESS_WORDS
+        for(i in 0 until ADDRESS_WORDS) {
+            if(addressWords[base + i] != words[i]) {
+                return false
+            }
         }
+        return true
+    }
 
-        fun findConnection(key: Int): TransportLayerConnection? {
-            return cache.connections[key]
+    companion object {
+        private const val DEFAULT_CAPACITY = 256
+
+        /** Four words for the remote address and four for the local address. */
+        private const val ADDRESS_WORDS = 8
+
+        /**
+         * Computes the hash of the flow the supplied packet belongs to. The hash is also used to assign flows to traffic shards.
+         */
+        fun getKey(packet: IpPacketView): Int {
+            var hash = meta(packet.ipVersion, packet.transportProtocol, packet.srcPort, packet.dstPort).hashCode()
+            val words = packet.addressLength / 4
+            for(i in 0 until words) {
+                hash = hash * 31 + packet.dstAddressWord(i)
+            }
+            for(i in 0 until words) {
+                hash = hash * 31 + packet.srcAddressWord(i)
+            }
+            return mix(hash)
         }
 
-        fun addConnection(connection: TransportLayerConnection) {
-            val key = getKey(
-                connection
-            )
-            val oldConnection = cache.connections.put(key, connection)
-            if (oldConnection != null) {
-                Timber.e("Flow overwritten: $oldConnection $connection")
+        /**
+         * Computes the same hash as [getKey] for a 5-tuple that is already split into address words.
+         */
+        private fun getKey(words: IntArray, meta: Long): Int {
+            var hash = meta.hashCode()
+            val addressWords = if((meta ushr 40).toInt() == 4) 1 else 4
+            for(i in 0 until addressWords) {
+                hash = hash * 31 + words[i]
+            }
+            for(i in 0 until addressWords) {
+                hash = hash * 31 + words[ADDRESS_WORDS / 2 + i]
             }
+            return mix(hash)
         }
 
-        fun removeConnection(connection: TransportLayerConnection) {
-            cache.connections.remove(
-                getKey(
-                    connection
-                )
-            )
+        private fun meta(ipVersion: Int, protocol: Int, localPort: Int, remotePort: Int): Long {
+            return (ipVersion.toLong() shl 40) or (protocol.toLong() shl 32) or (localPort.toLong() shl 16) or remotePort.toLong()
         }
 
-        fun closeAllAndClear() {
-            for (connection in cache.connections.values) {
-                connection.closeSoft()
+        private fun writeAddressWords(address: ByteArray, words: IntArray, offset: Int) {
+            val buffer = ByteBuffer.wrap(address)
+            var i = offset
+            while(buffer.hasRemaining()) {
+                words[i++] = buffer.int
             }
-            cache.connections.clear()
-        }
-
-        private fun getKey(ipPacket: IpPacket): Int {
-            val remoteAddress = ipPacket.header.dstAddr
-            val transportPacket = ipPacket.payload as TransportPacket
-            val localPort = transportPacket.header.srcPort.valueAsInt()
-            val remotePort = transportPacket.header.dstPort.valueAsInt()
-            val protocol = ipPacket.header.protocol.value()
-            return getKey(
-                remoteAddress,
-                protocol.toInt(),
-                localPort,
-                remotePort
-            )
-        }
-
-        private fun getKey(connection: TransportLayerConnection): Int {
-            val remoteAddress = connection.ipPacketBuilder.remoteAddress
-            val localPort = connection.localPort
-            val remotePort = connection.remotePort
-            val protocol = connection.ipPacketBuilder.transportProtocol.value()
-            return getKey(
-                remoteAddress,
-                protocol.toInt(),
-                localPort,
-                remotePort
-            )
-        }
-
-        private fun getKey(
-            remoteAddress: InetAddress,
-            protocol: Int,
-            localPort: Int,
-            remotePort: Int
-        ): Int {
-            return remoteAddress.hashCode() xor (protocol shl 16) xor (localPort shl 8) xor remotePort
+        }
+
+        private fun mix(hash: Int): Int {
+            var h = hash
+            h = (h xor (h ushr 16)) * 0x45D9F3B
+            return h xor (h ushr 16)
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+package de.tomcory.heimdall.core.vpn.cache
+
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
+
+/**
+ * Hashed timer wheel that schedules idle checks for connections.
+ *
+ * Each connection is placed into the bucket of its deadline's tick. Traffic doesn't move a connection within the wheel;
+ * instead, whoever handles a due connection compares its actual last activity with its timeout and reschedules it if it
+ * has been active in the meantime. This keeps the per-packet cost at zero and the per-tick cost proportional to the
+ * number of connections that are actually due.
+ *
+ * @param tickMillis Resolution of the wheel in milliseconds.
+ * @param wheelSize Number of buckets. Deadlines further away than one revolution stay in their bucket for several revolutions.
+ */
+class FlowTimerWheel(
+    private val tickMillis: Long = DEFAULT_TICK_MILLIS,
+    wheelSize: Int = DEFAULT_WHEEL_SIZE
+) {
+
+    private class Entry(val connection: TransportLayerConnection, val deadline: Long)
+
+    private val buckets = Array(wheelSize) { ArrayList<Entry>() }
+
+    /** Index of the last tick that has been processed, or -1 before the first call to [advance]. */
+    private var lastTick = -1L
+
+    /**
+     * Number of scheduled checks.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Schedules an idle check for the supplied connection at the supplied time (in milliseconds).
+     */
+    @Synchronized
+    fun schedule(connection: TransportLayerConnection, deadline: Long) {
+        // never schedule into a tick that has already been processed
+        val tick = maxOf(deadline / tickMillis, lastTick + 1)
+        buckets[(tick % buckets.size).toInt()].add(Entry(connection, deadline))
+        size++
+    }
+
+    /**
+     * Advances the wheel to the supplied time and removes all checks that are due.
+     *
+     * @return The connections whose checks are due.
+     */
+    @Synchronized
+    fun advance(now: Long): List<TransportLayerConnection> {
+        val nowTick = now / tickMillis
+        if(lastTick < 0) {
+            lastTick = nowTick - 1
+        }
+
+        // a full revolution visits every bucket, so there is no need to process more ticks than that
+        val firstTick = maxOf(lastTick + 1, nowTick - buckets.size + 1)
+        val due = ArrayList<TransportLayerConnection>()
+        for(tick in firstTick..nowTick) {
+            val bucket = buckets[(tick % buckets.size).toInt()]
+            val iterator = bucket.iterator()
+            while(iterator.hasNext()) {
+                val entry = iterator.next()
+                if(entry.deadline <= now) {
+                    due.add(entry.connection)
+                    iterator.remove()
+                    size--
+                }
+            }
+        }
+        lastTick = maxOf(lastTick, nowTick)
+        return due
+    }
+
+    @Synchronized
+    fun clear() {
+        buckets.forEach { it.clear() }
+        size = 0
+    }
+
+    companion object {
+        private const val DEFAULT_TICK_MILLIS = 1000L
+        private const val DEFAULT_WHEEL_SIZE = 512
+    }
+}
@@ -0,0 +1,120 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import android.os.Process
+import de.tomcory.heimdall.core.util.AppFinder
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import timber.log.Timber
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Resolves the apps owning new flows in the background, so that connections don't wait for /proc or Binder calls before forwarding their first packets.
+ *
+ * The result is handed to [TransportLayerConnection.onAttributed], which patches the connection and its database row.
+ * Every attribution that completes after the connection has already forwarded data is published as an
+ * [AttributionEvent] on [lateAttributions].
+ *
+ * @param appFinder The [AppFinder] used to resolve the apps.
+ * @param threadCount Number of threads resolving apps.
+ */
+class AppAttributor(
+    private val appFinder: AppFinder,
+    threadCount: Int = DEFAULT_THREAD_COUNT
+) {
+
+    /**
+     * An attribution that completed after its connection had started forwarding data.
+     *
+     * @property connectionId The ID of the connection.
+     * @property appId The UID of the app owning the connection, or null if it could not be determined.
+     * @property appPackage The package name of the app owning the connection.
+     * @property latencyMillis Time between the submission and the completion of the attribution.
+     */
+    data class AttributionEvent(
+        val connectionId: Int,
+        val appId: Int?,
+        val appPackage: String?,
+        val latencyMillis: Long
+    )
+
+    private val threadCounter = AtomicInteger(0)
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(threadCount) { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT)
+            runnable.run()
+        }, "AppAttributor-${threadCounter.getAndIncrement()}").apply { isDaemon = true }
+    }
+
+    private val _lateAttributions = MutableSharedFlow<AttributionEvent>(
+        extraBufferCapacity = EVENT_BUFFER_CAPACITY,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+
+    /**
+     * Attributions that completed after their connections had started forwarding data.
+     */
+    val lateAttributions: SharedFlow<AttributionEvent> = _lateAttributions.asSharedFlow()
+
+    private val attributionCount = AtomicLong(0)
+    private val lateCount = AtomicLong(0)
+    private val totalLatency = AtomicLong(0)
+
+    /**
+     * Schedules the attribution of the supplied connection. If the attributor has been shut down, the connection is marked as unattributed right away.
+     *
+     * @param protocol The connection's transport protocol as an [android.system.OsConstants] IPPROTO value.
+     */
+    fun attribute(connection: TransportLayerConnection, connectionId: Int, protocol: Int) {
+        val submitted = System.currentTimeMillis()
+        try {
+            executor.execute {
+                val appId = try {
+                    appFinder.getAppId(
+                        connection.ipPacketBuilder.localAddress,
+                        connection.ipPacketBuilder.remoteAddress,
+                        connection.localPort,
+                        connection.remotePort,
+                        protocol
+                    )?.takeIf { it >= 0 }
+                } catch (e: Exception) {
+                    Timber.e(e, "Error attributing connection $connectionId")
+                    null
+                }
+                val appPackage = appFinder.getAppPackage(appId)
+                val latency = System.currentTimeMillis() - submitted
+
+                attributionCount.incrementAndGet()
+                totalLatency.addAndGet(latency)
+                val late = connection.onAttributed(appId, appPackage)
+                if(late) {
+                    lateCount.incrementAndGet()
+                    _lateAttributions.tryEmit(AttributionEvent(connectionId, appId, appPackage, latency))
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            connection.onAttributed(null, null)
+        }
+    }
+
+    /**
+     * Stops the attributor. Attributions that haven't started yet are dropped.
+     */
+    fun shutdown() {
+        executor.shutdownNow()
+        val count = attributionCount.get()
+        Timber.d("AppAttributor shut down ($count attributions, ${lateCount.get()} late, avg latency ${if(count > 0) totalLatency.get() / count else 0} ms)")
+    }
+
+    companion object {
+        private const val DEFAULT_THREAD_COUNT = 2
+        private const val EVENT_BUFFER_CAPACITY = 64
+    }
+}
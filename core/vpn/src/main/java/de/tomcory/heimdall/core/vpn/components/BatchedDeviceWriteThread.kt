@@ -0,0 +1,174 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import android.os.Process
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+import org.pcap4j.packet.IpPacket
+import timber.log.Timber
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * [DeviceWriter] that collects the packets of all producer threads in a lock-free queue and drains it in batches.
+ *
+ * The thread parks while the queue is empty and is unparked by the first packet that arrives. Once awake, it writes every
+ * queued packet back-to-back before parking again, so a burst of segments costs a single wakeup instead of one Looper
+ * dispatch per packet. The TUN interface delivers each write() as exactly one packet, so packets are still written
+ * individually, but without the per-packet flush of [DeviceWriteThread].
+ *
+ * @param outputStream The stream to the device's TUN interface.
+ */
+class BatchedDeviceWriteThread(
+    name: String,
+    private val outputStream: FileOutputStream
+) : Thread(name), DeviceWriter {
+
+    private val queue = ConcurrentLinkedQueue<Any>()
+
+    private val outputChannel = outputStream.channel
+
+    @Volatile
+    private var running = true
+
+    private val queued = AtomicInteger(0)
+    private val batches = AtomicLong(0)
+    private val written = AtomicLong(0)
+
+    @Volatile
+    private var largestBatch = 0
+
+    /**
+     * Number of packets currently waiting to be written.
+     */
+    val queueDepth: Int
+        get() = queued.get()
+
+    /**
+     * Number of batches (i.e. wakeups that wrote at least one packet) since the thread was started.
+     */
+    val batchCount: Long
+        get() = batches.get()
+
+    /**
+     * Number of packets written since the thread was started.
+     */
+    val packetCount: Long
+        get() = written.get()
+
+    /**
+     * Largest number of packets written in a single batch.
+     */
+    val maxBatchSize: Int
+        get() = largestBatch
+
+    /**
+     * Average number of packets written per batch.
+     */
+    val averageBatchSize: Double
+        get() = batches.get().let { if(it > 0) written.get().toDouble() / it else 0.0 }
+
+    init {
+        Timber.d("Thread created")
+    }
+
+    override fun write(packet: PooledPacket) {
+        enqueue(packet)
+    }
+
+    override fun write(packet: IpPacket) {
+        enqueue(packet)
+    }
+
+    private fun enqueue(packet: Any) {
+        if(!running) {
+            (packet as? PooledPacket)?.release()
+            return
+        }
+        queue.offer(packet)
+        queued.incrementAndGet()
+        // quit() may have been called after the check above and the thread may already have drained the queue
+        if(!running) {
+            releaseQueued()
+            return
+        }
+        LockSupport.unpark(this)
+    }
+
+    override fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND)
+        Timber.d("Thread started")
+
+        while(running) {
+            var batchSize = 0
+            var packet = queue.poll()
+            while(packet != null) {
+                queued.decrementAndGet()
+                writePacket(packet)
+                batchSize++
+                packet = queue.poll()
+            }
+
+            if(batchSize > 0) {
+                batches.incrementAndGet()
+                written.addAndGet(batchSize.toLong())
+                if(batchSize > largestBatch) {
+                    largestBatch = batchSize
+                }
+            }
+
+            // a packet offered after the last poll unparks us, so the permit prevents a lost wakeup
+            if(queue.isEmpty()) {
+                LockSupport.park(this)
+            }
+        }
+
+        // hand any packets that were left behind back to their pool
+        releaseQueued()
+
+        Timber.d("Thread shut down (${written.get()} packets in ${batches.get()} batches, largest batch $largestBatch)")
+    }
+
+    /**
+     * Hands the queued packets back to their pool. Safe to call from several threads, each packet is only polled once.
+     */
+    private fun releaseQueued() {
+        var packet = queue.poll()
+        while(packet != null) {
+            queued.decrementAndGet()
+            (packet as? PooledPacket)?.release()
+            packet = queue.poll()
+        }
+    }
+
+    private fun writePacket(packet: Any) {
+        when(packet) {
+            is PooledPacket -> {
+                try {
+                    outputChannel.write(packet.buffer)
+                } catch (e: IOException) {
+                    Timber.e(e, "Error writing packet of size ${packet.length} to device")
+                } finally {
+                    packet.release()
+                }
+            }
+            is IpPacket -> {
+                try {
+                    outputStream.write(packet.rawData)
+                } catch (e: IOException) {
+                    Timber.e(e, "Error writing packet of size ${packet.length()} to device")
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread after the current batch. Packets that haven't been written by then are dropped.
+     */
+    fun quit() {
+        running = false
+        LockSupport.unpark(this)
+    }
+}
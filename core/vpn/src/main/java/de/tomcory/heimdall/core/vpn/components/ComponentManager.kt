@@ -4,15 +4,28 @@ import android.content.Context
 import android.system.ErrnoException
 import android.system.Os
 import de.tomcory.heimdall.core.util.AppFinder
+import de.tomcory.heimdall.core.util.BodyCapturePolicy
+import de.tomcory.heimdall.core.util.ContentStore
+import de.tomcory.heimdall.core.util.MemoryBudget
+import de.tomcory.heimdall.core.util.MitmPolicy
 import de.tomcory.heimdall.core.util.Trie
 import de.tomcory.heimdall.core.vpn.R
-import de.tomcory.heimdall.core.vpn.cache.ConnectionCache
+import de.tomcory.heimdall.core.vpn.buffer.BufferPool
+import de.tomcory.heimdall.core.vpn.buffer.PacketPool
 import de.tomcory.heimdall.core.vpn.metadata.DnsCache
+import de.tomcory.heimdall.core.vpn.metadata.PinningFailureTracker
+import de.tomcory.heimdall.core.vpn.metadata.QuicConnectionIdCache
 import de.tomcory.heimdall.core.vpn.metadata.TlsPassthroughCache
 import de.tomcory.heimdall.core.vpn.mitm.Authority
 import de.tomcory.heimdall.core.vpn.mitm.CertificateSniffingMitmManager
+import de.tomcory.heimdall.core.vpn.mitm.KeyPairPool
+import de.tomcory.heimdall.core.vpn.mitm.LeafKeyType
 import de.tomcory.heimdall.core.vpn.mitm.VpnComponentLaunchException
+import de.tomcory.heimdall.core.vpn.pipeline.PacketTransport
+import de.tomcory.heimdall.core.vpn.pipeline.WaitStrategy
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
 import org.pcap4j.packet.IllegalRawDataException
@@ -31,7 +44,7 @@ import java.io.IOException
 import java.io.InputStreamReader
 import java.net.DatagramSocket
 import java.net.Socket
-import java.nio.channels.Selector
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Manages the lifecycle of the traffic-handling components of the VPN.
@@ -45,9 +58,20 @@ class ComponentManager(
     val context: Context?,
     existingSessionId: Int = -1,
     val doMitm: Boolean = false,
+    val mitmPolicy: MitmPolicy = MitmPolicy.unrestricted(doMitm),
+    private val mitmLeafKeyType: LeafKeyType = LeafKeyType.RSA_2048,
+    val blockQuic: Boolean = false,
     keyStoreDir: File,
     val appFinder: AppFinder,
     val maxPacketSize: Int = 16413,
+    private val batchedDeviceWrites: Boolean = true,
+    private val ringBufferPipeline: Boolean = true,
+    private val pipelineWaitStrategy: WaitStrategy = WaitStrategy.PARK,
+    private val shardCount: Int = defaultShardCount(),
+    private val connectionMemoryBudget: Long = DEFAULT_CONNECTION_MEMORY_BUDGET,
+    val bodyCapturePolicy: BodyCapturePolicy = BodyCapturePolicy.DEFAULT,
+    contentDir: File? = null,
+    captureMemoryBudget: Long = DEFAULT_CAPTURE_MEMORY_BUDGET,
     private val trackerTrie: Trie<String> = Trie {
         it.split(
             "."
@@ -58,30 +82,57 @@ class ComponentManager(
 ) {
     val sessionId: Int
 
+    /**
+     * Writes the transport-layer connections to the database in the background.
+     */
+    val connectionPersister: ConnectionPersister
+
     // the traffic handling threads
     private var devicePollThread: DevicePollThread? = null
     private var deviceWriteThread: DeviceWriteThread? = null
-    private var outboundTrafficHandler: OutboundTrafficHandler? = null
-    private var inboundTrafficHandler: InboundTrafficHandler? = null
+    private var batchedDeviceWriteThread: BatchedDeviceWriteThread? = null
+    private var shards: List<TrafficShard> = emptyList()
+    private var idleFlowReaper: IdleFlowReaper? = null
 
     // the interrupter pipe is used to stop the DevicePollThread's polling
     private val interrupter: FileDescriptor
 
+    // set up the pool of buffers that packets read from the VPN interface are stored in
+    val outboundPacketPool = PacketPool(packetSize = DEVICE_MTU, capacity = OUTBOUND_POOL_CAPACITY)
+
+    // set up the pool of buffers that packets written to the VPN interface are assembled in
+    val inboundPacketPool = PacketPool(packetSize = maxPacketSize + MAX_HEADER_LENGTH, capacity = INBOUND_POOL_CAPACITY)
+
+    // set up the pool of buffers that connections borrow for reading from and writing to their sockets
+    val bufferPool = BufferPool(intArrayOf(SMALL_BUFFER_SIZE, maxPacketSize, LARGE_BUFFER_FACTOR * maxPacketSize), BUFFER_POOL_CAPACITY)
+
+    // set up the pool of heap buffers that TLS connections borrow for wrapping and unwrapping records with their SSLEngines
+    val tlsBufferPool = BufferPool(intArrayOf(TLS_BUFFER_SIZE, 2 * TLS_BUFFER_SIZE), TLS_BUFFER_POOL_CAPACITY, direct = false)
+
     // set up the caches for DNS lookups and TLS passthrough connections
     val dnsCache = DnsCache()
-    val tlsPassthroughCache = TlsPassthroughCache()
+    val tlsPassthroughCache = TlsPassthroughCache(File(keyStoreDir, PASSTHROUGH_FILE_NAME))
+
+    // set up the cache that attributes migrated QUIC flows to the hostnames of their original flows
+    val quicConnectionIds = QuicConnectionIdCache()
+
+    // set up the store for captured bodies that don't fit into the database, and the memory budget of the bodies held until they are persisted
+    val contentStore = contentDir?.let { ContentStore.forDirectory(it) }
+    val captureBudget = MemoryBudget(captureMemoryBudget)
 
+    // set up the tracker that learns which apps reject impersonated certificates and passes them through
+    val pinningFailureTracker = PinningFailureTracker(tlsPassthroughCache)
+
+
+    // set up the executor that resolves the apps owning new flows in the background
+    val appAttributor = AppAttributor(appFinder)
+
+    // set up the bounded executor that runs the TLS handshakes
+    val handshakeExecutor = HandshakeExecutor()
 
     // set up the man-in-the-middle manager
     private val authority = Authority.getDefaultInstance(keyStoreDir)
-    val mitmManager: CertificateSniffingMitmManager = CertificateSniffingMitmManager(authority)
-
-    // set up the NIO selector that is used to poll the outgoing sockets for incoming packets
-    val selector: Selector = try {
-        Selector.open()
-    } catch (e: IOException) {
-        throw VpnComponentLaunchException("Error opening selector", e)
-    }
+    val mitmManager: CertificateSniffingMitmManager = CertificateSniffingMitmManager(authority, KeyPairPool(mitmLeafKeyType))
 
     init {
         // set up the pipe that is used to stop the DevicePollThread's polling
@@ -95,6 +146,23 @@ class ComponentManager(
         // initialise the pcap4j configuration now to improve performance during traffic handling
         initialisePcap4j()
 
+        // start generating the key pairs for the fake server certificates before the first TLS connection needs one
+        // and load the certificates of recently impersonated hosts from disk
+        if(doMitm) {
+            mitmManager.startKeyPairPool()
+            CoroutineScope(Dispatchers.IO).launch {
+                val loaded = mitmManager.warmUpCertificateCache()
+                Timber.d("Loaded $loaded stored certificates")
+            }
+        }
+
+        // delete the stored bodies that are no longer referenced by the database
+        contentStore?.let { store ->
+            CoroutineScope(Dispatchers.IO).launch {
+                databaseConnector.getContentRefs()?.let { store.cleanup(it) }
+            }
+        }
+
         // prepare the trie of tracking hosts used to label traffic
         context?.let {
             Timber.d("Building tracking hosts trie")
@@ -108,43 +176,75 @@ class ComponentManager(
             existingSessionId
         }
 
+        // connections are persisted lazily, with row IDs assigned by the database
+        connectionPersister = ConnectionPersister(databaseConnector)
+
         /*
          * Create and start the traffic handler threads. Since the threads rely on handlers to pass messages to each other
          * and the handler is instantiated asynchronously within the threads, this needs to be wrapped in callbacks.
          * The threads are created and started in the following order:
-         * 1 - DeviceWriteThread
-         * 2 - Inbound- & OutboundTrafficHandler (both with the DeviceWriteThread's handler)
-         * 3 - DevicePollThread (with the OutboundTrafficHandler's handler)
+         * 1 - DeviceWriteThread or BatchedDeviceWriteThread
+         * 2 - The TrafficShards, each with its own Inbound- & OutboundTrafficHandler (both with the device writer)
+         * 3 - DevicePollThread (with a transport to each shard's outbound stage, either the OutboundTrafficHandler's handler or a ring buffer)
          */
-        deviceWriteThread = DeviceWriteThread(
-            "DeviceWriteThread",
-            inboundStream
-        ) { deviceWriter ->
-            inboundTrafficHandler =
-                InboundTrafficHandler(
-                    "InboundTrafficHandler",
-                    this
-                )
-            outboundTrafficHandler =
-                OutboundTrafficHandler(
-                    "OutboundTrafficHandler",
-                    deviceWriter,
-                    this
-                ) { outHandler ->
-                    devicePollThread =
-                        DevicePollThread(
-                            "DevicePollThread",
-                            outboundStream,
-                            interrupter,
-                            outHandler
-                        )
-                    devicePollThread?.start()
-                    Timber.d("Traffic handlers initialised")
+        if(batchedDeviceWrites) {
+            val deviceWriter = BatchedDeviceWriteThread(
+                "BatchedDeviceWriteThread",
+                inboundStream
+            )
+            batchedDeviceWriteThread = deviceWriter
+            deviceWriter.start()
+            startTrafficHandlers(deviceWriter)
+        } else {
+            deviceWriteThread = DeviceWriteThread(
+                "DeviceWriteThread",
+                inboundStream
+            ) { deviceWriter ->
+                startTrafficHandlers(deviceWriter)
+            }
+            deviceWriteThread?.start()
+        }
+    }
+
+    private fun startTrafficHandlers(deviceWriter: DeviceWriter) {
+        val count = shardCount.coerceAtLeast(1)
+        Timber.d("Starting $count traffic shards")
+        shards = List(count) { index ->
+            TrafficShard(index, this, deviceWriter, ringBufferPipeline, pipelineWaitStrategy, OUTBOUND_POOL_CAPACITY)
+        }
+
+        // the DevicePollThread can only be started once every shard's outbound stage is ready
+        val transports = arrayOfNulls<PacketTransport>(count)
+        val pendingShards = AtomicInteger(count)
+        shards.forEach { shard ->
+            shard.start { transport ->
+                transports[shard.index] = transport
+                if(pendingShards.decrementAndGet() == 0) {
+                    startDevicePollThread(transports.requireNoNulls())
                 }
-            inboundTrafficHandler?.start()
-            outboundTrafficHandler?.start()
+            }
         }
-        deviceWriteThread?.start()
+
+        idleFlowReaper = IdleFlowReaper(
+            "IdleFlowReaper",
+            shards,
+            CONNECTION_OVERHEAD,
+            connectionMemoryBudget
+        )
+        idleFlowReaper?.start()
+    }
+
+    private fun startDevicePollThread(transports: Array<PacketTransport>) {
+        devicePollThread =
+            DevicePollThread(
+                "DevicePollThread",
+                outboundStream,
+                interrupter,
+                transports,
+                outboundPacketPool
+            )
+        devicePollThread?.start()
+        Timber.d("Traffic handlers initialised")
     }
 
     suspend fun stopComponents() {
@@ -155,10 +255,16 @@ class ComponentManager(
             Timber.w(e, "Error closing interrupter pipe")
         }
 
-        // close the other three traffic handling threads
-        outboundTrafficHandler?.quitSafely()
-        inboundTrafficHandler?.interrupt()
+        // close the other traffic handling threads
+        idleFlowReaper?.interrupt()
+        mitmManager.stopKeyPairPool()
+        handshakeExecutor.shutdown()
+        appAttributor.shutdown()
+        mitmManager.upstreamSessionCache?.let { Timber.d("Session stats: $it") }
+        Timber.d("Promoted ${pinningFailureTracker.promotedCount} hosts to passthrough")
+        shards.forEach { it.stop() }
         deviceWriteThread?.quitSafely()
+        batchedDeviceWriteThread?.quit()
 
         // close the streams to and from the VPN interface
         try {
@@ -170,10 +276,16 @@ class ComponentManager(
             Timber.w(e, "Error closing VPN interface streams")
         }
 
-        // clear the connection cache
-        ConnectionCache.closeAllAndClear()
+        // close the connections of all shards
+        shards.forEach { it.closeConnections() }
+
+        // keep the learned passthrough hosts for the next session
+        withContext(Dispatchers.IO) {
+            tlsPassthroughCache.save()
+        }
 
-        // update the session end time in the database
+        // write the remaining connections and update the session end time in the database
+        connectionPersister.close()
         databaseConnector.updateSession(sessionId, System.currentTimeMillis())
     }
 
@@ -267,7 +379,93 @@ class ComponentManager(
 
     fun labelConnection(remoteHost: String) = trackerTrie.search(remoteHost) != null
 
+    /**
+     * Returns a connection's share of the [captureBudget], so that a single connection can't take up all of it.
+     */
+    fun newConnectionCaptureBudget() = MemoryBudget(CONNECTION_CAPTURE_BUDGET, captureBudget)
+
     companion object {
-        val selectorMonitor: Any = Any()
+
+        /**
+         * Maximum size of packets read from the VPN interface.
+         */
+        private const val DEVICE_MTU = 1500
+
+        /**
+         * Maximum number of idle buffers kept for packets read from the VPN interface.
+         */
+        private const val OUTBOUND_POOL_CAPACITY = 256
+
+        /**
+         * Maximum combined length of the IP and TCP headers of packets written to the VPN interface (IPv6 + TCP without options).
+         */
+        private const val MAX_HEADER_LENGTH = 60
+
+        /**
+         * Maximum number of idle buffers kept for packets written to the VPN interface.
+         */
+        private const val INBOUND_POOL_CAPACITY = 64
+
+        /**
+         * Size of the smallest socket buffers, which fit most writes of small requests and DNS queries.
+         */
+        private const val SMALL_BUFFER_SIZE = 2048
+
+        /**
+         * Size of the largest socket buffers as a multiple of the maximum packet size. Larger (reassembled) payloads are written without a pooled buffer.
+         */
+        private const val LARGE_BUFFER_FACTOR = 4
+
+        /**
+         * Maximum number of idle socket buffers kept per size class.
+         */
+        private const val BUFFER_POOL_CAPACITY = 32
+
+        /**
+         * Size of the smaller TLS buffers, which fit the packet and application buffer sizes of common SSLEngine sessions (a full record plus expansion).
+         */
+        private const val TLS_BUFFER_SIZE = 17 * 1024
+
+        /**
+         * Maximum number of idle TLS buffers kept per size class.
+         */
+        private const val TLS_BUFFER_POOL_CAPACITY = 32
+
+        /**
+         * Name of the file in the key store directory that the passthrough hosts are persisted in.
+         */
+        private const val PASSTHROUGH_FILE_NAME = "tls_passthrough"
+
+        /**
+         * Upper bound for the default number of traffic shards. Each shard runs two threads.
+         */
+        private const val MAX_DEFAULT_SHARDS = 4
+
+        /**
+         * Default maximum memory held by all connections together before idle connections are evicted.
+         */
+        private const val DEFAULT_CONNECTION_MEMORY_BUDGET = 64L * 1024 * 1024
+
+        /**
+         * Rough estimate of the memory held by a connection (channel, layer objects, TLS state). Socket buffers are pooled and not held by connections.
+         */
+        private const val CONNECTION_OVERHEAD = 16L * 1024
+
+        /**
+         * Default maximum memory held by the bodies captured by all connections together. Bodies that don't fit spill into the content store.
+         */
+        private const val DEFAULT_CAPTURE_MEMORY_BUDGET = 32L * 1024 * 1024
+
+        /**
+         * Maximum memory held by the bodies captured by a single connection.
+         */
+        private const val CONNECTION_CAPTURE_BUDGET = 4L * 1024 * 1024
+
+        /**
+         * Uses one shard per two cores, so that the shards' outbound and inbound threads roughly fill the available cores.
+         */
+        fun defaultShardCount(): Int {
+            return (Runtime.getRuntime().availableProcessors() / 2).coerceIn(1, MAX_DEFAULT_SHARDS)
+        }
     }
 }
\ No newline at end of file
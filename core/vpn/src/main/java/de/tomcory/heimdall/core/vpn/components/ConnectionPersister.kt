@@ -0,0 +1,188 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import de.tomcory.heimdall.core.database.entity.Connection
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import timber.log.Timber
+
+/**
+ * Write-behind persistence of transport-layer connections.
+ *
+ * Connections are assigned a local ID as soon as they are created, so the packet-processing threads never wait for the
+ * database. The actual rows are written by a background coroutine that coalesces the pending inserts, updates and deletes
+ * and writes them in a single transaction per batch. A connection that is deleted before its insert has been flushed
+ * never reaches the database at all.
+ *
+ * The row IDs are assigned by SQLite when the rows are inserted, since other writers (e.g. the proxy) insert connections
+ * into the same table. Rows that reference a connection (e.g. HTTP requests) must use the row ID, which callers can wait
+ * for with [PersistedConnection.awaitRowId].
+ *
+ * @param databaseConnector The connector the batches are written through.
+ */
+class ConnectionPersister(
+    private val databaseConnector: DatabaseConnector
+) {
+
+    /**
+     * A connection passed to [insert].
+     *
+     * @property id The local ID of the connection, used by the VPN to refer to the connection.
+     */
+    class PersistedConnection internal constructor(val id: Int) {
+
+        internal val rowId = CompletableDeferred<Int>()
+
+        /**
+         * Suspends until the connection has been written to the database.
+         *
+         * @return The ID of the connection's row, or -1 if it could not be written or was deleted before it was written.
+         */
+        suspend fun awaitRowId(): Int = rowId.await()
+    }
+
+    private sealed class PendingOperation(val target: PersistedConnection) {
+        class Insert(target: PersistedConnection, val connection: Connection) : PendingOperation(target)
+        class Update(target: PersistedConnection, val connection: Connection) : PendingOperation(target)
+        class Delete(target: PersistedConnection) : PendingOperation(target)
+    }
+
+    private val lock = Any()
+
+    /** Pending operations by local connection ID, guarded by [lock]. Only the latest operation per connection is kept. */
+    private var pending = LinkedHashMap<Int, PendingOperation>()
+
+    /** The last local ID handed out, guarded by [lock]. */
+    private var lastId = 0
+
+    private val wakeUp = Channel<Unit>(Channel.CONFLATED)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val writerJob: Job = scope.launch {
+        for (request in wakeUp) {
+            // give the burst that triggered the wake-up a moment to grow into a batch
+            delay(BATCH_WINDOW_MILLIS)
+            flush()
+        }
+        // the channel has been closed, so write whatever is left
+        flush()
+    }
+
+    /**
+     * Assigns a local ID to the supplied connection and schedules its insertion. Any ID set on the supplied entity is ignored.
+     */
+    fun insert(connection: Connection): PersistedConnection {
+        val target = synchronized(lock) {
+            val target = PersistedConnection(++lastId)
+            pending[target.id] = PendingOperation.Insert(target, connection.copy(id = 0))
+            target
+        }
+        signal()
+        return target
+    }
+
+    /**
+     * Schedules an update of a connection previously passed to [insert]. If the insert hasn't been flushed yet, it is
+     * replaced by the updated row instead. Any ID set on the supplied entity is ignored.
+     */
+    fun update(target: PersistedConnection, connection: Connection) {
+        synchronized(lock) {
+            pending[target.id] = when (pending[target.id]) {
+                is PendingOperation.Insert -> PendingOperation.Insert(target, connection.copy(id = 0))
+                is PendingOperation.Delete -> return
+                else -> PendingOperation.Update(target, connection)
+            }
+        }
+        signal()
+    }
+
+    /**
+     * Schedules the deletion of a connection previously passed to [insert]. If the insert hasn't been flushed yet, the
+     * connection is simply dropped.
+     */
+    fun delete(target: PersistedConnection) {
+        synchronized(lock) {
+            if (pending[target.id] is PendingOperation.Insert) {
+                pending.remove(target.id)
+                target.rowId.complete(-1)
+                return
+            }
+            pending[target.id] = PendingOperation.Delete(target)
+        }
+        signal()
+    }
+
+    /**
+     * Stops accepting batches and writes all pending operations, waiting at most [CLOSE_TIMEOUT_MILLIS].
+     */
+    suspend fun close() {
+        wakeUp.close()
+        if (withTimeoutOrNull(CLOSE_TIMEOUT_MILLIS) { writerJob.join() } == null) {
+            Timber.w("Timed out while writing pending connections")
+            // release whoever is still waiting for a row that won't be written any more
+            synchronized(lock) {
+                pending.values.forEach { (it as? PendingOperation.Insert)?.target?.rowId?.complete(-1) }
+            }
+        }
+    }
+
+    private fun signal() {
+        wakeUp.trySend(Unit)
+    }
+
+    private suspend fun flush() {
+        val batch = synchronized(lock) {
+            if (pending.isEmpty()) {
+                return
+            }
+            val batch = pending
+            pending = LinkedHashMap()
+            batch
+        }
+
+        val insertTargets = ArrayList<PersistedConnection>()
+        val inserts = ArrayList<Connection>()
+        val updates = ArrayList<Connection>()
+        val deletes = ArrayList<Int>()
+        for (operation in batch.values) {
+            when (operation) {
+                is PendingOperation.Insert -> {
+                    insertTargets.add(operation.target)
+                    inserts.add(operation.connection)
+                }
+                // the insert was flushed in an earlier batch, so the row ID is already known
+                is PendingOperation.Update -> operation.target.awaitRowId().takeIf { it > 0 }?.let { updates.add(operation.connection.copy(id = it)) }
+                is PendingOperation.Delete -> operation.target.awaitRowId().takeIf { it > 0 }?.let { deletes.add(it) }
+            }
+        }
+
+        val rowIds = databaseConnector.persistTransportLayerConnectionBatch(inserts, updates, deletes)
+        if (rowIds == null) {
+            Timber.e("Dropped batch of ${batch.size} connection operations")
+        }
+
+        // complete the inserts even if the batch failed, so that dependent writes fail on their own instead of waiting forever
+        insertTargets.forEachIndexed { index, target ->
+            target.rowId.complete(rowIds?.getOrNull(index)?.toInt()?.takeIf { it > 0 } ?: -1)
+        }
+    }
+
+    companion object {
+        /**
+         * How long the writer waits after the first pending operation before writing the batch.
+         */
+        private const val BATCH_WINDOW_MILLIS = 50L
+
+        /**
+         * Upper bound for writing the remaining operations when the VPN is stopped.
+         */
+        private const val CLOSE_TIMEOUT_MILLIS = 5_000L
+    }
+}
@@ -1,5 +1,7 @@
 package de.tomcory.heimdall.core.vpn.components
 
+import de.tomcory.heimdall.core.database.entity.Connection
+
 interface DatabaseConnector {
 
     suspend fun persistSession(
@@ -29,12 +31,19 @@ interface DatabaseConnector {
         id: Int
     ): Int
 
+    suspend fun persistTransportLayerConnectionBatch(
+        inserts: List<Connection>,
+        updates: List<Connection>,
+        deletes: List<Int>
+    ): List<Long>?
+
     suspend fun persistHttpRequest(
         connectionId: Int,
         timestamp: Long,
         headers: Map<String, String>,
         content: String,
         contentLength: Int,
+        contentRef: String?,
         method: String,
         remoteHost: String,
         remotePath: String,
@@ -53,6 +62,7 @@ interface DatabaseConnector {
         headers: Map<String, String>,
         content: String,
         contentLength: Int,
+        contentRef: String?,
         statusCode: Int,
         statusMsg: String,
         remoteHost: String,
@@ -63,4 +73,9 @@ interface DatabaseConnector {
         initiatorId: Int,
         initiatorPkg: String
     ): Int
+
+    /**
+     * Returns the content store references of all persisted requests and responses, or null if they could not be read.
+     */
+    suspend fun getContentRefs(): Set<String>?
 }
\ No newline at end of file
@@ -1,24 +1,34 @@
 package de.tomcory.heimdall.core.vpn.components
 
-import android.os.Handler
 import android.os.Process
 import android.system.ErrnoException
 import android.system.Os
 import android.system.OsConstants
 import android.system.StructPollfd
-import org.pcap4j.packet.*
+import de.tomcory.heimdall.core.vpn.buffer.PacketPool
+import de.tomcory.heimdall.core.vpn.cache.ConnectionCache
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketView
+import de.tomcory.heimdall.core.vpn.pipeline.PacketTransport
 import timber.log.Timber
 import java.io.FileDescriptor
 import java.io.FileInputStream
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 
 class DevicePollThread internal constructor(
     name: String,
     private val inputStream: FileInputStream,
     private val interrupter: FileDescriptor,
-    private val outboundTrafficHandler: Handler
+    private val outboundTransports: Array<PacketTransport>,
+    private val packetPool: PacketPool
 ) : Thread(name) {
 
+    /**
+     * Reusable view used to compute the flow key of each packet for shard assignment.
+     */
+    private val packetView = IpPacketView()
+
     init {
         Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND)
         Timber.d("Thread created")
@@ -27,9 +37,8 @@ class DevicePollThread internal constructor(
     override fun run() {
         Timber.d("Thread started")
 
-        // allocate the buffer for a single packet and reuse it for all packets (yay, performance!)
-        //TODO: actually implement a reusable buffer
-        val packet = ByteArray(1500)
+        // packets are read straight into pooled buffers, so we need the channel rather than the stream
+        val inputChannel = inputStream.channel
 
         // prepare to poll the inputStream
         val deviceFd = StructPollfd()
@@ -54,14 +63,14 @@ class DevicePollThread internal constructor(
 
         // continuously poll until interrupted via the interrupter pipe (in which case poll() returns false)
         while (true) {
-            if (!poll(packet, polls)) {
+            if (!poll(inputChannel, polls)) {
                 break
             }
         }
         Timber.d("Thread shut down")
     }
 
-    private fun poll(packetPlaceholder: ByteArray, polls: Array<StructPollfd?>): Boolean {
+    private fun poll(inputChannel: FileChannel, polls: Array<StructPollfd?>): Boolean {
         val deviceFd = polls[0]
         val interruptFd = polls[1]
 
@@ -88,89 +97,67 @@ class DevicePollThread internal constructor(
         // the POLLIN event was written to the deviceFd Filedescriptor, meaning we need to read a packet from the device
         if ((deviceFd!!.revents.toInt() and OsConstants.POLLIN) != 0) {
 
-            // read the raw bytes of the packet and forward the ByteArray to the OutboundInternetHandler
-            val rawPacket = try {
-                readPacket(inputStream, packetPlaceholder)
+            // read the raw bytes of the packet into a pooled buffer, which is owned by whoever processes the packet from now on
+            val packet = packetPool.acquire()
+            val length = try {
+                packet.readFrom(inputChannel)
             } catch (e: IOException) {
+                packet.release()
                 return false
             }
 
-            if(rawPacket.isNotEmpty()) {
-                val parsedPacket = parsePacket(rawPacket)
-
-                // forward packet to traffic handler
-                if (parsedPacket != null) {
-                    val transportProtocol = when(parsedPacket.payload) {
-                        is TcpPacket -> 6
-                        is UdpPacket -> 17
-                        else -> 0
-                    }
-                    outboundTrafficHandler.sendMessage(outboundTrafficHandler.obtainMessage(transportProtocol, parsedPacket))
-                }
+            // no need to process completely empty or failed packets
+            val transportProtocol = if(length > 0) checkPacket(packet.buffer) else 0
+
+            // forward packet to the outbound stage of the flow's shard, which releases it once it's done with it
+            if (transportProtocol != 0 && (outboundTransports.size == 1 || packetView.wrap(packet.buffer))) {
+                val shardIndex = if(outboundTransports.size == 1) 0 else TrafficShard.indexFor(ConnectionCache.getKey(packetView), outboundTransports.size)
+                outboundTransports[shardIndex].send(transportProtocol, packet)
+            } else {
+                packet.release()
             }
         }
         return true
     }
 
-    private fun parsePacket(rawPacket: ByteArray): IpPacket? {
+    /**
+     * Performs some sanity checks on the raw packet without copying or parsing it.
+     *
+     * @return The packet's transport protocol number (6 for TCP, 17 for UDP) or 0 if the packet should be dropped.
+     */
+    private fun checkPacket(rawPacket: ByteBuffer): Int {
 
         // determine the IP version (4 or 6) of the packet
-        val ipVersion = rawPacket[0].toInt() shr 4
+        val ipVersion = (rawPacket.get(0).toInt() and 0xFF) shr 4
 
         // make sure the version is correct
         if(ipVersion != 4 && ipVersion != 6) {
             Timber.e("Illegal IP version: %s", ipVersion)
-            return null
+            return 0
         }
 
         // make sure we got the whole packet
         val statedLength = if(ipVersion == 4) {
-            (rawPacket[2].toInt() shl 8 and 0xFFFF) + (rawPacket[3].toInt() and 0xFF)
+            (rawPacket.getShort(2).toInt() and 0xFFFF)
         } else {
-            (rawPacket[4].toInt() shl 8 and 0xFFFF) + (rawPacket[5].toInt() and 0xFF) + 40
+            (rawPacket.getShort(4).toInt() and 0xFFFF) + 40
         }
-        if (statedLength != rawPacket.size) {
-            Timber.e("Packet length mismatch (IPv%s): Stated: %s - Actual: %s - Difference: %s", ipVersion, statedLength, rawPacket.size, (rawPacket.size - statedLength))
-            return null
+        if (statedLength != rawPacket.limit()) {
+            Timber.e("Packet length mismatch (IPv%s): Stated: %s - Actual: %s - Difference: %s", ipVersion, statedLength, rawPacket.limit(), (rawPacket.limit() - statedLength))
+            return 0
         }
 
         // make sure the transport-layer protocol is TCP or UDP and drop anything else (sorry, ICMP!)
-        rawPacket[if(ipVersion == 4) 9 else 6].toInt().let {
-            if(it != 6 && it != 17) {
-                return null
-            }
+        val transportProtocol = rawPacket.get(if(ipVersion == 4) 9 else 6).toInt()
+        if(transportProtocol != 6 && transportProtocol != 17) {
+            return 0
         }
 
         // some apps keep sending packets to the general broadcast address 255.255.255.255, ignore these packets
-        if(ipVersion == 4
-            && rawPacket[16].toInt() == 0xFF
-            && rawPacket[17].toInt() == 0xFF
-            && rawPacket[18].toInt() == 0xFF
-            && rawPacket[19].toInt() == 0xFF) {
-            return null
+        if(ipVersion == 4 && rawPacket.getInt(16) == -1) {
+            return 0
         }
 
-        // parse the packet to a pcap4j packet
-        val parsedPacket: IpPacket =
-            if (ipVersion == 4) {
-                IpV4Packet.newPacket(rawPacket, 0, rawPacket.size)
-            } else {
-                IpV6Packet.newPacket(rawPacket, 0, rawPacket.size)
-            }
-        return parsedPacket
-    }
-
-    private fun readPacket(inputStream: FileInputStream, packet: ByteArray): ByteArray {
-
-        // Read the outgoing packet from the input stream.
-        val length = inputStream.read(packet)
-
-        // no need to process completely empty or failed packets
-        return if (length == 0) {
-            ByteArray(0)
-        } else {
-            // continue with a copy of the packet, preventing access and garbage collection problems
-            packet.copyOfRange(0, length)
-        }
+        return transportProtocol
     }
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import android.os.Handler
 import android.os.HandlerThread
 import android.os.Message
 import android.os.Process
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
 import org.pcap4j.packet.IpPacket
 import timber.log.Timber
 import java.io.FileOutputStream
@@ -12,15 +13,17 @@ import java.io.IOException
 class DeviceWriteThread(
     name: String,
     private val outputStream: FileOutputStream,
-    private val handlerReadyListener: (handler: Handler) -> Unit
+    private val handlerReadyListener: (deviceWriter: DeviceWriter) -> Unit
 ) : HandlerThread(
     name,
     Process.THREAD_PRIORITY_FOREGROUND
-) {
+), DeviceWriter {
 
     lateinit var handler: Handler
         private set
 
+    private val outputChannel = outputStream.channel
+
     init {
         Timber.d("Thread created")
     }
@@ -31,7 +34,15 @@ class DeviceWriteThread(
         }
         Timber.d("Looper prepared")
         // signal looper prepared
-        handlerReadyListener.invoke(handler)
+        handlerReadyListener.invoke(this)
+    }
+
+    override fun write(packet: PooledPacket) {
+        handler.sendMessage(handler.obtainMessage(WRITE_TCP, packet))
+    }
+
+    override fun write(packet: IpPacket) {
+        handler.sendMessage(handler.obtainMessage(WRITE_UDP, packet))
     }
 
     override fun quit(): Boolean {
@@ -45,13 +56,27 @@ class DeviceWriteThread(
     }
 
     private fun handleMessageImpl(msg: Message) {
-        if (msg.obj !is IpPacket) {
-            Timber.e("Got unknown message type: %s (should be org.pcap4j.packet.IpV4Packet)", msg.obj.javaClass.name)
-            return
+        when(val packet = msg.obj) {
+            is PooledPacket -> writePooledPacket(packet)
+            is IpPacket -> writeIpPacket(packet)
+            else -> Timber.e("Got unknown message type: %s (should be PooledPacket or IpPacket)", msg.obj?.javaClass?.name)
         }
+    }
 
-        val packet = msg.obj as IpPacket
+    /**
+     * Writes a [PooledPacket] to the device in a single write operation and hands it back to its pool.
+     */
+    private fun writePooledPacket(packet: PooledPacket) {
+        try {
+            outputChannel.write(packet.buffer)
+        } catch (e: IOException) {
+            Timber.e(e, "Error writing packet of size ${packet.length} to device")
+        } finally {
+            packet.release()
+        }
+    }
 
+    private fun writeIpPacket(packet: IpPacket) {
         try {
             outputStream.write(packet.rawData)
             outputStream.flush()
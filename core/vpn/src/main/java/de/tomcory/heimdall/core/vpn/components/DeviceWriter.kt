@@ -0,0 +1,21 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+import org.pcap4j.packet.IpPacket
+
+/**
+ * Writes packets to the device's TUN interface. Implementations must be safe to call from any traffic-handling thread
+ * and must preserve the order in which a single thread submits its packets.
+ */
+interface DeviceWriter {
+
+    /**
+     * Queues a [PooledPacket] for writing. The writer takes ownership of the packet and releases it once it has been written.
+     */
+    fun write(packet: PooledPacket)
+
+    /**
+     * Queues a pcap4j [IpPacket] for writing.
+     */
+    fun write(packet: IpPacket)
+}
@@ -0,0 +1,171 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import android.os.Process
+import timber.log.Timber
+import java.util.ArrayDeque
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs the TLS handshake work of all connections (engine setup and the SSLEngines' delegated tasks) on a bounded pool of threads.
+ *
+ * Each connection submits its work through its own [Queue], which runs the connection's tasks one after another in
+ * submission order, so the handshake steps of a connection never race each other. Queues take turns on the pool one
+ * task at a time, so a connection with a long backlog can't starve the others. Closing a connection cancels its queue,
+ * dropping all tasks that haven't started yet.
+ *
+ * @param threadCount Number of threads working on handshakes, i.e. the maximum number of concurrent handshake tasks.
+ */
+class HandshakeExecutor(threadCount: Int = defaultThreadCount()) {
+
+    private val threadCounter = AtomicInteger(0)
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(threadCount) { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT)
+            runnable.run()
+        }, "HandshakeExecutor-${threadCounter.getAndIncrement()}").apply { isDaemon = true }
+    }
+
+    private val taskCount = AtomicLong(0)
+    private val totalQueueLatency = AtomicLong(0)
+    private val maxQueueLatency = AtomicLong(0)
+
+    /**
+     * Number of tasks that have been started.
+     */
+    val startedTaskCount: Long
+        get() = taskCount.get()
+
+    /**
+     * Average time between the submission and the start of a task in milliseconds.
+     */
+    val averageQueueLatency: Long
+        get() = taskCount.get().let { if (it > 0) totalQueueLatency.get() / it else 0 }
+
+    /**
+     * Longest time between the submission and the start of a task in milliseconds.
+     */
+    val maximumQueueLatency: Long
+        get() = maxQueueLatency.get()
+
+    /**
+     * Creates a new queue for the tasks of a single connection.
+     */
+    fun newQueue(name: String): Queue {
+        return Queue(name)
+    }
+
+    /**
+     * Stops the executor. Tasks that have already been submitted are dropped.
+     */
+    fun shutdown() {
+        executor.shutdownNow()
+        Timber.d("HandshakeExecutor shut down ($startedTaskCount tasks, queue latency avg $averageQueueLatency ms, max $maximumQueueLatency ms)")
+    }
+
+    private fun recordQueueLatency(latency: Long) {
+        taskCount.incrementAndGet()
+        totalQueueLatency.addAndGet(latency)
+        var max = maxQueueLatency.get()
+        while (latency > max && !maxQueueLatency.compareAndSet(max, latency)) {
+            max = maxQueueLatency.get()
+        }
+    }
+
+    private class Task(val block: () -> Unit, val submitted: Long)
+
+    /**
+     * Serial queue of the tasks of a single connection.
+     */
+    inner class Queue internal constructor(private val name: String) {
+
+        private val tasks = ArrayDeque<Task>()
+
+        /** Whether one of the queue's tasks is scheduled on or running in the executor. Guarded by [tasks]. */
+        private var scheduled = false
+
+        @Volatile
+        private var cancelled = false
+
+        /**
+         * Submits a task, which is run after all previously submitted tasks of this queue have finished.
+         * Tasks submitted after the queue has been cancelled are dropped.
+         */
+        fun submit(block: () -> Unit) {
+            synchronized(tasks) {
+                if (cancelled) {
+                    return
+                }
+                tasks.addLast(Task(block, System.currentTimeMillis()))
+                if (scheduled) {
+                    return
+                }
+                scheduled = true
+            }
+            schedule()
+        }
+
+        /**
+         * Drops all tasks that haven't started yet and rejects future ones. A task that is already running is not interrupted.
+         */
+        fun cancel() {
+            cancelled = true
+            synchronized(tasks) {
+                tasks.clear()
+            }
+        }
+
+        private fun schedule() {
+            try {
+                executor.execute { runNext() }
+            } catch (e: RejectedExecutionException) {
+                // the executor has been shut down
+                cancel()
+            }
+        }
+
+        private fun runNext() {
+            val task = synchronized(tasks) {
+                tasks.pollFirst() ?: run {
+                    scheduled = false
+                    null
+                }
+            } ?: return
+
+            if (!cancelled) {
+                recordQueueLatency(System.currentTimeMillis() - task.submitted)
+                try {
+                    task.block()
+                } catch (e: Exception) {
+                    Timber.e(e, "$name Error in handshake task")
+                }
+            }
+
+            // go to the back of the executor's queue to give the other connections a turn
+            val more = synchronized(tasks) {
+                if (tasks.isEmpty()) {
+                    scheduled = false
+                    false
+                } else {
+                    true
+                }
+            }
+            if (more) {
+                schedule()
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Handshakes are CPU-bound, so there is no point in running more of them at once than there are cores.
+         */
+        fun defaultThreadCount(): Int {
+            return Runtime.getRuntime().availableProcessors().coerceAtLeast(2)
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import android.os.Process
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection.TransportLayerState
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.UdpConnection
+import timber.log.Timber
+
+/**
+ * Closes connections that have been idle for longer than the timeout of their protocol and state, and evicts the
+ * longest-idle connections whenever the estimated memory held by all connections exceeds the budget.
+ *
+ * Idle checks are scheduled in each shard's [de.tomcory.heimdall.core.vpn.cache.FlowTimerWheel] when a connection is
+ * created, so the reaper only ever looks at connections that are actually due. The connections are closed on their
+ * shard's thread (see [TrafficShard.post]), which checks them once more before closing them.
+ *
+ * @param shards The shards whose connections are monitored.
+ * @param bytesPerConnection Estimated memory held by a single connection.
+ * @param memoryBudget Maximum memory all connections together may hold before idle connections are evicted.
+ */
+class IdleFlowReaper(
+    name: String,
+    private val shards: List<TrafficShard>,
+    private val bytesPerConnection: Long,
+    private val memoryBudget: Long
+) : Thread(name) {
+
+    init {
+        isDaemon = true
+        Timber.d("IdleFlowReaper created")
+    }
+
+    override fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+        Timber.d("IdleFlowReaper started")
+        try {
+            while (!interrupted()) {
+                sleep(TICK_MILLIS)
+                val now = System.currentTimeMillis()
+                shards.forEach { reapIdle(it, now) }
+                enforceMemoryBudget(now)
+            }
+        } catch (e: InterruptedException) {
+            // told to stop
+        }
+        Timber.d("Thread shut down")
+    }
+
+    /**
+     * Queues the due connections of the supplied shard that have been idle for too long for closing and reschedules the others.
+     */
+    private fun reapIdle(shard: TrafficShard, now: Long) {
+        val expired = ArrayList<TransportLayerConnection>()
+        for (connection in shard.flowTimer.advance(now)) {
+            val lastActive = shard.connectionCache.lastActive(connection)
+            if (lastActive < 0) {
+                // the connection has already been removed from the cache
+                continue
+            }
+            val deadline = lastActive + idleTimeout(connection)
+            if (deadline <= now) {
+                expired.add(connection)
+            } else {
+                shard.flowTimer.schedule(connection, deadline)
+            }
+        }
+        if (expired.isNotEmpty()) {
+            shard.post { closeExpired(shard, expired) }
+        }
+    }
+
+    /**
+     * Closes the supplied connections on their shard's thread, unless they have become active since they were found to be idle.
+     */
+    private fun closeExpired(shard: TrafficShard, connections: List<TransportLayerConnection>) {
+        val now = System.currentTimeMillis()
+        var reaped = 0
+        for (connection in connections) {
+            val lastActive = shard.connectionCache.lastActive(connection)
+            if (lastActive < 0) {
+                continue
+            }
+            val deadline = lastActive + idleTimeout(connection)
+            if (deadline <= now) {
+                connection.closeHard()
+                reaped++
+            } else {
+                shard.flowTimer.schedule(connection, deadline)
+            }
+        }
+        if (reaped > 0) {
+            Timber.d("Shard ${shard.index}: closed $reaped idle connections, ${shard.connectionCache.size} remaining")
+        }
+    }
+
+    /**
+     * Evicts the longest-idle connections across all shards until the estimated memory of the remaining connections fits the budget.
+     */
+    private fun enforceMemoryBudget(now: Long) {
+        val connectionCount = shards.sumOf { it.connectionCache.size }
+        val excess = connectionCount - (memoryBudget / bytesPerConnection).toInt()
+        if (excess <= 0) {
+            return
+        }
+
+        // only connections that have been quiet for a moment are candidates, active transfers are never evicted
+        val idleSince = now - MIN_IDLE_BEFORE_EVICTION
+        val candidates = shards.flatMap { shard ->
+            shard.connectionCache.findIdleConnections(idleSince).map { Triple(it, shard, shard.connectionCache.lastActive(it)) }
+        }.sortedBy { it.third }
+
+        candidates.take(excess).groupBy({ it.second }, { it.first }).forEach { (shard, evicted) ->
+            shard.post {
+                evicted.filter { shard.connectionCache.lastActive(it) in 0 until idleSince }.forEach { it.closeHard() }
+            }
+        }
+        Timber.w("Connection memory budget exceeded ($connectionCount connections), evicted ${minOf(excess, candidates.size)} idle connections")
+    }
+
+    companion object {
+        private const val TICK_MILLIS = 1000L
+
+        private const val DNS_TIMEOUT = 10_000L
+        private const val UDP_TIMEOUT = 60_000L
+        private const val TCP_CONNECTING_TIMEOUT = 30_000L
+        private const val TCP_CONNECTED_TIMEOUT = 600_000L
+        private const val TCP_CLOSING_TIMEOUT = 60_000L
+        private const val TCP_CLOSED_TIMEOUT = 10_000L
+
+        /**
+         * Minimum idle time before a connection may be evicted to enforce the memory budget.
+         */
+        private const val MIN_IDLE_BEFORE_EVICTION = 5_000L
+
+        /**
+         * Returns how long the supplied connection may be idle before it is closed, based on its protocol and state.
+         */
+        fun idleTimeout(connection: TransportLayerConnection): Long {
+            return if (connection is UdpConnection) {
+                if (connection.remotePort == 53) DNS_TIMEOUT else UDP_TIMEOUT
+            } else {
+                when (connection.state) {
+                    TransportLayerState.CONNECTING -> TCP_CONNECTING_TIMEOUT
+                    TransportLayerState.CONNECTED -> TCP_CONNECTED_TIMEOUT
+                    TransportLayerState.CLOSING -> TCP_CLOSING_TIMEOUT
+                    TransportLayerState.CLOSED, TransportLayerState.ABORTED -> TCP_CLOSED_TIMEOUT
+                }
+            }
+        }
+    }
+}
@@ -7,7 +7,7 @@ import java.io.IOException
 
 class InboundTrafficHandler(
     name: String,
-    private val componentManager: ComponentManager
+    private val shard: TrafficShard
 ) : Thread(name) {
 
     init {
@@ -22,14 +22,14 @@ class InboundTrafficHandler(
         while (!interrupted()) {
             selectedChannels = 0
             try {
-                selectedChannels = componentManager.selector.select()
+                selectedChannels = shard.selector.select()
             } catch (e: IOException) {
                 Timber.e(e, "Error during selection process")
             }
 
-            synchronized(ComponentManager.selectorMonitor) {
+            synchronized(shard.selectorMonitor) {
                 if (selectedChannels > 0) {
-                    val iterator = componentManager.selector.selectedKeys().iterator()
+                    val iterator = shard.selector.selectedKeys().iterator()
                     while (iterator.hasNext()) {
                         val key = iterator.next()
                         val attachment = key.attachment()
@@ -39,6 +39,7 @@ class InboundTrafficHandler(
                             continue
                         }
                         if (attachment is TransportLayerConnection) {
+                            shard.connectionCache.touch(attachment)
                             attachment.unwrapInbound()
                         } else {
                             Timber.e("Invalid attachment %s", attachment.javaClass)
@@ -0,0 +1,41 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketView
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
+import timber.log.Timber
+
+/**
+ * Processes packets read from the device by passing them to their [TransportLayerConnection].
+ * Shared by the outbound stages regardless of how packets are handed to them. Not thread-safe, each stage needs its own instance.
+ *
+ * @param shard The [TrafficShard] whose flows this processor handles.
+ */
+class OutboundPacketProcessor(
+    private val componentManager: ComponentManager,
+    private val deviceWriter: DeviceWriter,
+    private val shard: TrafficShard
+) {
+
+    /**
+     * Reusable view on the packet that is currently being processed. Packets are handled one at a time, so one view is enough.
+     */
+    private val packetView = IpPacketView()
+
+    /**
+     * Processes a single packet and releases it afterwards.
+     */
+    fun process(packet: PooledPacket) {
+        try {
+            if(!packetView.wrap(packet.buffer)) {
+                Timber.e("Error parsing packet of size ${packet.length}")
+                return
+            }
+            TransportLayerConnection.getInstance(packetView, componentManager, deviceWriter, shard)?.unwrapOutbound(packetView)
+        } catch (e: Exception) {
+            Timber.e(e, "Error processing outbound packet")
+        } finally {
+            packet.release()
+        }
+    }
+}
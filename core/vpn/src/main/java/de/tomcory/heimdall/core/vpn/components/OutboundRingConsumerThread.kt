@@ -0,0 +1,33 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import android.os.Process
+import de.tomcory.heimdall.core.vpn.pipeline.RingBufferPacketTransport
+import timber.log.Timber
+
+/**
+ * Outbound stage that takes packets from a [RingBufferPacketTransport] instead of a Looper.
+ * Runs until the transport is closed and all remaining packets have been processed.
+ */
+class OutboundRingConsumerThread(
+    name: String,
+    private val transport: RingBufferPacketTransport,
+    private val processor: OutboundPacketProcessor
+) : Thread(name) {
+
+    init {
+        Timber.d("OutboundRingConsumerThread created")
+    }
+
+    override fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND)
+        Timber.d("OutboundRingConsumerThread started")
+
+        var packet = transport.receive()
+        while(packet != null) {
+            processor.process(packet)
+            packet = transport.receive()
+        }
+
+        Timber.d("Thread shut down (${transport.stallCount} producer stalls, high-water mark ${transport.highWaterMark})")
+    }
+}
@@ -4,14 +4,12 @@ import android.os.Handler
 import android.os.HandlerThread
 import android.os.Message
 import android.os.Process
-import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.IpPacket
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
 import timber.log.Timber
 
 class OutboundTrafficHandler(
     name: String,
-    private val deviceWriter: Handler,
-    private val componentManager: ComponentManager,
+    private val processor: OutboundPacketProcessor,
     private val handlerReadyListener: (handler: Handler) -> Unit
 ) : HandlerThread(
     name,
@@ -36,12 +34,14 @@ class OutboundTrafficHandler(
     }
 
     /**
-     * Handles the message based on its transport protocol.
+     * Handles the message based on its transport protocol. Pooled packets are released once they have been processed.
      */
     private fun handleMessageImpl(msg: Message) {
-        if((msg.what == 6 || msg.what == 17) && msg.obj is IpPacket) {
-            val ipPacket = msg.obj as IpPacket
-            TransportLayerConnection.getInstance(ipPacket, componentManager, deviceWriter)?.unwrapOutbound(ipPacket.payload)
+        val packet = msg.obj as? PooledPacket ?: return
+        if(msg.what == 6 || msg.what == 17) {
+            processor.process(packet)
+        } else {
+            packet.release()
         }
     }
-}
\ No newline at end of file
+}
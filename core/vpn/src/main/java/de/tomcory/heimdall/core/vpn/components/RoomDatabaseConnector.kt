@@ -1,5 +1,6 @@
 package de.tomcory.heimdall.core.vpn.components
 
+import androidx.room.withTransaction
 import de.tomcory.heimdall.core.database.HeimdallDatabase
 import de.tomcory.heimdall.core.database.entity.Connection
 import de.tomcory.heimdall.core.database.entity.Request
@@ -74,12 +75,40 @@ class RoomDatabaseConnector(
         }
     }
 
+    override suspend fun persistTransportLayerConnectionBatch(
+        inserts: List<Connection>,
+        updates: List<Connection>,
+        deletes: List<Int>
+    ): List<Long>? {
+        return try {
+            database.withTransaction {
+                val rowIds = if(inserts.isNotEmpty()) {
+                    database.connectionDao().insert(*inserts.toTypedArray())
+                } else {
+                    emptyList()
+                }
+                if(updates.isNotEmpty()) {
+                    database.connectionDao().update(*updates.toTypedArray())
+                }
+                // stay well below SQLite's limit of bound variables per statement
+                deletes.chunked(MAX_BATCH_VARIABLES).forEach {
+                    database.connectionDao().delete(it)
+                }
+                rowIds
+            }
+        } catch (e: Exception) {
+            Timber.e(e, "Error while persisting transport layer connection batch (${inserts.size} inserts, ${updates.size} updates, ${deletes.size} deletes)")
+            null
+        }
+    }
+
     override suspend fun persistHttpRequest(
         connectionId: Int,
         timestamp: Long,
         headers: Map<String, String>,
         content: String,
         contentLength: Int,
+        contentRef: String?,
         method: String,
         remoteHost: String,
         remotePath: String,
@@ -98,6 +127,7 @@ class RoomDatabaseConnector(
                     headers = if(headers.isNotEmpty()) headers.map { "${it.key}: ${it.value}" }.reduce { acc, s -> "$acc$s\n" } else "",
                     content = content,
                     contentLength = contentLength,
+                    contentRef = contentRef,
                     method = method,
                     remoteHost = remoteHost,
                     remotePath = remotePath,
@@ -123,6 +153,7 @@ class RoomDatabaseConnector(
         headers: Map<String, String>,
         content: String,
         contentLength: Int,
+        contentRef: String?,
         statusCode: Int,
         statusMsg: String,
         remoteHost: String,
@@ -141,6 +172,7 @@ class RoomDatabaseConnector(
                     headers = if(headers.isNotEmpty()) headers.map { "${it.key}: ${it.value}" }.reduce { acc, s -> "$acc$s\n" } else "",
                     content = content,
                     contentLength = contentLength,
+                    contentRef = contentRef,
                     statusCode = statusCode,
                     statusMsg = statusMsg,
                     remoteHost = remoteHost,
@@ -158,4 +190,17 @@ class RoomDatabaseConnector(
         }
         return if (ids.isNotEmpty()) ids.first().toInt() else -1
     }
-}
\ No newline at end of file
+
+    override suspend fun getContentRefs(): Set<String>? {
+        return try {
+            database.requestDao().getContentRefs().toHashSet().apply { addAll(database.responseDao().getContentRefs()) }
+        } catch (e: Exception) {
+            Timber.e(e, "Error while reading content references")
+            null
+        }
+    }
+
+    companion object {
+        private const val MAX_BATCH_VARIABLES = 500
+    }
+}
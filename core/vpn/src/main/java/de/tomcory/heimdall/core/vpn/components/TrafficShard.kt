@@ -0,0 +1,141 @@
+package de.tomcory.heimdall.core.vpn.components
+
+import de.tomcory.heimdall.core.vpn.cache.ConnectionCache
+import de.tomcory.heimdall.core.vpn.cache.FlowTimerWheel
+import de.tomcory.heimdall.core.vpn.mitm.VpnComponentLaunchException
+import de.tomcory.heimdall.core.vpn.pipeline.HandlerPacketTransport
+import de.tomcory.heimdall.core.vpn.pipeline.PacketTransport
+import de.tomcory.heimdall.core.vpn.pipeline.RingBufferPacketTransport
+import de.tomcory.heimdall.core.vpn.pipeline.WaitStrategy
+import timber.log.Timber
+import java.io.IOException
+import java.nio.channels.Selector
+
+/**
+ * A slice of the VPN's flows together with the threads that process them.
+ *
+ * Every shard owns its own [Selector], [ConnectionCache], outbound stage and inbound selector thread, so flows assigned to
+ * different shards are processed in parallel and never share mutable state. The DevicePollThread assigns each packet to a
+ * shard based on its flow key (see [indexFor]), so all packets of a flow always end up in the same shard.
+ *
+ * @param index The shard's position among all shards, used for thread names and logging.
+ */
+class TrafficShard(
+    val index: Int,
+    private val componentManager: ComponentManager,
+    private val deviceWriter: DeviceWriter,
+    private val ringBufferPipeline: Boolean,
+    private val waitStrategy: WaitStrategy,
+    private val transportCapacity: Int
+) {
+
+    /**
+     * The NIO selector that polls the outgoing sockets of this shard's connections for incoming data.
+     */
+    val selector: Selector = try {
+        Selector.open()
+    } catch (e: IOException) {
+        throw VpnComponentLaunchException("Error opening selector for shard $index", e)
+    }
+
+    /**
+     * Guards the [selector] while channels are registered with it.
+     */
+    val selectorMonitor: Any = Any()
+
+    /**
+     * The connections of the flows assigned to this shard.
+     */
+    val connectionCache = ConnectionCache()
+
+    /**
+     * Schedules the idle checks of this shard's connections, which are performed by the [IdleFlowReaper].
+     */
+    val flowTimer = FlowTimerWheel()
+
+    private var inboundTrafficHandler: InboundTrafficHandler? = null
+    private var outboundTrafficHandler: OutboundTrafficHandler? = null
+    private var outboundRingConsumerThread: OutboundRingConsumerThread? = null
+    @Volatile
+    private var outboundTransport: PacketTransport? = null
+
+    /**
+     * Starts the shard's threads. Since the Handler-based outbound stage is prepared asynchronously, the transport to the
+     * outbound stage is passed to the supplied callback once the stage is ready to accept packets.
+     */
+    fun start(outboundReadyListener: (transport: PacketTransport) -> Unit) {
+        inboundTrafficHandler =
+            InboundTrafficHandler(
+                "InboundTrafficHandler-$index",
+                this
+            )
+        inboundTrafficHandler?.start()
+
+        if(ringBufferPipeline) {
+            val transport = RingBufferPacketTransport(transportCapacity, waitStrategy)
+            outboundTransport = transport
+            outboundRingConsumerThread =
+                OutboundRingConsumerThread(
+                    "OutboundRingConsumerThread-$index",
+                    transport,
+                    OutboundPacketProcessor(componentManager, deviceWriter, this)
+                )
+            outboundRingConsumerThread?.start()
+            outboundReadyListener.invoke(transport)
+        } else {
+            outboundTrafficHandler =
+                OutboundTrafficHandler(
+                    "OutboundTrafficHandler-$index",
+                    OutboundPacketProcessor(componentManager, deviceWriter, this)
+                ) { outHandler ->
+                    val transport = HandlerPacketTransport(outHandler)
+                    outboundTransport = transport
+                    outboundReadyListener.invoke(transport)
+                }
+            outboundTrafficHandler?.start()
+        }
+        Timber.d("Shard $index started")
+    }
+
+    /**
+     * Runs a task on the shard's outbound stage thread, which owns the shard's connections and flow table.
+     *
+     * @return False if the outbound stage isn't running (yet or any more), in which case the task is never run.
+     */
+    fun post(task: Runnable): Boolean {
+        return outboundTransport?.post(task) ?: false
+    }
+
+    /**
+     * Stops the shard's threads. The shard's connections stay open until [closeConnections] is called.
+     */
+    fun stop() {
+        outboundTransport?.close()
+        outboundTrafficHandler?.quitSafely()
+        inboundTrafficHandler?.interrupt()
+        Timber.d("Shard $index stopped")
+    }
+
+    /**
+     * Closes all of the shard's connections and its [selector].
+     */
+    fun closeConnections() {
+        flowTimer.clear()
+        connectionCache.closeAllAndClear()
+        try {
+            selector.close()
+        } catch (e: IOException) {
+            Timber.w(e, "Error closing selector of shard $index")
+        }
+    }
+
+    companion object {
+        /**
+         * Maps a flow key (see [ConnectionCache.getKey]) to the index of the shard that is responsible for the flow.
+         */
+        fun indexFor(flowKey: Int, shardCount: Int): Int {
+            // the flow key is already well mixed, so its remainder spreads flows evenly
+            return Math.floorMod(flowKey, shardCount)
+        }
+    }
+}
@@ -1,9 +1,18 @@
 package de.tomcory.heimdall.core.vpn.connection.appLayer
 
+import de.tomcory.heimdall.core.util.BodyCapture
+import de.tomcory.heimdall.core.util.MemoryBudget
 import de.tomcory.heimdall.core.vpn.components.ComponentManager
 import de.tomcory.heimdall.core.vpn.connection.encryptionLayer.EncryptionLayerConnection
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
 import org.pcap4j.packet.DnsPacket
 import org.pcap4j.packet.Packet
+import timber.log.Timber
+import java.util.concurrent.CompletableFuture
 
 abstract class AppLayerConnection(
     val id: Int,
@@ -23,7 +32,132 @@ abstract class AppLayerConnection(
      */
     abstract fun unwrapInbound(payload: ByteArray)
 
+    /**
+     * Called once the underlying connection has been closed, so that messages delimited by the end of the connection can be completed.
+     */
+    open fun onTransportClosed() {}
+
+    /**
+     * The connection's share of the [ComponentManager.captureBudget], created when the first body is captured.
+     */
+    private val captureBudget: MemoryBudget by lazy { componentManager.newConnectionCaptureBudget() }
+
+    /**
+     * Starts capturing the body of an HTTP message with the supplied headers, following the [ComponentManager.bodyCapturePolicy].
+     */
+    protected fun newBodyCapture(headers: Map<String, String>): BodyCapture {
+        return BodyCapture(
+            componentManager.bodyCapturePolicy,
+            headers.entries.firstOrNull { it.key.equals("content-type", ignoreCase = true) }?.value,
+            headers.entries.firstOrNull { it.key.equals("content-encoding", ignoreCase = true) }?.value,
+            componentManager.contentStore,
+            captureBudget
+        )
+    }
+
+    /**
+     * Persists an HTTP request in the background, once the connection it references has been written and the app owning the connection is known (or the wait timed out).
+     *
+     * @param requestId Completed with the ID of the persisted request, or -1 if it could not be persisted.
+     * @param body The outcome of the body's capture as returned by [BodyCapture.finish], or null if the request has no body.
+     */
+    protected fun persistHttpRequest(requestId: CompletableDeferred<Int>?, method: String, path: String, headers: Map<String, String>, body: CompletableFuture<BodyCapture.CapturedBody>?) {
+        val transportLayer = encryptionLayer.transportLayer
+        CoroutineScope(Dispatchers.IO).launch {
+            var persistedId = -1
+            try {
+                // the request references the connection, which is written in the background
+                val connectionId = transportLayer.persistedConnection?.awaitRowId() ?: -1
+                if(connectionId < 0) {
+                    Timber.w("http$id Dropping request, the connection was not persisted")
+                    return@launch
+                }
+                transportLayer.awaitAttribution(ATTRIBUTION_TIMEOUT_MILLIS)
+                val captured = capturedBody(body)
+                persistedId = componentManager.databaseConnector.persistHttpRequest(
+                    connectionId = connectionId,
+                    timestamp = System.currentTimeMillis(),
+                    headers = headers,
+                    content = captured.content,
+                    contentLength = captured.contentLength,
+                    contentRef = captured.contentRef,
+                    method = method,
+                    remoteHost = transportLayer.remoteHost ?: "",
+                    remotePath = path,
+                    remoteIp = transportLayer.ipPacketBuilder.remoteAddress.hostAddress ?: "",
+                    remotePort = transportLayer.remotePort,
+                    localIp = transportLayer.ipPacketBuilder.localAddress.hostAddress ?: "",
+                    localPort = transportLayer.localPort,
+                    initiatorId = transportLayer.appId ?: 0,
+                    initiatorPkg = transportLayer.appPackage ?: ""
+                )
+                Timber.d("http$id persisting request with ID $persistedId")
+            } finally {
+                // the response waits for the ID even if the request could not be persisted
+                requestId?.complete(persistedId)
+            }
+        }
+    }
+
+    /**
+     * Persists an HTTP response in the background, once the request it answers has been persisted. The response is dropped if the request could not be persisted.
+     *
+     * @param requestId The ID of the request the response answers, as passed to [persistHttpRequest].
+     * @param body The outcome of the body's capture as returned by [BodyCapture.finish], or null if the response has no body.
+     */
+    protected fun persistHttpResponse(requestId: Deferred<Int>, statusCode: Int, statusMsg: String, headers: Map<String, String>, body: CompletableFuture<BodyCapture.CapturedBody>?) {
+        val transportLayer = encryptionLayer.transportLayer
+        CoroutineScope(Dispatchers.IO).launch {
+            val captured = capturedBody(body)
+            val persistedRequestId = requestId.await()
+            if(persistedRequestId < 0) {
+                return@launch
+            }
+            // the request could only be persisted once the connection was, so its row ID is known by now
+            val connectionId = transportLayer.persistedConnection?.awaitRowId() ?: return@launch
+            Timber.d("http$id persisting response to request with ID $persistedRequestId")
+            componentManager.databaseConnector.persistHttpResponse(
+                connectionId = connectionId,
+                requestId = persistedRequestId,
+                timestamp = System.currentTimeMillis(),
+                headers = headers,
+                content = captured.content,
+                contentLength = captured.contentLength,
+                contentRef = captured.contentRef,
+                statusCode = statusCode,
+                statusMsg = statusMsg,
+                remoteHost = transportLayer.remoteHost ?: "",
+                remoteIp = transportLayer.ipPacketBuilder.remoteAddress.hostAddress ?: "",
+                remotePort = transportLayer.remotePort,
+                localIp = transportLayer.ipPacketBuilder.localAddress.hostAddress ?: "",
+                localPort = transportLayer.localPort,
+                initiatorId = transportLayer.appId ?: 0,
+                initiatorPkg = transportLayer.appPackage ?: ""
+            )
+        }
+    }
+
+    /**
+     * Waits for a body spilled to the [ComponentManager.contentStore] to be committed on the store's I/O thread. Must only be called on a background thread.
+     */
+    private fun capturedBody(body: CompletableFuture<BodyCapture.CapturedBody>?): BodyCapture.CapturedBody {
+        return try {
+            body?.get() ?: BodyCapture.CapturedBody.EMPTY
+        } catch (e: Exception) {
+            Timber.e(e, "http$id Error capturing body")
+            BodyCapture.CapturedBody.EMPTY
+        }
+    }
+
     companion object {
+        /**
+         * Upper bound for waiting for the app attribution before persisting a request.
+         */
+        private const val ATTRIBUTION_TIMEOUT_MILLIS = 1_000L
+
+        /** Length of the preface's request line ("PRI * HTTP/2.0"), enough to tell it apart from HTTP/1.x. */
+        private const val HTTP2_PREFACE_MIN_LENGTH = 14
+
         private val HTTP_KEYWORDS = arrayOf("HTTP", "GET", "POST", "CONNECT", "PUT", "DELETE", "HEAD", "OPTIONS", "TRACE", "PATCH")
 
         /**
@@ -41,6 +175,8 @@ abstract class AppLayerConnection(
                     RawConnection(id, encryptionLayer, componentManager)
                 } else if(encryptionLayer.transportLayer.remotePort == 53) {
                     DnsConnection(id, encryptionLayer, componentManager)
+                } else if(isHttp2Preface(payload)) {
+                    Http2Connection(id, encryptionLayer, componentManager)
                 } else if(payload.size > 7 && HTTP_KEYWORDS.any { String(payload.sliceArray(0..10), Charsets.UTF_8).contains(it) }) {
                     HttpConnection(id, encryptionLayer, componentManager)
                 } else {
@@ -66,6 +202,8 @@ abstract class AppLayerConnection(
                     RawConnection(id, encryptionLayer, componentManager)
                 } else if(packet is DnsPacket) {
                     DnsConnection(id, encryptionLayer, componentManager)
+                } else if(isHttp2Preface(packet.rawData)) {
+                    Http2Connection(id, encryptionLayer, componentManager)
                 } else if(packet.rawData.size > 7 && HTTP_KEYWORDS.any { String(packet.rawData.sliceArray(0..10), Charsets.UTF_8).contains(it) }) {
                     HttpConnection(id, encryptionLayer, componentManager)
                 } else {
@@ -75,5 +213,23 @@ abstract class AppLayerConnection(
                 RawConnection(id, encryptionLayer, componentManager)
             }
         }
+
+        /**
+         * Checks whether the payload starts with the HTTP/2 client connection preface, which is sent after h2 has been negotiated via ALPN (or with prior knowledge).
+         * The preface would also pass for HTTP/1.x, so this check has to come first.
+         */
+        private fun isHttp2Preface(payload: ByteArray): Boolean {
+            val preface = Http2FrameParser.PREFACE
+            val length = minOf(payload.size, preface.size)
+            if(length < HTTP2_PREFACE_MIN_LENGTH) {
+                return false
+            }
+            for(i in 0 until length) {
+                if(payload[i] != preface[i]) {
+                    return false
+                }
+            }
+            return true
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,270 @@
+package de.tomcory.heimdall.core.vpn.connection.appLayer
+
+import de.tomcory.heimdall.core.util.BodyCapture
+import de.tomcory.heimdall.core.vpn.components.ComponentManager
+import de.tomcory.heimdall.core.vpn.connection.encryptionLayer.EncryptionLayerConnection
+import io.netty.handler.codec.http2.Http2Headers
+import kotlinx.coroutines.CompletableDeferred
+import org.pcap4j.packet.Packet
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Handles HTTP/2 connections, which are recognised by the client's connection preface.
+ *
+ * Both directions are parsed by an [Http2FrameParser], and the requests and responses of each stream are assembled from
+ * the frames and persisted like those of HTTP/1.x connections once the stream ends in the respective direction.
+ * Server-pushed streams are persisted with the request headers of their PUSH_PROMISE frames.
+ */
+class Http2Connection(
+    id: Int,
+    encryptionLayer: EncryptionLayerConnection,
+    componentManager: ComponentManager
+) : AppLayerConnection(
+    id,
+    encryptionLayer,
+    componentManager
+) {
+
+    /**
+     * The request and response assembled on a stream. The request is only written by the client's parser and the response only by the server's,
+     * except for pushed streams, whose request is created complete by the server's parser. Each half is completed exactly once by claiming its flag.
+     */
+    private class Stream(val streamId: Int) {
+        var requestHeaders: Map<String, String>? = null
+        var method = ""
+        var path = ""
+        var requestBody: BodyCapture? = null
+        val requestComplete = AtomicBoolean(false)
+
+        var responseHeaders: Map<String, String>? = null
+        var statusCode = 0
+        var responseBody: BodyCapture? = null
+        val responseComplete = AtomicBoolean(false)
+
+        /** Completed with the ID of the persisted request, or -1 if it could not be persisted. */
+        val requestId = CompletableDeferred<Int>()
+    }
+
+    private val streams = ConcurrentHashMap<Int, Stream>()
+
+    private val clientParser = Http2FrameParser(true, ClientListener())
+    private val serverParser = Http2FrameParser(false, ServerListener())
+
+    /** Streams reset by the server whose request is yet to be dropped on the client parser's thread. */
+    private val resetRequests = ConcurrentLinkedQueue<Stream>()
+
+    /** Streams reset by the client whose response is yet to be dropped on the server parser's thread. */
+    private val resetResponses = ConcurrentLinkedQueue<Stream>()
+
+    private val requestCount = AtomicInteger(0)
+    private val responseCount = AtomicInteger(0)
+
+    init {
+        if(id > 0) {
+            Timber.d("http2$id Creating HTTP/2 connection to ${encryptionLayer.transportLayer.ipPacketBuilder.remoteAddress.hostAddress}:${encryptionLayer.transportLayer.remotePort} (${encryptionLayer.transportLayer.remoteHost})")
+        }
+    }
+
+    override fun unwrapOutbound(payload: ByteArray) {
+        while(true) {
+            dropRequest(resetRequests.poll() ?: break)
+        }
+        clientParser.feed(payload)
+        encryptionLayer.wrapOutbound(payload)
+    }
+
+    override fun unwrapOutbound(packet: Packet) {
+        unwrapOutbound(packet.rawData)
+    }
+
+    override fun unwrapInbound(payload: ByteArray) {
+        while(true) {
+            dropResponse(resetResponses.poll() ?: break)
+        }
+        serverParser.feed(payload)
+        encryptionLayer.wrapInbound(payload)
+    }
+
+    override fun onTransportClosed() {
+        if(streams.isNotEmpty()) {
+            Timber.d("http2$id ${streams.size} streams incomplete at the end of the connection")
+            streams.values.forEach {
+                dropRequest(it)
+                dropResponse(it)
+            }
+        }
+        resetRequests.clear()
+        resetResponses.clear()
+        Timber.d("http2$id Closed after ${requestCount.get()} requests and ${responseCount.get()} responses (${clientParser.frameCount} frames out, ${serverParser.frameCount} frames in)")
+    }
+
+    /**
+     * Handles the frames sent by the client, which carry the requests.
+     */
+    private inner class ClientListener : Http2FrameParser.Listener {
+
+        override fun onHeaders(streamId: Int, headers: Http2Headers, endStream: Boolean) {
+            val stream = streams.getOrPut(streamId) { Stream(streamId) }
+            // a second header block on the stream carries the trailers, which aren't persisted
+            if(stream.requestHeaders == null) {
+                stream.method = headers.method()?.toString() ?: ""
+                stream.path = headers.path()?.toString() ?: ""
+                stream.requestHeaders = toMap(headers).also { stream.requestBody = newBodyCapture(it) }
+            }
+            if(endStream) {
+                completeRequest(stream)
+            }
+        }
+
+        override fun onData(streamId: Int, buffer: ByteArray, offset: Int, length: Int, endStream: Boolean) {
+            val stream = streams[streamId] ?: return
+            stream.requestBody?.append(buffer, offset, length)
+            if(endStream) {
+                completeRequest(stream)
+            }
+        }
+
+        override fun onPushPromise(streamId: Int, promisedStreamId: Int, headers: Http2Headers) {
+            Timber.w("http2$id PUSH_PROMISE sent by the client")
+        }
+
+        override fun onRstStream(streamId: Int, errorCode: Long) {
+            val stream = streams[streamId] ?: return
+            Timber.d("http2$id Stream $streamId reset by the client (error $errorCode)")
+            // the response is left to the server's parser, whose thread owns it
+            dropRequest(stream)
+            resetResponses.add(stream)
+        }
+
+        override fun onSetting(identifier: Int, value: Long) {
+            // the client's settings govern the frames the server sends
+            serverParser.applyPeerSetting(identifier, value)
+        }
+
+        override fun onGoAway(lastStreamId: Int, errorCode: Long) {
+            Timber.d("http2$id GOAWAY from client (last stream $lastStreamId, error $errorCode)")
+        }
+    }
+
+    /**
+     * Handles the frames sent by the server, which carry the responses and pushed requests.
+     */
+    private inner class ServerListener : Http2FrameParser.Listener {
+
+        override fun onHeaders(streamId: Int, headers: Http2Headers, endStream: Boolean) {
+            val stream = streams[streamId] ?: return
+            if(stream.responseHeaders == null) {
+                val status = headers.status()?.toString()?.toIntOrNull() ?: 0
+                // interim responses are skipped
+                if(status in 100..199) {
+                    return
+                }
+                stream.statusCode = status
+                stream.responseHeaders = toMap(headers).also { stream.responseBody = newBodyCapture(it) }
+            }
+            if(endStream) {
+                completeResponse(stream)
+            }
+        }
+
+        override fun onData(streamId: Int, buffer: ByteArray, offset: Int, length: Int, endStream: Boolean) {
+            val stream = streams[streamId] ?: return
+            stream.responseBody?.append(buffer, offset, length)
+            if(endStream) {
+                completeResponse(stream)
+            }
+        }
+
+        override fun onPushPromise(streamId: Int, promisedStreamId: Int, headers: Http2Headers) {
+            // pushed streams have no request of their own, the promise stands in for it
+            val stream = Stream(promisedStreamId)
+            stream.method = headers.method()?.toString() ?: ""
+            stream.path = headers.path()?.toString() ?: ""
+            stream.requestHeaders = toMap(headers)
+            streams[promisedStreamId] = stream
+            completeRequest(stream)
+        }
+
+        override fun onRstStream(streamId: Int, errorCode: Long) {
+            val stream = streams[streamId] ?: return
+            Timber.d("http2$id Stream $streamId reset by the server (error $errorCode)")
+            // the request is left to the client's parser, whose thread owns it
+            dropResponse(stream)
+            resetRequests.add(stream)
+        }
+
+        override fun onSetting(identifier: Int, value: Long) {
+            // the server's settings govern the frames the client sends
+            clientParser.applyPeerSetting(identifier, value)
+        }
+
+        override fun onGoAway(lastStreamId: Int, errorCode: Long) {
+            Timber.d("http2$id GOAWAY from server (last stream $lastStreamId, error $errorCode)")
+        }
+    }
+
+    private fun completeRequest(stream: Stream) {
+        if(!stream.requestComplete.compareAndSet(false, true)) {
+            return
+        }
+        requestCount.incrementAndGet()
+        persistHttpRequest(stream.requestId, stream.method, stream.path, stream.requestHeaders ?: emptyMap(), stream.requestBody?.finish())
+        stream.requestBody = null
+        removeIfDone(stream)
+    }
+
+    private fun completeResponse(stream: Stream) {
+        if(!stream.responseComplete.compareAndSet(false, true)) {
+            return
+        }
+        responseCount.incrementAndGet()
+        persistHttpResponse(stream.requestId, stream.statusCode, "", stream.responseHeaders ?: emptyMap(), stream.responseBody?.finish())
+        stream.responseBody = null
+        removeIfDone(stream)
+    }
+
+    /**
+     * Ends the request of a stream that won't be completed. A request whose headers were seen is still persisted.
+     * Must be called on the client parser's thread.
+     */
+    private fun dropRequest(stream: Stream) {
+        if(stream.requestHeaders != null) {
+            completeRequest(stream)
+        } else if(stream.requestComplete.compareAndSet(false, true)) {
+            stream.requestId.complete(-1)
+            removeIfDone(stream)
+        }
+    }
+
+    /**
+     * Ends the response of a stream that won't be completed without persisting it. Must be called on the server parser's thread.
+     */
+    private fun dropResponse(stream: Stream) {
+        if(stream.responseComplete.compareAndSet(false, true)) {
+            stream.responseBody?.abort()
+            stream.responseBody = null
+            removeIfDone(stream)
+        }
+    }
+
+    private fun removeIfDone(stream: Stream) {
+        if(stream.requestComplete.get() && stream.responseComplete.get()) {
+            streams.remove(stream.streamId)
+        }
+    }
+
+    /**
+     * Converts the decoded headers to the map that is persisted, keeping the pseudo-headers (e.g. :authority).
+     */
+    private fun toMap(headers: Http2Headers): Map<String, String> {
+        val map = LinkedHashMap<String, String>(headers.size())
+        for(header in headers) {
+            map[header.key.toString()] = header.value.toString()
+        }
+        return map
+    }
+}
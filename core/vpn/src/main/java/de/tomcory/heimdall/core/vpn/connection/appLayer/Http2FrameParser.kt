@@ -0,0 +1,409 @@
+package de.tomcory.heimdall.core.vpn.connection.appLayer
+
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.http2.DefaultHttp2HeadersDecoder
+import io.netty.handler.codec.http2.Http2Exception
+import io.netty.handler.codec.http2.Http2Headers
+import timber.log.Timber
+
+/**
+ * Incremental parser for the frames of one direction of an HTTP/2 connection.
+ *
+ * Frames that are complete within a payload are handled in place; only frames split across payloads are assembled in an
+ * internal buffer, which is bounded by the maximum frame size the receiving peer advertised. Header blocks (including
+ * those split into CONTINUATION frames) are decoded with the direction's HPACK context, which has to see every block in
+ * order, so the parser stops for good once a block can't be decoded.
+ *
+ * Frames are only observed, never held back, so flow control remains end-to-end between the peers.
+ *
+ * A parser must only be fed from one thread at a time.
+ *
+ * @param isClient Whether the parser parses the client's frames (true), which are preceded by the connection preface, or the server's frames (false).
+ * @param listener The [Listener] receiving the parsed frames.
+ */
+class Http2FrameParser(
+    private val isClient: Boolean,
+    private val listener: Listener
+) {
+
+    /**
+     * Receives the parsed frames. The slices passed to the listener are only valid during the call.
+     */
+    interface Listener {
+
+        /**
+         * Called with the decoded header block of a HEADERS frame and its CONTINUATION frames.
+         */
+        fun onHeaders(streamId: Int, headers: Http2Headers, endStream: Boolean)
+
+        /**
+         * Called with the payload of a DATA frame, without padding.
+         */
+        fun onData(streamId: Int, buffer: ByteArray, offset: Int, length: Int, endStream: Boolean)
+
+        /**
+         * Called with the decoded request header block of a PUSH_PROMISE frame.
+         */
+        fun onPushPromise(streamId: Int, promisedStreamId: Int, headers: Http2Headers)
+
+        fun onRstStream(streamId: Int, errorCode: Long)
+
+        /**
+         * Called for each parameter of a SETTINGS frame (except acknowledgements).
+         */
+        fun onSetting(identifier: Int, value: Long)
+
+        fun onGoAway(lastStreamId: Int, errorCode: Long)
+    }
+
+    private val headersDecoder = DefaultHttp2HeadersDecoder(false, MAX_HEADER_LIST_SIZE)
+
+    /** Number of connection preface bytes still expected. */
+    private var prefaceRemaining = if(isClient) PREFACE.size else 0
+
+    /** Assembles frames that are split across payloads. */
+    private var frameBuffer = ByteArray(FRAME_HEADER_LENGTH)
+    private var frameLength = 0
+
+    /** Assembles header blocks that are split into CONTINUATION frames. */
+    private var headerBlock = ByteArray(0)
+    private var headerBlockLength = 0
+    private var headerBlockStreamId = NO_HEADER_BLOCK
+    private var headerBlockPromisedStreamId = -1
+    private var headerBlockEndStream = false
+
+    /** The largest frame the receiving peer accepts, as advertised in its SETTINGS. */
+    @Volatile
+    private var maxFrameSize = DEFAULT_MAX_FRAME_SIZE
+
+    /** The header table size the receiving peer advertised, applied to the HPACK context before the next header block. */
+    @Volatile
+    private var pendingHeaderTableSize = -1L
+
+    /**
+     * Number of frames parsed so far.
+     */
+    var frameCount = 0
+        private set
+
+    /**
+     * Whether the parser has stopped because of a protocol error.
+     */
+    var isStopped = false
+        private set
+
+    /**
+     * Parses the next part of the stream.
+     */
+    fun feed(buffer: ByteArray, offset: Int = 0, length: Int = buffer.size) {
+        val end = offset + length
+        var position = offset
+
+        if(prefaceRemaining > 0 && !isStopped) {
+            position = readPreface(buffer, position, end)
+        }
+
+        while(position < end && !isStopped) {
+            // handle complete frames in place
+            if(frameLength == 0 && end - position >= FRAME_HEADER_LENGTH) {
+                val payloadLength = readPayloadLength(buffer, position)
+                if(!checkPayloadLength(payloadLength)) {
+                    return
+                }
+                if(end - position >= FRAME_HEADER_LENGTH + payloadLength) {
+                    handleFrame(buffer, position, payloadLength)
+                    position += FRAME_HEADER_LENGTH + payloadLength
+                    continue
+                }
+            }
+            position = bufferFrame(buffer, position, end)
+        }
+    }
+
+    /**
+     * Applies a SETTINGS parameter advertised by the peer receiving this parser's frames. May be called from any thread.
+     */
+    fun applyPeerSetting(identifier: Int, value: Long) {
+        when(identifier) {
+            SETTINGS_HEADER_TABLE_SIZE -> pendingHeaderTableSize = value
+            SETTINGS_MAX_FRAME_SIZE -> if(value in DEFAULT_MAX_FRAME_SIZE..MAX_FRAME_SIZE_UPPER_BOUND) {
+                maxFrameSize = value.toInt()
+            }
+        }
+    }
+
+    private fun readPreface(buffer: ByteArray, position: Int, end: Int): Int {
+        var i = position
+        while(i < end && prefaceRemaining > 0) {
+            if(buffer[i++] != PREFACE[PREFACE.size - prefaceRemaining--]) {
+                fail("invalid connection preface")
+                return end
+            }
+        }
+        return i
+    }
+
+    /**
+     * Copies the next part of a frame into the [frameBuffer] and handles the frame once it is complete.
+     *
+     * @return The position following the consumed bytes.
+     */
+    private fun bufferFrame(buffer: ByteArray, position: Int, end: Int): Int {
+        val needed = if(frameLength < FRAME_HEADER_LENGTH) {
+            FRAME_HEADER_LENGTH - frameLength
+        } else {
+            FRAME_HEADER_LENGTH + readPayloadLength(frameBuffer, 0) - frameLength
+        }
+        val copied = minOf(needed, end - position)
+        System.arraycopy(buffer, position, frameBuffer, frameLength, copied)
+        frameLength += copied
+
+        if(frameLength >= FRAME_HEADER_LENGTH) {
+            val payloadLength = readPayloadLength(frameBuffer, 0)
+            if(frameLength == FRAME_HEADER_LENGTH) {
+                if(!checkPayloadLength(payloadLength)) {
+                    return end
+                }
+                if(frameBuffer.size < FRAME_HEADER_LENGTH + payloadLength) {
+                    frameBuffer = frameBuffer.copyOf(FRAME_HEADER_LENGTH + payloadLength)
+                }
+            }
+            if(frameLength == FRAME_HEADER_LENGTH + payloadLength) {
+                frameLength = 0
+                handleFrame(frameBuffer, 0, payloadLength)
+                if(frameBuffer.size > INITIAL_FRAME_BUFFER_SIZE) {
+                    frameBuffer = ByteArray(INITIAL_FRAME_BUFFER_SIZE)
+                }
+            }
+        }
+        return position + copied
+    }
+
+    private fun checkPayloadLength(payloadLength: Int): Boolean {
+        if(payloadLength > maxFrameSize) {
+            fail("frame of $payloadLength bytes exceeds the maximum frame size of $maxFrameSize bytes")
+            return false
+        }
+        return true
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Frame handling //////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Handles a complete frame.
+     *
+     * @param offset The offset of the frame header.
+     * @param payloadLength The length of the frame payload following the header.
+     */
+    private fun handleFrame(frame: ByteArray, offset: Int, payloadLength: Int) {
+        frameCount++
+        val type = frame[offset + 3].toInt() and 0xFF
+        val flags = frame[offset + 4].toInt() and 0xFF
+        val streamId = readInt(frame, offset + 5) and 0x7FFFFFFF
+        var payloadOffset = offset + FRAME_HEADER_LENGTH
+        var length = payloadLength
+
+        // a header block must be completed by CONTINUATION frames before any other frame is sent
+        if(headerBlockStreamId != NO_HEADER_BLOCK && type != TYPE_CONTINUATION) {
+            fail("header block of stream $headerBlockStreamId interrupted by frame type $type")
+            return
+        }
+
+        // strip the padding of DATA, HEADERS and PUSH_PROMISE frames
+        if((type == TYPE_DATA || type == TYPE_HEADERS || type == TYPE_PUSH_PROMISE) && flags and FLAG_PADDED != 0) {
+            val padLength = if(length > 0) frame[payloadOffset].toInt() and 0xFF else length
+            payloadOffset++
+            length -= 1 + padLength
+            if(length < 0) {
+                fail("invalid padding in frame type $type")
+                return
+            }
+        }
+
+        when(type) {
+            TYPE_DATA -> listener.onData(streamId, frame, payloadOffset, length, flags and FLAG_END_STREAM != 0)
+
+            TYPE_HEADERS -> {
+                if(flags and FLAG_PRIORITY != 0) {
+                    payloadOffset += PRIORITY_LENGTH
+                    length -= PRIORITY_LENGTH
+                }
+                if(length < 0) {
+                    fail("HEADERS frame too short")
+                    return
+                }
+                startHeaderBlock(streamId, -1, flags and FLAG_END_STREAM != 0, frame, payloadOffset, length, flags and FLAG_END_HEADERS != 0)
+            }
+
+            TYPE_PUSH_PROMISE -> {
+                if(length < 4) {
+                    fail("PUSH_PROMISE frame too short")
+                    return
+                }
+                val promisedStreamId = readInt(frame, payloadOffset) and 0x7FFFFFFF
+                startHeaderBlock(streamId, promisedStreamId, false, frame, payloadOffset + 4, length - 4, flags and FLAG_END_HEADERS != 0)
+            }
+
+            TYPE_CONTINUATION -> {
+                if(streamId != headerBlockStreamId) {
+                    fail("unexpected CONTINUATION frame on stream $streamId")
+                    return
+                }
+                appendHeaderBlock(frame, payloadOffset, length)
+                if(!isStopped && flags and FLAG_END_HEADERS != 0) {
+                    val blockLength = headerBlockLength
+                    headerBlockLength = 0
+                    decodeHeaderBlock(headerBlock, 0, blockLength)
+                }
+            }
+
+            TYPE_RST_STREAM -> if(length >= 4) {
+                listener.onRstStream(streamId, readUnsignedInt(frame, payloadOffset))
+            }
+
+            TYPE_SETTINGS -> if(flags and FLAG_ACK == 0) {
+                var i = payloadOffset
+                while(i + SETTING_LENGTH <= payloadOffset + length) {
+                    val identifier = ((frame[i].toInt() and 0xFF) shl 8) or (frame[i + 1].toInt() and 0xFF)
+                    listener.onSetting(identifier, readUnsignedInt(frame, i + 2))
+                    i += SETTING_LENGTH
+                }
+            }
+
+            TYPE_GOAWAY -> if(length >= 8) {
+                listener.onGoAway(readInt(frame, payloadOffset) and 0x7FFFFFFF, readUnsignedInt(frame, payloadOffset + 4))
+            }
+
+            // PRIORITY, PING, WINDOW_UPDATE and unknown frame types carry nothing worth persisting
+            else -> {}
+        }
+    }
+
+    private fun startHeaderBlock(streamId: Int, promisedStreamId: Int, endStream: Boolean, frame: ByteArray, offset: Int, length: Int, endHeaders: Boolean) {
+        headerBlockStreamId = streamId
+        headerBlockPromisedStreamId = promisedStreamId
+        headerBlockEndStream = endStream
+        if(endHeaders) {
+            // the common case: the complete block is decoded in place
+            decodeHeaderBlock(frame, offset, length)
+        } else {
+            headerBlockLength = 0
+            appendHeaderBlock(frame, offset, length)
+        }
+    }
+
+    private fun appendHeaderBlock(frame: ByteArray, offset: Int, length: Int) {
+        if(headerBlockLength + length > MAX_HEADER_LIST_SIZE) {
+            fail("header block of stream $headerBlockStreamId exceeds $MAX_HEADER_LIST_SIZE bytes")
+            return
+        }
+        if(headerBlockLength + length > headerBlock.size) {
+            headerBlock = headerBlock.copyOf(maxOf(headerBlock.size * 2, headerBlockLength + length))
+        }
+        System.arraycopy(frame, offset, headerBlock, headerBlockLength, length)
+        headerBlockLength += length
+    }
+
+    private fun decodeHeaderBlock(block: ByteArray, offset: Int, length: Int) {
+        val streamId = headerBlockStreamId
+        headerBlockStreamId = NO_HEADER_BLOCK
+
+        val tableSize = pendingHeaderTableSize
+        if(tableSize >= 0) {
+            pendingHeaderTableSize = -1L
+            try {
+                headersDecoder.configuration().maxHeaderTableSize(tableSize)
+            } catch (e: Http2Exception) {
+                Timber.w("HTTP/2 ${if(isClient) "client" else "server"} header table size $tableSize rejected")
+            }
+        }
+
+        val headers = try {
+            headersDecoder.decodeHeaders(streamId, Unpooled.wrappedBuffer(block, offset, length))
+        } catch (e: Http2Exception.StreamException) {
+            // the block was decoded completely, so the HPACK context is still intact
+            Timber.w("HTTP/2 ${if(isClient) "client" else "server"} header block of stream $streamId skipped: ${e.message}")
+            return
+        } catch (e: Http2Exception) {
+            fail("undecodable header block on stream $streamId: ${e.message}")
+            return
+        } finally {
+            if(headerBlock.size > INITIAL_FRAME_BUFFER_SIZE) {
+                headerBlock = ByteArray(0)
+            }
+        }
+
+        if(headerBlockPromisedStreamId >= 0) {
+            listener.onPushPromise(streamId, headerBlockPromisedStreamId, headers)
+        } else {
+            listener.onHeaders(streamId, headers, headerBlockEndStream)
+        }
+    }
+
+    private fun fail(reason: String) {
+        Timber.w("HTTP/2 ${if(isClient) "client" else "server"} parser stopped: $reason")
+        isStopped = true
+        frameLength = 0
+        headerBlockLength = 0
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Byte helpers ////////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    private fun readPayloadLength(frame: ByteArray, offset: Int): Int {
+        return ((frame[offset].toInt() and 0xFF) shl 16) or
+                ((frame[offset + 1].toInt() and 0xFF) shl 8) or
+                (frame[offset + 2].toInt() and 0xFF)
+    }
+
+    private fun readInt(buffer: ByteArray, offset: Int): Int {
+        return ((buffer[offset].toInt() and 0xFF) shl 24) or
+                ((buffer[offset + 1].toInt() and 0xFF) shl 16) or
+                ((buffer[offset + 2].toInt() and 0xFF) shl 8) or
+                (buffer[offset + 3].toInt() and 0xFF)
+    }
+
+    private fun readUnsignedInt(buffer: ByteArray, offset: Int): Long {
+        return readInt(buffer, offset).toLong() and 0xFFFFFFFFL
+    }
+
+    companion object {
+        /**
+         * The client connection preface, which precedes the client's first frame.
+         */
+        val PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".toByteArray(Charsets.US_ASCII)
+
+        const val SETTINGS_HEADER_TABLE_SIZE = 0x1
+        const val SETTINGS_MAX_FRAME_SIZE = 0x5
+
+        private const val FRAME_HEADER_LENGTH = 9
+        private const val PRIORITY_LENGTH = 5
+        private const val SETTING_LENGTH = 6
+
+        private const val DEFAULT_MAX_FRAME_SIZE = 16 * 1024
+        private const val MAX_FRAME_SIZE_UPPER_BOUND = 0xFFFFFFL
+        private const val INITIAL_FRAME_BUFFER_SIZE = DEFAULT_MAX_FRAME_SIZE + FRAME_HEADER_LENGTH
+
+        /** Upper bound for the size of a header block, both encoded and decoded. */
+        private const val MAX_HEADER_LIST_SIZE = 256L * 1024
+
+        private const val NO_HEADER_BLOCK = -1
+
+        private const val TYPE_DATA = 0x0
+        private const val TYPE_HEADERS = 0x1
+        private const val TYPE_RST_STREAM = 0x3
+        private const val TYPE_SETTINGS = 0x4
+        private const val TYPE_PUSH_PROMISE = 0x5
+        private const val TYPE_GOAWAY = 0x7
+        private const val TYPE_CONTINUATION = 0x9
+
+        private const val FLAG_END_STREAM = 0x1
+        private const val FLAG_ACK = 0x1
+        private const val FLAG_END_HEADERS = 0x4
+        private const val FLAG_PADDED = 0x8
+        private const val FLAG_PRIORITY = 0x20
+    }
+}
@@ -0,0 +1,495 @@
+package de.tomcory.heimdall.core.vpn.connection.appLayer
+
+import timber.log.Timber
+
+/**
+ * Incremental parser for one direction of an HTTP/1.x connection.
+ *
+ * Payloads are fed as they arrive and the parser reports the parts of each message to its [Listener] as slices of the
+ * buffers it was fed, without copying them or converting them to strings. Only lines that are split across payloads are
+ * assembled in an internal line buffer first. Bodies are delimited by chunked transfer coding, Content-Length or (for
+ * responses) the end of the connection, and several messages may follow each other on the same connection (pipelining).
+ *
+ * Interim (1xx) responses other than 101 are skipped without being reported. After a 101 response, a CONNECT request or
+ * a call to [tunnel], the connection no longer carries HTTP messages and the parser ignores all further data. The same
+ * goes for data following a syntax error.
+ *
+ * A parser must only be fed from one thread at a time.
+ *
+ * @param isRequest Whether the parser parses requests (true) or responses (false).
+ * @param listener The [Listener] receiving the parsed messages.
+ */
+class HttpMessageParser(
+    private val isRequest: Boolean,
+    private val listener: Listener
+) {
+
+    /**
+     * Receives the parts of the parsed messages. The slices passed to the listener are only valid during the call.
+     */
+    interface Listener {
+
+        /**
+         * Called with the request or status line of a new message (without the line break).
+         *
+         * @param firstSpace Index of the space following the method or protocol version.
+         * @param secondSpace Index of the space following the request target or status code, or -1 if a status line has no reason phrase.
+         */
+        fun onStartLine(line: ByteArray, offset: Int, length: Int, firstSpace: Int, secondSpace: Int)
+
+        /**
+         * Called for each header field of the message. The value is stripped of surrounding whitespace.
+         */
+        fun onHeader(line: ByteArray, nameOffset: Int, nameLength: Int, valueOffset: Int, valueLength: Int)
+
+        /**
+         * Called after the last header field of the message.
+         *
+         * @return True if the message has no body regardless of its headers (e.g. the response to a HEAD request).
+         */
+        fun onHeadersComplete(): Boolean
+
+        /**
+         * Called with each part of the message body, with the transfer coding already removed.
+         */
+        fun onBody(buffer: ByteArray, offset: Int, length: Int)
+
+        /**
+         * Called once the message is complete.
+         */
+        fun onMessageComplete()
+    }
+
+    private enum class State {
+        START_LINE,
+        HEADER_LINE,
+        BODY_IDENTITY,
+        BODY_UNTIL_CLOSE,
+        CHUNK_SIZE,
+        CHUNK_EXTENSION,
+        CHUNK_DATA,
+        CHUNK_DATA_END,
+        TRAILER_LINE,
+        TUNNEL,
+        ERROR
+    }
+
+    private var state = State.START_LINE
+
+    /** Assembles lines that are split across payloads. */
+    private var lineBuffer = ByteArray(INITIAL_LINE_BUFFER_SIZE)
+    private var lineLength = 0
+
+    /** Total size of the current message's start line and headers. */
+    private var headerSize = 0
+
+    private var statusCode = 0
+    private var isConnect = false
+    private var isInterim = false
+    private var chunked = false
+    private var contentLength = -1L
+    private var remainingBodyLength = 0L
+
+    @Volatile
+    private var tunnelRequested = false
+
+    /**
+     * Number of complete messages parsed so far.
+     */
+    var messageCount = 0
+        private set
+
+    /**
+     * Whether the parser has stopped parsing, either because the connection no longer carries HTTP messages or because of a syntax error.
+     */
+    val isStopped: Boolean
+        get() = state == State.TUNNEL || state == State.ERROR
+
+    /**
+     * Whether the parser is in the middle of a message.
+     */
+    val isInMessage: Boolean
+        get() = !isStopped && (state != State.START_LINE || lineLength > 0)
+
+    /**
+     * Parses the next part of the stream.
+     */
+    fun feed(buffer: ByteArray, offset: Int = 0, length: Int = buffer.size) {
+        val end = offset + length
+        var position = offset
+        while(position < end) {
+            if(state == State.START_LINE && lineLength == 0 && tunnelRequested) {
+                state = State.TUNNEL
+            }
+            position = when(state) {
+                State.START_LINE, State.HEADER_LINE, State.TRAILER_LINE -> readLine(buffer, position, end)
+                State.BODY_IDENTITY -> readBody(buffer, position, end)
+                State.BODY_UNTIL_CLOSE -> {
+                    listener.onBody(buffer, position, end - position)
+                    end
+                }
+                State.CHUNK_SIZE -> readChunkSize(buffer, position, end)
+                State.CHUNK_EXTENSION -> readChunkExtension(buffer, position, end)
+                State.CHUNK_DATA -> readBody(buffer, position, end)
+                State.CHUNK_DATA_END -> readChunkDataEnd(buffer, position, end)
+                State.TUNNEL, State.ERROR -> end
+            }
+        }
+    }
+
+    /**
+     * Signals the end of the stream, which completes a body delimited by the end of the connection.
+     */
+    fun finish() {
+        if(state == State.BODY_UNTIL_CLOSE) {
+            completeMessage()
+        } else if(isInMessage) {
+            Timber.w("HTTP ${if(isRequest) "request" else "response"} incomplete at the end of the stream (state $state)")
+        }
+    }
+
+    /**
+     * Stops parsing once the current message is complete, because the connection switches to a different protocol.
+     * May be called from any thread.
+     */
+    fun tunnel() {
+        tunnelRequested = true
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Line handling ///////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads up to the end of the current line and handles the line if it is complete.
+     *
+     * @return The position following the consumed bytes.
+     */
+    private fun readLine(buffer: ByteArray, position: Int, end: Int): Int {
+        var lf = position
+        while(lf < end && buffer[lf] != LF) {
+            lf++
+        }
+
+        if(headerSize + lf - position > MAX_HEADER_SIZE) {
+            fail("headers exceed $MAX_HEADER_SIZE bytes")
+            return end
+        }
+        headerSize += lf - position
+
+        if(lf == end) {
+            appendLine(buffer, position, end - position)
+            return end
+        }
+
+        if(lineLength == 0) {
+            handleLine(buffer, position, trimCr(buffer, position, lf - position))
+        } else {
+            appendLine(buffer, position, lf - position)
+            val length = lineLength
+            lineLength = 0
+            handleLine(lineBuffer, 0, trimCr(lineBuffer, 0, length))
+        }
+        return lf + 1
+    }
+
+    private fun appendLine(buffer: ByteArray, offset: Int, length: Int) {
+        if(lineLength + length > lineBuffer.size) {
+            lineBuffer = lineBuffer.copyOf(maxOf(lineBuffer.size * 2, lineLength + length))
+        }
+        System.arraycopy(buffer, offset, lineBuffer, lineLength, length)
+        lineLength += length
+    }
+
+    /**
+     * @return The length of the line without a trailing CR.
+     */
+    private fun trimCr(line: ByteArray, offset: Int, length: Int): Int {
+        return if(length > 0 && line[offset + length - 1] == CR) length - 1 else length
+    }
+
+    private fun handleLine(line: ByteArray, offset: Int, length: Int) {
+        when(state) {
+            State.START_LINE -> handleStartLine(line, offset, length)
+            State.HEADER_LINE -> if(length == 0) completeHeaders() else handleHeader(line, offset, length)
+            // trailer fields are not reported
+            State.TRAILER_LINE -> if(length == 0) completeMessage()
+            else -> {}
+        }
+    }
+
+    private fun handleStartLine(line: ByteArray, offset: Int, length: Int) {
+        // empty lines preceding a message are ignored
+        if(length == 0) {
+            headerSize = 0
+            return
+        }
+
+        val end = offset + length
+        val firstSpace = indexOf(line, SPACE, offset, end)
+        if(firstSpace <= offset) {
+            fail("invalid start line")
+            return
+        }
+        val secondSpace = indexOf(line, SPACE, firstSpace + 1, end)
+
+        statusCode = 0
+        isConnect = false
+        if(isRequest) {
+            if(secondSpace < 0) {
+                fail("invalid request line")
+                return
+            }
+            isConnect = matches(line, offset, firstSpace - offset, CONNECT)
+        } else {
+            if(!matches(line, offset, minOf(HTTP_PREFIX.size, length), HTTP_PREFIX)) {
+                fail("invalid status line")
+                return
+            }
+            val codeEnd = if(secondSpace < 0) end else secondSpace
+            if(codeEnd - firstSpace - 1 != 3) {
+                fail("invalid status code")
+                return
+            }
+            for(i in firstSpace + 1 until codeEnd) {
+                val digit = line[i] - ZERO
+                if(digit !in 0..9) {
+                    fail("invalid status code")
+                    return
+                }
+                statusCode = statusCode * 10 + digit
+            }
+        }
+
+        chunked = false
+        contentLength = -1L
+        isInterim = statusCode in 100..199 && statusCode != 101
+        state = State.HEADER_LINE
+        if(!isInterim) {
+            listener.onStartLine(line, offset, length, firstSpace, secondSpace)
+        }
+    }
+
+    private fun handleHeader(line: ByteArray, offset: Int, length: Int) {
+        val end = offset + length
+        val colon = indexOf(line, COLON, offset, end)
+        if(colon <= offset) {
+            // obsolete line folding and other malformed lines are skipped
+            Timber.w("HTTP ${if(isRequest) "request" else "response"} header without a name skipped")
+            return
+        }
+
+        var valueStart = colon + 1
+        var valueEnd = end
+        while(valueStart < valueEnd && isWhitespace(line[valueStart])) {
+            valueStart++
+        }
+        while(valueEnd > valueStart && isWhitespace(line[valueEnd - 1])) {
+            valueEnd--
+        }
+
+        val nameLength = colon - offset
+        if(matches(line, offset, nameLength, CONTENT_LENGTH)) {
+            contentLength = parseContentLength(line, valueStart, valueEnd)
+        } else if(matches(line, offset, nameLength, TRANSFER_ENCODING)) {
+            // the message is chunked if chunked is the last transfer coding applied
+            chunked = valueEnd - valueStart >= CHUNKED.size && matches(line, valueEnd - CHUNKED.size, CHUNKED.size, CHUNKED)
+        }
+
+        if(!isInterim) {
+            listener.onHeader(line, offset, nameLength, valueStart, valueEnd - valueStart)
+        }
+    }
+
+    private fun parseContentLength(line: ByteArray, start: Int, end: Int): Long {
+        if(start == end) {
+            return -1L
+        }
+        var value = 0L
+        for(i in start until end) {
+            val digit = line[i] - ZERO
+            if(digit !in 0..9 || value > MAX_CONTENT_LENGTH) {
+                return -1L
+            }
+            value = value * 10 + digit
+        }
+        return value
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Body handling ///////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    private fun completeHeaders() {
+        headerSize = 0
+        if(isInterim) {
+            state = State.START_LINE
+            return
+        }
+
+        val noBody = listener.onHeadersComplete()
+        when {
+            isConnect || statusCode == 101 -> {
+                tunnelRequested = true
+                completeMessage()
+            }
+            noBody || statusCode == 204 || statusCode == 304 -> completeMessage()
+            chunked -> {
+                remainingBodyLength = 0
+                state = State.CHUNK_SIZE
+            }
+            contentLength > 0 -> {
+                remainingBodyLength = contentLength
+                state = State.BODY_IDENTITY
+            }
+            // requests without framing headers have no body
+            contentLength == 0L || isRequest -> completeMessage()
+            else -> state = State.BODY_UNTIL_CLOSE
+        }
+    }
+
+    /**
+     * Reads the body of a message with a known length, or the data of a chunk.
+     */
+    private fun readBody(buffer: ByteArray, position: Int, end: Int): Int {
+        val length = minOf(remainingBodyLength, (end - position).toLong()).toInt()
+        listener.onBody(buffer, position, length)
+        remainingBodyLength -= length
+        if(remainingBodyLength == 0L) {
+            if(state == State.CHUNK_DATA) {
+                state = State.CHUNK_DATA_END
+            } else {
+                completeMessage()
+            }
+        }
+        return position + length
+    }
+
+    private fun readChunkSize(buffer: ByteArray, position: Int, end: Int): Int {
+        var i = position
+        while(i < end) {
+            val b = buffer[i++]
+            val digit = hexValue(b)
+            if(digit >= 0) {
+                if(remainingBodyLength > MAX_CONTENT_LENGTH) {
+                    fail("chunk size too large")
+                    return end
+                }
+                remainingBodyLength = (remainingBodyLength shl 4) or digit.toLong()
+            } else if(b == LF) {
+                startChunk()
+                return i
+            } else {
+                // chunk extensions and whitespace are skipped up to the end of the line
+                state = State.CHUNK_EXTENSION
+                return i
+            }
+        }
+        return end
+    }
+
+    private fun readChunkExtension(buffer: ByteArray, position: Int, end: Int): Int {
+        val lf = indexOf(buffer, LF, position, end)
+        if(lf < 0) {
+            return end
+        }
+        startChunk()
+        return lf + 1
+    }
+
+    private fun startChunk() {
+        state = if(remainingBodyLength == 0L) State.TRAILER_LINE else State.CHUNK_DATA
+    }
+
+    /**
+     * Skips the line break following the data of a chunk.
+     */
+    private fun readChunkDataEnd(buffer: ByteArray, position: Int, end: Int): Int {
+        val lf = indexOf(buffer, LF, position, end)
+        if(lf < 0) {
+            return end
+        }
+        remainingBodyLength = 0
+        state = State.CHUNK_SIZE
+        return lf + 1
+    }
+
+    private fun completeMessage() {
+        messageCount++
+        headerSize = 0
+        // the listener may request a tunnel in response to the message
+        listener.onMessageComplete()
+        state = if(tunnelRequested) State.TUNNEL else State.START_LINE
+    }
+
+    private fun fail(reason: String) {
+        Timber.w("HTTP ${if(isRequest) "request" else "response"} parser stopped: $reason")
+        state = State.ERROR
+        lineLength = 0
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Byte helpers ////////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    private fun indexOf(buffer: ByteArray, byte: Byte, from: Int, until: Int): Int {
+        for(i in from until until) {
+            if(buffer[i] == byte) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Compares a slice with a lowercase ASCII token, ignoring the case of the slice.
+     */
+    private fun matches(buffer: ByteArray, offset: Int, length: Int, token: ByteArray): Boolean {
+        if(length != token.size) {
+            return false
+        }
+        for(i in token.indices) {
+            val b = buffer[offset + i].toInt()
+            val lower = if(b in 0x41..0x5A) b or 0x20 else b
+            if(lower != token[i].toInt()) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun isWhitespace(byte: Byte) = byte == SPACE || byte == TAB
+
+    private fun hexValue(byte: Byte): Int {
+        val c = byte.toInt()
+        return when(c) {
+            in 0x30..0x39 -> c - 0x30
+            in 0x41..0x46 -> c - 0x41 + 10
+            in 0x61..0x66 -> c - 0x61 + 10
+            else -> -1
+        }
+    }
+
+    companion object {
+        private const val INITIAL_LINE_BUFFER_SIZE = 256
+
+        /** Upper bound for the size of a message's start line and headers, beyond which the stream is not considered HTTP. */
+        private const val MAX_HEADER_SIZE = 64 * 1024
+
+        /** Guards the length parsing against overflows. */
+        private const val MAX_CONTENT_LENGTH = Long.MAX_VALUE shr 8
+
+        private const val CR = 0x0D.toByte()
+        private const val LF = 0x0A.toByte()
+        private const val SPACE = 0x20.toByte()
+        private const val TAB = 0x09.toByte()
+        private const val COLON = 0x3A.toByte()
+        private const val ZERO = 0x30.toByte()
+
+        private val HTTP_PREFIX = "http/".toByteArray(Charsets.US_ASCII)
+        private val CONNECT = "connect".toByteArray(Charsets.US_ASCII)
+        private val CONTENT_LENGTH = "content-length".toByteArray(Charsets.US_ASCII)
+        private val TRANSFER_ENCODING = "transfer-encoding".toByteArray(Charsets.US_ASCII)
+        private val CHUNKED = "chunked".toByteArray(Charsets.US_ASCII)
+    }
+}
@@ -4,6 +4,7 @@ import de.tomcory.heimdall.core.vpn.components.ComponentManager
 import de.tomcory.heimdall.core.vpn.connection.appLayer.AppLayerConnection
 import de.tomcory.heimdall.core.vpn.connection.appLayer.RawConnection
 import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
+import de.tomcory.heimdall.core.vpn.connection.transportLayer.UdpConnection
 import org.pcap4j.packet.Packet
 import timber.log.Timber
 
@@ -103,6 +104,13 @@ abstract class EncryptionLayerConnection(
      */
     abstract fun wrapInbound(payload: ByteArray)
 
+    /**
+     * Called by the transport layer once it has been closed, so that pending work of this layer can be dropped.
+     */
+    open fun onTransportClosed() {
+        appLayer?.onTransportClosed()
+    }
+
     companion object {
 
         /**
@@ -121,6 +129,14 @@ abstract class EncryptionLayerConnection(
                 TlsConnection(id, transportLayer, componentManager)
             } else if(detectQuic(rawPayload)) {
                 QuicConnection(id, transportLayer, componentManager)
+            } else if(transportLayer is UdpConnection && detectQuicShortHeader(rawPayload)) {
+                // a QUIC connection that migrated from another flow, whose server connection ID is known
+                val hostname = componentManager.quicConnectionIds.findShortHeader(rawPayload)
+                if(hostname != null) {
+                    QuicConnection(id, transportLayer, componentManager, hostname)
+                } else {
+                    PlaintextConnection(id, transportLayer, componentManager)
+                }
             } else {
                 PlaintextConnection(id, transportLayer, componentManager)
             }
@@ -145,6 +161,11 @@ abstract class EncryptionLayerConnection(
                     && rawPayload[5].toInt() == 1
         }
 
+        private fun detectQuicShortHeader(rawPayload: ByteArray): Boolean {
+            // short header packets have the header form bit cleared and the fixed bit set
+            return rawPayload.size > 1 && (rawPayload[0].toInt() and 0xC0) == 0x40
+        }
+
         private fun detectQuic(rawPayload: ByteArray): Boolean {
             if(rawPayload.isNotEmpty()) {
                 val firstByte = rawPayload[0].toUByte().toInt()
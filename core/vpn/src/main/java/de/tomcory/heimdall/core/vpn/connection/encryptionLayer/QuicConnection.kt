@@ -5,10 +5,23 @@ import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConn
 import org.pcap4j.packet.Packet
 import timber.log.Timber
 
+/**
+ * Handles QUIC connections, which are never intercepted.
+ *
+ * The client's Initial packets are decrypted with a [QuicInitialDecoder] to learn the connection's hostname from the
+ * ClientHello's SNI, which is used to label the connection and to correlate the remote address in the [ComponentManager.dnsCache].
+ * The connection ID the server chooses in its first long header packet is remembered in the
+ * [ComponentManager.quicConnectionIds], so that migrated flows can be attributed as well. Once the ClientHello is complete
+ * (or can't be decoded), datagrams are forwarded between both sides of the transport layer without being looked at.
+ *
+ * If [ComponentManager.blockQuic] is set, outbound datagrams are dropped after inspection instead, which makes clients
+ * fall back to TCP (and thus to TLS connections that can be intercepted).
+ */
 class QuicConnection(
     id: Int,
     transportLayer: TransportLayerConnection,
-    componentManager: ComponentManager
+    componentManager: ComponentManager,
+    hostname: String? = null
 ) : EncryptionLayerConnection(
     id,
     transportLayer,
@@ -24,28 +37,89 @@ class QuicConnection(
 
     override val protocol = "QUIC"
 
+    /**
+     * The connection's SNI, once it has been learned.
+     */
+    var sni: String? = hostname
+        private set
+
+    /** Decodes the client's Initial packets until the ClientHello is complete, null afterwards. */
+    private var decoder: QuicInitialDecoder? = if(hostname == null) QuicInitialDecoder() else null
+    private var inspectedDatagrams = 0
+
+    private var serverIdKnown = hostname != null
+
+    private var droppedDatagrams = 0
+
+    init {
+        // a migrated connection's hostname is known from the start
+        hostname?.let { onSni(it) }
+    }
+
     override fun unwrapOutbound(payload: ByteArray) {
-        //TODO: implement
-        passOutboundToAppLayer(payload)
+        decoder?.let { inspectOutbound(it, payload) }
+
+        if(componentManager.blockQuic) {
+            if(droppedDatagrams++ == 0) {
+                Timber.d("quic$id Blocking QUIC connection to $sni")
+            }
+            return
+        }
+        transportLayer.wrapOutbound(payload)
     }
 
     override fun unwrapOutbound(packet: Packet) {
-        //TODO: implement
-        passOutboundToAppLayer(packet)
+        unwrapOutbound(packet.rawData)
     }
 
     override fun unwrapInbound(payload: ByteArray) {
-        //TODO: implement
-        passInboundToAppLayer(payload)
+        if(!serverIdKnown) {
+            QuicInitialDecoder.readSourceId(payload)?.let { serverId ->
+                serverIdKnown = true
+                sni?.let { componentManager.quicConnectionIds.put(serverId, it) }
+            }
+        }
+        transportLayer.wrapInbound(payload)
     }
 
     override fun wrapOutbound(payload: ByteArray) {
-        //TODO: implement
         transportLayer.wrapOutbound(payload)
     }
 
     override fun wrapInbound(payload: ByteArray) {
-        //TODO: implement
         transportLayer.wrapInbound(payload)
     }
-}
\ No newline at end of file
+
+    /**
+     * Feeds an outbound datagram to the decoder, switching to plain forwarding once the decoder is done or has seen too many datagrams.
+     */
+    private fun inspectOutbound(decoder: QuicInitialDecoder, payload: ByteArray) {
+        inspectedDatagrams++
+        decoder.feed(payload)
+        if(decoder.isComplete) {
+            this.decoder = null
+            decoder.sni?.let { onSni(it) } ?: Timber.d("quic$id ClientHello without SNI")
+        } else if(inspectedDatagrams >= MAX_INSPECTED_DATAGRAMS) {
+            Timber.d("quic$id No complete ClientHello after $inspectedDatagrams datagrams, forwarding uninspected")
+            this.decoder = null
+        }
+    }
+
+    private fun onSni(hostname: String) {
+        sni = hostname
+        Timber.d("quic$id SNI: $hostname")
+        transportLayer.ipPacketBuilder.remoteAddress.hostAddress?.let { address ->
+            if(componentManager.dnsCache.get(address) == null) {
+                componentManager.dnsCache.put(address, hostname)
+            }
+        }
+        transportLayer.updateRemoteHost(hostname)
+    }
+
+    companion object {
+        /**
+         * Number of outbound datagrams after which the decoder gives up on finding a complete ClientHello.
+         */
+        private const val MAX_INSPECTED_DATAGRAMS = 8
+    }
+}
@@ -0,0 +1,416 @@
+package de.tomcory.heimdall.core.vpn.connection.encryptionLayer
+
+import timber.log.Timber
+import java.security.GeneralSecurityException
+import java.util.TreeMap
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Decrypts the Initial packets a QUIC client sends and extracts the SNI from the TLS ClientHello they carry (RFC 9000, RFC 9001).
+ *
+ * Initial packets are protected with keys derived from the client's original destination connection ID only, so they
+ * can be read without taking part in the handshake. The ClientHello is carried in CRYPTO frames that may be spread over
+ * several Initial packets (and datagrams), which are reassembled by their offset until the complete message is available.
+ *
+ * Only QUIC version 1 is supported. Instances are not thread-safe and are meant to be used by a single connection.
+ */
+class QuicInitialDecoder {
+
+    /**
+     * The destination connection ID chosen by the client for its first Initial packet.
+     */
+    var originalDestinationId: ByteArray? = null
+        private set
+
+    /**
+     * The source connection ID chosen by the client.
+     */
+    var clientSourceId: ByteArray? = null
+        private set
+
+    /**
+     * The SNI of the ClientHello, once the ClientHello is complete and contains one.
+     */
+    var sni: String? = null
+        private set
+
+    /**
+     * Whether the ClientHello has been reassembled completely (even if it didn't contain an SNI).
+     */
+    var isComplete = false
+        private set
+
+    private var keys: InitialKeys? = null
+
+    /** CRYPTO frame data by stream offset. */
+    private val cryptoFrames = TreeMap<Long, ByteArray>()
+
+    /**
+     * Processes an outbound datagram, decrypting all client Initial packets coalesced in it.
+     *
+     * @return Whether the datagram contained at least one Initial packet that could be decrypted.
+     */
+    fun feed(datagram: ByteArray): Boolean {
+        var offset = 0
+        var decrypted = false
+        while(offset < datagram.size && !isComplete) {
+            val first = datagram[offset].toInt() and 0xFF
+            // only long header packets can be Initial packets, and short header packets always come last in a datagram
+            if(first and LONG_HEADER == 0) {
+                break
+            }
+            val packetLength = try {
+                decodePacket(datagram, offset)
+            } catch (e: IndexOutOfBoundsException) {
+                -1
+            } catch (e: GeneralSecurityException) {
+                Timber.w("QuicInitialDecoder could not decrypt Initial packet: ${e.message}")
+                -1
+            }
+            if(packetLength <= 0) {
+                break
+            }
+            if(isInitial(first)) {
+                decrypted = true
+            }
+            offset += packetLength
+        }
+        return decrypted
+    }
+
+    /**
+     * Decodes the long header packet at the supplied offset, decrypting it if it is an Initial packet.
+     *
+     * @return The length of the packet, or -1 if it is malformed or of an unsupported version.
+     */
+    private fun decodePacket(datagram: ByteArray, start: Int): Int {
+        var i = start + 1
+        val version = readInt(datagram, i)
+        i += 4
+        if(version != VERSION_1) {
+            return -1
+        }
+
+        val dcidLength = datagram[i++].toInt() and 0xFF
+        val dcid = datagram.copyOfRange(i, i + dcidLength)
+        i += dcidLength
+        val scidLength = datagram[i++].toInt() and 0xFF
+        val scid = datagram.copyOfRange(i, i + scidLength)
+        i += scidLength
+
+        val first = datagram[start].toInt() and 0xFF
+        if(isInitial(first)) {
+            // Initial packets carry a token before the length
+            val tokenLength = readVarInt(datagram, i)
+            i += varIntLength(datagram[i])
+            // varints go up to 2^62, so they are checked against the remaining bytes before they are narrowed
+            if(tokenLength > datagram.size - i) {
+                return -1
+            }
+            i += tokenLength.toInt()
+        }
+        val length = readVarInt(datagram, i)
+        i += varIntLength(datagram[i])
+        if(length > datagram.size - i || length < SAMPLE_OFFSET + SAMPLE_LENGTH) {
+            return -1
+        }
+        val packetEnd = i + length.toInt()
+
+        if(isInitial(first)) {
+            if(originalDestinationId == null) {
+                originalDestinationId = dcid
+                clientSourceId = scid
+            }
+            decryptInitial(datagram, start, i, packetEnd, dcid)
+        }
+        return packetEnd - start
+    }
+
+    private fun decryptInitial(datagram: ByteArray, start: Int, pnOffset: Int, packetEnd: Int, dcid: ByteArray) {
+        val initialKeys = keys?.takeIf { it.destinationId.contentEquals(dcid) } ?: InitialKeys(dcid).also { keys = it }
+
+        // remove the header protection, which masks the low bits of the first byte and the packet number
+        val mask = initialKeys.headerProtection.doFinal(datagram, pnOffset + SAMPLE_OFFSET, SAMPLE_LENGTH)
+        val header = datagram.copyOfRange(start, pnOffset + MAX_PACKET_NUMBER_LENGTH)
+        header[0] = (header[0].toInt() xor (mask[0].toInt() and 0x0F)).toByte()
+        val pnLength = (header[0].toInt() and 0x03) + 1
+        val headerLength = pnOffset - start + pnLength
+        var packetNumber = 0L
+        for(n in 0 until pnLength) {
+            val b = header[pnOffset - start + n].toInt() xor mask[1 + n].toInt()
+            header[pnOffset - start + n] = b.toByte()
+            packetNumber = (packetNumber shl 8) or (b.toLong() and 0xFF)
+        }
+
+        // the nonce is the IV with the packet number XORed into its last bytes
+        val nonce = initialKeys.iv.copyOf()
+        for(n in 0 until 8) {
+            nonce[nonce.size - 1 - n] = (nonce[nonce.size - 1 - n].toInt() xor (packetNumber ushr (8 * n)).toInt()).toByte()
+        }
+
+        val cipher = initialKeys.payload
+        cipher.init(Cipher.DECRYPT_MODE, initialKeys.key, GCMParameterSpec(TAG_LENGTH_BITS, nonce))
+        cipher.updateAAD(header, 0, headerLength)
+        val payloadStart = start + headerLength
+        val plaintext = cipher.doFinal(datagram, payloadStart, packetEnd - payloadStart)
+
+        readFrames(plaintext)
+    }
+
+    /**
+     * Collects the CRYPTO frames of a decrypted Initial packet. Initial packets may only carry PADDING, PING, ACK, CRYPTO and CONNECTION_CLOSE frames.
+     */
+    private fun readFrames(payload: ByteArray) {
+        var i = 0
+        while(i < payload.size) {
+            when(payload[i].toInt() and 0xFF) {
+                FRAME_PADDING, FRAME_PING -> i++
+                FRAME_ACK, FRAME_ACK_ECN -> {
+                    val type = payload[i++].toInt()
+                    // largest acknowledged, ack delay, range count, first range
+                    i += varIntLength(payload[i])
+                    i += varIntLength(payload[i])
+                    val rangeCount = readVarInt(payload, i)
+                    i += varIntLength(payload[i])
+                    i += varIntLength(payload[i])
+                    // each further range takes at least two bytes
+                    if(rangeCount > (payload.size - i) / 2) {
+                        break
+                    }
+                    // gap and length of each further range
+                    repeat((2 * rangeCount).toInt()) { i += varIntLength(payload[i]) }
+                    if(type == FRAME_ACK_ECN) {
+                        repeat(3) { i += varIntLength(payload[i]) }
+                    }
+                }
+                FRAME_CRYPTO -> {
+                    i++
+                    val offset = readVarInt(payload, i)
+                    i += varIntLength(payload[i])
+                    val length = readVarInt(payload, i)
+                    i += varIntLength(payload[i])
+                    if(length > payload.size - i) {
+                        // the frame exceeds the packet, so the packet is malformed
+                        break
+                    }
+                    if(offset + length <= MAX_CLIENT_HELLO_LENGTH) {
+                        cryptoFrames[offset] = payload.copyOfRange(i, i + length.toInt())
+                    }
+                    i += length.toInt()
+                }
+                else -> {
+                    // CONNECTION_CLOSE or a protocol violation, nothing of interest follows
+                    break
+                }
+            }
+        }
+        checkClientHello()
+    }
+
+    /**
+     * Checks whether the CRYPTO frames received so far contain the complete ClientHello and extracts its SNI if they do.
+     */
+    private fun checkClientHello() {
+        val stream = contiguousPrefix()
+        if(stream.size < HANDSHAKE_HEADER_LENGTH) {
+            return
+        }
+        if(stream[0].toInt() != HANDSHAKE_CLIENT_HELLO) {
+            Timber.w("QuicInitialDecoder first handshake message is not a ClientHello")
+            isComplete = true
+            return
+        }
+        val messageLength = readUInt24(stream, 1)
+        if(stream.size < HANDSHAKE_HEADER_LENGTH + messageLength) {
+            return
+        }
+        isComplete = true
+        cryptoFrames.clear()
+        sni = try {
+            parseSni(stream, HANDSHAKE_HEADER_LENGTH, HANDSHAKE_HEADER_LENGTH + messageLength)
+        } catch (e: IndexOutOfBoundsException) {
+            Timber.w("QuicInitialDecoder malformed ClientHello")
+            null
+        }
+    }
+
+    /**
+     * Concatenates the CRYPTO frame data that is available without gaps from offset 0.
+     */
+    private fun contiguousPrefix(): ByteArray {
+        var end = 0L
+        for((offset, data) in cryptoFrames) {
+            if(offset > end) {
+                break
+            }
+            end = maxOf(end, offset + data.size)
+        }
+        val stream = ByteArray(end.toInt())
+        for((offset, data) in cryptoFrames) {
+            if(offset >= end) {
+                break
+            }
+            System.arraycopy(data, 0, stream, offset.toInt(), minOf(data.size.toLong(), end - offset).toInt())
+        }
+        return stream
+    }
+
+    /**
+     * Initial packet protection keys derived from a destination connection ID (RFC 9001, section 5.2).
+     */
+    private class InitialKeys(val destinationId: ByteArray) {
+        val key: SecretKeySpec
+        val iv: ByteArray
+        val headerProtection: Cipher
+        val payload: Cipher = Cipher.getInstance("AES/GCM/NoPadding")
+
+        init {
+            val initialSecret = hmac(INITIAL_SALT_V1, destinationId)
+            val clientSecret = expandLabel(initialSecret, "client in", 32)
+            key = SecretKeySpec(expandLabel(clientSecret, "quic key", 16), "AES")
+            iv = expandLabel(clientSecret, "quic iv", 12)
+            headerProtection = Cipher.getInstance("AES/ECB/NoPadding").apply {
+                init(Cipher.ENCRYPT_MODE, SecretKeySpec(expandLabel(clientSecret, "quic hp", 16), "AES"))
+            }
+        }
+
+        private fun hmac(key: ByteArray, data: ByteArray): ByteArray {
+            val mac = Mac.getInstance("HmacSHA256")
+            mac.init(SecretKeySpec(key, "HmacSHA256"))
+            return mac.doFinal(data)
+        }
+
+        /**
+         * HKDF-Expand-Label of TLS 1.3 with an empty context. All lengths used here fit into a single HMAC block.
+         */
+        private fun expandLabel(secret: ByteArray, label: String, length: Int): ByteArray {
+            val fullLabel = "tls13 $label".toByteArray(Charsets.US_ASCII)
+            val info = ByteArray(2 + 1 + fullLabel.size + 1 + 1)
+            info[0] = (length ushr 8).toByte()
+            info[1] = length.toByte()
+            info[2] = fullLabel.size.toByte()
+            System.arraycopy(fullLabel, 0, info, 3, fullLabel.size)
+            info[3 + fullLabel.size] = 0 // empty context
+            info[info.size - 1] = 1 // HKDF block counter
+            return hmac(secret, info).copyOf(length)
+        }
+    }
+
+    companion object {
+        private const val VERSION_1 = 0x00000001
+        private val INITIAL_SALT_V1 = byteArrayOf(
+            0x38, 0x76, 0x2c, 0xf7.toByte(), 0xf5.toByte(), 0x59, 0x34, 0xb3.toByte(), 0x4d, 0x17,
+            0x9a.toByte(), 0xe6.toByte(), 0xa4.toByte(), 0xc8.toByte(), 0x0c, 0xad.toByte(), 0xcc.toByte(), 0xbb.toByte(), 0x7f, 0x0a
+        )
+
+        private const val LONG_HEADER = 0x80
+        private const val PACKET_TYPE_MASK = 0x30
+        private const val PACKET_TYPE_INITIAL = 0x00
+
+        private const val MAX_PACKET_NUMBER_LENGTH = 4
+        private const val SAMPLE_OFFSET = 4
+        private const val SAMPLE_LENGTH = 16
+        private const val TAG_LENGTH_BITS = 128
+
+        private const val FRAME_PADDING = 0x00
+        private const val FRAME_PING = 0x01
+        private const val FRAME_ACK = 0x02
+        private const val FRAME_ACK_ECN = 0x03
+        private const val FRAME_CRYPTO = 0x06
+
+        private const val HANDSHAKE_CLIENT_HELLO = 0x01
+        private const val HANDSHAKE_HEADER_LENGTH = 4
+
+        /**
+         * Upper bound for the reassembled ClientHello, which is enough for post-quantum key shares.
+         */
+        private const val MAX_CLIENT_HELLO_LENGTH = 16384L
+
+        private fun isInitial(first: Int): Boolean {
+            return first and LONG_HEADER != 0 && first and PACKET_TYPE_MASK == PACKET_TYPE_INITIAL
+        }
+
+        /**
+         * Reads the source connection ID of a long header packet, e.g. the ID a server chose for itself in its Initial packet.
+         *
+         * @return The connection ID, or null if the datagram doesn't start with a QUIC version 1 long header packet.
+         */
+        fun readSourceId(datagram: ByteArray): ByteArray? {
+            if(datagram.size < 7 || datagram[0].toInt() and LONG_HEADER == 0 || readInt(datagram, 1) != VERSION_1) {
+                return null
+            }
+            val dcidLength = datagram[5].toInt() and 0xFF
+            val scidOffset = 6 + dcidLength
+            if(scidOffset >= datagram.size) {
+                return null
+            }
+            val scidLength = datagram[scidOffset].toInt() and 0xFF
+            if(scidOffset + 1 + scidLength > datagram.size) {
+                return null
+            }
+            return datagram.copyOfRange(scidOffset + 1, scidOffset + 1 + scidLength)
+        }
+
+        /**
+         * Extracts the server_name extension from a ClientHello message body (RFC 8446, section 4.1.2; RFC 6066, section 3).
+         */
+        private fun parseSni(message: ByteArray, start: Int, end: Int): String? {
+            var i = start + 2 + 32 // legacy_version, random
+            i += 1 + (message[i].toInt() and 0xFF) // legacy_session_id
+            i += 2 + readUInt16(message, i) // cipher_suites
+            i += 1 + (message[i].toInt() and 0xFF) // legacy_compression_methods
+            val extensionsEnd = minOf(end, i + 2 + readUInt16(message, i))
+            i += 2
+            while(i + 4 <= extensionsEnd) {
+                val type = readUInt16(message, i)
+                val length = readUInt16(message, i + 2)
+                i += 4
+                if(type == EXTENSION_SERVER_NAME) {
+                    // server_name_list length, name_type (host_name), name length
+                    if(message[i + 2].toInt() != 0) {
+                        return null
+                    }
+                    val nameLength = readUInt16(message, i + 3)
+                    return String(message, i + 5, nameLength, Charsets.US_ASCII)
+                }
+                i += length
+            }
+            return null
+        }
+
+        private const val EXTENSION_SERVER_NAME = 0x0000
+
+        private fun varIntLength(first: Byte): Int {
+            return 1 shl ((first.toInt() and 0xC0) ushr 6)
+        }
+
+        private fun readVarInt(data: ByteArray, offset: Int): Long {
+            val length = varIntLength(data[offset])
+            var value = (data[offset].toLong() and 0x3F)
+            for(n in 1 until length) {
+                value = (value shl 8) or (data[offset + n].toLong() and 0xFF)
+            }
+            return value
+        }
+
+        private fun readInt(data: ByteArray, offset: Int): Int {
+            return ((data[offset].toInt() and 0xFF) shl 24) or
+                    ((data[offset + 1].toInt() and 0xFF) shl 16) or
+                    ((data[offset + 2].toInt() and 0xFF) shl 8) or
+                    (data[offset + 3].toInt() and 0xFF)
+        }
+
+        private fun readUInt24(data: ByteArray, offset: Int): Int {
+            return ((data[offset].toInt() and 0xFF) shl 16) or
+                    ((data[offset + 1].toInt() and 0xFF) shl 8) or
+                    (data[offset + 2].toInt() and 0xFF)
+        }
+
+        private fun readUInt16(data: ByteArray, offset: Int): Int {
+            return ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
+        }
+    }
+}
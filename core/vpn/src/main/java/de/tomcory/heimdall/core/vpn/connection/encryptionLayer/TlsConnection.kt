@@ -3,9 +3,8 @@ package de.tomcory.heimdall.core.vpn.connection.encryptionLayer
 import de.tomcory.heimdall.core.vpn.components.ComponentManager
 import de.tomcory.heimdall.core.vpn.connection.transportLayer.TransportLayerConnection
 import de.tomcory.heimdall.core.util.ByteUtils
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
+import de.tomcory.heimdall.core.util.MitmPolicy
+import android.os.Build
 import org.pcap4j.packet.Packet
 import timber.log.Timber
 import java.nio.ByteBuffer
@@ -37,32 +36,48 @@ class TlsConnection(
     private lateinit var originalClientHello: ByteArray
     private var sni: String? = null
 
-    private val outboundCache = mutableListOf<ByteArray>()
-    private var remainingOutboundBytes = 0
+    /** The application protocols the client offered via ALPN. */
+    private var clientApplicationProtocols: List<String> = emptyList()
 
-    private val inboundCache = mutableListOf<ByteArray>()
-    private var remainingInboundBytes = 0
+    /**
+     * An outbound record held back together with its type, see [heldOutboundRecords].
+     */
+    private class HeldRecord(val bytes: ByteArray, val type: RecordType)
+
+    /**
+     * The ClientHello and the records following it while the MitM decision waits for the app owning the connection to be known, null otherwise.
+     */
+    private var heldOutboundRecords: MutableList<HeldRecord>? = null
+
+    private val outboundRecords = TlsRecordBuffer()
+    private val inboundRecords = TlsRecordBuffer()
 
-    private var outboundSnippet: ByteArray? = null
-    private var inboundSnippet: ByteArray? = null
+    /**
+     * Runs this connection's handshake work one task at a time on the [ComponentManager.handshakeExecutor].
+     */
+    private val handshakeQueue = componentManager.handshakeExecutor.newQueue("tls$id")
 
     private var serverSSLEngine: SSLEngine? = null
+    private var serverHandshakeStart = 0L
     private var clientSSLEngine: SSLEngine? = null
 
-    private var serverAppBufferWrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var serverNetBufferWrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var clientAppBufferWrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var clientNetBufferWrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var serverAppBufferUnwrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var serverNetBufferUnwrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var clientAppBufferUnwrap: ByteBuffer = ByteBuffer.allocate(0)
-    private var clientNetBufferUnwrap: ByteBuffer = ByteBuffer.allocate(0)
-
     private var serverSessionOpen = false
     private var clientSessionOpen = false
 
-    private var outboundCount = 0
-    private var inboundCount = 0
+    /** Time the client-facing session was established, used to tell pinning failures from unused connections. */
+    private var clientEstablishedAt = 0L
+    private var clientDataSeen = false
+    private var clientOutcomeReported = false
+
+    /** Whether the client sent an alert or its session failed, which distinguishes a rejection from an unused connection. */
+    private var clientAlertSeen = false
+
+    /**
+     * Whether the connection is passed through, in which case the raw transport-layer payloads are spliced between both sides without parsing any records.
+     */
+    private var splicing = false
+    private var splicedOutboundBytes = 0L
+    private var splicedInboundBytes = 0L
 
     private val log = true
 
@@ -71,6 +86,10 @@ class TlsConnection(
     //////////////////////////////////////////////////////////////////////
 
     override fun unwrapOutbound(payload: ByteArray) {
+        if(splicing) {
+            spliceOutbound(ByteBuffer.wrap(payload))
+            return
+        }
         if(log) Timber.d("tls$id unwrapOutbound of ${payload.size} bytes in state $state")
         prepareRecords(payload, true)
     }
@@ -80,6 +99,10 @@ class TlsConnection(
     }
 
     override fun unwrapInbound(payload: ByteArray) {
+        if(splicing) {
+            spliceInbound(ByteBuffer.wrap(payload))
+            return
+        }
         if(log) Timber.d("tls$id unwrapInbound of ${payload.size} bytes in state $state")
         prepareRecords(payload, false)
     }
@@ -100,6 +123,16 @@ class TlsConnection(
         }
     }
 
+    override fun onTransportClosed() {
+        heldOutboundRecords = null
+        handshakeQueue.cancel()
+        checkClientRejection("transport closed")
+        if(splicing) {
+            Timber.d("tls$id Passthrough to $hostname closed after $splicedOutboundBytes bytes out, $splicedInboundBytes bytes in")
+        }
+        super.onTransportClosed()
+    }
+
     ////////////////////////////////////////////////////////////////////////
     ///// Traffic handler methods /////////////////////////////////////////
     //////////////////////////////////////////////////////////////////////
@@ -116,18 +149,8 @@ class TlsConnection(
         if(log) Timber.d("tls$id handlePayload of ${payload.size} bytes in state $state")
 
         if(state == ConnectionState.CLIENT_ESTABLISHED) {
-            val (wrappedRecord, _) = handleWrap(payload, isOutbound)
-            wrappedRecord?.let {
-                if(it.isNotEmpty()) {
-                    if(log) Timber.d("tls$id handlePayload ($direction) wrapped ${it.size} bytes, passing to transport layer")
-
-                    if(isOutbound) {
-                        transportLayer.wrapOutbound(it)
-                    } else {
-                        transportLayer.wrapInbound(it)
-                    }
-                }
-            }
+            // the wrapped records are passed to the transport layer by handleWrap
+            handleWrap(payload, isOutbound)
         } else {
             Timber.e("tls$id handlePayload ($direction) invalid state $state")
             closeConnection()
@@ -138,30 +161,86 @@ class TlsConnection(
      * Handles an outbound TLS record based on the connection's state, using it to advance the client-facing TLS handshake or to pass the record to the application layer.
      * If the connection is not ready to handle the record (i.e. if the record is invalid or premature), the connection is closed.
      *
-     * @param record The TLS record to be handled.
+     * @param record The TLS record to be handled. Only valid for the duration of the call.
      * @param recordType The [RecordType] of the record (e.g. HANDSHAKE_CLIENT_HELLO, APPLICATION_DATA).
      */
-    private fun handleOutboundRecord(record: ByteArray, recordType: RecordType) {
+    private fun handleOutboundRecord(record: ByteBuffer, recordType: RecordType) {
         if(log) Timber.d("tls$id handleOutboundRecord $recordType in state $state")
 
+        // records following a held ClientHello are held as well to keep them in order
+        heldOutboundRecords?.let {
+            it.add(HeldRecord(record.copyRemaining(), recordType))
+            return
+        }
+
         // grab the remote hostname from the CLIENT HELLO message
         if (recordType == RecordType.HANDSHAKE_CLIENT_HELLO) {
-            sni = findSni(record)
-            sni?.let { hostname = it }
+            val clientHello = record.copyRemaining()
+            sni = findSni(clientHello)
+            clientApplicationProtocols = findApplicationProtocols(clientHello)
+            sni?.let {
+                hostname = it
+                transportLayer.updateRemoteHost(it)
+            }
 
-            // update the doMitm flag if the connection is marked for passthroughs
-            doMitm = doMitm && !(transportLayer.appId?.let { componentManager.tlsPassthroughCache.get(it, hostname) } ?: false)
+            // the MitM scope and the passthrough cache depend on the app owning the connection, so hold the ClientHello
+            // until the app is known instead of blocking the shard's thread
+            if(doMitm) {
+                heldOutboundRecords = mutableListOf(HeldRecord(clientHello, recordType))
+                // a release run right away is still inside prepareRecords, which flushes the record buffers itself
+                var deferred = false
+                if(!transportLayer.whenAttributed { releaseHeldRecords(deferred) }) {
+                    deferred = true
+                    if(log) Timber.d("tls$id Holding ClientHello until the app attribution completes")
+                }
+                return
+            }
         }
 
-        // if we don't want to MITM, we can hand the unprocessed record straight to the application layer
+        dispatchOutboundRecord(record, recordType)
+    }
+
+    /**
+     * Decides whether the connection is intercepted now that its app is known and processes the records held until then.
+     *
+     * @param deferred Whether the release runs after the payload carrying the ClientHello was handled, i.e. outside [prepareRecords].
+     */
+    private fun releaseHeldRecords(deferred: Boolean) {
+        // the connection may have been closed in the meantime
+        val held = heldOutboundRecords ?: return
+        heldOutboundRecords = null
+
+        // update the doMitm flag if the connection is out of the MitM scope or marked for passthroughs
+        val uid = transportLayer.appId ?: MitmPolicy.UNKNOWN_UID
+        doMitm = doMitm
+                && componentManager.mitmPolicy.shouldMitm(uid, hostname)
+                && !(transportLayer.appId?.let { componentManager.tlsPassthroughCache.get(it, hostname) } ?: false)
+
+        for(record in held) {
+            dispatchOutboundRecord(ByteBuffer.wrap(record.bytes), record.type)
+        }
+
+        if(deferred) {
+            flushRecordBuffersIfSplicing()
+        }
+    }
+
+    /**
+     * Handles an outbound record once the MitM decision has been made.
+     */
+    private fun dispatchOutboundRecord(record: ByteBuffer, recordType: RecordType) {
+        // if we don't want to MITM, there is nothing left to look at: forward the record and splice everything that follows
         if (!doMitm) {
-            passOutboundToAppLayer(record)
+            if(log) Timber.d("tls$id handleOutboundRecord passing through connection to $hostname")
+            splicing = true
+            spliceOutbound(record)
             return
         }
 
         // if the record is an ALERT, handle it and return
         if(recordType == RecordType.ALERT) {
-            if(log) Timber.w("tls$id outbound alert in state $state ${ByteUtils.bytesToHex(record)}")
+            if(log) Timber.w("tls$id outbound alert in state $state ${ByteUtils.bytesToHex(record.copyRemaining())}")
+            clientAlertSeen = true
             handleUnwrap(record, true)
             return
         }
@@ -170,10 +249,10 @@ class TlsConnection(
             // new connections require a CLIENT HELLO and initiate the server-facing TLS session based on it
             ConnectionState.NEW -> {
                 if (recordType == RecordType.HANDSHAKE_CLIENT_HELLO) {
-                    initiateServerHandshake(record)
+                    initiateServerHandshake(record.copyRemaining())
                 } else {
                     Timber.e("tls$id Invalid outbound record ($recordType in state $state)")
-                    Timber.e("tls$id ${ByteUtils.bytesToHex(record)}")
+                    Timber.e("tls$id ${ByteUtils.bytesToHex(record.copyRemaining())}")
                     closeConnection()
                 }
             }
@@ -181,7 +260,7 @@ class TlsConnection(
             // server-facing handshake ongoing, any messages from the client are unexpected
             ConnectionState.SERVER_HANDSHAKE, ConnectionState.SERVER_ESTABLISHED -> {
                 Timber.e("tls$id handleOutboundRecord Invalid outbound record ($recordType in state $state)")
-                Timber.e("tls$id ${ByteUtils.bytesToHex(record)}")
+                Timber.e("tls$id ${ByteUtils.bytesToHex(record.copyRemaining())}")
                 closeConnection()
             }
 
@@ -200,6 +279,11 @@ class TlsConnection(
                 val (unwrappedPayload, _) = handleUnwrap(record, true)
                 unwrappedPayload?.let {
                     if(it.isNotEmpty()) {
+                        if(!clientDataSeen) {
+                            // the client sent application data, so it accepted our certificate
+                            clientDataSeen = true
+                            reportClientOutcome(accepted = true, reason = "application data")
+                        }
                         if(log) Timber.d("tls$id handleOutboundRecord unwrapped ${it.size} bytes, passing to app layer")
                         passOutboundToAppLayer(it)
                     }
@@ -217,21 +301,22 @@ class TlsConnection(
      * Handles an inbound TLS record based on the connection's state, using it to advance the server-facing TLS handshake or to pass the record to the application layer.
      * If the connection is not ready to handle the record (i.e. if the record is invalid or premature), the connection is closed.
      *
-     * @param record The TLS record to be handled.
+     * @param record The TLS record to be handled. Only valid for the duration of the call.
      * @param recordType The [RecordType] of the record (e.g. HANDSHAKE_CLIENT_HELLO, APPLICATION_DATA).
      */
-    private fun handleInboundRecord(record: ByteArray, recordType: RecordType) {
+    private fun handleInboundRecord(record: ByteBuffer, recordType: RecordType) {
         if(log) Timber.d("tls$id handleInboundRecord $recordType in state $state")
 
-        // if we don't want to MITM, we can hand the unprocessed record straight to the application layer
+        // the passthrough decision is made on the CLIENT HELLO, so inbound records before it are unexpected
         if(!doMitm) {
-            passInboundToAppLayer(record)
+            splicing = true
+            spliceInbound(record)
             return
         }
 
         // if the record is an ALERT, handle it and return
         if(recordType == RecordType.ALERT) {
-            if(log) Timber.w("tls$id inbound alert in state $state ${ByteUtils.bytesToHex(record)}")
+            if(log) Timber.w("tls$id inbound alert in state $state ${ByteUtils.bytesToHex(record.copyRemaining())}")
             handleUnwrap(record, false)
             return
         }
@@ -250,7 +335,7 @@ class TlsConnection(
 
             // client-facing handshake ongoing, not ready to MitM yet
             ConnectionState.SERVER_ESTABLISHED, ConnectionState.CLIENT_HANDSHAKE -> {
-                if(log) Timber.w("tls$id (premature) inbound $recordType (${record.size} bytes) in state $state")
+                if(log) Timber.w("tls$id (premature) inbound $recordType (${record.remaining()} bytes) in state $state")
 
                 if(recordType == RecordType.CHANGE_CIPHER_SPEC) {
                     if(log) Timber.w("tls$id handleInboundRecord ignoring $recordType in state $state")
@@ -303,7 +388,7 @@ class TlsConnection(
         originalClientHello = record
 
         // set up the server-facing SSLEngine and initiate the handshake
-        CoroutineScope(Dispatchers.IO).launch {
+        handshakeQueue.submit {
             setupServerSSLEngine()
             continueHandshake(handshakeStatus = SSLEngineResult.HandshakeStatus.NEED_WRAP, isClientFacing = false)
         }
@@ -317,9 +402,9 @@ class TlsConnection(
         if(log) Timber.d("tls$id initiateClientHandshake Hostname: $hostname")
 
         // set up the client-facing SSLEngine and initiate the handshake
-        CoroutineScope(Dispatchers.IO).launch {
+        handshakeQueue.submit {
             setupClientSSLEngine()
-            continueHandshake(originalClientHello, RecordType.HANDSHAKE_CLIENT_HELLO, true, SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+            continueHandshake(ByteBuffer.wrap(originalClientHello), RecordType.HANDSHAKE_CLIENT_HELLO, true, SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
         }
     }
 
@@ -331,7 +416,7 @@ class TlsConnection(
      * @param isClientFacing Whether the handshake is for the client-facing session (true) or the server-facing session (false).
      * @param handshakeStatus The current [SSLEngineResult.HandshakeStatus] of the handshake (resulting from the previous handshake operation).
      */
-    private fun continueHandshake(record: ByteArray? = null, recordType: RecordType? = null, isClientFacing: Boolean, handshakeStatus: SSLEngineResult.HandshakeStatus) {
+    private fun continueHandshake(record: ByteBuffer? = null, recordType: RecordType? = null, isClientFacing: Boolean, handshakeStatus: SSLEngineResult.HandshakeStatus) {
         val direction = if(isClientFacing) "client" else "server"
 
         if(log) Timber.d("tls$id continueHandshake ($direction) recordType: $recordType, handshakeStatus: $handshakeStatus")
@@ -339,13 +424,8 @@ class TlsConnection(
         when(handshakeStatus) {
             // if the clientSSLEngine needs to send data to continue the handshake, wrap the handshake messages and forward them to the remote host
             SSLEngineResult.HandshakeStatus.NEED_WRAP -> {
-                val (wrappedRecord, res) = handleWrap(isOutbound = !isClientFacing)
-                if(wrappedRecord != null && res != null) {
-                    if(isClientFacing) {
-                        transportLayer.wrapInbound(wrappedRecord)
-                    } else {
-                        transportLayer.wrapOutbound(wrappedRecord)
-                    }
+                val res = handleWrap(isOutbound = !isClientFacing)
+                if(res != null) {
                     if(res.handshakeStatus != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
                         continueHandshake(handshakeStatus = res.handshakeStatus, isClientFacing = isClientFacing)
                     }
@@ -371,8 +451,13 @@ class TlsConnection(
             // TLS session established, advance connection state accordingly
             SSLEngineResult.HandshakeStatus.FINISHED -> {
                 if(isClientFacing) {
+                    clientEstablishedAt = System.currentTimeMillis()
                     switchState(ConnectionState.CLIENT_ESTABLISHED)
                 } else {
+                    serverSSLEngine?.session?.let {
+                        val resumed = componentManager.mitmManager.recordUpstreamHandshake(it, serverHandshakeStart)
+                        if(log) Timber.d("tls$id server handshake finished after ${System.currentTimeMillis() - serverHandshakeStart} ms, resumed: $resumed, ALPN: ${negotiatedApplicationProtocol()}")
+                    }
                     switchState(ConnectionState.SERVER_ESTABLISHED)
                     initiateClientHandshake()
                 }
@@ -382,7 +467,7 @@ class TlsConnection(
             SSLEngineResult.HandshakeStatus.NEED_TASK -> {
                 val task = if(isClientFacing) clientSSLEngine?.delegatedTask else serverSSLEngine?.delegatedTask
                 if(task != null) {
-                    CoroutineScope(Dispatchers.IO).launch {
+                    handshakeQueue.submit {
                         if(log) Timber.d("tls$id continueHandshake ($direction) delegated task: $task")
                         task.run()
                         continueHandshake(handshakeStatus = if(isClientFacing) clientSSLEngine?.handshakeStatus ?: handshakeStatus else serverSSLEngine?.handshakeStatus ?: handshakeStatus, isClientFacing = isClientFacing)
@@ -395,6 +480,40 @@ class TlsConnection(
         }
     }
 
+    /**
+     * Checks whether the connection is being closed because the client rejected the client-facing session, i.e. whether
+     * it fails during the client-facing handshake or right after it without the client sending any application data
+     * (which is how apps that check pinned certificates after the handshake behave), and reports the failure if so.
+     */
+    private fun checkClientRejection(reason: String) {
+        val rejected = when(state) {
+            ConnectionState.CLIENT_HANDSHAKE -> true
+            ConnectionState.CLIENT_ESTABLISHED -> !clientDataSeen && System.currentTimeMillis() - clientEstablishedAt < PINNING_CHECK_MILLIS
+            else -> false
+        }
+        if(rejected) {
+            val conclusive = state == ConnectionState.CLIENT_HANDSHAKE || clientAlertSeen
+            reportClientOutcome(accepted = false, reason = "$reason in state $state", conclusive = conclusive)
+        }
+    }
+
+    /**
+     * Reports whether the client accepted the client-facing session to the [ComponentManager.pinningFailureTracker], once per connection.
+     */
+    private fun reportClientOutcome(accepted: Boolean, reason: String, conclusive: Boolean = false) {
+        val uid = transportLayer.appId ?: return
+        if(clientOutcomeReported) {
+            return
+        }
+        clientOutcomeReported = true
+
+        if(accepted) {
+            componentManager.pinningFailureTracker.recordSuccess(uid, hostname)
+        } else {
+            componentManager.pinningFailureTracker.recordFailure(uid, hostname, reason, conclusive)
+        }
+    }
+
     ////////////////////////////////////////////////////////////////////////
     ///// closing TLS handshake methods ///////////////////////////////////
     //////////////////////////////////////////////////////////////////////
@@ -405,8 +524,12 @@ class TlsConnection(
     private fun closeConnection() {
         if(log) Timber.d("tls$id closeConnection in state $state")
 
+        checkClientRejection("connection closed")
         switchState(ConnectionState.CLOSED)
 
+        // drop any handshake work that hasn't started yet
+        handshakeQueue.cancel()
+
         // close the server-facing TLS session if it's still open
         if(serverSessionOpen) {
             closeSession(isClientFacing = false)
@@ -443,15 +566,8 @@ class TlsConnection(
             serverSSLEngine?.closeOutbound()
         }
 
-        // wrap the resulting close message and forward it to the remote host
-        val (wrappedRecord, _) = handleWrap(isOutbound = false, closing = true)
-        wrappedRecord?.let {
-            if(isClientFacing) {
-                transportLayer.wrapInbound(wrappedRecord)
-            } else {
-                transportLayer.wrapOutbound(wrappedRecord)
-            }
-        }
+        // wrap the resulting close message and forward it to the respective peer
+        handleWrap(isOutbound = !isClientFacing, closing = true)
     }
 
     ////////////////////////////////////////////////////////////////////////
@@ -460,19 +576,17 @@ class TlsConnection(
 
     /**
      * Creates a new SSLEngine in client mode to handle the TLS session facing the remote host and initiates the TLS handshake for it.
-     * The application and network buffers used by the serverSSLEngine are allocated and the handshake is initiated.
+     * The handshake is initiated right away.
      */
     private fun setupServerSSLEngine() {
         if(log) Timber.d("tls$id setupServerSSLEngine")
 
-        // create a new SSLEngine to handle the TLS session facing the remote host
-        serverSSLEngine = componentManager.mitmManager.createServerSSLEngine(sni, transportLayer.remotePort)
+        // create a new SSLEngine to handle the TLS session facing the remote host, keying its session by the SNI or (lacking one) the remote IP address for resumption
+        serverHandshakeStart = System.currentTimeMillis()
+        serverSSLEngine = componentManager.mitmManager.createServerSSLEngine(sni ?: transportLayer.ipPacketBuilder.remoteAddress.hostAddress, transportLayer.remotePort)
 
-        // allocate the application and network buffers used by the serverSSLEngine
-        serverAppBufferWrap = ByteBuffer.allocate(serverSSLEngine?.session?.applicationBufferSize ?: 0)
-        serverNetBufferWrap = ByteBuffer.allocate(serverSSLEngine?.session?.packetBufferSize ?: 0)
-        serverAppBufferUnwrap = ByteBuffer.allocate(serverSSLEngine?.session?.applicationBufferSize ?: 0)
-        serverNetBufferUnwrap = ByteBuffer.allocate(serverSSLEngine?.session?.packetBufferSize ?: 0)
+        // offer the remote host those of the client's application protocols that the application layer can parse
+        serverSSLEngine?.let { setApplicationProtocols(it, clientApplicationProtocols.filter { protocol -> protocol in SUPPORTED_APPLICATION_PROTOCOLS }) }
 
         // initiate the TLS handshake for the serverSSLEngine
         switchState(ConnectionState.SERVER_HANDSHAKE)
@@ -483,7 +597,7 @@ class TlsConnection(
 
     /**
      * Creates a new SSLEngine in server mode to handle the TLS session facing the local client and initiates the TLS handshake for it.
-     * The application and network buffers used by the clientSSLEngine are allocated and the handshake is initiated.
+     * The handshake is initiated right away.
      * The created SSLEngine clones the serverSSLEngine's remote server credentials to fool the client into establishing a session with us.
      */
     private fun setupClientSSLEngine() {
@@ -492,11 +606,10 @@ class TlsConnection(
         // create a new SSLEngine to handle the TLS session facing the local client
         clientSSLEngine = serverSSLEngine?.session?.let { componentManager.mitmManager.createClientSSLEngineFor(it) }
 
-        // allocate the application and network buffers used by the clientSSLEngine
-        clientAppBufferWrap = ByteBuffer.allocate(clientSSLEngine?.session?.applicationBufferSize ?: 0)
-        clientNetBufferWrap = ByteBuffer.allocate(clientSSLEngine?.session?.packetBufferSize ?: 0)
-        clientAppBufferUnwrap = ByteBuffer.allocate(clientSSLEngine?.session?.applicationBufferSize ?: 0)
-        clientNetBufferUnwrap = ByteBuffer.allocate(clientSSLEngine?.session?.packetBufferSize ?: 0)
+        // select the application protocol the remote host selected, so that both sessions speak the same protocol
+        clientSSLEngine?.let { engine ->
+            negotiatedApplicationProtocol()?.let { setApplicationProtocols(engine, listOf(it)) }
+        }
 
         // initiate the TLS handshake for the clientSSLEngine
         switchState(ConnectionState.CLIENT_HANDSHAKE)
@@ -510,226 +623,224 @@ class TlsConnection(
     //////////////////////////////////////////////////////////////////////
 
     /**
-     * Calls ServerSSLEngine.wrap() to wrap application data into a TLS record or generate a handshake message. If the wrap operation is part of the handshake, the SSLEngine's handshake status is advanced accordingly.
+     * Calls SSLEngine.wrap() to wrap application data into TLS records or generate a handshake message and passes the result to the transport layer.
+     * If the wrap operation is part of the handshake, the SSLEngine's handshake status is advanced accordingly.
+     *
+     * The records are written into a buffer sized from the session's packet buffer size that is only borrowed from the
+     * [ComponentManager.tlsBufferPool] for the duration of the call. Payloads that don't fit into a single record are
+     * wrapped in a loop, passing the records to the transport layer whenever the buffer is full.
      *
      * @param payload The application data to be wrapped, or null if the wrap operation is part of the handshake.
      * @param isOutbound Whether the wrap operation is for outbound data wrapped by the serverSSLEngine (true) or inbound data wrapped by the clientSSLEngine (false).
-     * @param resizeFactor The factor by which to resize the buffers if they are too small to fit the payload (default: 2).
+     * @param closing Whether the wrap operation produces the close message of a session that is being closed.
      *
-     * @return The wrapped TLS record, or null if the wrap operation failed. If the operation failed, [closeConnection] is called before returning.
+     * @return The result of the last wrap operation, or null if the wrap operation failed. If the operation failed, [closeConnection] is called before returning.
      */
-    private fun handleWrap(payload: ByteArray? = null, isOutbound: Boolean, resizeFactor: Int = 2, closing: Boolean = false): Pair<ByteArray?, SSLEngineResult?> {
+    private fun handleWrap(payload: ByteArray? = null, isOutbound: Boolean, closing: Boolean = false): SSLEngineResult? {
         val direction = if(isOutbound) "outbound" else "inbound"
 
-        var appBuffer = if(isOutbound) serverAppBufferWrap else clientAppBufferWrap
-        var netBuffer = if(isOutbound) serverNetBufferWrap else clientNetBufferWrap
-        val sslEngine = if(isOutbound) serverSSLEngine else clientSSLEngine
+        val sslEngine = (if(isOutbound) serverSSLEngine else clientSSLEngine) ?: run {
+            Timber.e("tls$id handleWrap ($direction) SSLEngine not initialised in state $state")
+            if(!closing) closeConnection()
+            return null
+        }
 
-        if(log) Timber.d("tls$id handleWrap ($direction) wrapping ${payload?.size ?: 0} bytes, SSLEngine handshakeStatus: ${sslEngine?.handshakeStatus}")
+        if(log) Timber.d("tls$id handleWrap ($direction) wrapping ${payload?.size ?: 0} bytes, SSLEngine handshakeStatus: ${sslEngine.handshakeStatus}")
 
-        // prepare the appBuffer by switching it to write mode
-        appBuffer.clear()
+        // the payload is read by the SSLEngine straight from its array
+        val source = if(payload != null) ByteBuffer.wrap(payload) else ByteBuffer.wrap(EMPTY_PAYLOAD)
 
-        // if necessary, preemptively increase the capacity of the buffers to fit the payload
-        payload?.let {
-            if(appBuffer.capacity() < (it.size)) {
-                if(log) Timber.w("tls$id handleWrap ($direction) Resizing buffers: appBuffer ${appBuffer.capacity()} -> ${it.size}, netBuffer ${netBuffer.capacity()} -> ${it.size * resizeFactor}")
-                if(isOutbound) {
-                    serverAppBufferWrap = ByteBuffer.allocate(it.size)
-                    serverNetBufferWrap = ByteBuffer.allocate(it.size * resizeFactor)
-                    appBuffer = serverAppBufferWrap
-                    netBuffer = serverNetBufferWrap
-                } else {
-                    clientAppBufferWrap = ByteBuffer.allocate(it.size)
-                    clientNetBufferWrap = ByteBuffer.allocate(it.size * resizeFactor)
-                    appBuffer = clientAppBufferWrap
-                    netBuffer = clientNetBufferWrap
-                }
-            }
-
-            // write the payload to the appBuffer
-            appBuffer.put(it)
+        return withTlsBuffer(sslEngine.session.packetBufferSize) { netBuffer ->
+            wrapInto(sslEngine, source, netBuffer, isOutbound)
         }
+    }
 
-        // prepare the buffers for the wrap operation by switching them to read and write mode, respectively
-        appBuffer.flip()
-        netBuffer.clear()
-
-        // use the SSLEngine to wrap the payload, producing an encrypted record in the netBuffer
-        val res = try {
-            sslEngine?.wrap(appBuffer, netBuffer)
-        } catch (sslException: SSLException) {
-            Timber.e("tls$id handleWrap ($direction) SSLException in state $state\n${sslException.message}")
-            null
-        }
+    /**
+     * Wraps the source into the supplied buffer until it is consumed, passing the wrapped records to the transport layer. See [handleWrap].
+     */
+    private fun wrapInto(sslEngine: SSLEngine, source: ByteBuffer, netBuffer: ByteBuffer, isOutbound: Boolean): SSLEngineResult? {
+        val direction = if(isOutbound) "outbound" else "inbound"
+        while(true) {
+            val res = try {
+                sslEngine.wrap(source, netBuffer)
+            } catch (sslException: SSLException) {
+                Timber.e("tls$id handleWrap ($direction) SSLException in state $state\n${sslException.message}")
+                if(!isOutbound) {
+                    clientAlertSeen = true
+                }
+                null
+            }
 
-        if(log) Timber.d("tls$id handleWrap ($direction) wrap result: $res")
+            if(log) Timber.d("tls$id handleWrap ($direction) wrap result: $res")
 
-        when(res?.status) {
-            // if the wrap() operation was successful, return the encrypted record
-            SSLEngineResult.Status.OK -> {
-                return if(netBuffer.position() > 0) {
-                    netBuffer.flip()
-                    val out = ByteArray(netBuffer.limit())
-                    netBuffer.get(out)
-                    Pair(out, res)
-                } else {
-                    Pair(ByteArray(0), res)
+            when(res?.status) {
+                // continue until the whole payload is wrapped
+                SSLEngineResult.Status.OK -> {
+                    if(!source.hasRemaining() || res.bytesConsumed() == 0) {
+                        passWrappedToTransportLayer(netBuffer, isOutbound)
+                        return res
+                    }
                 }
-            }
 
-            // if the wrap() operation requires more input data, increase the capacity of the appBuffer and retry
-            SSLEngineResult.Status.BUFFER_UNDERFLOW -> {
-                Timber.w("tls$id handleWrap ($isOutbound) buffer underflow, increasing appBuffer capacity and retrying")
-                if(isOutbound) {
-                    serverAppBufferWrap = ByteBuffer.allocate(serverAppBufferWrap.capacity() + (payload?.size ?: serverAppBufferWrap.capacity()))
-                } else {
-                    clientAppBufferWrap = ByteBuffer.allocate(clientAppBufferWrap.capacity() + (payload?.size ?: clientAppBufferWrap.capacity()))
+                // the netBuffer is full, hand the records wrapped so far to the transport layer to make room for the next one
+                SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+                    if(netBuffer.position() == 0) {
+                        Timber.e("tls$id handleWrap ($direction) buffer overflow with an empty netBuffer of ${netBuffer.capacity()} bytes, closing connection")
+                        closeConnection()
+                        return null
+                    }
+                    passWrappedToTransportLayer(netBuffer, isOutbound)
                 }
-                return handleWrap(payload, isOutbound, resizeFactor)
-            }
 
-            // if the wrap() operation generates more data than the netBuffer can hold, increase the capacity of the netBuffer and retry
-            SSLEngineResult.Status.BUFFER_OVERFLOW -> {
-                Timber.w("tls$id handleWrap ($isOutbound) buffer overflow, increasing netBuffer capacity and retrying")
-                if(isOutbound) {
-                    serverNetBufferWrap = ByteBuffer.allocate(serverNetBufferWrap.capacity() * resizeFactor)
-                } else {
-                    clientNetBufferWrap = ByteBuffer.allocate(clientNetBufferWrap.capacity() * resizeFactor)
+                // wrap() never needs more input than it has been given
+                SSLEngineResult.Status.BUFFER_UNDERFLOW -> {
+                    Timber.e("tls$id handleWrap ($direction) unexpected buffer underflow, closing connection")
+                    closeConnection()
+                    return null
                 }
-                return handleWrap(payload, isOutbound, resizeFactor)
-            }
 
-            // if the wrap() operation results in a closed session, close the connection
-            SSLEngineResult.Status.CLOSED -> {
-                return if(closing) {
-                    if(netBuffer.position() > 0) {
-                        netBuffer.flip()
-                        val out = ByteArray(netBuffer.limit())
-                        netBuffer.get(out)
-                        Pair(out, res)
+                // if the wrap() operation results in a closed session, forward the close message if we are closing or close the connection otherwise
+                SSLEngineResult.Status.CLOSED -> {
+                    return if(closing) {
+                        passWrappedToTransportLayer(netBuffer, isOutbound)
+                        res
                     } else {
-                        Pair(ByteArray(0), res)
+                        Timber.d("tls$id handleWrap ($direction) resulted in closed session, closing connection")
+                        closeConnection()
+                        null
                     }
-                } else {
-                    Timber.d("tls$id handleWrap ($isOutbound) resulted in closed session, closing connection")
-                    closeConnection()
-                    Pair(null, res)
+                }
+
+                // if either the result or the status is null, something went wrong, close the connection
+                null -> {
+                    Timber.e("tls$id handleWrap ($direction) unexpected res.status: NULL")
+                    if(!closing) closeConnection()
+                    return null
                 }
             }
+        }
+    }
 
-            // if either the result or the status is null, something went wrong, close the connection
-            null -> {
-                Timber.e("tls$id handleWrap ($isOutbound) unexpected res.status: NULL")
-                closeConnection()
-                return Pair(null, res)
+    /**
+     * Passes the records in the supplied buffer to the transport layer and clears the buffer.
+     */
+    private fun passWrappedToTransportLayer(netBuffer: ByteBuffer, isOutbound: Boolean) {
+        netBuffer.flip()
+        if(netBuffer.hasRemaining()) {
+            if(log) Timber.d("tls$id passing ${netBuffer.remaining()} wrapped bytes to transport layer")
+            if(isOutbound) {
+                transportLayer.wrapOutbound(netBuffer)
+            } else {
+                transportLayer.wrapInbound(netBuffer)
             }
         }
+        netBuffer.clear()
     }
 
     /**
-     * Calls ServerSSLEngine.unwrap() to unwrap a TLS record into its application data payload. If the record is a handshake message, the SSLEngine's handshake status is advanced accordingly.
+     * Calls SSLEngine.unwrap() to unwrap a TLS record into its application data payload. If the record is a handshake message, the SSLEngine's handshake status is advanced accordingly.
+     * The record is unwrapped straight from the supplied buffer into a buffer sized from the session's application buffer size, which is only borrowed from the [ComponentManager.tlsBufferPool] for the duration of the call.
      *
-     * @param record The TLS record to be unwrapped.
+     * @param record The TLS record to be unwrapped. Its position is advanced past the consumed bytes.
      * @param isOutbound Whether the unwrap operation is for outbound data unwrapped by the clientSSLEngine (true) or inbound data unwrapped by the serverSSLEngine (false).
-     * @param resizeFactor The factor by which to resize the buffers if they are too small to fit the record (default: 2).
      *
      * @return The unwrapped application data payload (might be empty), or null if the unwrap operation failed. If the operation failed, [closeConnection] is called before returning.
      */
-    private fun handleUnwrap(record: ByteArray, isOutbound: Boolean, resizeFactor: Int = 2): Pair<ByteArray?, SSLEngineResult?> {
+    private fun handleUnwrap(record: ByteBuffer, isOutbound: Boolean): Pair<ByteArray?, SSLEngineResult?> {
         val direction = if(isOutbound) "outbound" else "inbound"
 
-        var appBuffer = if(isOutbound) clientAppBufferUnwrap else serverAppBufferUnwrap
-        var netBuffer = if(isOutbound) clientNetBufferUnwrap else serverNetBufferUnwrap
-        val sslEngine = if(isOutbound) clientSSLEngine else serverSSLEngine
-
-        if(log) Timber.d("tls$id handleUnwrap ($direction) Unwrapping ${record.size} bytes in state $state, handshakeStatus: ${sslEngine?.handshakeStatus}")
+        val sslEngine = (if(isOutbound) clientSSLEngine else serverSSLEngine) ?: run {
+            Timber.e("tls$id handleUnwrap ($direction) SSLEngine not initialised in state $state")
+            closeConnection()
+            return Pair(null, null)
+        }
+        val recordSize = record.remaining()
 
-        // prepare the clientNetBuffer by switching it to write mode
-        netBuffer.clear()
+        if(log) Timber.d("tls$id handleUnwrap ($direction) Unwrapping $recordSize bytes in state $state, handshakeStatus: ${sslEngine.handshakeStatus}")
 
-        // if necessary, preemptively increase the capacity of the buffers to fit the record
-        if(netBuffer.capacity() < record.size) {
-            if(log) Timber.w("tls$id handleClientUnwrap ($direction) Resizing buffers: netBuffer ${netBuffer.capacity()} -> ${record.size}, appBuffer ${appBuffer.capacity()} -> ${record.size * resizeFactor}")
-            if(isOutbound) {
-                clientNetBufferUnwrap = ByteBuffer.allocate(record.size)
-                clientAppBufferUnwrap = ByteBuffer.allocate(record.size * resizeFactor)
-                netBuffer = clientNetBufferUnwrap
-                appBuffer = clientAppBufferUnwrap
-            } else {
-                serverNetBufferUnwrap = ByteBuffer.allocate(record.size)
-                serverAppBufferUnwrap = ByteBuffer.allocate(record.size * resizeFactor)
-                netBuffer = serverNetBufferUnwrap
-                appBuffer = serverAppBufferUnwrap
-            }
+        return withTlsBuffer(sslEngine.session.applicationBufferSize) { appBuffer ->
+            unwrapInto(sslEngine, record, appBuffer, isOutbound)
         }
+    }
 
-        // write the record to the clientNetBuffer
-        netBuffer.put(record)
+    /**
+     * Unwraps the record into the supplied buffer, retrying with a larger one-off buffer if it doesn't fit. See [handleUnwrap].
+     */
+    private fun unwrapInto(sslEngine: SSLEngine, record: ByteBuffer, pooledBuffer: ByteBuffer, isOutbound: Boolean): Pair<ByteArray?, SSLEngineResult?> {
+        val direction = if(isOutbound) "outbound" else "inbound"
+        val recordStart = record.position()
+        val recordSize = record.remaining()
+        var appBuffer = pooledBuffer
+        while(true) {
+            // use the SSLEngine to unwrap the record, producing an unencrypted payload in the appBuffer
+            val res = try {
+                sslEngine.unwrap(record, appBuffer)
+            } catch (sslException: SSLException) {
+                Timber.e("tls$id handleUnwrap ($direction) SSLException in state $state\n${sslException.message}")
+                if(isOutbound) {
+                    clientAlertSeen = true
+                }
+                record.position(recordStart)
+                Timber.e("tls$id $recordSize bytes: ${ByteUtils.bytesToHex(record.copyRemaining())}")
+                null
+            }
 
-        // prepare the buffers for the unwrap operation by switching them to read and write mode, respectively
-        netBuffer.flip()
-        appBuffer.clear()
-
-        // use the clientSSLEngine to unwrap the record, producing an unencrypted payload in the clientAppBuffer
-        val res = try {
-            sslEngine?.unwrap(netBuffer, appBuffer)
-        } catch (sslException: SSLException) {
-            Timber.e("tls$id handleUnwrap ($direction) SSLException in state $state\n${sslException.message}")
-            Timber.e("tls$id ${record.size} bytes: ${ByteUtils.bytesToHex(record)}")
-            null
-        }
+            if(log) Timber.d("tls$id handleUnwrap ($direction) unwrap result: $res")
 
-        if(log) Timber.d("tls$id handleClientUnwrap clientSSLEngine unwrap result: $res")
+            when(res?.status) {
+                // if the unwrap() operation was successful, return the unencrypted payload
+                SSLEngineResult.Status.OK -> {
+                    return if(appBuffer.position() > 0) {
+                        appBuffer.flip()
+                        val out = ByteArray(appBuffer.remaining())
+                        appBuffer.get(out)
+                        Pair(out, res)
+                    } else {
+                        Pair(EMPTY_PAYLOAD, res)
+                    }
+                }
 
-        when(res?.status) {
-            // if the unwrap() operation was successful, return the unencrypted payload
-            SSLEngineResult.Status.OK -> {
-                return if(appBuffer.position() > 0) {
-                    appBuffer.flip()
-                    val out = ByteArray(appBuffer.limit())
-                    appBuffer.get(out)
-                    Pair(out, res)
-                } else {
-                    Pair(ByteArray(0), res)
+                // records are only unwrapped once they are complete, so the record must be malformed
+                SSLEngineResult.Status.BUFFER_UNDERFLOW -> {
+                    Timber.e("tls$id handleUnwrap ($direction) buffer underflow for a complete record of $recordSize bytes, closing connection")
+                    closeConnection()
+                    return Pair(null, res)
                 }
-            }
 
-            // if the unwrap() operation requires more input data, increase the capacity of the netBuffer and retry
-            SSLEngineResult.Status.BUFFER_UNDERFLOW -> {
-                Timber.w("tls$id handleUnwrap ($direction) buffer underflow, increasing netBuffer capacity and retrying")
-                if(isOutbound) {
-                    clientNetBufferUnwrap = ByteBuffer.allocate(clientNetBufferUnwrap.capacity() + record.size)
-                } else {
-                    serverNetBufferUnwrap = ByteBuffer.allocate(serverNetBufferUnwrap.capacity() + record.size)
+                // the session's application buffer size should always fit a record, retry with a larger one-off buffer if it doesn't
+                SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+                    Timber.w("tls$id handleUnwrap ($direction) buffer overflow with appBuffer of ${appBuffer.capacity()} bytes, retrying")
+                    record.position(recordStart)
+                    appBuffer = ByteBuffer.allocate(appBuffer.capacity() * 2)
                 }
-                return handleUnwrap(record, isOutbound, resizeFactor)
-            }
 
-            // if the unwrap() operation generates more data than the appBuffer can hold, increase the capacity of the appBuffer and retry
-            SSLEngineResult.Status.BUFFER_OVERFLOW -> {
-                Timber.w("tls$id handleUnwrap ($direction) buffer overflow, increasing appBuffer capacity and retrying")
-                if(isOutbound) {
-                    clientAppBufferUnwrap = ByteBuffer.allocate(clientAppBufferUnwrap.capacity() + record.size)
-                } else {
-                    serverAppBufferUnwrap = ByteBuffer.allocate(serverAppBufferUnwrap.capacity() + record.size)
+                // if the unwrap() operation results in a closed session, close the connection
+                SSLEngineResult.Status.CLOSED -> {
+                    Timber.d("tls$id handleUnwrap ($direction) resulted in closed session, closing connection")
+                    closeConnection()
+                    return Pair(null, res)
                 }
-                return handleUnwrap(record, isOutbound, resizeFactor)
-            }
 
-            // if the unwrap() operation results in a closed session, close the connection
-            SSLEngineResult.Status.CLOSED -> {
-                Timber.d("tls$id handleUnwrap ($direction) resulted in closed session, closing connection")
-                closeConnection()
-                return Pair(null, res)
+                // if either the result or the status is null, something went wrong, close the connection
+                null -> {
+                    Timber.e("tls$id handleUnwrap ($direction) unexpected res.status: NULL")
+                    closeConnection()
+                    return Pair(null, res)
+                }
             }
+        }
+    }
 
-            // if either the result or the status is null, something went wrong, close the connection
-            null -> {
-                Timber.e("tls$id handleUnwrap ($direction) unexpected res.status: NULL")
-                closeConnection()
-                return Pair(null, res)
-            }
+    /**
+     * Borrows a buffer of at least the supplied size from the [ComponentManager.tlsBufferPool] for the duration of the supplied block.
+     * Sizes beyond the pool's largest buffers are served by a one-off allocation.
+     */
+    private inline fun <T> withTlsBuffer(size: Int, block: (ByteBuffer) -> T): T {
+        val pool = componentManager.tlsBufferPool
+        return if(size <= pool.maxBufferSize) {
+            pool.use(size, block)
+        } else {
+            block(ByteBuffer.allocate(size))
         }
     }
 
@@ -740,15 +851,15 @@ class TlsConnection(
     /**
      * Processes a TLS record by parsing its type and passing it to the appropriate handler (inbound or outbound).
      *
-     * @param record The TLS record to be processed.
+     * @param record The TLS record to be processed. Only valid for the duration of the call.
      * @param isOutbound Whether the record is outbound (true) or inbound (false).
      *
      * @see [parseRecordType]
      * @see [handleOutboundRecord]
      * @see [handleInboundRecord]
      */
-    private fun processRecord(record: ByteArray, isOutbound: Boolean) {
-        if(record.isNotEmpty()) {
+    private fun processRecord(record: ByteBuffer, isOutbound: Boolean) {
+        if(record.hasRemaining()) {
 
             val recordType = parseRecordType(record)
 
@@ -761,154 +872,59 @@ class TlsConnection(
     }
 
     /**
-     * Attaches previously encountered snippets of TLS records by appending them to the beginning of the current transport-layer payload.
-     *
-     * @param rawPayload The raw transport-layer payload to be processed.
-     * @param isOutbound Whether the payload is outbound (true) or inbound (false).
-     *
-     * @return The raw transport-layer payload with any attached snippets of TLS records appended to the beginning.
+     * Forwards raw outbound bytes of a passed-through connection to the transport layer, only counting them.
      */
-    private fun checkForSnippets(rawPayload: ByteArray, isOutbound: Boolean): ByteArray {
-        return if(isOutbound && outboundSnippet != null) {
-            val combined = outboundSnippet!! + rawPayload
-            outboundSnippet = null
-            combined
-        } else if(!isOutbound && inboundSnippet != null) {
-            val combined = inboundSnippet!! + rawPayload
-            inboundSnippet = null
-            combined
-        } else {
-            rawPayload
-        }
+    private fun spliceOutbound(bytes: ByteBuffer) {
+        splicedOutboundBytes += bytes.remaining()
+        transportLayer.wrapOutbound(bytes)
     }
 
     /**
-     * Extracts TLS records from raw transport-layer payloads. Fragmented records (i.e. records that span multiple transport-layer payloads) are cached and reassembled before being processed.
-     * If multiple records are contained in a single payload, they are split off and processed separately.
+     * Forwards raw inbound bytes of a passed-through connection to the transport layer, only counting them.
+     */
+    private fun spliceInbound(bytes: ByteBuffer) {
+        splicedInboundBytes += bytes.remaining()
+        transportLayer.wrapInbound(bytes)
+    }
+
+    /**
+     * Extracts TLS records from raw transport-layer payloads. Records are parsed in place by the direction's [TlsRecordBuffer],
+     * which only buffers the beginning of a record that spans multiple transport-layer payloads until the rest of it arrives.
      *
      * @param rawPayload The raw transport-layer payload to be processed.
      * @param isOutbound Whether the payload is outbound (true) or inbound (false).
      */
     private fun prepareRecords(rawPayload: ByteArray, isOutbound: Boolean) {
         val direction = if(isOutbound) "outbound" else "inbound"
+        val records = if(isOutbound) outboundRecords else inboundRecords
 
-        val payload = checkForSnippets(rawPayload, isOutbound)
-        val recordType = payload[0].toInt()
-        var remainingBytes = if(isOutbound) remainingOutboundBytes else remainingInboundBytes
-        val cache = if(isOutbound) outboundCache else inboundCache
-
-        if(remainingBytes > 0) {
-            // the payload is added to the overflow
-            if(log) Timber.d("tls$id prepareRecords ($direction) Adding payload (${payload.size} bytes) to cache because $remainingBytes bytes are still missing")
+        if(log) Timber.d("tls$id prepareRecords ($direction) Handling payload of ${rawPayload.size} bytes (${records.pendingBytes} bytes pending) in state $state")
 
-            var attachedPayloadStart = 0
-            // check whether there are additional records appended to the current payload and split them off (we'll handle them separately below)
-            val currentPayload = if(remainingBytes < payload.size) {
-                attachedPayloadStart = remainingBytes
-                payload.slice(0 until attachedPayloadStart).toByteArray()
-            } else {
-                payload
+        val valid = records.feed(rawPayload) { record ->
+            // records following the one that switched the connection to passthrough are forwarded as they are
+            when {
+                !splicing -> processRecord(record, isOutbound)
+                isOutbound -> spliceOutbound(record)
+                else -> spliceInbound(record)
             }
+        }
 
-            // add the payload to the cache
-            cache.add(currentPayload)
-            remainingBytes -= currentPayload.size
-
-            if(isOutbound)
-                remainingOutboundBytes = remainingBytes
-            else
-                remainingInboundBytes = remainingBytes
-
-            // if there are still overflow bytes remaining, do nothing and await the next payload
-            if(remainingBytes > 0) {
-                return
-            }
-
-            // otherwise combine the cached parts into one record and clear the cache
-            if(log) Timber.d("tls$id prepareRecords ($direction) Assembling cached payload")
-            val combinedRecord = cache.reduce { acc, x -> acc + x }
-            cache.clear()
-
-            // process the reassembled record
-            processRecord(combinedRecord, isOutbound)
-
-            // if there are additional payloads attached, process them as well
-            if(payload.size > currentPayload.size) {
-                if(log) Timber.d("tls$id prepareRecords ($direction) Handling attached payloads")
-                val attachedPayload = payload.slice(attachedPayloadStart until payload.size).toByteArray()
-                prepareRecords(attachedPayload, isOutbound)
-            }
-
-        } else {
-            if(log) Timber.w("tls$id prepareRecords ($direction) Handling fresh payload of ${payload.size} bytes in state $state")
-
-            // count the number of records we're processing after the handshake
-            if(state == ConnectionState.CLIENT_ESTABLISHED) {
-                if(isOutbound) {
-                    if(outboundCount++ > 0) {
-                        if(log) Timber.w("tls$id prepareRecords(outbound) this is the ${outboundCount}nd fresh record of the session")
-                        if(log) Timber.w("tls$id cache size: ${outboundCache.size}, remaining bytes: $remainingOutboundBytes, snippet: ${outboundSnippet?.size ?: 0} bytes, clientAppBufferWrap: ${clientAppBufferWrap.position()} bytes, clientNetBufferWrap: ${clientNetBufferWrap.position()} bytes, clientAppBufferUnwrap: ${clientAppBufferUnwrap.position()} bytes, clientNetBufferUnwrap: ${clientNetBufferUnwrap.position()} bytes")
-                    }
-                } else {
-                    if(inboundCount++ > 0) {
-                        if(log) Timber.w("tls$id prepareRecords(inbound) this is the ${inboundCount}nd fresh record of the session")
-                        if(log) Timber.w("tls$id cache size: ${inboundCache.size}, remaining bytes: $remainingInboundBytes, snippet: ${inboundSnippet?.size ?: 0} bytes, serverAppBufferWrap: ${serverAppBufferWrap.position()} bytes, serverNetBufferWrap: ${serverNetBufferWrap.position()} bytes, serverAppBufferUnwrap: ${serverAppBufferUnwrap.position()} bytes, serverNetBufferUnwrap: ${serverNetBufferUnwrap.position()} bytes")
-                    }
-                }
-            }
-
-            // make sure that we have a valid TLS record...
-            if(recordType !in 0x14..0x17) {
-                Timber.e("tls$id prepareRecords ($direction) Invalid TLS record type: ${ByteUtils.bytesToHex(recordType.toByte())}")
-                Timber.e("tls$id ${ByteUtils.bytesToHex(payload)}")
-                return
-            }
-
-            // ... which must at least comprise a TLS header with 5 bytes
-            if(payload.size < 5) {
-                if(log) Timber.d("tls$id Got a tiny snippet of a TLS record (${payload.size} bytes), stashing it and awaiting the rest")
-                if(isOutbound) {
-                    outboundSnippet = payload
-                } else {
-                    inboundSnippet = payload
-                }
-                return
-            }
-
-            // the first byte of the record is the record type, the next two bytes are the TLS version, and the next two bytes are the stated record length
-            val statedLength = payload[3].toUByte().toInt() shl 8 or payload[4].toUByte().toInt()
-            // the actual record length is the payload length minus the 5-byte header
-            val actualLength = payload.size - 5
-
-            // if the stated record length is larger than the payload length, we go into overflow mode and cache the payload
-            if(statedLength > actualLength) {
-                if(log) Timber.d("tls$id prepareRecords ($direction) Payload is shorter than stated record length ($actualLength < $statedLength), caching it for later")
-                cache.add(payload)
-                remainingBytes = statedLength - actualLength
-
-                if(isOutbound) {
-                    remainingOutboundBytes = remainingBytes
-                } else {
-                    remainingInboundBytes = remainingBytes
-                }
-
-            } else if(statedLength < actualLength) {
-                if(log) Timber.d("tls$id prepareRecords ($direction) Payload is longer than stated record length ($actualLength > $statedLength), splitting it")
-                // if the stated record length is smaller than the payload length, we split the payload into the current record and the attached payload...
-                val currentRecord = payload.slice(0 until statedLength + 5).toByteArray()
-                val attachedPayload = payload.slice(statedLength + 5 until payload.size).toByteArray()
-
-                // ...process the extracted record...
-                processRecord(currentRecord, isOutbound)
+        flushRecordBuffersIfSplicing()
 
-                // ...and when that is done, handle the remaining attached payload
-                prepareRecords(attachedPayload, isOutbound)
+        if(!valid) {
+            Timber.e("tls$id prepareRecords ($direction) Invalid TLS record header, discarding buffered data")
+            Timber.e("tls$id ${ByteUtils.bytesToHex(rawPayload)}")
+        }
+    }
 
-            } else {
-                // if the stated record length matches the payload length, we can just handle the record as-is
-                if(log) Timber.d("tls$id prepareRecords ($direction) Payload matches stated record length ($actualLength = $statedLength), processing it")
-                processRecord(payload, isOutbound)
-            }
+    /**
+     * Forwards the beginnings of incomplete records held in the record buffers once the connection is spliced, since
+     * payloads bypass the buffers from then on.
+     */
+    private fun flushRecordBuffersIfSplicing() {
+        if(splicing) {
+            outboundRecords.drain { spliceOutbound(it) }
+            inboundRecords.drain { spliceInbound(it) }
         }
     }
 
@@ -919,15 +935,16 @@ class TlsConnection(
      *
      * @return The [RecordType] of the record.
      */
-    private fun parseRecordType(payload: ByteArray): RecordType {
-        return when (payload[0].toInt()) {
+    private fun parseRecordType(payload: ByteBuffer): RecordType {
+        val start = payload.position()
+        return when (payload.get(start).toInt()) {
             0x14 -> RecordType.CHANGE_CIPHER_SPEC
             0x15 -> RecordType.ALERT
             0x16 -> {
-                if(payload.size <= 5) {
+                if(payload.remaining() <= 5) {
                     RecordType.HANDSHAKE_INVALID
                 } else {
-                    when (payload[5].toInt()) {
+                    when (payload.get(start + 5).toInt()) {
                         0x01 -> RecordType.HANDSHAKE_CLIENT_HELLO
                         0x02 -> RecordType.HANDSHAKE_SERVER_HELLO
                         0x0B -> RecordType.HANDSHAKE_SERVER_CERT
@@ -939,7 +956,7 @@ class TlsConnection(
                 }
             }
             0x17 -> RecordType.APP_DATA
-            else -> if(payload.size < 5) {
+            else -> if(payload.remaining() < 5) {
                 Timber.e("tls$id Invalid TLS record (too short)")
                 RecordType.INVALID
             } else {
@@ -989,6 +1006,72 @@ class TlsConnection(
         return null
     }
 
+    /**
+     * Extracts the protocols offered in the Application-Layer Protocol Negotiation (ALPN) extension of a TLS Client Hello message.
+     *
+     * @param clientHello The TLS Client Hello message to extract the protocols from.
+     *
+     * @return The offered protocols, or an empty list if the message has no ALPN extension or could not be parsed.
+     */
+    private fun findApplicationProtocols(clientHello: ByteArray): List<String> {
+        val msg = clientHello.map { x -> x.toUByte().toInt() }.toIntArray()
+        return try {
+            var i = 43
+
+            val sessionLength = msg[i++]
+            i += sessionLength
+
+            val cipherLength = msg[i++] shl 8 or msg[i++]
+            i += cipherLength
+
+            val compressionLength = msg[i++]
+            i += compressionLength
+
+            val extensionsEnd = i + 2 + (msg[i++] shl 8 or msg[i++])
+
+            while(i < extensionsEnd) {
+                val extensionValue = msg[i++] shl 8 or msg[i++]
+                val extensionLength = msg[i++] shl 8 or msg[i++]
+                if(extensionValue == 16) {
+                    val protocols = mutableListOf<String>()
+                    val listEnd = i + 2 + (msg[i++] shl 8 or msg[i++])
+                    while(i < listEnd) {
+                        val protocolLength = msg[i++]
+                        protocols.add(String(clientHello, i, protocolLength, Charsets.US_ASCII))
+                        i += protocolLength
+                    }
+                    return protocols
+                }
+                i += extensionLength
+            }
+            emptyList()
+        } catch (e: IndexOutOfBoundsException) {
+            Timber.w("tls$id Malformed ALPN extension")
+            emptyList()
+        }
+    }
+
+    /**
+     * Sets the application protocols an SSLEngine offers (in client mode) or selects from (in server mode) via ALPN.
+     * Requires Android 10, on older versions no protocol is negotiated and clients fall back to HTTP/1.1.
+     */
+    private fun setApplicationProtocols(engine: SSLEngine, protocols: List<String>) {
+        if(protocols.isEmpty() || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return
+        }
+        engine.sslParameters = engine.sslParameters.apply { applicationProtocols = protocols.toTypedArray() }
+    }
+
+    /**
+     * @return The application protocol negotiated with the remote host, or null if none was negotiated.
+     */
+    private fun negotiatedApplicationProtocol(): String? {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return null
+        }
+        return serverSSLEngine?.applicationProtocol?.takeIf { it.isNotEmpty() }
+    }
+
     private fun switchState(newState: ConnectionState) {
         state = newState
     }
@@ -1050,4 +1133,18 @@ class TlsConnection(
         INDETERMINATE,
         INVALID
     }
-}
\ No newline at end of file
+
+    companion object {
+        private val EMPTY_PAYLOAD = ByteArray(0)
+
+        /**
+         * Time after the client-facing handshake within which a client closing the connection without sending any data is considered a rejection.
+         */
+        private const val PINNING_CHECK_MILLIS = 2_000L
+
+        /**
+         * Application protocols that are negotiated on intercepted connections, since the application layer can parse them.
+         */
+        private val SUPPORTED_APPLICATION_PROTOCOLS = setOf("h2", "http/1.1")
+    }
+}
@@ -0,0 +1,118 @@
+package de.tomcory.heimdall.core.vpn.connection.encryptionLayer
+
+import java.nio.ByteBuffer
+
+/**
+ * Splits one direction of a TLS byte stream into records.
+ *
+ * Record headers are parsed in place and every complete record is handed to the consumer as a [ByteBuffer] view of the
+ * bytes it arrived in, so records are never copied for reassembly. Only the bytes of an incomplete record at the end of
+ * a payload are kept in a growable buffer until the rest of the record arrives; records completed from that buffer are
+ * again handed out as views of it.
+ *
+ * The views passed to the consumer are only valid until the consumer returns.
+ */
+class TlsRecordBuffer {
+
+    /** Bytes of an incomplete record, always kept in write mode. */
+    private var pending: ByteBuffer = ByteBuffer.allocate(0)
+
+    /**
+     * Number of bytes waiting for the rest of their record.
+     */
+    val pendingBytes: Int
+        get() = pending.position()
+
+    /**
+     * Appends a transport-layer payload to the stream and passes each record completed by it to the supplied consumer, in order.
+     *
+     * @return False if the stream doesn't contain a valid TLS record header where one is expected. The buffered bytes are discarded in that case.
+     */
+    fun feed(payload: ByteArray, onRecord: (record: ByteBuffer) -> Unit): Boolean {
+        // without pending bytes the records can be read straight from the payload
+        val source = if (pending.position() == 0) {
+            ByteBuffer.wrap(payload)
+        } else {
+            ensureCapacity(payload.size)
+            pending.put(payload)
+            pending.flip()
+            pending
+        }
+
+        while (source.remaining() >= HEADER_LENGTH) {
+            val start = source.position()
+            val type = source.get(start).toInt()
+            if (type !in FIRST_RECORD_TYPE..LAST_RECORD_TYPE) {
+                pending.clear()
+                return false
+            }
+            val recordLength = HEADER_LENGTH + ((source.get(start + 3).toInt() and 0xFF) shl 8 or (source.get(start + 4).toInt() and 0xFF))
+            if (source.remaining() < recordLength) {
+                break
+            }
+
+            val record = source.duplicate()
+            record.limit(start + recordLength)
+            source.position(start + recordLength)
+            onRecord(record)
+        }
+
+        // keep the beginning of the next record until the rest of it arrives
+        if (source === pending) {
+            pending.compact()
+        } else if (source.hasRemaining()) {
+            ensureCapacity(source.remaining())
+            pending.put(source)
+        }
+        return true
+    }
+
+    /**
+     * Passes the bytes of the incomplete record (if any) to the supplied consumer and discards them afterwards.
+     */
+    fun drain(onBytes: (bytes: ByteBuffer) -> Unit) {
+        if (pending.position() > 0) {
+            pending.flip()
+            onBytes(pending)
+        }
+        clear()
+    }
+
+    /**
+     * Discards all buffered bytes.
+     */
+    fun clear() {
+        pending = ByteBuffer.allocate(0)
+    }
+
+    private fun ensureCapacity(additionalBytes: Int) {
+        if (pending.remaining() >= additionalBytes) {
+            return
+        }
+        val required = pending.position() + additionalBytes
+        val grown = ByteBuffer.allocate(maxOf(required, pending.capacity() * 2, INITIAL_CAPACITY))
+        pending.flip()
+        grown.put(pending)
+        pending = grown
+    }
+
+    companion object {
+        /** Length of a TLS record header: type (1 byte), version (2 bytes) and length (2 bytes). */
+        const val HEADER_LENGTH = 5
+
+        private const val FIRST_RECORD_TYPE = 0x14
+        private const val LAST_RECORD_TYPE = 0x17
+
+        /** Large enough for a full TLS record including its header and expansion. */
+        private const val INITIAL_CAPACITY = 16384 + 2048 + HEADER_LENGTH
+    }
+}
+
+/**
+ * Copies the remaining bytes of the buffer into a new array without changing the buffer's position.
+ */
+internal fun ByteBuffer.copyRemaining(): ByteArray {
+    val bytes = ByteArray(remaining())
+    duplicate().get(bytes)
+    return bytes
+}
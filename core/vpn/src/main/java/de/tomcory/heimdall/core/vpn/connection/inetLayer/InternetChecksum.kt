@@ -0,0 +1,73 @@
+package de.tomcory.heimdall.core.vpn.connection.inetLayer
+
+import java.nio.ByteBuffer
+
+/**
+ * Helpers to compute and incrementally update the 16-bit one's complement checksum used by IPv4, TCP and UDP (RFC 1071).
+ *
+ * Sums are accumulated in an [Int] without folding and only folded into 16 bits by [finish].
+ * This is safe for anything up to 64 KiB of summed data.
+ */
+object InternetChecksum {
+
+    /**
+     * Adds the 16-bit words of the supplied array range to the supplied sum. If the range has an odd length, the last byte is padded with zero.
+     */
+    fun sum(data: ByteArray, offset: Int, length: Int, initial: Int = 0): Int {
+        var sum = initial
+        var i = offset
+        val end = offset + length - 1
+        while(i < end) {
+            sum += ((data[i].toInt() and 0xFF) shl 8) or (data[i + 1].toInt() and 0xFF)
+            i += 2
+        }
+        if(i == end) {
+            sum += (data[i].toInt() and 0xFF) shl 8
+        }
+        return sum
+    }
+
+    /**
+     * Adds the 16-bit words of the supplied buffer range to the supplied sum without changing the buffer's position.
+     * If the range has an odd length, the last byte is padded with zero.
+     */
+    fun sum(data: ByteBuffer, offset: Int, length: Int, initial: Int = 0): Int {
+        var sum = initial
+        var i = offset
+        val end = offset + length - 1
+        while(i < end) {
+            sum += data.getShort(i).toInt() and 0xFFFF
+            i += 2
+        }
+        if(i == end) {
+            sum += (data.get(i).toInt() and 0xFF) shl 8
+        }
+        return sum
+    }
+
+    /**
+     * Adds both 16-bit halves of the supplied 32-bit value to the supplied sum.
+     */
+    fun sumInt(value: Int, initial: Int = 0): Int {
+        return initial + (value ushr 16) + (value and 0xFFFF)
+    }
+
+    /**
+     * Folds the supplied sum into 16 bits and returns its one's complement, i.e. the value that goes into the checksum field.
+     */
+    fun finish(sum: Int): Int {
+        var folded = sum
+        while(folded ushr 16 != 0) {
+            folded = (folded and 0xFFFF) + (folded ushr 16)
+        }
+        return folded.inv() and 0xFFFF
+    }
+
+    /**
+     * Updates a checksum after a single 16-bit word of the checksummed data changed from [oldWord] to [newWord],
+     * without touching the rest of the data (RFC 1624, eqn. 3: HC' = ~(~HC + ~m + m')).
+     */
+    fun update(checksum: Int, oldWord: Int, newWord: Int): Int {
+        return finish((checksum.inv() and 0xFFFF) + (oldWord.inv() and 0xFFFF) + (newWord and 0xFFFF))
+    }
+}
@@ -7,6 +7,7 @@ import org.pcap4j.packet.IpV6Packet
 import org.pcap4j.packet.Packet
 import org.pcap4j.packet.namednumber.IpNumber
 import java.net.InetAddress
+import java.nio.ByteBuffer
 
 /**
  * Base class for all internet-layer connection holders.
@@ -28,18 +29,41 @@ abstract class IpPacketBuilder protected constructor(
      */
     abstract fun buildPacket(payloadBuilder: Packet.Builder?) : IpPacket
 
+    /**
+     * Length of the IP header written by [writeHeader] in bytes.
+     */
+    abstract val headerLength: Int
+
+    /**
+     * Writes the IP header of a packet carrying a transport-layer segment of the supplied length to the buffer's current position.
+     * The header is copied from a pre-filled template, so only the length-dependent fields need to be patched.
+     */
+    abstract fun writeHeader(buffer: ByteBuffer, payloadLength: Int)
+
+    /**
+     * Unfolded checksum of the pseudo-header fields that never change for this connection (both addresses and the protocol number).
+     * The transport-layer length still needs to be added for each packet.
+     */
+    val pseudoHeaderSum: Int by lazy {
+        val remote = remoteAddress.address
+        val local = localAddress.address
+        var sum = InternetChecksum.sum(remote, 0, remote.size)
+        sum = InternetChecksum.sum(local, 0, local.size, sum)
+        sum + (transportProtocol.value().toInt() and 0xFF)
+    }
+
     companion object {
         /**
          * Attempts to retrieve a matching [IpPacketBuilder] from the [ConnectionCache].
          * If no matching connection is found, a new [IpPacketBuilder] instance based on the IP version of the supplied packet is created.
          * The created instance is written to the [ConnectionCache] before being returned.
          *
-         * @param initialPacket [IpPacket] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+         * @param initialPacket [IpPacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
          */
-        fun getInstance(initialPacket: IpPacket) : IpPacketBuilder {
-            val inetLayerConnection = when(initialPacket) {
-                is IpV4Packet -> IpV4PacketBuilder(initialPacket)
-                is IpV6Packet -> IpV6PacketBuilder(initialPacket)
+        fun getInstance(initialPacket: IpPacketView) : IpPacketBuilder {
+            val inetLayerConnection = when(initialPacket.ipVersion) {
+                4 -> IpV4PacketBuilder(initialPacket)
+                6 -> IpV6PacketBuilder(initialPacket)
                 else -> throw IllegalArgumentException("Invalid IP version")
             }
             return inetLayerConnection
@@ -0,0 +1,267 @@
+package de.tomcory.heimdall.core.vpn.connection.inetLayer
+
+import org.pcap4j.packet.IllegalRawDataException
+import org.pcap4j.packet.IpPacket
+import org.pcap4j.packet.IpV4Packet
+import org.pcap4j.packet.IpV6Packet
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+/**
+ * Flyweight view on a raw IPv4 or IPv6 packet carrying a TCP or UDP segment.
+ * All header fields are read straight from the underlying [ByteBuffer] on access, so a single instance can be reused for every packet by calling [wrap].
+ *
+ * The view is only valid as long as the wrapped buffer isn't modified or recycled.
+ * Methods that allocate (e.g. [srcAddress], [copyPayload] and [toIpPacket]) are meant for connection setup, payload hand-off and debugging, not for per-packet bookkeeping.
+ */
+class IpPacketView {
+
+    private var buffer: ByteBuffer = EMPTY_BUFFER
+
+    /**
+     * IP version of the wrapped packet (4 or 6).
+     */
+    var ipVersion = 0
+        private set
+
+    /**
+     * IANA protocol number of the wrapped packet's transport-layer segment (6 for TCP, 17 for UDP).
+     */
+    var transportProtocol = 0
+        private set
+
+    /**
+     * Total length of the wrapped packet in bytes.
+     */
+    var packetLength = 0
+        private set
+
+    /**
+     * Offset of the transport-layer header from the beginning of the packet.
+     */
+    var transportOffset = 0
+        private set
+
+    /**
+     * Offset of the transport-layer payload from the beginning of the packet.
+     */
+    var payloadOffset = 0
+        private set
+
+    /**
+     * Length of the transport-layer payload in bytes.
+     */
+    val payloadLength: Int
+        get() = packetLength - payloadOffset
+
+    /**
+     * Points the view to the packet contained in the supplied buffer, starting at index 0 and ending at the buffer's limit.
+     *
+     * @return false if the packet is not a well-formed TCP or UDP packet, in which case the view must not be used.
+     */
+    fun wrap(packet: ByteBuffer): Boolean {
+        buffer = packet
+        packetLength = packet.limit()
+        if(packetLength < IPV4_HEADER_LENGTH) {
+            return false
+        }
+
+        ipVersion = (packet.get(0).toInt() and 0xFF) shr 4
+        val ipHeaderLength = when(ipVersion) {
+            4 -> {
+                transportProtocol = packet.get(9).toInt() and 0xFF
+                (packet.get(0).toInt() and 0x0F) * 4
+            }
+            6 -> {
+                transportProtocol = packet.get(6).toInt() and 0xFF
+                IPV6_HEADER_LENGTH
+            }
+            else -> return false
+        }
+
+        transportOffset = ipHeaderLength
+        val transportHeaderLength = when(transportProtocol) {
+            TCP -> {
+                if(packetLength < transportOffset + TCP_HEADER_LENGTH) {
+                    return false
+                }
+                ((packet.get(transportOffset + 12).toInt() and 0xFF) shr 4) * 4
+            }
+            UDP -> UDP_HEADER_LENGTH
+            else -> return false
+        }
+
+        payloadOffset = transportOffset + transportHeaderLength
+        return payloadOffset <= packetLength
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// IP header fields ////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Offset of the source address from the beginning of the packet.
+     */
+    val srcAddressOffset: Int
+        get() = if(ipVersion == 4) 12 else 8
+
+    /**
+     * Offset of the destination address from the beginning of the packet.
+     */
+    val dstAddressOffset: Int
+        get() = if(ipVersion == 4) 16 else 24
+
+    /**
+     * Length of the packet's addresses in bytes (4 for IPv4, 16 for IPv6).
+     */
+    val addressLength: Int
+        get() = if(ipVersion == 4) 4 else 16
+
+    /**
+     * IPv4 type of service or IPv6 traffic class.
+     */
+    val trafficClass: Int
+        get() = if(ipVersion == 4) {
+            buffer.get(1).toInt() and 0xFF
+        } else {
+            (buffer.getShort(0).toInt() shr 4) and 0xFF
+        }
+
+    /**
+     * IPv6 flow label (always 0 for IPv4).
+     */
+    val flowLabel: Int
+        get() = if(ipVersion == 4) 0 else buffer.getInt(0) and 0xFFFFF
+
+    /**
+     * Reads the 32-bit word at the supplied index of the source address (index 0 for IPv4, 0 to 3 for IPv6).
+     */
+    fun srcAddressWord(index: Int): Int = buffer.getInt(srcAddressOffset + index * 4)
+
+    /**
+     * Reads the 32-bit word at the supplied index of the destination address (index 0 for IPv4, 0 to 3 for IPv6).
+     */
+    fun dstAddressWord(index: Int): Int = buffer.getInt(dstAddressOffset + index * 4)
+
+    /**
+     * Creates an [InetAddress] from the packet's source address.
+     */
+    fun srcAddress(): InetAddress = InetAddress.getByAddress(copyBytes(srcAddressOffset, addressLength))
+
+    /**
+     * Creates an [InetAddress] from the packet's destination address.
+     */
+    fun dstAddress(): InetAddress = InetAddress.getByAddress(copyBytes(dstAddressOffset, addressLength))
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Transport-layer header fields ///////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    val srcPort: Int
+        get() = buffer.getShort(transportOffset).toInt() and 0xFFFF
+
+    val dstPort: Int
+        get() = buffer.getShort(transportOffset + 2).toInt() and 0xFFFF
+
+    /**
+     * TCP sequence number as an unsigned value.
+     */
+    val sequenceNumber: Long
+        get() = buffer.getInt(transportOffset + 4).toLong() and 0xFFFFFFFFL
+
+    /**
+     * TCP acknowledgment number as an unsigned value.
+     */
+    val acknowledgmentNumber: Long
+        get() = buffer.getInt(transportOffset + 8).toLong() and 0xFFFFFFFFL
+
+    /**
+     * TCP control bits (FIN = 0x01, SYN = 0x02, RST = 0x04, PSH = 0x08, ACK = 0x10, URG = 0x20).
+     */
+    val tcpFlags: Int
+        get() = buffer.get(transportOffset + 13).toInt() and 0x3F
+
+    val fin: Boolean
+        get() = tcpFlags and FLAG_FIN != 0
+
+    val syn: Boolean
+        get() = tcpFlags and FLAG_SYN != 0
+
+    val rst: Boolean
+        get() = tcpFlags and FLAG_RST != 0
+
+    val psh: Boolean
+        get() = tcpFlags and FLAG_PSH != 0
+
+    val ack: Boolean
+        get() = tcpFlags and FLAG_ACK != 0
+
+    /**
+     * TCP window size (without scaling).
+     */
+    val window: Int
+        get() = buffer.getShort(transportOffset + 14).toInt() and 0xFFFF
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Payload access //////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Copies the transport-layer payload into a new array.
+     */
+    fun copyPayload(): ByteArray = copyBytes(payloadOffset, payloadLength)
+
+    /**
+     * Copies the transport-layer payload into the supplied array, starting at the supplied offset.
+     *
+     * @return The number of bytes copied.
+     */
+    fun copyPayload(dst: ByteArray, offset: Int = 0): Int {
+        val count = minOf(payloadLength, dst.size - offset)
+        val position = buffer.position()
+        buffer.position(payloadOffset)
+        buffer.get(dst, offset, count)
+        buffer.position(position)
+        return count
+    }
+
+    /**
+     * Fully parses the wrapped packet into a pcap4j [IpPacket]. This is expensive and should only be used for debugging, exporting and rare edge cases.
+     */
+    @Throws(IllegalRawDataException::class)
+    fun toIpPacket(): IpPacket {
+        val rawData = copyBytes(0, packetLength)
+        return if(ipVersion == 4) {
+            IpV4Packet.newPacket(rawData, 0, rawData.size)
+        } else {
+            IpV6Packet.newPacket(rawData, 0, rawData.size)
+        }
+    }
+
+    private fun copyBytes(offset: Int, length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        val position = buffer.position()
+        buffer.position(offset)
+        buffer.get(bytes)
+        buffer.position(position)
+        return bytes
+    }
+
+    companion object {
+        const val TCP = 6
+        const val UDP = 17
+
+        const val FLAG_FIN = 0x01
+        const val FLAG_SYN = 0x02
+        const val FLAG_RST = 0x04
+        const val FLAG_PSH = 0x08
+        const val FLAG_ACK = 0x10
+
+        private const val IPV4_HEADER_LENGTH = 20
+        private const val IPV6_HEADER_LENGTH = 40
+        private const val TCP_HEADER_LENGTH = 20
+        private const val UDP_HEADER_LENGTH = 8
+
+        private val EMPTY_BUFFER = ByteBuffer.allocate(0)
+    }
+}
@@ -5,34 +5,63 @@ import org.pcap4j.packet.IpV4Packet
 import org.pcap4j.packet.IpV4Packet.IpV4Tos
 import org.pcap4j.packet.Packet
 import org.pcap4j.packet.factory.PacketFactories
+import org.pcap4j.packet.namednumber.IpNumber
 import org.pcap4j.packet.namednumber.IpVersion
 import org.pcap4j.packet.namednumber.NotApplicable
 import timber.log.Timber
 import java.net.Inet4Address
+import java.nio.ByteBuffer
 
 /**
  * Represents a connection based on IPv4. This class is used to build new IPv4 packets and to store the necessary metadata for the connection
  *
- * @param initialPacket [IpV4Packet] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+ * @param initialPacket [IpPacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
  */
 class IpV4PacketBuilder(
-    initialPacket: IpV4Packet
+    initialPacket: IpPacketView
 ) : IpPacketBuilder(
-    localAddress = initialPacket.header.srcAddr,
-    remoteAddress = initialPacket.header.dstAddr,
+    localAddress = initialPacket.srcAddress(),
+    remoteAddress = initialPacket.dstAddress(),
     ipVersion = 4,
-    transportProtocol = initialPacket.header.protocol
+    transportProtocol = IpNumber.getInstance(initialPacket.transportProtocol.toByte())
 ) {
 
     /**
      * IPv4 type of service used by this connection.
      */
-    private val tos: IpV4Tos? = initialPacket.header.tos
+    private val tos: IpV4Tos? = PacketFactories.getFactory(IpV4Tos::class.java, NotApplicable::class.java).newInstance(byteArrayOf(initialPacket.trafficClass.toByte()), 0, 1)
     /**
      * IPv4 identification header value used by [buildPacket] to construct packets for this connection.
      */
     private var identification: Short = 0
 
+    override val headerLength = HEADER_LENGTH
+
+    /**
+     * Pre-filled header used by [writeHeader]. The total length, identification and checksum fields are left at zero.
+     */
+    private val headerTemplate: ByteArray by lazy {
+        ByteBuffer.allocate(HEADER_LENGTH)
+            .put(0x45.toByte()) // version 4, IHL 5
+            .put(tos?.value() ?: 0.toByte())
+            .putShort(0) // total length
+            .putShort(0) // identification
+            .putShort(0) // flags and fragment offset
+            .put(64.toByte()) // TTL
+            .put(transportProtocol.value())
+            .putShort(0) // header checksum
+            .put(remoteAddress.address)
+            .put(localAddress.address)
+            .array()
+    }
+
+    /**
+     * Header checksum of the [headerTemplate], which is updated incrementally for the actual length and identification values.
+     */
+    private val headerTemplateChecksum: Int by lazy {
+        InternetChecksum.finish(InternetChecksum.sum(headerTemplate, 0, HEADER_LENGTH))
+    }
+
     /**
      * Builds a new [IpV4Packet] with the specified payload.
      *
@@ -66,7 +95,23 @@ class IpV4PacketBuilder(
             .build()
     }
 
+    override fun writeHeader(buffer: ByteBuffer, payloadLength: Int) {
+        val start = buffer.position()
+        val totalLength = HEADER_LENGTH + payloadLength
+        val id = identification++.toInt() and 0xFFFF
+
+        // the template's checksum covers zeroed length and identification fields, so only these two words need to be accounted for
+        var checksum = InternetChecksum.update(headerTemplateChecksum, 0, totalLength)
+        checksum = InternetChecksum.update(checksum, 0, id)
+
+        buffer.put(headerTemplate)
+        buffer.putShort(start + 2, totalLength.toShort())
+        buffer.putShort(start + 4, id.toShort())
+        buffer.putShort(start + 10, checksum.toShort())
+    }
+
     companion object {
+        private const val HEADER_LENGTH = 20
 
         /**
          * Builds a new [IpV4Packet] with the specified payload. This method is used to create a response to a stray packet, i.e. a packet that does not belong to any known connection.
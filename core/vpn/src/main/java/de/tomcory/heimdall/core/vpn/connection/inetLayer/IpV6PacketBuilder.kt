@@ -4,33 +4,53 @@ import org.pcap4j.packet.IpPacket
 import org.pcap4j.packet.IpV6Packet
 import org.pcap4j.packet.IpV6Packet.IpV6FlowLabel
 import org.pcap4j.packet.IpV6Packet.IpV6TrafficClass
+import org.pcap4j.packet.IpV6SimpleFlowLabel
+import org.pcap4j.packet.IpV6SimpleTrafficClass
 import org.pcap4j.packet.Packet
+import org.pcap4j.packet.namednumber.IpNumber
 import org.pcap4j.packet.namednumber.IpVersion
 import java.net.Inet6Address
+import java.nio.ByteBuffer
 
 /**
  * Represents a connection based on IPv6. This class is used to build new IPv6 packets and to store the necessary metadata for the connection
  *
- * @param initialPacket [IpV6Packet] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+ * @param initialPacket [IpPacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
  */
 class IpV6PacketBuilder(
-    initialPacket: IpV6Packet
+    initialPacket: IpPacketView
 ) : IpPacketBuilder(
-    localAddress = initialPacket.header.srcAddr,
-    remoteAddress = initialPacket.header.dstAddr,
+    localAddress = initialPacket.srcAddress(),
+    remoteAddress = initialPacket.dstAddress(),
     ipVersion = 6,
-    transportProtocol = initialPacket.header.protocol
+    transportProtocol = IpNumber.getInstance(initialPacket.transportProtocol.toByte())
 ) {
 
     /**
      * IPv6 traffic class used by this connection.
      */
-    private val trafficClass: IpV6TrafficClass = initialPacket.header.trafficClass
+    private val trafficClass: IpV6TrafficClass = IpV6SimpleTrafficClass.newInstance(initialPacket.trafficClass.toByte())
 
     /**
      * IPv6 flow label used by this connection.
      */
-    private val flowLabel: IpV6FlowLabel = initialPacket.header.flowLabel
+    private val flowLabel: IpV6FlowLabel = IpV6SimpleFlowLabel.newInstance(initialPacket.flowLabel)
+
+    override val headerLength = HEADER_LENGTH
+
+    /**
+     * Pre-filled header used by [writeHeader]. The payload length field is left at zero.
+     */
+    private val headerTemplate: ByteArray by lazy {
+        ByteBuffer.allocate(HEADER_LENGTH)
+            .putInt((6 shl 28) or ((trafficClass.value().toInt() and 0xFF) shl 20) or (flowLabel.value() and 0xFFFFF))
+            .putShort(0) // payload length
+            .put(transportProtocol.value())
+            .put(64.toByte()) // hop limit
+            .put(remoteAddress.address)
+            .put(localAddress.address)
+            .array()
+    }
 
     /**
      * Builds a new [IpV6Packet] with the specified payload.
@@ -52,7 +72,14 @@ class IpV6PacketBuilder(
             .build()
     }
 
+    override fun writeHeader(buffer: ByteBuffer, payloadLength: Int) {
+        val start = buffer.position()
+        buffer.put(headerTemplate)
+        buffer.putShort(start + 4, payloadLength.toShort())
+    }
+
     companion object {
+        private const val HEADER_LENGTH = 40
 
         /**
          * Builds a new [IpV6Packet] with the specified payload. This method is used to create a response to a stray packet, i.e. a packet that does not belong to any known connection.
@@ -1,13 +1,13 @@
 package de.tomcory.heimdall.core.vpn.connection.transportLayer
 
-import android.os.Handler
 import android.system.OsConstants
-import de.tomcory.heimdall.core.vpn.cache.ConnectionCache
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
 import de.tomcory.heimdall.core.vpn.components.ComponentManager
-import de.tomcory.heimdall.core.vpn.components.DeviceWriteThread
+import de.tomcory.heimdall.core.vpn.components.DeviceWriter
+import de.tomcory.heimdall.core.vpn.components.TrafficShard
 import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketBuilder
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketView
 import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.Packet
 import org.pcap4j.packet.TcpPacket
 import org.pcap4j.packet.UnknownPacket
 import org.pcap4j.packet.namednumber.TcpPort
@@ -15,54 +15,59 @@ import timber.log.Timber
 import java.io.IOException
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.nio.BufferOverflowException
 import java.nio.ByteBuffer
 import java.nio.channels.SelectionKey
 import java.nio.channels.Selector
 import java.nio.channels.SocketChannel
-import java.util.Arrays
 
 /**
  * Represents a transport-layer connection using TCP.
  *
  * @param componentManager
+ * @param shard
  * @param deviceWriter
- * @param initialPacket TCP segment from which the necessary metadata is extracted to create the instance (ideally the very first segment of a new socket).
+ * @param initialPacket [IpPacketView] pointing to the TCP segment from which the necessary metadata is extracted to create the instance (ideally the very first segment of a new socket).
  * @param ipPacketBuilder
  */
 class TcpConnection internal constructor(
     componentManager: ComponentManager,
-    deviceWriter: Handler,
-    initialPacket: TcpPacket,
+    shard: TrafficShard,
+    deviceWriter: DeviceWriter,
+    initialPacket: IpPacketView,
     ipPacketBuilder: IpPacketBuilder,
     remoteHost: String?
 ) : TransportLayerConnection(
     deviceWriter = deviceWriter,
     componentManager = componentManager,
-    localPort = initialPacket.header.srcPort.valueAsInt(),
-    remotePort = initialPacket.header.dstPort.valueAsInt(),
+    shard = shard,
+    localPort = initialPacket.srcPort,
+    remotePort = initialPacket.dstPort,
     remoteHost = remoteHost,
     ipPacketBuilder = ipPacketBuilder
 ) {
 
-    private val window = initialPacket.header.window
-    private val theirInitSeqNum = initialPacket.header.sequenceNumberAsLong
+    private val window = initialPacket.window.toShort()
+    private val theirInitSeqNum = initialPacket.sequenceNumber
     private val ourInitSeqNum = (Math.random() * 0xFFFFFFF).toLong()
     private var theirSeqNum = theirInitSeqNum + 1 // SYN packets increase the client's sequence number by 1
     private var ourSeqNum = ourInitSeqNum
 
+    /**
+     * Writes the segments sent to the client. Created lazily because [ipPacketBuilder] isn't needed until the first segment is written.
+     */
+    private val segmentWriter by lazy {
+        TcpSegmentWriter(ipPacketBuilder, localPort, remotePort, window.toInt() and 0xFFFF, componentManager.inboundPacketPool)
+    }
+
     override val protocol = "TCP"
-    override val appId: Int?
-    override val appPackage: String?
     override val id: Int
     override val selectableChannel: SocketChannel
     override val selectionKey: SelectionKey?
 
     init {
-        // these values must be initialised in this order because they each depend on the previous one
-        appId = componentManager.appFinder.getAppId(ipPacketBuilder.localAddress, ipPacketBuilder.remoteAddress, localPort, remotePort, OsConstants.IPPROTO_TCP)
-        appPackage = componentManager.appFinder.getAppPackage(appId)
+        // the row is created right away, the app owning the connection is filled in once it has been resolved in the background
         id = createDatabaseEntity()
+        startAttribution(OsConstants.IPPROTO_TCP)
 
         if(id > 0) {
             Timber.d("tcp$id Creating TCP Connection to ${ipPacketBuilder.remoteAddress.hostAddress}:${remotePort} ($remoteHost)")
@@ -78,7 +83,7 @@ class TcpConnection internal constructor(
         }
         selectionKey = if(state != TransportLayerState.ABORTED) {
             try {
-                connectChannel(componentManager.selector)
+                connectChannel(shard.selector)
             } catch (e: Exception) {
                 Timber.e("tcp$id Error while creating TCP connection: ${e.message}")
                 state = TransportLayerState.ABORTED
@@ -112,7 +117,7 @@ class TcpConnection internal constructor(
 
     private fun connectChannel(selector: Selector): SelectionKey? {
         // register OP_READ interest for the channel
-        synchronized(ComponentManager.selectorMonitor) {
+        synchronized(shard.selectorMonitor) {
             selector.wakeup()
             val selectionKey = try {
                 selectableChannel.register(selector, SelectionKey.OP_CONNECT)
@@ -124,27 +129,37 @@ class TcpConnection internal constructor(
         }
     }
 
-    private fun writeToDevice(packet: IpPacket) {
-        deviceWriter.sendMessage(deviceWriter.obtainMessage(DeviceWriteThread.WRITE_TCP, packet))
+    private fun writeToDevice(packet: PooledPacket) {
+        deviceWriter.write(packet)
     }
 
-    override fun unwrapOutbound(outgoingPacket: Packet) {
+    /**
+     * Writes a segment with the supplied flags and the connection's current sequence and acknowledgment numbers to the device.
+     */
+    private fun writeSegment(flags: Int, payload: ByteArray? = null, offset: Int = 0, length: Int = 0) {
+        writeToDevice(segmentWriter.write(ourSeqNum, theirSeqNum, flags, payload, offset, length))
+    }
+
+    override fun unwrapOutbound(outgoingPacket: IpPacketView) {
         if(state == TransportLayerState.ABORTED) {
             return
         }
-        val tcpHeader = outgoingPacket.header as TcpPacket.TcpHeader
-        if (tcpHeader.ack) {
-            if (outgoingPacket.payload != null && outgoingPacket.payload.length() > 0) {
+        val flags = outgoingPacket.tcpFlags
+        val ack = flags and IpPacketView.FLAG_ACK != 0
+        val syn = flags and IpPacketView.FLAG_SYN != 0
+        val fin = flags and IpPacketView.FLAG_FIN != 0
+        if (ack) {
+            if (outgoingPacket.payloadLength > 0) {
                 handleAckData(outgoingPacket) // data was sent and needs to be forwarded
-            } else if (!tcpHeader.syn && !tcpHeader.fin) {
+            } else if (!syn && !fin) {
                 handleAckEmpty()
             }
-            if (tcpHeader.syn) {
+            if (syn) {
                 handleSynAck() // this should not happen, since we never initiate a handshake
-            } else if (tcpHeader.fin) {
+            } else if (fin) {
                 handleFinAck() // this is either the first or second packet of the closing handshake
             }
-        } else if (tcpHeader.fin) {
+        } else if (fin) {
             handleFin() // closing handshake was initiated
         }
     }
@@ -173,83 +188,77 @@ class TcpConnection internal constructor(
 
     override fun wrapOutbound(payload: ByteArray) {
         if (payload.isNotEmpty()) {
-            if(payload.size <= outBuffer.limit()) {
-                outBuffer.clear()
-                outBuffer.put(payload)
-                outBuffer.flip()
-
-                while (outBuffer.hasRemaining()) {
-                    try {
-                        selectableChannel.write(outBuffer)
-                    } catch (e: Exception) {
-                        Timber.e("tcp$id Error writing to SocketChannel (${e.javaClass}, closing connection")
-                        closeHard()
-                        break
-                    }
-                }
-            } else {
+            writeOutbound { writeToChannel(selectableChannel, payload) }
+        }
+    }
 
-                //TODO: this is a dirty hack to prevent buffer overflows for stupidly large reassembled payloads
-                val largeBuffer = ByteBuffer.wrap(payload)
-
-                while (largeBuffer.hasRemaining()) {
-                    try {
-                        selectableChannel.write(largeBuffer)
-                    } catch (e: IOException) {
-                        Timber.e("tcp$id SocketChannel registered: ${selectableChannel.isRegistered}, connected: ${selectableChannel.isConnected}, open: ${selectableChannel.isOpen}")
-                        Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
-                        closeHard()
-                        break
-                    } catch (e: BufferOverflowException) {
-                        Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
-                        closeHard()
-                        break
-                    }
+    override fun wrapOutbound(payload: ByteBuffer) {
+        if (payload.hasRemaining()) {
+            // the buffer is written as it is, no need to copy it into a pooled buffer first
+            writeOutbound {
+                while (payload.hasRemaining()) {
+                    selectableChannel.write(payload)
                 }
             }
         }
     }
 
     override fun wrapInbound(payload: ByteArray) {
+        writeInbound(payload, 0, payload.size)
+    }
+
+    override fun wrapInbound(payload: ByteBuffer) {
+        if (payload.hasArray()) {
+            // segments are built straight from the buffer's backing array
+            writeInbound(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining())
+            payload.position(payload.limit())
+        } else {
+            super.wrapInbound(payload)
+        }
+    }
+
+    private inline fun writeOutbound(write: () -> Unit) {
+        try {
+            write()
+        } catch (e: IOException) {
+            Timber.e("tcp$id SocketChannel registered: ${selectableChannel.isRegistered}, connected: ${selectableChannel.isConnected}, open: ${selectableChannel.isOpen}")
+            Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
+            closeHard()
+        } catch (e: Exception) {
+            Timber.e("tcp$id Error writing to SocketChannel (${e.javaClass}, closing connection")
+            closeHard()
+        }
+    }
+
+    private fun writeInbound(payload: ByteArray, offset: Int, length: Int) {
         // if the application layer returned anything, write it to the device's VPN interface
-        if (payload.isNotEmpty()) {
-            if(payload.size <= componentManager.maxPacketSize) {
-                // if the payload fits into a single TCP segment, wrap and write it directly
-                val ackDataPacket = ipPacketBuilder.buildPacket(buildDataAck(payload))
-                increaseOurSeqNum(payload.size)
-                writeToDevice(ackDataPacket)
-            } else {
-                // if the payload exceeds the max. TCP payload size, split it into multiple segments
-                //TODO: there has to be a better way...
-                Timber.d("tcp$id Splitting large payload (${payload.size} bytes), because maxPacketSize is ${componentManager.maxPacketSize}")
-                val largeBuffer = ByteBuffer.wrap(payload)
-                while(largeBuffer.hasRemaining()) {
-                    val temp = ByteArray(minOf(largeBuffer.limit() - largeBuffer.position(), componentManager.maxPacketSize))
-                    largeBuffer.get(temp)
-                    Timber.d("tcp$id Writing split payload (${temp.size} bytes, ${largeBuffer.limit() - largeBuffer.position()} remaining)")
-                    val ackDataPacket = ipPacketBuilder.buildPacket(buildDataAck(temp))
-                    increaseOurSeqNum(payload.size)
-                    writeToDevice(ackDataPacket)
-                }
+        if (length > 0) {
+            // if the payload exceeds the max. TCP payload size, it is split into multiple segments
+            val maxPayloadSize = minOf(segmentWriter.maxPayloadSize, componentManager.maxPacketSize)
+            val end = offset + length
+            var segmentOffset = offset
+            while(segmentOffset < end) {
+                val segmentLength = minOf(end - segmentOffset, maxPayloadSize)
+                writeSegment(FLAGS_DATA_ACK, payload, segmentOffset, segmentLength)
+                increaseOurSeqNum(segmentLength)
+                segmentOffset += segmentLength
             }
         }
     }
 
-    private fun handleAckData(outgoingPacket: Packet) {
+    private fun handleAckData(outgoingPacket: IpPacketView) {
         if (state != TransportLayerState.CONNECTED) {
             // the connection is not ready to forward data, abort
             Timber.w("tcp$id Got ACK (data, invalid state $state)")
             closeHard()
         } else {
-            increaseTheirSeqNum(outgoingPacket.payload.length())
+            increaseTheirSeqNum(outgoingPacket.payloadLength)
 
             // acknowledge packet to the client by sending an empty ACK
-            writeToDevice(ipPacketBuilder.buildPacket(buildEmptyAck()))
+            writeSegment(IpPacketView.FLAG_ACK)
 
             // pass the payload to the encryption and application layers for processing and store the result
-            outgoingPacket.payload?.let {
-                passOutboundToEncryptionLayer(it)
-            }
+            passOutboundToEncryptionLayer(outgoingPacket.copyPayload())
         }
     }
 
@@ -265,7 +274,7 @@ class TcpConnection internal constructor(
             TransportLayerState.CLOSING -> {
                 // closing handshake complete, set status to CLOSED and remove the connection from the cache
                 state = TransportLayerState.CLOSED
-                ConnectionCache.removeConnection(this)
+                shard.connectionCache.removeConnection(this)
             }
             else -> {
                 // there is no good reason for an acknowledgement in any other flow state, abort
@@ -285,8 +294,7 @@ class TcpConnection internal constructor(
         if (state == TransportLayerState.CLOSING) {
             // connection is closing, so this must be an actual FIN ACK - acknowledge it and close the connection for good
             increaseTheirSeqNum(1)
-            val ackResponse = ipPacketBuilder.buildPacket(buildEmptyAck())
-            writeToDevice(ackResponse)
+            writeSegment(IpPacketView.FLAG_ACK)
         } else {
             // we're not expecting a FIN ACK, so we treat it like a normal FIN packet and start closing the connection
             handleFin()
@@ -301,9 +309,8 @@ class TcpConnection internal constructor(
             // close asynchronously
             closeSoft()
             increaseTheirSeqNum(1)
-            val finAckResponse = ipPacketBuilder.buildPacket(buildFinAck())
+            writeSegment(FLAGS_FIN_ACK)
             increaseOurSeqNum(1)
-            writeToDevice(finAckResponse)
         }
     }
 
@@ -316,12 +323,9 @@ class TcpConnection internal constructor(
         do {
             try {
                 // read and forward the incoming data chunk by chunk (i.e. loop as long as data is read)
-                inBuffer.clear()
-                bytesRead = selectableChannel.read(inBuffer)
-                if (bytesRead > 0) {
-                    inBuffer.flip()
-                    val rawData = Arrays.copyOf(inBuffer.array(), bytesRead)
-
+                val rawData = readFromChannel(selectableChannel)
+                bytesRead = rawData?.size ?: -1
+                if (rawData != null && bytesRead > 0) {
                     // pass the payload to the encryption layer for processing and store the result
                     passInboundToEncryptionLayer(rawData)
                 }
@@ -336,14 +340,13 @@ class TcpConnection internal constructor(
             if (state == TransportLayerState.CLOSING) {
                 // client and server agree that the connection is close
                 state = TransportLayerState.CLOSED
-                ConnectionCache.removeConnection(this)
+                shard.connectionCache.removeConnection(this)
             } else {
                 // connection closed by server, move to CLOSING state and send a FIN to initiate the local closing handshake
                 Timber.d("tcp$id SocketChannel closed, state transition $state -> CLOSING")
                 state = TransportLayerState.CLOSING
-                val finPacket = ipPacketBuilder.buildPacket(buildFin())
+                writeSegment(IpPacketView.FLAG_FIN)
                 increaseOurSeqNum(1)
-                writeToDevice(finPacket)
             }
         }
     }
@@ -368,10 +371,8 @@ class TcpConnection internal constructor(
             // prepare SocketChannel for incoming data and complete local handshake
             selectionKey.interestOps(SelectionKey.OP_READ)
             // advance the client-facing TCP handshake by sending a SYN ACK packet
-            val synAckPacket = ipPacketBuilder.buildPacket(buildSynAck())
+            writeSegment(FLAGS_SYN_ACK)
             increaseOurSeqNum(1)
-            //Timber.d("%s SocketChannel connected", id)
-            writeToDevice(synAckPacket)
         } else {
             Timber.e("tcp$id Error connecting SocketChannel to ${ipPacketBuilder.remoteAddress.hostAddress}:$remotePort")
             closeHard()
@@ -383,8 +384,7 @@ class TcpConnection internal constructor(
      */
     override fun closeClientSession() {
         state = TransportLayerState.ABORTED
-        val rstResponse = ipPacketBuilder.buildPacket(buildRst())
-        writeToDevice(rstResponse)
+        writeSegment(IpPacketView.FLAG_RST)
     }
 
     /**
@@ -437,20 +437,6 @@ class TcpConnection internal constructor(
         return builder
     }
 
-    /**
-     * Convenience method that calls [buildTcpPayload] with the required flags to construct a SYN-ACK packet.
-     */
-    private fun buildSynAck(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = true, fin = false, rawPayload = ByteArray(0))
-    }
-
-    /**
-     * Convenience method that calls [buildTcpPayload] with the required flags to construct an ACK packet without an application-layer payload.
-     */
-    private fun buildEmptyAck(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = false, fin = false, rawPayload = ByteArray(0))
-    }
-
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct an around the supplied application-layer payload.
      */
@@ -458,28 +444,11 @@ class TcpConnection internal constructor(
         return buildTcpPayload(urg = false, ack = true, psh = true, rst = false, syn = false, fin = false, rawPayload)
     }
 
-    /**
-     * Convenience method that calls [buildTcpPayload] with the required flags to construct an RST packet.
-     */
-    private fun buildRst(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = false, psh = false, rst = true, syn = false, fin = false, rawPayload = ByteArray(0))
-    }
-
-    /**
-     * Convenience method that calls [buildTcpPayload] with the required flags to construct a FIN packet.
-     */
-    private fun buildFin(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = false, psh = false, rst = false, syn = false, fin = true, rawPayload = ByteArray(0))
-    }
-
-    /**
-     * Convenience method that calls [buildTcpPayload] with the required flags to construct a FIN-ACK packet.
-     */
-    private fun buildFinAck(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = false, fin = true, rawPayload = ByteArray(0))
-    }
-
     companion object {
+        private const val FLAGS_SYN_ACK = IpPacketView.FLAG_SYN or IpPacketView.FLAG_ACK
+        private const val FLAGS_FIN_ACK = IpPacketView.FLAG_FIN or IpPacketView.FLAG_ACK
+        private const val FLAGS_DATA_ACK = IpPacketView.FLAG_PSH or IpPacketView.FLAG_ACK
+
         fun buildStrayRst(strayPacket: IpPacket): TcpPacket.Builder? {
             if(strayPacket.payload is TcpPacket) {
                 val tcpPacket = strayPacket.payload as TcpPacket
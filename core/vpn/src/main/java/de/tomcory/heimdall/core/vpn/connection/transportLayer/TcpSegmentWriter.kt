@@ -0,0 +1,91 @@
+package de.tomcory.heimdall.core.vpn.connection.transportLayer
+
+import de.tomcory.heimdall.core.vpn.buffer.PacketPool
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.InternetChecksum
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketBuilder
+import java.nio.ByteBuffer
+
+/**
+ * Writes the TCP segments of a single connection that are sent to the device.
+ *
+ * The IP and TCP headers are copied from pre-filled templates and only the sequence and acknowledgment numbers, flags,
+ * lengths and IP identification are patched for each segment. The TCP checksum is derived from a pre-computed sum of all
+ * fields that never change for the connection, so only the patched words and the payload need to be summed per segment.
+ *
+ * @param ipPacketBuilder The connection's [IpPacketBuilder], which writes the IP header.
+ * @param localPort Intercepted client's port.
+ * @param remotePort Remote host's port.
+ * @param window The TCP window size advertised to the client.
+ * @param packetPool The [PacketPool] the segments are written into.
+ */
+class TcpSegmentWriter(
+    private val ipPacketBuilder: IpPacketBuilder,
+    localPort: Int,
+    remotePort: Int,
+    window: Int,
+    private val packetPool: PacketPool
+) {
+
+    private val tcpOffset = ipPacketBuilder.headerLength
+
+    /**
+     * Pre-filled TCP header. The sequence and acknowledgment numbers, flags and checksum are left at zero.
+     */
+    private val headerTemplate: ByteArray = ByteBuffer.allocate(HEADER_LENGTH)
+        .putShort(remotePort.toShort())
+        .putShort(localPort.toShort())
+        .putInt(0) // sequence number
+        .putInt(0) // acknowledgment number
+        .put((HEADER_LENGTH / 4 shl 4).toByte()) // data offset
+        .put(0) // flags
+        .putShort(window.toShort())
+        .putShort(0) // checksum
+        .putShort(0) // urgent pointer
+        .array()
+
+    /**
+     * Unfolded checksum of the pseudo header and the [headerTemplate].
+     */
+    private val baseChecksum: Int = InternetChecksum.sum(headerTemplate, 0, HEADER_LENGTH, ipPacketBuilder.pseudoHeaderSum)
+
+    /**
+     * Maximum number of payload bytes that fit into a single segment.
+     */
+    val maxPayloadSize: Int = packetPool.packetSize - tcpOffset - HEADER_LENGTH
+
+    /**
+     * Writes a complete IP packet containing a TCP segment with the supplied values into a [PooledPacket].
+     * The caller takes ownership of the returned packet.
+     *
+     * @param length Number of payload bytes to copy from [payload], starting at [offset]. Must not exceed [maxPayloadSize].
+     */
+    fun write(sequenceNumber: Long, acknowledgmentNumber: Long, flags: Int, payload: ByteArray? = null, offset: Int = 0, length: Int = 0): PooledPacket {
+        val tcpLength = HEADER_LENGTH + length
+        val packet = packetPool.acquire()
+        val buffer = packet.buffer
+
+        ipPacketBuilder.writeHeader(buffer, tcpLength)
+
+        buffer.put(headerTemplate)
+        buffer.putInt(tcpOffset + 4, sequenceNumber.toInt())
+        buffer.putInt(tcpOffset + 8, acknowledgmentNumber.toInt())
+        buffer.put(tcpOffset + 13, flags.toByte())
+
+        var checksum = baseChecksum + tcpLength + flags
+        checksum = InternetChecksum.sumInt(sequenceNumber.toInt(), checksum)
+        checksum = InternetChecksum.sumInt(acknowledgmentNumber.toInt(), checksum)
+        if(payload != null && length > 0) {
+            buffer.put(payload, offset, length)
+            checksum = InternetChecksum.sum(payload, offset, length, checksum)
+        }
+        buffer.putShort(tcpOffset + 16, InternetChecksum.finish(checksum).toShort())
+
+        buffer.flip()
+        return packet
+    }
+
+    companion object {
+        private const val HEADER_LENGTH = 20
+    }
+}
@@ -1,39 +1,57 @@
 package de.tomcory.heimdall.core.vpn.connection.transportLayer
 
-import android.os.Handler
+import android.system.OsConstants
+import de.tomcory.heimdall.core.database.entity.Connection
 import de.tomcory.heimdall.core.vpn.cache.ConnectionCache
+import de.tomcory.heimdall.core.vpn.components.AppAttributor
 import de.tomcory.heimdall.core.vpn.components.ComponentManager
+import de.tomcory.heimdall.core.vpn.components.ConnectionPersister
+import de.tomcory.heimdall.core.vpn.components.DeviceWriter
+import de.tomcory.heimdall.core.vpn.components.IdleFlowReaper
+import de.tomcory.heimdall.core.vpn.components.TrafficShard
 import de.tomcory.heimdall.core.vpn.connection.encryptionLayer.EncryptionLayerConnection
 import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketBuilder
-import kotlinx.coroutines.runBlocking
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketView
+import org.pcap4j.packet.IllegalRawDataException
 import org.pcap4j.packet.IpPacket
 import org.pcap4j.packet.Packet
-import org.pcap4j.packet.TcpPacket
-import org.pcap4j.packet.UdpPacket
 import timber.log.Timber
+import java.io.IOException
 import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
 import java.nio.channels.SelectableChannel
 import java.nio.channels.SelectionKey
 import java.nio.channels.Selector
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 /**
  * Base class for all transport-layer connection holders.
- * @property deviceWriter The [Handler] used to write packets to the device's TUN interface.
+ * @property deviceWriter The [DeviceWriter] used to write packets to the device's TUN interface.
  * @property componentManager The [ComponentManager] instance to use for this connection.
+ * @property shard The [TrafficShard] that owns this connection's flow.
  * @property localPort Intercepted client's port.
  * @property remotePort Remote host's port.
- * @property remoteHost Remote host's IP address.
+ * @param remoteHost Remote host's hostname, if known when the connection is created.
  * @property ipPacketBuilder The [IpPacketBuilder] instance used to construct [IpPacket]s for this connection.
  */
 abstract class TransportLayerConnection protected constructor(
-    val deviceWriter: Handler,
+    val deviceWriter: DeviceWriter,
     val componentManager: ComponentManager,
+    val shard: TrafficShard,
     val localPort: Int,
     val remotePort: Int,
-    val remoteHost: String?,
+    remoteHost: String?,
     val ipPacketBuilder: IpPacketBuilder
 ) {
 
+    /**
+     * Remote host's hostname, if known. May be learned after the connection has been created, see [updateRemoteHost].
+     */
+    var remoteHost: String? = remoteHost
+        private set
+
     /**
      * Possible states of a [TransportLayerConnection].
      */
@@ -59,18 +77,6 @@ abstract class TransportLayerConnection protected constructor(
      */
     protected abstract val id: Int
 
-    /**
-     * Buffer used for write operations on the connection's [SelectableChannel].
-     * Using separate buffers allows for parallel read and write operations.
-     */
-    protected val outBuffer: ByteBuffer = ByteBuffer.allocate(componentManager.maxPacketSize)
-
-    /**
-     * Buffer used for read operations on the connection's [SelectableChannel].
-     * Using separate buffers allows for parallel read and write operations.
-     */
-    protected val inBuffer: ByteBuffer = ByteBuffer.allocate(componentManager.maxPacketSize)
-
     /**
      * The connection's transport protocol's name.
      */
@@ -87,14 +93,33 @@ abstract class TransportLayerConnection protected constructor(
     protected abstract val selectableChannel: SelectableChannel
 
     /**
-     * AID of the app holding the connection's local port.
+     * AID of the app holding the connection's local port. Resolved in the background by the [AppAttributor], so it is
+     * null until the attribution has completed (see [awaitAttribution]) or if the app could not be determined.
+     */
+    @Volatile
+    var appId: Int? = null
+        private set
+
+    /**
+     * Package name of the app holding the connection's local port. Resolved together with [appId].
      */
-    abstract val appId: Int?
+    @Volatile
+    var appPackage: String? = null
+        private set
+
+    private val attribution = CountDownLatch(1)
+
+    /** Whether the attribution has been applied on the shard's thread, see [whenAttributed]. Confined to the shard's thread. */
+    private var attributionApplied = false
+
+    /** Blocks waiting for the attribution to be applied. Confined to the shard's thread. */
+    private var attributionListeners: MutableList<() -> Unit>? = null
 
     /**
-     * Package name of the app holding the connection's local port.
+     * Whether the connection has passed data up the stack, i.e. whether an attribution completing now is late.
      */
-    abstract val appPackage: String?
+    @Volatile
+    private var forwarding = false
 
     /**
      * Indicates the connection's state.
@@ -102,14 +127,24 @@ abstract class TransportLayerConnection protected constructor(
     var state: TransportLayerState = TransportLayerState.CONNECTING
         protected set
 
+    /**
+     * Index of the connection's slot in its shard's [ConnectionCache], or -1 if it isn't cached. Maintained by the cache.
+     */
+    internal var flowSlot: Int = -1
+
     /**
      * Reference to the connection's encryption layer handler.
      */
     private var encryptionLayer: EncryptionLayerConnection? = null
 
-    private val isTracker = remoteHost?.let { componentManager.labelConnection(it) } ?: false
+    private var isTracker = remoteHost?.let { componentManager.labelConnection(it) } ?: false
+
+    private val initialTimestamp = System.currentTimeMillis()
 
     protected fun passOutboundToEncryptionLayer(payload: ByteArray) {
+        if(!forwarding) {
+            forwarding = true
+        }
         if(encryptionLayer == null) {
             encryptionLayer = EncryptionLayerConnection.getInstance(id, this, componentManager, payload)
         }
@@ -131,32 +166,174 @@ abstract class TransportLayerConnection protected constructor(
         encryptionLayer?.unwrapInbound(payload)
     }
 
+    /**
+     * Reads a single chunk of at most [ComponentManager.maxPacketSize] bytes from the supplied channel.
+     * The read goes through a buffer that is only borrowed from the [ComponentManager.bufferPool] for the duration of the call.
+     *
+     * @return The bytes read (empty if no data was available) or null if the channel has reached end-of-stream.
+     */
+    @Throws(IOException::class)
+    protected fun readFromChannel(channel: ReadableByteChannel): ByteArray? {
+        return componentManager.bufferPool.use(componentManager.maxPacketSize) { buffer ->
+            buffer.limit(componentManager.maxPacketSize)
+            val bytesRead = channel.read(buffer)
+            when {
+                bytesRead < 0 -> null
+                bytesRead == 0 -> EMPTY_PAYLOAD
+                else -> {
+                    buffer.flip()
+                    ByteArray(bytesRead).also { buffer.get(it) }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the complete payload to the supplied channel. Payloads that fit are copied into a buffer borrowed from the
+     * [ComponentManager.bufferPool], larger payloads are wrapped instead.
+     */
+    @Throws(IOException::class)
+    protected fun writeToChannel(channel: WritableByteChannel, payload: ByteArray) {
+        if(payload.size > componentManager.bufferPool.maxBufferSize) {
+            val largeBuffer = ByteBuffer.wrap(payload)
+            while (largeBuffer.hasRemaining()) {
+                channel.write(largeBuffer)
+            }
+            return
+        }
+        componentManager.bufferPool.use(payload.size) { buffer ->
+            buffer.put(payload)
+            buffer.flip()
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+        }
+    }
+
+    /**
+     * The connection's row in the database, or null if the connection isn't persisted (i.e. DNS queries).
+     */
+    var persistedConnection: ConnectionPersister.PersistedConnection? = null
+        private set
+
+    /**
+     * Schedules the insertion of the connection's database row.
+     *
+     * @return The connection's local ID, or 0 if the connection isn't persisted.
+     */
     protected fun createDatabaseEntity(): Int {
         return if(remotePort == 53) {
             0
         } else {
-            runBlocking {
-                return@runBlocking componentManager.databaseConnector.persistTransportLayerConnection(
-                    sessionId = componentManager.sessionId,
-                    protocol = protocol,
-                    ipVersion = ipPacketBuilder.ipVersion,
-                    initialTimestamp = System.currentTimeMillis(),
-                    initiatorId = appId ?: -1,
-                    initiatorPkg = appPackage ?: appId.toString(),
-                    localPort = localPort,
-                    remoteHost = remoteHost ?: "",
-                    remoteIp = ipPacketBuilder.remoteAddress.hostAddress ?: "",
-                    remotePort = remotePort,
-                    isTracker = isTracker
-                )
-            }
+            // the row is written in the background, the local ID is available right away
+            componentManager.connectionPersister.insert(buildDatabaseEntity()).also { persistedConnection = it }.id
         }
     }
 
-    protected fun deleteDatabaseEntity() {
-        runBlocking {
-            componentManager.databaseConnector.deleteTransportLayerConnection(id)
+    /**
+     * Builds the database row describing the connection's current metadata.
+     */
+    private fun buildDatabaseEntity(): Connection {
+        return Connection(
+            sessionId = componentManager.sessionId,
+            protocol = protocol,
+            ipVersion = ipPacketBuilder.ipVersion,
+            initialTimestamp = initialTimestamp,
+            initiatorId = appId ?: -1,
+            initiatorPkg = appPackage ?: appId.toString(),
+            localPort = localPort,
+            remoteHost = remoteHost ?: "",
+            remoteIp = ipPacketBuilder.remoteAddress.hostAddress ?: "",
+            remotePort = remotePort,
+            isTracker = isTracker
+        )
+    }
+
+    /**
+     * Sets the remote host's hostname once it has been learned from the connection's traffic (e.g. from a TLS or QUIC
+     * ClientHello), labels the connection accordingly and updates its database row.
+     */
+    fun updateRemoteHost(hostname: String) {
+        if(hostname.isEmpty() || hostname == remoteHost) {
+            return
+        }
+        remoteHost = hostname
+        isTracker = componentManager.labelConnection(hostname)
+        persistedConnection?.let { componentManager.connectionPersister.update(it, buildDatabaseEntity()) }
+    }
+
+    /**
+     * Hands the connection to the [AppAttributor] to resolve the app owning it in the background. Must be called once [id] is set.
+     *
+     * @param protocol The connection's transport protocol as an [OsConstants] IPPROTO value.
+     */
+    protected fun startAttribution(protocol: Int) {
+        if(id > 0) {
+            componentManager.appAttributor.attribute(this, id, protocol)
+        } else {
+            // connections that aren't persisted (i.e. DNS queries) don't need to be attributed
+            attribution.countDown()
+            attributionApplied = true
+        }
+    }
+
+    /**
+     * Sets the app owning the connection once it has been resolved. Called by the [AppAttributor] on its own thread, so the
+     * connection's database row is updated and the [whenAttributed] blocks are run on the shard's thread.
+     *
+     * @return Whether the connection had already started forwarding data, i.e. whether the attribution is late.
+     */
+    internal fun onAttributed(appId: Int?, appPackage: String?): Boolean {
+        this.appId = appId
+        this.appPackage = appPackage
+        attribution.countDown()
+        if(!shard.post { applyAttribution() }) {
+            Timber.d("${protocol.lowercase()}$id Attribution completed after the shard was stopped")
+        }
+        return forwarding
+    }
+
+    private fun applyAttribution() {
+        attributionApplied = true
+        if(appId != null) {
+            persistedConnection?.let { componentManager.connectionPersister.update(it, buildDatabaseEntity()) }
+        }
+        attributionListeners?.forEach { it() }
+        attributionListeners = null
+    }
+
+    /**
+     * Runs the supplied block once the app owning the connection has been resolved (or could not be), right away if it
+     * already has. Must only be called from the shard's thread, which the block is run on as well.
+     *
+     * @return Whether the block was run right away.
+     */
+    fun whenAttributed(block: () -> Unit): Boolean {
+        if(attributionApplied) {
+            block()
+            return true
         }
+        (attributionListeners ?: ArrayList<() -> Unit>(1).also { attributionListeners = it }).add(block)
+        return false
+    }
+
+    /**
+     * Waits for the app owning the connection to be resolved, for at most the supplied time. Must never be called on the
+     * shard's threads, which use [whenAttributed] instead.
+     *
+     * @return Whether the attribution has completed.
+     */
+    fun awaitAttribution(timeoutMillis: Long): Boolean {
+        return try {
+            attribution.await(timeoutMillis, TimeUnit.MILLISECONDS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            false
+        }
+    }
+
+    protected fun deleteDatabaseEntity() {
+        persistedConnection?.let { componentManager.connectionPersister.delete(it) }
     }
 
     /**
@@ -164,7 +341,10 @@ abstract class TransportLayerConnection protected constructor(
      */
     abstract fun buildPayload(rawPayload: ByteArray): Packet.Builder
 
-    abstract fun unwrapOutbound(outgoingPacket: Packet)
+    /**
+     * Processes an outbound packet of this connection. The [IpPacketView] is only valid for the duration of the call.
+     */
+    abstract fun unwrapOutbound(outgoingPacket: IpPacketView)
 
     abstract fun unwrapInbound()
 
@@ -172,14 +352,28 @@ abstract class TransportLayerConnection protected constructor(
 
     abstract fun wrapInbound(payload: ByteArray)
 
+    /**
+     * Forwards the remaining bytes of the supplied buffer to the remote host. The buffer is only valid for the duration of the call.
+     */
+    open fun wrapOutbound(payload: ByteBuffer) {
+        wrapOutbound(ByteArray(payload.remaining()).also { payload.get(it) })
+    }
+
+    /**
+     * Forwards the remaining bytes of the supplied buffer to the device. The buffer is only valid for the duration of the call.
+     */
+    open fun wrapInbound(payload: ByteBuffer) {
+        wrapInbound(ByteArray(payload.remaining()).also { payload.get(it) })
+    }
+
     abstract fun closeClientSession()
 
     /**
-     * Closes the connection's outward-facing [SelectableChannel], performs protocol-specific steps to close the client-side session and removes the connection from the [ConnectionCache]
+     * Closes the connection's outward-facing [SelectableChannel], performs protocol-specific steps to close the client-side session and removes the connection from its shard's [ConnectionCache]
      */
     fun closeHard() {
         closeSoft()
-        ConnectionCache.removeConnection(this)
+        shard.connectionCache.removeConnection(this)
     }
 
     /**
@@ -195,75 +389,92 @@ abstract class TransportLayerConnection protected constructor(
             Timber.e(e, "${protocol.lowercase()}${id} Error closing SelectableChannel")
         }
         closeClientSession()
+        encryptionLayer?.onTransportClosed()
         state = TransportLayerState.CLOSED
     }
 
     companion object {
+        private val EMPTY_PAYLOAD = ByteArray(0)
+
         /**
          * Creates a [TransportLayerConnection] instance based on the transport protocol and IP version of the supplied packet.
          *
-         * @param initialPacket [IpPacket] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+         * @param initialPacket [IpPacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
          * @param componentManager The [ComponentManager] instance to use for this connection.
-         * @param deviceWriter The [Handler] used to write packets to the device's TUN interface.
+         * @param deviceWriter The [DeviceWriter] used to write packets to the device's TUN interface.
+         * @param shard The [TrafficShard] the packet was assigned to.
          */
         fun getInstance(
-            initialPacket: IpPacket,
+            initialPacket: IpPacketView,
             componentManager: ComponentManager,
-            deviceWriter: Handler,)
+            deviceWriter: DeviceWriter,
+            shard: TrafficShard)
         : TransportLayerConnection? {
 
             // if specified, query the connection cache for a matching connection
-            ConnectionCache.findConnection(initialPacket)?.let {
+            shard.connectionCache.findConnection(initialPacket)?.let {
                 return it
             }
 
-            val hostname = initialPacket.header.dstAddr.hostAddress?.let { componentManager.dnsCache.get(it) }
-
-            val connection =  when (initialPacket.payload) {
-                is TcpPacket -> {
-                    val tcpPacket = initialPacket.payload as TcpPacket
-//                    if(tcpPacket.header.dstPort.valueAsInt() == 853) {
-//                        Timber.w("Resetting DoT packet to %s:%s", initialPacket.header.dstAddr.hostAddress, tcpPacket.header.dstPort.valueAsInt())
-//                        deviceWriter.sendMessage(deviceWriter.obtainMessage(6, IpPacketBuilder.buildStray(initialPacket, TcpConnection.buildStrayRst(initialPacket))))
-//                        null
-//                    } else
-                    if(tcpPacket.header.fin || tcpPacket.header.ack || tcpPacket.header.rst) {
-                        val headerString = if(tcpPacket.header.fin) "FIN" else "" + if(tcpPacket.header.ack) "ACK" else "" + if (tcpPacket.header.rst) "RST" else ""
-                        Timber.w("Resetting unknown TCP packet ($headerString) to ${initialPacket.header.dstAddr.hostAddress}:${tcpPacket.header.dstPort.valueAsInt()} ($hostname)")
-                        deviceWriter.sendMessage(deviceWriter.obtainMessage(6, IpPacketBuilder.buildStray(initialPacket, TcpConnection.buildStrayRst(initialPacket))))
+            val ipPacketBuilder = IpPacketBuilder.getInstance(initialPacket)
+            val hostname = ipPacketBuilder.remoteAddress.hostAddress?.let { componentManager.dnsCache.get(it) }
+
+            val connection =  when (initialPacket.transportProtocol) {
+                IpPacketView.TCP -> {
+                    if(initialPacket.fin || initialPacket.ack || initialPacket.rst) {
+                        val headerString = if(initialPacket.fin) "FIN" else "" + if(initialPacket.ack) "ACK" else "" + if (initialPacket.rst) "RST" else ""
+                        Timber.w("Resetting unknown TCP packet ($headerString) to ${ipPacketBuilder.remoteAddress.hostAddress}:${initialPacket.dstPort} ($hostname)")
+                        writeStrayRst(initialPacket, deviceWriter)
                         null
                     } else {
                         TcpConnection(
                             componentManager = componentManager,
+                            shard = shard,
                             deviceWriter = deviceWriter,
-                            initialPacket = initialPacket.payload as TcpPacket,
-                            ipPacketBuilder = IpPacketBuilder.getInstance(initialPacket),
+                            initialPacket = initialPacket,
+                            ipPacketBuilder = ipPacketBuilder,
                             remoteHost = hostname
                         )
                     }
                 }
 
-                is UdpPacket -> {
-                    val udpPacket = initialPacket.payload as UdpPacket
+                IpPacketView.UDP -> {
                     UdpConnection(
                         componentManager = componentManager,
+                        shard = shard,
                         deviceWriter = deviceWriter,
-                        initialPacket = udpPacket,
-                        ipPacketBuilder = IpPacketBuilder.getInstance(initialPacket),
+                        initialPacket = initialPacket,
+                        ipPacketBuilder = ipPacketBuilder,
                         remoteHost = hostname
                     )
                 }
                 else -> {
-                    Timber.e("Invalid transport protocol ${initialPacket.payload.javaClass}")
+                    Timber.e("Invalid transport protocol ${initialPacket.transportProtocol}")
                     null
                 }
             }
 
             if(connection != null) {
-                ConnectionCache.addConnection(connection)
+                val now = System.currentTimeMillis()
+                shard.connectionCache.addConnection(connection, now)
+                shard.flowTimer.schedule(connection, now + IdleFlowReaper.idleTimeout(connection))
             }
 
             return connection
         }
+
+        /**
+         * Answers a TCP packet that doesn't belong to any known connection with a RST. Stray packets are rare, so the packet is fully parsed here.
+         */
+        private fun writeStrayRst(strayPacket: IpPacketView, deviceWriter: DeviceWriter) {
+            try {
+                val ipPacket = strayPacket.toIpPacket()
+                IpPacketBuilder.buildStray(ipPacket, TcpConnection.buildStrayRst(ipPacket))?.let {
+                    deviceWriter.write(it)
+                }
+            } catch (e: IllegalRawDataException) {
+                Timber.e(e, "Error parsing stray TCP packet")
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,13 @@
 package de.tomcory.heimdall.core.vpn.connection.transportLayer
 
-import android.os.Handler
 import android.system.OsConstants
 import de.tomcory.heimdall.core.vpn.components.ComponentManager
-import de.tomcory.heimdall.core.vpn.components.DeviceWriteThread
+import de.tomcory.heimdall.core.vpn.components.DeviceWriter
+import de.tomcory.heimdall.core.vpn.components.TrafficShard
 import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketBuilder
-import org.pcap4j.packet.Packet
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketView
+import org.pcap4j.packet.DnsPacket
+import org.pcap4j.packet.IllegalRawDataException
 import org.pcap4j.packet.UdpPacket
 import org.pcap4j.packet.UnknownPacket
 import org.pcap4j.packet.namednumber.UdpPort
@@ -13,46 +15,51 @@ import timber.log.Timber
 import java.io.IOException
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.nio.BufferOverflowException
 import java.nio.channels.DatagramChannel
 import java.nio.channels.SelectionKey
 import java.nio.channels.Selector
-import java.util.Arrays
 
 /**
  * Represents a transport-layer connection using UDP.
  *
  * @param componentManager
+ * @param shard
  * @param deviceWriter
- * @param initialPacket UDP datagram from which the necessary metadata is extracted to create the instance (ideally the very first datagram of a new socket).
+ * @param initialPacket [IpPacketView] pointing to the UDP datagram from which the necessary metadata is extracted to create the instance (ideally the very first datagram of a new socket).
  * @param ipPacketBuilder
  */
 class UdpConnection internal constructor(
     componentManager: ComponentManager,
-    deviceWriter: Handler,
-    initialPacket: UdpPacket,
+    shard: TrafficShard,
+    deviceWriter: DeviceWriter,
+    initialPacket: IpPacketView,
     ipPacketBuilder: IpPacketBuilder,
     remoteHost: String?
 ) : TransportLayerConnection(
     deviceWriter = deviceWriter,
     componentManager = componentManager,
-    localPort = initialPacket.header.srcPort.valueAsInt(),
-    remotePort = initialPacket.header.dstPort.valueAsInt(),
+    shard = shard,
+    localPort = initialPacket.srcPort,
+    remotePort = initialPacket.dstPort,
     remoteHost = remoteHost,
     ipPacketBuilder = ipPacketBuilder
 ) {
+    /**
+     * Writes the datagrams sent to the client. Created lazily because [ipPacketBuilder] isn't needed until the first datagram is written.
+     */
+    private val datagramWriter by lazy {
+        UdpDatagramWriter(ipPacketBuilder, localPort, remotePort, componentManager.inboundPacketPool)
+    }
+
     override val protocol = "UDP"
-    override val appId: Int?
-    override val appPackage: String?
     override val id: Int
     override val selectableChannel: DatagramChannel
     override val selectionKey: SelectionKey?
 
     init {
-        // these values must be initialised in this order because they each depend on the previous one
-        appId = componentManager.appFinder.getAppId(ipPacketBuilder.localAddress, ipPacketBuilder.remoteAddress, localPort, remotePort, OsConstants.IPPROTO_UDP)
-        appPackage = componentManager.appFinder.getAppPackage(appId)
+        // the row is created right away, the app owning the connection is filled in once it has been resolved in the background
         id = createDatabaseEntity()
+        startAttribution(OsConstants.IPPROTO_UDP)
 
         if(id > 0) {
             Timber.d("udp$id Creating UDP Connection to ${ipPacketBuilder.remoteAddress.hostAddress}:${remotePort} ($remoteHost)")
@@ -68,7 +75,7 @@ class UdpConnection internal constructor(
         }
         selectionKey = if(state != TransportLayerState.ABORTED) {
             try {
-                connectChannel(componentManager.selector)
+                connectChannel(shard.selector)
             } catch (e: Exception) {
                 Timber.e("tcp$id Error while creating UDP connection: ${e.message}")
                 state = TransportLayerState.ABORTED
@@ -102,7 +109,7 @@ class UdpConnection internal constructor(
 
     private fun connectChannel(selector: Selector): SelectionKey? {
         // register OP_READ interest for the channel
-        synchronized(ComponentManager.selectorMonitor) {
+        synchronized(shard.selectorMonitor) {
             selector.wakeup()
             val selectionKey = try {
                 selectableChannel.register(selector, SelectionKey.OP_READ)
@@ -129,21 +136,11 @@ class UdpConnection internal constructor(
     override fun wrapOutbound(payload: ByteArray) {
         // if the application layer returned anything, write it to the connection's outward-facing channel
         if (payload.isNotEmpty()) {
-            outBuffer.clear()
-            outBuffer.put(payload)
-            outBuffer.flip()
-            while (outBuffer.hasRemaining()) {
-                try {
-                    selectableChannel.write(outBuffer)
-                } catch (e: IOException) {
-                    Timber.e(e, "udp$id Error writing to DatagramChannel, closing connection")
-                    closeHard()
-                    break
-                } catch (e: BufferOverflowException) {
-                    Timber.e(e, "udp$id Error writing to DatagramChannel, closing connection")
-                    closeHard()
-                    break
-                }
+            try {
+                writeToChannel(selectableChannel, payload)
+            } catch (e: IOException) {
+                Timber.e(e, "udp$id Error writing to DatagramChannel, closing connection")
+                closeHard()
             }
         }
     }
@@ -152,17 +149,30 @@ class UdpConnection internal constructor(
         if(state == TransportLayerState.ABORTED) {
             return
         }
-        val forwardPacket = ipPacketBuilder.buildPacket(buildPayload(payload))
-        deviceWriter.sendMessage(deviceWriter.obtainMessage(DeviceWriteThread.WRITE_UDP, forwardPacket))
+        if(payload.size <= datagramWriter.maxPayloadSize) {
+            deviceWriter.write(datagramWriter.write(payload))
+        } else {
+            // datagrams that don't fit into a pooled packet are rare enough to go through pcap4j
+            val forwardPacket = ipPacketBuilder.buildPacket(buildPayload(payload))
+            deviceWriter.write(forwardPacket)
+        }
     }
 
-    override fun unwrapOutbound(outgoingPacket: Packet) {
-        if(state == TransportLayerState.ABORTED) {
+    override fun unwrapOutbound(outgoingPacket: IpPacketView) {
+        if(state == TransportLayerState.ABORTED || outgoingPacket.payloadLength == 0) {
             return
         }
-        outgoingPacket.payload?.let {
-            passOutboundToEncryptionLayer(it)
+        val payload = outgoingPacket.copyPayload()
+        if(remotePort == 53) {
+            // DNS queries are the only UDP payloads that are parsed before being passed up the stack
+            try {
+                passOutboundToEncryptionLayer(DnsPacket.newPacket(payload, 0, payload.size))
+                return
+            } catch (e: IllegalRawDataException) {
+                Timber.w("udp$id Invalid DNS query, treating it as raw data")
+            }
         }
+        passOutboundToEncryptionLayer(payload)
     }
 
     override fun unwrapInbound() {
@@ -177,12 +187,9 @@ class UdpConnection internal constructor(
             do {
                 try {
                     // read and forward the incoming data chunk by chunk
-                    inBuffer.clear()
-                    bytesRead = selectableChannel.read(inBuffer)
-                    if (bytesRead > 0) {
-                        inBuffer.flip()
-                        val rawData = Arrays.copyOf(inBuffer.array(), bytesRead)
-
+                    val rawData = readFromChannel(selectableChannel)
+                    bytesRead = rawData?.size ?: -1
+                    if (rawData != null && bytesRead > 0) {
                         // pass the payload to the application layer for further processing
                         passInboundToEncryptionLayer(rawData)
                     }
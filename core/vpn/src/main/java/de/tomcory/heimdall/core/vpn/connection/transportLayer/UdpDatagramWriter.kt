@@ -0,0 +1,80 @@
+package de.tomcory.heimdall.core.vpn.connection.transportLayer
+
+import de.tomcory.heimdall.core.vpn.buffer.PacketPool
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.InternetChecksum
+import de.tomcory.heimdall.core.vpn.connection.inetLayer.IpPacketBuilder
+import java.nio.ByteBuffer
+
+/**
+ * Writes the UDP datagrams of a single connection that are sent to the device.
+ *
+ * Works like the [TcpSegmentWriter]: the UDP header is copied from a pre-filled template, only the length and checksum
+ * are patched per datagram, and the checksum is derived from a pre-computed sum of the fields that never change.
+ *
+ * @param ipPacketBuilder The connection's [IpPacketBuilder], which writes the IP header.
+ * @param localPort Intercepted client's port.
+ * @param remotePort Remote host's port.
+ * @param packetPool The [PacketPool] the datagrams are written into.
+ */
+class UdpDatagramWriter(
+    private val ipPacketBuilder: IpPacketBuilder,
+    localPort: Int,
+    remotePort: Int,
+    private val packetPool: PacketPool
+) {
+
+    private val udpOffset = ipPacketBuilder.headerLength
+
+    /**
+     * Pre-filled UDP header. The length and checksum are left at zero.
+     */
+    private val headerTemplate: ByteArray = ByteBuffer.allocate(HEADER_LENGTH)
+        .putShort(remotePort.toShort())
+        .putShort(localPort.toShort())
+        .putShort(0) // length
+        .putShort(0) // checksum
+        .array()
+
+    /**
+     * Unfolded checksum of the pseudo header and the [headerTemplate].
+     */
+    private val baseChecksum: Int = InternetChecksum.sum(headerTemplate, 0, HEADER_LENGTH, ipPacketBuilder.pseudoHeaderSum)
+
+    /**
+     * Maximum number of payload bytes that fit into a single datagram.
+     */
+    val maxPayloadSize: Int = packetPool.packetSize - udpOffset - HEADER_LENGTH
+
+    /**
+     * Writes a complete IP packet containing a UDP datagram with the supplied payload into a [PooledPacket].
+     * The caller takes ownership of the returned packet.
+     *
+     * @param length Number of payload bytes to copy from [payload], starting at [offset]. Must not exceed [maxPayloadSize].
+     */
+    fun write(payload: ByteArray, offset: Int = 0, length: Int = payload.size): PooledPacket {
+        val udpLength = HEADER_LENGTH + length
+        val packet = packetPool.acquire()
+        val buffer = packet.buffer
+
+        ipPacketBuilder.writeHeader(buffer, udpLength)
+
+        buffer.put(headerTemplate)
+        buffer.putShort(udpOffset + 4, udpLength.toShort())
+        buffer.put(payload, offset, length)
+
+        // the length is part of both the pseudo header and the UDP header
+        var checksum = baseChecksum + 2 * udpLength
+        checksum = InternetChecksum.sum(payload, offset, length, checksum)
+        // a computed checksum of zero is transmitted as all ones, since zero means "no checksum"
+        val finished = InternetChecksum.finish(checksum).let { if(it == 0) 0xFFFF else it }
+        buffer.putShort(udpOffset + 6, finished.toShort())
+
+        buffer.flip()
+        return packet
+    }
+
+    companion object {
+        private const val HEADER_LENGTH = 8
+    }
+}
@@ -0,0 +1,107 @@
+package de.tomcory.heimdall.core.vpn.metadata
+
+import timber.log.Timber
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Detects apps that reject the impersonated certificates of a host, e.g. because they pin the host's certificate.
+ *
+ * TLS connections report whether the client accepted the client-facing session. Once an (app, hostname) pair has failed
+ * [threshold] times within [windowMillis] without a success in between, it is promoted into the [TlsPassthroughCache]
+ * for [passthroughTtlMillis], so that the app's next attempts are passed through instead of failing over and over again,
+ * each at the cost of two handshakes.
+ *
+ * Connections that are merely closed without any data are also counted, since that is how apps that check pinned
+ * certificates after the handshake behave. However, the same applies to speculative preconnects, so a pair is only promoted
+ * if at least one of its failures is conclusive, i.e. a failed handshake or an alert sent by the client.
+ *
+ * @param passthroughCache The cache that failing pairs are promoted into.
+ * @param threshold Number of failures after which a pair is promoted.
+ * @param windowMillis Time within which the failures must occur.
+ * @param passthroughTtlMillis Time after which a promoted pair is intercepted again.
+ */
+class PinningFailureTracker(
+    private val passthroughCache: TlsPassthroughCache,
+    private val threshold: Int = DEFAULT_THRESHOLD,
+    private val windowMillis: Long = DEFAULT_WINDOW_MILLIS,
+    private val passthroughTtlMillis: Long = DEFAULT_PASSTHROUGH_TTL_MILLIS
+) {
+
+    private class Failures(var count: Int, var firstFailure: Long, var conclusive: Boolean)
+
+    /** Recent failures per pair, bounded by [MAX_TRACKED_PAIRS]. Guarded by itself. */
+    private val failures = object : LinkedHashMap<TlsPassthroughCacheEntry, Failures>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<TlsPassthroughCacheEntry, Failures>?): Boolean {
+            return size > MAX_TRACKED_PAIRS
+        }
+    }
+
+    /**
+     * Number of pairs promoted into the passthrough cache by this tracker.
+     */
+    val promotedCount: Int
+        get() = promoted.get()
+
+    private val promoted = AtomicInteger(0)
+
+    /**
+     * Records that the supplied app rejected the client-facing TLS session for the supplied host.
+     *
+     * @param conclusive Whether the client-facing handshake failed or the client sent an alert, as opposed to the client
+     *                   merely closing the connection without sending any data.
+     * @return Whether the pair has been promoted into the passthrough cache.
+     */
+    fun recordFailure(uid: Int, hostname: String, reason: String, conclusive: Boolean): Boolean {
+        if(uid < 0 || hostname.isEmpty()) {
+            return false
+        }
+        val key = TlsPassthroughCacheEntry(uid, hostname)
+        val now = System.currentTimeMillis()
+
+        val promote = synchronized(failures) {
+            val entry = failures[key]
+            val current = if(entry == null || now - entry.firstFailure > windowMillis) {
+                Failures(0, now, false).also { failures[key] = it }
+            } else {
+                entry
+            }
+            current.count++
+            current.conclusive = current.conclusive || conclusive
+            if(current.count >= threshold && current.conclusive) {
+                failures.remove(key)
+                true
+            } else {
+                false
+            }
+        }
+
+        if(promote) {
+            passthroughCache.put(uid, hostname, passthroughTtlMillis)
+            promoted.incrementAndGet()
+            Timber.w("Passing through $hostname for app $uid after $threshold failed client handshakes (last: $reason)")
+        } else {
+            Timber.d("Client handshake for $hostname failed for app $uid ($reason)")
+        }
+        return promote
+    }
+
+    /**
+     * Records that the supplied app accepted the client-facing TLS session for the supplied host, clearing its failures.
+     */
+    fun recordSuccess(uid: Int, hostname: String) {
+        synchronized(failures) {
+            failures.remove(TlsPassthroughCacheEntry(uid, hostname))
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_THRESHOLD = 2
+        private const val DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000L
+        private const val DEFAULT_PASSTHROUGH_TTL_MILLIS = 7 * 24 * 60 * 60 * 1000L
+
+        /**
+         * Upper bound for the number of pairs with recent failures, so that random one-off failures can't grow the tracker indefinitely.
+         */
+        private const val MAX_TRACKED_PAIRS = 1024
+    }
+}
@@ -0,0 +1,66 @@
+package de.tomcory.heimdall.core.vpn.metadata
+
+import timber.log.Timber
+import java.nio.ByteBuffer
+import java.util.BitSet
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Maps the connection IDs QUIC servers chose for themselves to the hostnames of their connections.
+ *
+ * Clients address all short header packets to the server's connection ID, so when a QUIC connection migrates to a new
+ * flow (e.g. after a NAT rebinding or a network change), the new flow's first datagram can be attributed to the hostname
+ * learned from the original flow's ClientHello. Short header packets don't encode the length of their connection ID, so
+ * lookups try every length that has been stored before.
+ */
+class QuicConnectionIdCache(private val maxSize: Int = 1024) {
+
+    init {
+        Timber.d("QuicConnectionIdCache initialised with maxSize=$maxSize")
+    }
+
+    /** Keys are read-only buffers wrapping copies of the connection IDs, which compare by content. */
+    private val cache = object : LinkedHashMap<ByteBuffer, String>(maxSize + 1, .75f, false) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ByteBuffer, String>?): Boolean {
+            return size > maxSize
+        }
+    }
+
+    /** Lengths of the stored connection IDs. */
+    private val lengths = BitSet(MAX_CONNECTION_ID_LENGTH + 1)
+
+    private val lock = ReentrantReadWriteLock()
+
+    fun put(connectionId: ByteArray, hostname: String) {
+        if(connectionId.isEmpty() || connectionId.size > MAX_CONNECTION_ID_LENGTH) {
+            return
+        }
+        lock.write {
+            cache[ByteBuffer.wrap(connectionId.copyOf()).asReadOnlyBuffer()] = hostname
+            lengths.set(connectionId.size)
+        }
+    }
+
+    /**
+     * Looks up the hostname of the connection a short header packet is addressed to.
+     *
+     * @param datagram A datagram starting with a QUIC short header packet.
+     */
+    fun findShortHeader(datagram: ByteArray): String? {
+        return lock.read {
+            var length = lengths.nextSetBit(1)
+            while(length in 1 until datagram.size) {
+                cache[ByteBuffer.wrap(datagram, 1, length)]?.let { return@read it }
+                length = lengths.nextSetBit(length + 1)
+            }
+            null
+        }
+    }
+
+    companion object {
+        /** Maximum connection ID length in QUIC version 1. */
+        private const val MAX_CONNECTION_ID_LENGTH = 20
+    }
+}
@@ -1,31 +1,107 @@
 package de.tomcory.heimdall.core.vpn.metadata
 
 import timber.log.Timber
+import java.io.File
+import java.io.IOException
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
 
-class TlsPassthroughCache {
+/**
+ * Set of (app, hostname) pairs whose TLS connections are passed through instead of being intercepted.
+ *
+ * Entries may expire, so that passthrough decisions learned at runtime (see [PinningFailureTracker]) are revisited
+ * eventually. If a file is supplied, the entries can be written to it with [save] and are read back from it on creation,
+ * so that they survive VPN sessions.
+ *
+ * @param file The file the entries are persisted in, or null to keep them in memory only.
+ */
+class TlsPassthroughCache(private val file: File? = null) {
+
+    /** Expiry time of each entry in milliseconds, or [NEVER] for permanent entries. */
+    private val cache = HashMap<TlsPassthroughCacheEntry, Long>()
+
+    private val lock = ReentrantReadWriteLock()
 
     init {
-        Timber.d("TlsPassthroughCache initialised")
+        load()
+        Timber.d("TlsPassthroughCache initialised with ${cache.size} entries")
     }
 
-    private val cache = HashSet<TlsPassthroughCacheEntry>()
-
-    private val lock = ReentrantReadWriteLock()
+    /**
+     * Number of entries, including expired ones that haven't been evicted yet.
+     */
+    val size: Int
+        get() = lock.read { cache.size }
 
-    fun put(initiator: Int, hostname: String) {
+    fun put(initiator: Int, hostname: String, ttlMillis: Long = -1) {
+        val expiry = if(ttlMillis < 0) NEVER else System.currentTimeMillis() + ttlMillis
         lock.write {
-            cache.add(TlsPassthroughCacheEntry(initiator, hostname))
+            cache[TlsPassthroughCacheEntry(initiator, hostname)] = expiry
         }
     }
 
     fun get(initiator: Int, hostname: String): Boolean {
-        return lock.read {
-            cache.contains(TlsPassthroughCacheEntry(initiator, hostname))
+        val expiry = lock.read {
+            cache[TlsPassthroughCacheEntry(initiator, hostname)]
+        } ?: return false
+
+        if(expiry < System.currentTimeMillis()) {
+            lock.write {
+                cache.remove(TlsPassthroughCacheEntry(initiator, hostname), expiry)
+            }
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Writes the entries that haven't expired yet to the cache's file, replacing its previous content.
+     */
+    fun save() {
+        if(file == null) {
+            return
         }
+        val now = System.currentTimeMillis()
+        val lines = lock.read {
+            cache.filter { it.value >= now }.map { (entry, expiry) -> "${entry.initiator}\t$expiry\t${entry.hostname}" }
+        }
+        try {
+            file.parentFile?.mkdirs()
+            val temp = File(file.parentFile, "${file.name}.tmp")
+            temp.writeText(lines.joinToString("\n"))
+            if(!temp.renameTo(file)) {
+                throw IOException("Could not replace ${file.name}")
+            }
+            Timber.d("TlsPassthroughCache saved ${lines.size} entries")
+        } catch (e: IOException) {
+            Timber.e(e, "Error saving TlsPassthroughCache")
+        }
+    }
+
+    private fun load() {
+        if(file == null || !file.exists()) {
+            return
+        }
+        val now = System.currentTimeMillis()
+        try {
+            file.forEachLine { line ->
+                val parts = line.split('\t', limit = 3)
+                val initiator = parts.getOrNull(0)?.toIntOrNull()
+                val expiry = parts.getOrNull(1)?.toLongOrNull()
+                val hostname = parts.getOrNull(2)
+                if(initiator != null && expiry != null && !hostname.isNullOrEmpty() && expiry >= now) {
+                    cache[TlsPassthroughCacheEntry(initiator, hostname)] = expiry
+                }
+            }
+        } catch (e: IOException) {
+            Timber.e(e, "Error loading TlsPassthroughCache")
+        }
+    }
+
+    companion object {
+        private const val NEVER = Long.MAX_VALUE
     }
 }
 
-data class TlsPassthroughCacheEntry(val initiator: Int, val hostname: String)
\ No newline at end of file
+data class TlsPassthroughCacheEntry(val initiator: Int, val hostname: String)
@@ -24,6 +24,7 @@ import java.security.*
 import java.security.cert.Certificate
 import java.security.cert.CertificateException
 import java.security.cert.X509Certificate
+import java.security.spec.ECGenParameterSpec
 import java.util.*
 import javax.net.ssl.*
 
@@ -34,6 +35,8 @@ object CertificateHelper {
     }
 
     private const val KEYGEN_ALGORITHM = "RSA"
+    private const val EC_KEYGEN_ALGORITHM = "EC"
+    private const val EC_CURVE = "secp256r1"
     private const val SECURE_RANDOM_ALGORITHM = "SHA1PRNG"
 
     private const val PROVIDER_NAME = BouncyCastleProvider.PROVIDER_NAME
@@ -56,6 +59,12 @@ object CertificateHelper {
     /** The milliseconds of a day  */
     private const val ONE_DAY = 86400000L
 
+    /**
+     * Validity of fake server certificates in days. Long enough for persisted certificates
+     * to be reused across sessions, short enough to stay far below the limits enforced by clients.
+     */
+    private const val SERVER_CERT_VALIDITY_DAYS = 30
+
     /**
      * Current time minus 1 year, just in case software clock goes back due to
      * time synchronization
@@ -168,12 +177,10 @@ object CertificateHelper {
         subjectAlternativeNames: SubjectAlternativeNameHolder,
         authority: Authority,
         caCert: Certificate,
-        caPrivateKey: PrivateKey
+        caPrivateKey: PrivateKey,
+        keyPair: KeyPair = generateKeyPair(FAKE_KEY_SIZE)
     ): KeyStore {
 
-        // generate a 2048-bit public/private key pair to use with the certificate
-        val keyPair = generateKeyPair(FAKE_KEY_SIZE)
-
         // the issuer of the server certificate is the subject of the CA certificate
         val issuer = X509CertificateHolder(caCert.encoded).subject
 
@@ -191,7 +198,7 @@ object CertificateHelper {
             issuer,
             serial,
             NOT_BEFORE,
-            Date(System.currentTimeMillis() + ONE_DAY),
+            Date(System.currentTimeMillis() + ONE_DAY * SERVER_CERT_VALIDITY_DAYS),
             subject,
             keyPair.public
         )
@@ -277,6 +284,21 @@ object CertificateHelper {
         return generator.generateKeyPair()
     }
 
+    /**
+     * Generates a key pair for a fake server certificate. The certificate is signed with the CA's RSA key regardless of the key type.
+     */
+    @Throws(GeneralSecurityException::class)
+    fun generateServerKeyPair(keyType: LeafKeyType): KeyPair {
+        return when (keyType) {
+            LeafKeyType.RSA_2048 -> generateKeyPair(FAKE_KEY_SIZE)
+            LeafKeyType.EC_P256 -> {
+                val generator = KeyPairGenerator.getInstance(EC_KEYGEN_ALGORITHM)
+                generator.initialize(ECGenParameterSpec(EC_CURVE), SecureRandom())
+                generator.generateKeyPair()
+            }
+        }
+    }
+
     /**
      * Uses the non-portable system property sun.arch.data.model to help
      * determine if we are running on a 32-bit JVM. Since the majority of modern
@@ -10,11 +10,14 @@ import javax.net.ssl.SSLSocket
  * MitmManager that uses the common name and subject alternative names
  * from the upstream certificate to create a dynamic certificate with it.
  */
-class CertificateSniffingMitmManager(authority: Authority?) {
+class CertificateSniffingMitmManager(
+    authority: Authority?,
+    private val keyPairPool: KeyPairPool? = null
+) {
 
     private var sslEngineSource: SSLEngineSource? = try {
         if (authority != null) {
-            SSLEngineSource(authority, trustAllServers = true, sendCerts = true)
+            SSLEngineSource(authority, trustAllServers = true, sendCerts = true, keyPairPool = keyPairPool)
         } else {
             null
         }
@@ -23,6 +26,24 @@ class CertificateSniffingMitmManager(authority: Authority?) {
     }
 
 
+    /**
+     * Starts pre-generating the key pairs of the fake certificates in the background.
+     */
+    fun startKeyPairPool() {
+        keyPairPool?.start()
+    }
+
+    fun stopKeyPairPool() {
+        keyPairPool?.stop()
+    }
+
+    /**
+     * Loads the most recently used fake certificates from disk into memory. Should be called off the traffic-handling threads.
+     */
+    fun warmUpCertificateCache(limit: Int = WARM_UP_LIMIT): Int {
+        return sslEngineSource?.warmUpCertificateCache(limit) ?: 0
+    }
+
     fun createServerSSLEngine(peerHost: String?, peerPort: Int): SSLEngine? {
         return if(peerHost != null) sslEngineSource?.newSSLEngine(peerHost, peerPort) else createServerSSLEngine()
     }
@@ -31,6 +52,21 @@ class CertificateSniffingMitmManager(authority: Authority?) {
         return sslEngineSource?.newSSLEngine(true)
     }
 
+    /**
+     * Records the outcome of a completed handshake of an engine created by [createServerSSLEngine] for the session resumption metrics.
+     *
+     * @return Whether the handshake resumed an earlier session.
+     */
+    fun recordUpstreamHandshake(session: SSLSession, handshakeStart: Long): Boolean {
+        return sslEngineSource?.upstreamSessionCache?.recordHandshake(session, handshakeStart) ?: false
+    }
+
+    /**
+     * The session resumption metrics of the engines created by [createServerSSLEngine], or null if there is no CA.
+     */
+    val upstreamSessionCache: UpstreamSessionCache?
+        get() = sslEngineSource?.upstreamSessionCache
+
     fun createServerSSLSocket(peerHost: String?, peerPort: Int): SSLSocket? {
         return if(peerHost != null) sslEngineSource?.newSSLSocket(peerHost, peerPort) else createServerSSLSocket()
     }
@@ -90,6 +126,8 @@ class CertificateSniffingMitmManager(authority: Authority?) {
 
     //TODO: singleton isn't ideal here; it would be better to attach it to the VpnService lifecycle
     companion object {
+        private const val WARM_UP_LIMIT = 64
+
         private var singleton: CertificateSniffingMitmManager? = null
 
         @JvmStatic
@@ -0,0 +1,143 @@
+package de.tomcory.heimdall.core.vpn.mitm
+
+import android.os.Process
+import timber.log.Timber
+import java.security.GeneralSecurityException
+import java.security.KeyPair
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The kinds of key pairs that can be used for the fake server certificates.
+ */
+enum class LeafKeyType {
+    /** 2048-bit RSA keys, which every client accepts but which take hundreds of milliseconds to generate on a phone. */
+    RSA_2048,
+
+    /** ECDSA keys on the P-256 curve, which are generated within a few milliseconds. */
+    EC_P256
+}
+
+/**
+ * Keeps a stock of pre-generated key pairs for the fake server certificates, so that impersonating a new host doesn't
+ * have to wait for a key pair to be generated.
+ *
+ * A background thread with low priority refills the pool up to the high watermark whenever it has been drained down to
+ * the low watermark. If the pool is empty when a key pair is needed, one is generated on the calling thread.
+ *
+ * @param keyType The type of key pairs generated by the pool.
+ * @param lowWatermark Number of remaining key pairs at which the pool is refilled.
+ * @param highWatermark Number of key pairs the pool is refilled to.
+ */
+class KeyPairPool(
+    val keyType: LeafKeyType = LeafKeyType.RSA_2048,
+    private val lowWatermark: Int = DEFAULT_LOW_WATERMARK,
+    private val highWatermark: Int = DEFAULT_HIGH_WATERMARK
+) {
+
+    init {
+        require(lowWatermark in 0 until highWatermark) { "Low watermark $lowWatermark must be below high watermark $highWatermark" }
+    }
+
+    private val keyPairs = ArrayBlockingQueue<KeyPair>(highWatermark)
+
+    private val refillMonitor = Object()
+
+    private var fillThread: Thread? = null
+
+    private val hits = AtomicLong(0)
+    private val misses = AtomicLong(0)
+
+    /**
+     * Number of key pairs currently in the pool.
+     */
+    val size: Int
+        get() = keyPairs.size
+
+    /**
+     * Number of key pairs taken from the pool.
+     */
+    val hitCount: Long
+        get() = hits.get()
+
+    /**
+     * Number of key pairs that had to be generated on demand because the pool was empty.
+     */
+    val missCount: Long
+        get() = misses.get()
+
+    /**
+     * Starts the background thread that fills the pool. Does nothing if the thread is already running.
+     */
+    @Synchronized
+    fun start() {
+        if (fillThread != null) {
+            return
+        }
+        fillThread = Thread({ fill() }, "KeyPairPool").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Stops the background thread. Key pairs already in the pool can still be taken.
+     */
+    @Synchronized
+    fun stop() {
+        fillThread?.interrupt()
+        fillThread = null
+    }
+
+    /**
+     * Takes a key pair from the pool, or generates one if the pool is empty.
+     */
+    @Throws(GeneralSecurityException::class)
+    fun take(): KeyPair {
+        val keyPair = keyPairs.poll()
+        if (keyPairs.size <= lowWatermark) {
+            synchronized(refillMonitor) {
+                refillMonitor.notifyAll()
+            }
+        }
+        return if (keyPair != null) {
+            hits.incrementAndGet()
+            keyPair
+        } else {
+            misses.incrementAndGet()
+            Timber.d("KeyPairPool empty, generating key pair on demand")
+            CertificateHelper.generateServerKeyPair(keyType)
+        }
+    }
+
+    private fun fill() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST)
+        Timber.d("KeyPairPool fill thread started ($keyType, $lowWatermark-$highWatermark)")
+        try {
+            while (!Thread.interrupted()) {
+                synchronized(refillMonitor) {
+                    // once full, sleep until the pool has been drained down to the low watermark
+                    if (keyPairs.size >= highWatermark) {
+                        while (keyPairs.size > lowWatermark) {
+                            refillMonitor.wait()
+                        }
+                    }
+                }
+                try {
+                    keyPairs.offer(CertificateHelper.generateServerKeyPair(keyType))
+                } catch (e: GeneralSecurityException) {
+                    Timber.e(e, "Error generating key pair, stopping KeyPairPool fill thread")
+                    return
+                }
+            }
+        } catch (e: InterruptedException) {
+            // told to stop
+        }
+        Timber.d("KeyPairPool fill thread shut down")
+    }
+
+    companion object {
+        private const val DEFAULT_LOW_WATERMARK = 4
+        private const val DEFAULT_HIGH_WATERMARK = 16
+    }
+}
@@ -52,6 +52,18 @@ class SSLEngineSource (
      */
     private val sendCerts: Boolean,
 
+    /**
+     * the pool the key pairs of the dynamically created server certificates are
+     * taken from. If null, a key pair is generated for every certificate.
+     */
+    private val keyPairPool: KeyPairPool? = null,
+
+    /**
+     * when set to true, the dynamically created server certificates are
+     * stored on disk and reused across sessions
+     */
+    private val persistCertificates: Boolean = true,
+
     /**
      * a cache to store dynamically created server certificates.
      * Generation takes between 50 to 500ms, but only once per
@@ -64,6 +76,13 @@ class SSLEngineSource (
     private lateinit var sslContext: SSLContext
     private lateinit var caCert: Certificate
     private lateinit var caPrivateKey: PrivateKey
+    private var certificateStore: ServerCertificateStore? = null
+
+    /**
+     * Resumes the sessions with remote hosts across the engines created by [newSSLEngine].
+     */
+    lateinit var upstreamSessionCache: UpstreamSessionCache
+        private set
 
     init {
         initialiseSSLContext()
@@ -97,9 +116,12 @@ class SSLEngineSource (
     }
 
     fun newSSLEngine(remoteHost: String, remotePort: Int): SSLEngine {
-        val sslEngine = sslContext.createSSLEngine(remoteHost, remotePort)
+        val sslEngine = upstreamSessionCache.newEngine(remoteHost, remotePort)
         sslEngine.useClientMode = true
-        if (!tryHostNameVerificationJava7(sslEngine)) {
+        if (UpstreamSessionCache.isIpAddress(remoteHost)) {
+            // the host is only used to key the session, there is no hostname to verify
+            Timber.d("No hostname for %s, skipping Host Name Verification", remoteHost)
+        } else if (!tryHostNameVerificationJava7(sslEngine)) {
             Timber.d("Host Name Verification is not supported, causes insecure HTTPS connection")
         }
         filterWeakCipherSuites(sslEngine)
@@ -134,6 +156,9 @@ class SSLEngineSource (
         )
         caCert = ks.getCertificate(authority.alias)
         caPrivateKey = ks.getKey(authority.alias, authority.password) as PrivateKey
+        if (persistCertificates) {
+            certificateStore = ServerCertificateStore(authority, caCert)
+        }
 
         //TODO: can we get rid of the InsecureTrustManagerFactory (with the goal of eliminating Netty)?
         val trustManagers: Array<TrustManager> = if (trustAllServers) {
@@ -150,6 +175,7 @@ class SSLEngineSource (
             arrayOfNulls(0)
         }
         sslContext = CertificateHelper.newClientContext(keyManagers, trustManagers)
+        upstreamSessionCache = UpstreamSessionCache(sslContext)
         val sslEngine = sslContext.createSSLEngine()
         if (!tryHostNameVerificationJava7(sslEngine)) {
             Timber.w("Host Name Verification is not supported, causes insecure HTTPS connection to upstream servers.")
@@ -183,30 +209,63 @@ class SSLEngineSource (
         requireNotNull(commonName) { "Error, 'commonName' is not allowed to be null!" }
         requireNotNull(subjectAlternativeNames) { "Error, 'subjectAlternativeNames' is not allowed to be null!" }
 
+        // hosts sharing a common name may still present different alternative names, so both make up the key
+        val key = certificateStore?.keyFor(commonName, subjectAlternativeNames)
+            ?: "$commonName\n${subjectAlternativeNames.canonicalForm()}"
+
         val ctx: SSLContext = if (serverSSLContexts == null) {
-            createServerContext(commonName, subjectAlternativeNames)
+            createServerContext(key, commonName, subjectAlternativeNames)
         } else {
-            //TODO: what is going on here?
-            serverSSLContexts[commonName, Callable {
-                createServerContext(commonName, subjectAlternativeNames)
+            // load the context from the cache or create (and cache) it if it is missing
+            serverSSLContexts[key, Callable {
+                createServerContext(key, commonName, subjectAlternativeNames)
             }]
         }
         return ctx.createSSLEngine()
     }
 
+    /**
+     * Loads the most recently used certificates from disk into the in-memory cache,
+     * so that the first handshakes with popular hosts skip the certificate store too.
+     *
+     * @return the number of certificates loaded
+     */
+    fun warmUpCertificateCache(limit: Int): Int {
+        val store = certificateStore ?: return 0
+        val cache = serverSSLContexts ?: return 0
+        var loaded = 0
+        for ((key, ks) in store.loadRecent(limit)) {
+            try {
+                cache.put(key, CertificateHelper.newServerContext(CertificateHelper.getKeyManagers(ks, authority)))
+                loaded++
+            } catch (e: GeneralSecurityException) {
+                Timber.w(e, "Error loading stored certificate %s", key)
+            }
+        }
+        return loaded
+    }
+
     @Throws(GeneralSecurityException::class, IOException::class, OperatorCreationException::class)
     private fun createServerContext(
+        key: String,
         commonName: String,
         subjectAlternativeNames: SubjectAlternativeNameHolder
     ): SSLContext {
 
+        // reuse the certificate created for the same names in an earlier session
+        certificateStore?.load(key)?.let { stored ->
+            Timber.d("Loaded stored fake certificate to impersonate %s", commonName)
+            return CertificateHelper.newServerContext(CertificateHelper.getKeyManagers(stored, authority))
+        }
+
         // create a fake certificate with the commonName of the remote server, thus impersonating it
         val ks = CertificateHelper.createServerCertificate(
             commonName,
             subjectAlternativeNames,
             authority,
             caCert,
-            caPrivateKey
+            caPrivateKey,
+            keyPairPool?.take() ?: CertificateHelper.generateServerKeyPair(LeafKeyType.RSA_2048)
         )
 
         // initialise a new SSLContext using the fake server certificate
@@ -215,6 +274,8 @@ class SSLEngineSource (
 
         Timber.d("Created fake certificate to impersonate %s", commonName)
 
+        certificateStore?.store(key, ks)
+
         return result
     }
 
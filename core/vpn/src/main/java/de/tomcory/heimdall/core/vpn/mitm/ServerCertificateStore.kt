@@ -0,0 +1,148 @@
+package de.tomcory.heimdall.core.vpn.mitm
+
+import timber.log.Timber
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.GeneralSecurityException
+import java.security.KeyStore
+import java.security.MessageDigest
+import java.security.PrivateKey
+import java.security.cert.Certificate
+import java.security.cert.X509Certificate
+
+/**
+ * Keeps the fake server certificates on disk, so that they survive the in-memory cache and VPN restarts.
+ *
+ * Every certificate is stored in its own PKCS12 file within the supplied directory. The file name is derived from the
+ * certificate's common name, its subject alternative names and the fingerprint of the CA that signed it, so certificates
+ * signed by a previous CA are never handed out. Certificates that are about to expire are treated as missing and deleted.
+ *
+ * @param authority The authority whose alias and password protect the stored key stores.
+ * @param caCert The certificate of the CA that signs the fake server certificates.
+ * @param directory The directory the certificates are stored in.
+ */
+class ServerCertificateStore(
+    private val authority: Authority,
+    caCert: Certificate,
+    private val directory: File = File(authority.keyStoreDir, DIRECTORY_NAME)
+) {
+
+    private val caFingerprint = sha256Hex(caCert.encoded)
+
+    init {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Timber.e("Failed to create certificate store directory %s", directory)
+        }
+    }
+
+    /**
+     * Computes the key a certificate for the supplied names is stored under.
+     */
+    fun keyFor(commonName: String, subjectAlternativeNames: SubjectAlternativeNameHolder): String {
+        return sha256Hex("$commonName\n${subjectAlternativeNames.canonicalForm()}\n$caFingerprint".toByteArray())
+    }
+
+    /**
+     * Loads the certificate stored under the supplied key.
+     *
+     * @return The key store holding the certificate, or null if there is no valid certificate for the key.
+     */
+    fun load(key: String): KeyStore? {
+        val file = fileFor(key)
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            val keyStore = KeyStore.getInstance(KEY_STORE_TYPE)
+            FileInputStream(file).use { keyStore.load(it, authority.password) }
+            if (isExpiring(keyStore)) {
+                file.delete()
+                null
+            } else {
+                // the modification time doubles as the time of last use, which decides what is loaded on warm-up
+                file.setLastModified(System.currentTimeMillis())
+                keyStore
+            }
+        } catch (e: Exception) {
+            Timber.w(e, "Discarding unreadable certificate %s", file.name)
+            file.delete()
+            null
+        }
+    }
+
+    /**
+     * Stores the certificate held by the supplied key store under the supplied key.
+     */
+    fun store(key: String, keyStore: KeyStore) {
+        val file = fileFor(key)
+        val tempFile = File(directory, "$key$TEMP_FILE_EXTENSION")
+        try {
+            val chain = keyStore.getCertificateChain(authority.alias)
+            val privateKey = keyStore.getKey(authority.alias, authority.password) as PrivateKey
+
+            val pkcs12 = KeyStore.getInstance(KEY_STORE_TYPE)
+            pkcs12.load(null, null)
+            pkcs12.setKeyEntry(authority.alias, privateKey, authority.password, chain)
+
+            // write to a temporary file first, so that a crash never leaves a truncated certificate behind
+            FileOutputStream(tempFile).use { pkcs12.store(it, authority.password) }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete()
+            }
+        } catch (e: GeneralSecurityException) {
+            Timber.e(e, "Error storing certificate %s", key)
+        } catch (e: IOException) {
+            Timber.e(e, "Error storing certificate %s", key)
+            tempFile.delete()
+        }
+    }
+
+    /**
+     * Loads the most recently used certificates and deletes the expired ones.
+     *
+     * @param limit The maximum number of certificates to load.
+     * @return The loaded certificates by their keys, most recently used first.
+     */
+    fun loadRecent(limit: Int): List<Pair<String, KeyStore>> {
+        val files = directory.listFiles { file -> file.name.endsWith(KEY_STORE_FILE_EXTENSION) } ?: return emptyList()
+        val result = ArrayList<Pair<String, KeyStore>>()
+        for (file in files.sortedByDescending { it.lastModified() }) {
+            val key = file.name.removeSuffix(KEY_STORE_FILE_EXTENSION)
+            if (result.size < limit) {
+                load(key)?.let { result.add(key to it) }
+            } else if (System.currentTimeMillis() - file.lastModified() > MAX_UNUSED_AGE) {
+                // certificates beyond the limit aren't inspected, so rely on their age to keep the directory from growing indefinitely
+                file.delete()
+            }
+        }
+        return result
+    }
+
+    private fun fileFor(key: String): File {
+        return File(directory, "$key$KEY_STORE_FILE_EXTENSION")
+    }
+
+    private fun isExpiring(keyStore: KeyStore): Boolean {
+        val cert = keyStore.getCertificate(authority.alias) as? X509Certificate ?: return true
+        return cert.notAfter.time - System.currentTimeMillis() < MIN_REMAINING_VALIDITY
+    }
+
+    companion object {
+        private const val DIRECTORY_NAME = "certs"
+        private const val KEY_STORE_TYPE = "PKCS12"
+        private const val KEY_STORE_FILE_EXTENSION = ".p12"
+        private const val TEMP_FILE_EXTENSION = ".tmp"
+
+        /** Certificates that expire sooner than this are regenerated. */
+        private const val MIN_REMAINING_VALIDITY = 60L * 60 * 1000
+
+        /** Certificates that haven't been used for this long are deleted. */
+        private const val MAX_UNUSED_AGE = 7L * 24 * 60 * 60 * 1000
+
+        private fun sha256Hex(data: ByteArray): String {
+            return MessageDigest.getInstance("SHA-256").digest(data).joinToString("") { String.format("%02x", it) }
+        }
+    }
+}
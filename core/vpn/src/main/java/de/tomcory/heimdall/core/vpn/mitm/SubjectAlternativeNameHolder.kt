@@ -47,6 +47,13 @@ class SubjectAlternativeNameHolder {
         }
     }
 
+    /**
+     * Returns a canonical representation of the names that doesn't depend on the order they were added in.
+     */
+    fun canonicalForm(): String {
+        return sans.map { it.toString() }.sorted().joinToString(",")
+    }
+
     private fun isValidNameEntry(nameEntry: List<*>?): Boolean {
         if (nameEntry == null || nameEntry.size != 2) {
             return false
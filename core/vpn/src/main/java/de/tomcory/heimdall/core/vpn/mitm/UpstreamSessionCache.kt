@@ -0,0 +1,87 @@
+package de.tomcory.heimdall.core.vpn.mitm
+
+import com.google.common.net.InetAddresses
+import java.util.concurrent.atomic.AtomicLong
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.SSLSession
+
+/**
+ * Resumes the TLS sessions with remote hosts across connections.
+ *
+ * All engines facing remote hosts are created from one shared [SSLContext], whose client session cache keeps the session
+ * IDs and tickets of completed handshakes. The JSSE provider looks sessions up by the peer host and port an engine is
+ * created for, so engines are always created for a host:port pair: the SNI if the client sent one, otherwise the remote
+ * IP address. Whether a handshake resumed a session is tracked for the hit/miss metrics.
+ *
+ * @param sslContext The shared client-mode context. Its session cache is resized and its timeout adjusted.
+ */
+class UpstreamSessionCache(
+    private val sslContext: SSLContext,
+    cacheSize: Int = DEFAULT_CACHE_SIZE,
+    timeoutSeconds: Int = DEFAULT_TIMEOUT_SECONDS
+) {
+
+    init {
+        sslContext.clientSessionContext.sessionCacheSize = cacheSize
+        sslContext.clientSessionContext.sessionTimeout = timeoutSeconds
+    }
+
+    private val hits = AtomicLong(0)
+    private val misses = AtomicLong(0)
+
+    /**
+     * Number of handshakes that resumed an earlier session.
+     */
+    val hitCount: Long
+        get() = hits.get()
+
+    /**
+     * Number of full handshakes.
+     */
+    val missCount: Long
+        get() = misses.get()
+
+    /**
+     * Creates a client-mode engine whose sessions are keyed by the supplied host and port.
+     */
+    fun newEngine(remoteHost: String, remotePort: Int): SSLEngine {
+        return sslContext.createSSLEngine(remoteHost, remotePort)
+    }
+
+    /**
+     * Records the outcome of a completed handshake for the metrics.
+     *
+     * @param session The session negotiated by the handshake.
+     * @param handshakeStart The time the handshake was started at in milliseconds.
+     * @return Whether the handshake resumed an earlier session.
+     */
+    fun recordHandshake(session: SSLSession, handshakeStart: Long): Boolean {
+        // a resumed session was created by an earlier handshake
+        val resumed = session.creationTime < handshakeStart
+        if (resumed) {
+            hits.incrementAndGet()
+        } else {
+            misses.incrementAndGet()
+        }
+        return resumed
+    }
+
+    override fun toString(): String {
+        val total = hitCount + missCount
+        val ratio = if (total > 0) hitCount * 100 / total else 0
+        return "UpstreamSessionCache(hits=$hitCount, misses=$missCount, hitRatio=$ratio%)"
+    }
+
+    companion object {
+        private const val DEFAULT_CACHE_SIZE = 1024
+        private const val DEFAULT_TIMEOUT_SECONDS = 4 * 60 * 60
+
+        /**
+         * Whether the supplied host is an IP literal rather than a hostname. Hostname verification and SNI don't apply to IP literals.
+         */
+        fun isIpAddress(host: String): Boolean {
+            return InetAddresses.isInetAddress(host)
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package de.tomcory.heimdall.core.vpn.pipeline
+
+import android.os.Handler
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+
+/**
+ * [PacketTransport] that wraps each packet in a [android.os.Message] and posts it to the receiving stage's [Handler].
+ * The transport protocol is passed as the message's `what`.
+ */
+class HandlerPacketTransport(private val handler: Handler) : PacketTransport {
+
+    @Volatile
+    private var closed = false
+
+    override fun send(transportProtocol: Int, packet: PooledPacket) {
+        if(closed || !handler.sendMessage(handler.obtainMessage(transportProtocol, packet))) {
+            packet.release()
+        }
+    }
+
+    override fun post(task: Runnable): Boolean {
+        return !closed && handler.post(task)
+    }
+
+    override fun close() {
+        closed = true
+    }
+}
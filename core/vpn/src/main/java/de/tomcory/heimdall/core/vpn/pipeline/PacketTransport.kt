@@ -0,0 +1,28 @@
+package de.tomcory.heimdall.core.vpn.pipeline
+
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+
+/**
+ * Hands packets from one traffic-handling stage to the next. Ownership of a packet passes to the receiving stage with [send].
+ */
+interface PacketTransport {
+
+    /**
+     * Passes a packet on to the next stage.
+     *
+     * @param transportProtocol The packet's transport protocol number (6 for TCP, 17 for UDP).
+     */
+    fun send(transportProtocol: Int, packet: PooledPacket)
+
+    /**
+     * Runs a task on the receiving stage's thread, between two packets.
+     *
+     * @return False if the transport has been closed, in which case the task is never run.
+     */
+    fun post(task: Runnable): Boolean
+
+    /**
+     * Stops accepting packets. Packets sent afterwards are released immediately.
+     */
+    fun close()
+}
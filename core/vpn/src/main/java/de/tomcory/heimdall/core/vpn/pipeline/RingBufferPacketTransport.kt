@@ -0,0 +1,135 @@
+package de.tomcory.heimdall.core.vpn.pipeline
+
+import de.tomcory.heimdall.core.vpn.buffer.PooledPacket
+import timber.log.Timber
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * [PacketTransport] backed by a [SpscRingBuffer]. There must be exactly one thread calling [send] and one calling [receive].
+ *
+ * If the buffer is full, the producer waits according to the [waitStrategy] until the consumer has made room,
+ * so a slow consumer throttles the producer instead of causing packets to be dropped. Stalls are counted to make this visible.
+ * With a [WaitStrategy.blocking] strategy, an idle consumer parks without a timeout and is unparked by the next packet sent.
+ * Tasks [post]ed by other threads are run by the consumer from within [receive].
+ *
+ * @param capacity Minimum number of packets the transport can hold.
+ * @param waitStrategy What either side does while waiting for the other.
+ */
+class RingBufferPacketTransport(
+    capacity: Int,
+    private val waitStrategy: WaitStrategy
+) : PacketTransport {
+
+    private val ring = SpscRingBuffer<PooledPacket>(capacity)
+
+    /**
+     * The consumer thread while it is (about to be) parked waiting for a packet.
+     */
+    private val parkedConsumer = AtomicReference<Thread?>(null)
+
+    private val tasks = ConcurrentLinkedQueue<Runnable>()
+
+    @Volatile
+    var closed = false
+        private set
+
+    /**
+     * Number of packets currently waiting to be received.
+     */
+    val queueDepth: Int
+        get() = ring.size
+
+    /**
+     * Largest number of packets that were waiting at the same time. Only updated by the producer.
+     */
+    @Volatile
+    var highWaterMark = 0
+        private set
+
+    /**
+     * Number of times the producer found the buffer full and had to wait.
+     */
+    @Volatile
+    var stallCount = 0L
+        private set
+
+    override fun send(transportProtocol: Int, packet: PooledPacket) {
+        var attempt = 0
+        while(!ring.offer(packet)) {
+            if(closed) {
+                packet.release()
+                return
+            }
+            if(attempt == 0) {
+                stallCount++
+            }
+            waitStrategy.idle(++attempt)
+        }
+
+        if(waitStrategy.blocking) {
+            // the atomic swap orders the published packet before the check, so a consumer about to park either sees the packet or gets unparked
+            parkedConsumer.getAndSet(null)?.let { LockSupport.unpark(it) }
+        }
+
+        val depth = ring.size
+        if(depth > highWaterMark) {
+            highWaterMark = depth
+        }
+    }
+
+    override fun post(task: Runnable): Boolean {
+        if(closed) {
+            return false
+        }
+        tasks.offer(task)
+        parkedConsumer.getAndSet(null)?.let { LockSupport.unpark(it) }
+        return true
+    }
+
+    /**
+     * Waits for the next packet according to the [waitStrategy], running the tasks posted in the meantime. Must only be called by the consumer thread.
+     *
+     * @return The next packet, or null once the transport has been closed and drained.
+     */
+    fun receive(): PooledPacket? {
+        var attempt = 0
+        while(true) {
+            runTasks()
+            ring.poll()?.let {
+                return it
+            }
+            if(closed) {
+                return ring.poll()
+            }
+            if(waitStrategy.shouldBlock(++attempt)) {
+                parkedConsumer.set(Thread.currentThread())
+                // re-check after registering, a packet sent before the registration doesn't unpark us
+                if(ring.size == 0 && tasks.isEmpty() && !closed) {
+                    LockSupport.park(this)
+                }
+                parkedConsumer.set(null)
+            } else {
+                waitStrategy.idle(attempt)
+            }
+        }
+    }
+
+    private fun runTasks() {
+        var task = tasks.poll()
+        while(task != null) {
+            try {
+                task.run()
+            } catch (e: Exception) {
+                Timber.e(e, "Error running task posted to the transport")
+            }
+            task = tasks.poll()
+        }
+    }
+
+    override fun close() {
+        closed = true
+        parkedConsumer.getAndSet(null)?.let { LockSupport.unpark(it) }
+    }
+}
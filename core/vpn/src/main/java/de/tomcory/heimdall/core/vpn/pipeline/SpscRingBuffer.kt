@@ -0,0 +1,68 @@
+package de.tomcory.heimdall.core.vpn.pipeline
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Bounded, lock-free ring buffer for exactly one producer thread and one consumer thread.
+ *
+ * The producer only ever writes [tail] and the consumer only ever writes [head], so both sides can publish their progress
+ * with ordered (lazy) stores instead of locks or CAS loops.
+ *
+ * @param requestedCapacity Minimum number of elements the buffer can hold. Rounded up to the next power of two.
+ */
+class SpscRingBuffer<T : Any>(requestedCapacity: Int) {
+
+    /**
+     * Number of elements the buffer can hold.
+     */
+    val capacity: Int = Integer.highestOneBit(maxOf(requestedCapacity, 2) - 1) shl 1
+
+    private val mask = capacity - 1
+
+    private val elements = AtomicReferenceArray<T>(capacity)
+
+    /** Index of the next element to be polled. Only written by the consumer. */
+    private val head = AtomicLong(0)
+
+    /** Index of the next free slot. Only written by the producer. */
+    private val tail = AtomicLong(0)
+
+    /**
+     * Number of elements currently in the buffer. May be slightly stale when read while either side is active.
+     */
+    val size: Int
+        get() = (tail.get() - head.get()).toInt()
+
+    /**
+     * Appends an element. Must only be called by the producer thread.
+     *
+     * @return false if the buffer is full.
+     */
+    fun offer(element: T): Boolean {
+        val currentTail = tail.get()
+        if(currentTail - head.get() >= capacity) {
+            return false
+        }
+        elements.lazySet((currentTail and mask.toLong()).toInt(), element)
+        tail.lazySet(currentTail + 1)
+        return true
+    }
+
+    /**
+     * Removes and returns the oldest element. Must only be called by the consumer thread.
+     *
+     * @return null if the buffer is empty.
+     */
+    fun poll(): T? {
+        val currentHead = head.get()
+        if(currentHead >= tail.get()) {
+            return null
+        }
+        val index = (currentHead and mask.toLong()).toInt()
+        val element = elements.get(index)
+        elements.lazySet(index, null)
+        head.lazySet(currentHead + 1)
+        return element
+    }
+}
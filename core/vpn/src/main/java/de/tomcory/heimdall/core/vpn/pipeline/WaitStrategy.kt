@@ -0,0 +1,65 @@
+package de.tomcory.heimdall.core.vpn.pipeline
+
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Determines what a pipeline stage does while it waits for its ring buffer to become non-empty (consumer) or non-full (producer).
+ * Callers pass the number of consecutive unsuccessful attempts, which is reset as soon as an element could be moved.
+ */
+enum class WaitStrategy {
+
+    /** Busy-spins. Lowest latency, but keeps a core fully busy even when there is no traffic. */
+    SPIN {
+        override fun idle(attempt: Int) {}
+    },
+
+    /** Spins briefly and then yields the CPU to other threads. */
+    YIELD {
+        override fun idle(attempt: Int) {
+            if(attempt > SPIN_ATTEMPTS) {
+                Thread.yield()
+            }
+        }
+    },
+
+    /**
+     * Spins briefly, yields for a while and then parks. Best suited for a battery-powered device: an idle consumer parks
+     * until the producer wakes it (see [shouldBlock]), only a producer waiting for room parks for short periods.
+     */
+    PARK {
+        override val blocking = true
+
+        override fun idle(attempt: Int) {
+            when {
+                attempt <= SPIN_ATTEMPTS -> {}
+                attempt <= SPIN_ATTEMPTS + YIELD_ATTEMPTS -> Thread.yield()
+                else -> LockSupport.parkNanos(PARK_NANOS)
+            }
+        }
+    };
+
+    /**
+     * Waits once according to the strategy.
+     *
+     * @param attempt Number of consecutive unsuccessful attempts so far, starting at 1.
+     */
+    abstract fun idle(attempt: Int)
+
+    /**
+     * Whether the waiting side may park until it is explicitly woken by the other side.
+     */
+    open val blocking = false
+
+    /**
+     * Returns true if a waiting consumer should stop polling and park until it is woken, rather than calling [idle] again.
+     *
+     * @param attempt Number of consecutive unsuccessful attempts so far, starting at 1.
+     */
+    fun shouldBlock(attempt: Int) = blocking && attempt > SPIN_ATTEMPTS + YIELD_ATTEMPTS
+
+    companion object {
+        private const val SPIN_ATTEMPTS = 100
+        private const val YIELD_ATTEMPTS = 100
+        private const val PARK_NANOS = 50_000L
+    }
+}
@@ -0,0 +1,188 @@
+package de.tomcory.heimdall.core.vpn.connection.appLayer
+
+import io.netty.handler.codec.http2.Http2Headers
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class Http2FrameParserTest {
+
+    @Test
+    fun testClientFrames() {
+        val input = concat(
+            Http2FrameParser.PREFACE,
+            frame(TYPE_SETTINGS, 0, 0, hex("00040000ffff")),
+            frame(TYPE_SETTINGS, FLAG_ACK, 0),
+            // a HEADERS frame with priority information, carrying the first request of RFC 7541, Appendix C.3
+            frame(TYPE_HEADERS, FLAG_END_HEADERS or FLAG_PRIORITY, 1, concat(hex("0000000010"), REQUEST_1)),
+            // the second request, which refers to the dynamic table, split into a CONTINUATION frame
+            frame(TYPE_HEADERS, FLAG_END_STREAM, 3, REQUEST_2.copyOfRange(0, 2)),
+            frame(TYPE_CONTINUATION, FLAG_END_HEADERS, 3, REQUEST_2.copyOfRange(2, REQUEST_2.size)),
+            frame(TYPE_DATA, FLAG_END_STREAM or FLAG_PADDED, 1, concat(byteArrayOf(3), "hello".toByteArray(), ByteArray(3))),
+            frame(TYPE_RST_STREAM, 0, 3, hex("00000008")),
+            frame(TYPE_GOAWAY, 0, 0, hex("0000000300000000"))
+        )
+
+        forEachSplit(input, isClient = true) { listener, parser ->
+            assertFalse(parser.isStopped)
+            assertEquals(8, parser.frameCount)
+            assertEquals(listOf(
+                "setting 4 65535",
+                "headers 1 GET http www.example.com / null false",
+                "headers 3 GET http www.example.com / no-cache true",
+                "data 1 hello true",
+                "rst 3 8",
+                "goaway 3 0"
+            ), listener.events)
+        }
+    }
+
+    @Test
+    fun testServerFrames() {
+        val input = concat(
+            frame(TYPE_HEADERS, FLAG_END_HEADERS, 1, hex("88")),
+            frame(TYPE_PUSH_PROMISE, FLAG_END_HEADERS, 1, concat(hex("00000002"), REQUEST_1)),
+            frame(TYPE_DATA, 0, 1, "hel".toByteArray()),
+            frame(TYPE_DATA, FLAG_END_STREAM, 1, "lo".toByteArray())
+        )
+
+        forEachSplit(input, isClient = false) { listener, parser ->
+            assertFalse(parser.isStopped)
+            assertEquals(listOf(
+                "headers 1 200 false",
+                "push 1 2 GET www.example.com /",
+                "data 1 hel false",
+                "data 1 lo true"
+            ), listener.events)
+        }
+    }
+
+    @Test
+    fun testInvalidPreface() {
+        val parser = Http2FrameParser(true, RecordingListener())
+        parser.feed("GET / HTTP/1.1\r\n\r\n".toByteArray())
+
+        assertTrue(parser.isStopped)
+    }
+
+    @Test
+    fun testMaximumFrameSize() {
+        val data = frame(TYPE_DATA, FLAG_END_STREAM, 1, ByteArray(20000))
+
+        val parser = Http2FrameParser(false, RecordingListener())
+        parser.feed(data)
+        assertTrue(parser.isStopped)
+
+        val listener = RecordingListener()
+        val enlarged = Http2FrameParser(false, listener)
+        enlarged.applyPeerSetting(Http2FrameParser.SETTINGS_MAX_FRAME_SIZE, 32768)
+        enlarged.feed(data, 0, 10000)
+        enlarged.feed(data, 10000, data.size - 10000)
+        assertFalse(enlarged.isStopped)
+        assertEquals(1, listener.events.size)
+    }
+
+    @Test
+    fun testInterruptedHeaderBlock() {
+        val parser = Http2FrameParser(false, RecordingListener())
+        parser.feed(concat(
+            frame(TYPE_HEADERS, 0, 1, hex("88")),
+            frame(TYPE_DATA, 0, 1, "hello".toByteArray())
+        ))
+
+        assertTrue(parser.isStopped)
+    }
+
+    /**
+     * Feeds the input to a new parser in two parts for every possible split.
+     */
+    private fun forEachSplit(input: ByteArray, isClient: Boolean, check: (RecordingListener, Http2FrameParser) -> Unit) {
+        for(split in 0..input.size) {
+            val listener = RecordingListener()
+            val parser = Http2FrameParser(isClient, listener)
+            parser.feed(input.copyOfRange(0, split))
+            parser.feed(input.copyOfRange(split, input.size))
+            try {
+                check(listener, parser)
+            } catch (e: AssertionError) {
+                throw AssertionError("Split at $split: ${e.message}", e)
+            }
+        }
+    }
+
+    /**
+     * Records the parsed frames as strings.
+     */
+    private class RecordingListener : Http2FrameParser.Listener {
+        val events = ArrayList<String>()
+
+        override fun onHeaders(streamId: Int, headers: Http2Headers, endStream: Boolean) {
+            events.add(if(headers.status() != null) {
+                "headers $streamId ${headers.status()} $endStream"
+            } else {
+                "headers $streamId ${headers.method()} ${headers.scheme()} ${headers.authority()} ${headers.path()} ${headers.get("cache-control")} $endStream"
+            })
+        }
+
+        override fun onData(streamId: Int, buffer: ByteArray, offset: Int, length: Int, endStream: Boolean) {
+            events.add("data $streamId ${String(buffer, offset, length)} $endStream")
+        }
+
+        override fun onPushPromise(streamId: Int, promisedStreamId: Int, headers: Http2Headers) {
+            events.add("push $streamId $promisedStreamId ${headers.method()} ${headers.authority()} ${headers.path()}")
+        }
+
+        override fun onRstStream(streamId: Int, errorCode: Long) {
+            events.add("rst $streamId $errorCode")
+        }
+
+        override fun onSetting(identifier: Int, value: Long) {
+            events.add("setting $identifier $value")
+        }
+
+        override fun onGoAway(lastStreamId: Int, errorCode: Long) {
+            events.add("goaway $lastStreamId $errorCode")
+        }
+    }
+
+    companion object {
+        private const val TYPE_DATA = 0x0
+        private const val TYPE_HEADERS = 0x1
+        private const val TYPE_RST_STREAM = 0x3
+        private const val TYPE_SETTINGS = 0x4
+        private const val TYPE_PUSH_PROMISE = 0x5
+        private const val TYPE_GOAWAY = 0x7
+        private const val TYPE_CONTINUATION = 0x9
+
+        private const val FLAG_END_STREAM = 0x1
+        private const val FLAG_ACK = 0x1
+        private const val FLAG_END_HEADERS = 0x4
+        private const val FLAG_PADDED = 0x8
+        private const val FLAG_PRIORITY = 0x20
+
+        /** The header blocks of the requests in RFC 7541, Appendix C.3. */
+        private val REQUEST_1 = hex("828684410f7777772e6578616d706c652e636f6d")
+        private val REQUEST_2 = hex("828684be58086e6f2d6361636865")
+
+        private fun frame(type: Int, flags: Int, streamId: Int, payload: ByteArray = ByteArray(0)): ByteArray {
+            val header = byteArrayOf(
+                (payload.size ushr 16).toByte(), (payload.size ushr 8).toByte(), payload.size.toByte(),
+                type.toByte(), flags.toByte(),
+                (streamId ushr 24).toByte(), (streamId ushr 16).toByte(), (streamId ushr 8).toByte(), streamId.toByte()
+            )
+            return concat(header, payload)
+        }
+
+        private fun concat(vararg parts: ByteArray): ByteArray {
+            val stream = ByteArrayOutputStream()
+            parts.forEach { stream.write(it) }
+            return stream.toByteArray()
+        }
+
+        private fun hex(string: String): ByteArray {
+            return ByteArray(string.length / 2) { string.substring(2 * it, 2 * it + 2).toInt(16).toByte() }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package de.tomcory.heimdall.core.vpn.connection.appLayer
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class HttpMessageParserTest {
+
+    @Test
+    fun testRequestWithContentLength() {
+        val input = "POST /upload?id=1 HTTP/1.1\r\nHost:   example.com  \r\nContent-Length: 11\r\n\r\nhello world"
+
+        forEachSplit(input) { listener, parser ->
+            assertEquals(1, parser.messageCount)
+            assertFalse(parser.isInMessage)
+            val message = listener.messages.single()
+            assertEquals("POST /upload?id=1 HTTP/1.1", message.startLine)
+            assertEquals(listOf("POST", "/upload?id=1", "HTTP/1.1"), message.startLineTokens)
+            assertEquals(listOf("Host" to "example.com", "Content-Length" to "11"), message.headers)
+            assertEquals("hello world", message.body)
+            assertTrue(message.complete)
+        }
+    }
+
+    @Test
+    fun testChunkedResponse() {
+        val input = "HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n\r\n" +
+                "4\r\nWiki\r\n7;name=value\r\npedia i\r\nB\r\nn \r\nchunks.\r\n0\r\nExpires: never\r\n\r\n"
+
+        forEachSplit(input, isRequest = false) { listener, parser ->
+            assertEquals(1, parser.messageCount)
+            val message = listener.messages.single()
+            assertEquals(listOf("HTTP/1.1", "200", "OK"), message.startLineTokens)
+            // trailer fields are not reported
+            assertEquals(listOf("Transfer-Encoding" to "gzip, chunked"), message.headers)
+            assertEquals("Wikipedia in \r\nchunks.", message.body)
+            assertTrue(message.complete)
+        }
+    }
+
+    @Test
+    fun testFedByteByByte() {
+        val input = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n1a\r\nabcdefghijklmnopqrstuvwxyz\r\n0\r\n\r\n"
+        val listener = RecordingListener()
+        val parser = HttpMessageParser(false, listener)
+        val bytes = input.toByteArray(Charsets.US_ASCII)
+        for(i in bytes.indices) {
+            parser.feed(bytes, i, 1)
+        }
+
+        assertEquals("abcdefghijklmnopqrstuvwxyz", listener.messages.single().body)
+        assertTrue(listener.messages.single().complete)
+    }
+
+    @Test
+    fun testPipelinedRequests() {
+        val input = "GET /a HTTP/1.1\r\nHost: x\r\n\r\n" +
+                "POST /b HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc" +
+                "\r\nGET /c HTTP/1.1\r\n\r\n"
+
+        forEachSplit(input) { listener, parser ->
+            assertEquals(3, parser.messageCount)
+            assertEquals(listOf("GET /a HTTP/1.1", "POST /b HTTP/1.1", "GET /c HTTP/1.1"), listener.messages.map { it.startLine })
+            assertEquals(listOf("", "abc", ""), listener.messages.map { it.body })
+        }
+    }
+
+    @Test
+    fun testInterimResponsesAreSkipped() {
+        val input = "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+
+        forEachSplit(input, isRequest = false) { listener, parser ->
+            assertEquals(1, parser.messageCount)
+            assertEquals("HTTP/1.1 200 OK", listener.messages.single().startLine)
+            assertEquals("ok", listener.messages.single().body)
+        }
+    }
+
+    @Test
+    fun testResponseDelimitedByEndOfStream() {
+        forEachSplit("HTTP/1.0 200 OK\r\n\r\nhello", isRequest = false) { listener, parser ->
+            assertFalse(listener.messages.single().complete)
+            assertTrue(parser.isInMessage)
+
+            parser.finish()
+            assertTrue(listener.messages.single().complete)
+            assertEquals("hello", listener.messages.single().body)
+        }
+    }
+
+    @Test
+    fun testResponsesWithoutBody() {
+        // a status line without a reason phrase, and the response to a HEAD request, which has a Content-Length but no body
+        val input = "HTTP/1.1 204\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nHTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n"
+        val listener = RecordingListener(noBody = { it.startLine == "HTTP/1.1 200 OK" })
+        val parser = HttpMessageParser(false, listener)
+        parser.feed(input.toByteArray(Charsets.US_ASCII))
+
+        assertEquals(3, parser.messageCount)
+        assertEquals(listOf("HTTP/1.1", "204"), listener.messages[0].startLineTokens)
+        assertTrue(listener.messages.all { it.complete && it.body.isEmpty() })
+    }
+
+    @Test
+    fun testConnectSwitchesToTunnel() {
+        val input = "CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\n\u0016\u0003\u0001\u0000\u0005GET / HTTP/1.1\r\n\r\n"
+
+        forEachSplit(input) { listener, parser ->
+            assertEquals(1, parser.messageCount)
+            assertTrue(parser.isStopped)
+            assertEquals("CONNECT example.com:443 HTTP/1.1", listener.messages.single().startLine)
+        }
+    }
+
+    @Test
+    fun testTunnelAfterCurrentMessage() {
+        val listener = RecordingListener()
+        val parser = HttpMessageParser(true, listener)
+        parser.feed("GET /chat HTTP/1.1\r\nUpgrade: websocket\r\n".toByteArray(Charsets.US_ASCII))
+        parser.tunnel()
+        parser.feed("\r\n\u0081\u0005hello".toByteArray(Charsets.ISO_8859_1))
+
+        assertEquals(1, parser.messageCount)
+        assertTrue(parser.isStopped)
+    }
+
+    @Test
+    fun testSyntaxErrorsStopTheParser() {
+        val listener = RecordingListener()
+        val parser = HttpMessageParser(false, listener)
+        parser.feed("SSH-2.0-OpenSSH_9.6\r\nHTTP/1.1 200 OK\r\n\r\n".toByteArray(Charsets.US_ASCII))
+
+        assertTrue(parser.isStopped)
+        assertEquals(0, parser.messageCount)
+        assertTrue(listener.messages.isEmpty())
+
+        val invalidStatus = HttpMessageParser(false, RecordingListener())
+        invalidStatus.feed("HTTP/1.1 2x0 OK\r\n\r\n".toByteArray(Charsets.US_ASCII))
+        assertTrue(invalidStatus.isStopped)
+    }
+
+    /**
+     * Feeds the input to a new parser in two parts for every possible split, and once in a single part.
+     */
+    private fun forEachSplit(input: String, isRequest: Boolean = true, check: (RecordingListener, HttpMessageParser) -> Unit) {
+        val bytes = input.toByteArray(Charsets.ISO_8859_1)
+        for(split in 0..bytes.size) {
+            val listener = RecordingListener()
+            val parser = HttpMessageParser(isRequest, listener)
+            // the parts are fed from separate arrays, as the parser must not keep references to the buffers it was fed
+            parser.feed(bytes.copyOfRange(0, split))
+            parser.feed(bytes.copyOfRange(split, bytes.size))
+            try {
+                check(listener, parser)
+            } catch (e: AssertionError) {
+                throw AssertionError("Split at $split: ${e.message}", e)
+            }
+        }
+    }
+
+    private class Message(val startLine: String, val startLineTokens: List<String>) {
+        val headers = ArrayList<Pair<String, String>>()
+        private val bodyBytes = ByteArrayOutputStream()
+        var complete = false
+
+        val body: String
+            get() = bodyBytes.toString(Charsets.ISO_8859_1.name())
+
+        fun appendBody(buffer: ByteArray, offset: Int, length: Int) {
+            bodyBytes.write(buffer, offset, length)
+        }
+    }
+
+    /**
+     * Records the parsed messages, copying the slices passed to it.
+     */
+    private class RecordingListener(private val noBody: (Message) -> Boolean = { false }) : HttpMessageParser.Listener {
+        val messages = ArrayList<Message>()
+
+        override fun onStartLine(line: ByteArray, offset: Int, length: Int, firstSpace: Int, secondSpace: Int) {
+            val end = offset + length
+            val tokens = if(secondSpace < 0) {
+                listOf(slice(line, offset, firstSpace), slice(line, firstSpace + 1, end))
+            } else {
+                listOf(slice(line, offset, firstSpace), slice(line, firstSpace + 1, secondSpace), slice(line, secondSpace + 1, end))
+            }
+            messages.add(Message(slice(line, offset, end), tokens))
+        }
+
+        override fun onHeader(line: ByteArray, nameOffset: Int, nameLength: Int, valueOffset: Int, valueLength: Int) {
+            messages.last().headers.add(slice(line, nameOffset, nameOffset + nameLength) to slice(line, valueOffset, valueOffset + valueLength))
+        }
+
+        override fun onHeadersComplete(): Boolean = noBody(messages.last())
+
+        override fun onBody(buffer: ByteArray, offset: Int, length: Int) {
+            messages.last().appendBody(buffer, offset, length)
+        }
+
+        override fun onMessageComplete() {
+            messages.last().complete = true
+        }
+
+        private fun slice(buffer: ByteArray, start: Int, end: Int) = String(buffer, start, end - start, Charsets.ISO_8859_1)
+    }
+}